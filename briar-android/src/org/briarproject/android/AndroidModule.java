@@ -20,6 +20,12 @@ import com.google.inject.Provides;
 
 public class AndroidModule extends AbstractModule {
 
+	/**
+	 * Transactions that commit within this many milliseconds of each other
+	 * are synced to disk together.
+	 */
+	private static final long MAX_COMMIT_DELAY = 20;
+
 	private final UiCallback uiCallback;
 
 	public AndroidModule() {
@@ -75,6 +81,14 @@ public class AndroidModule extends AbstractModule {
 			public long getMaxSize() {
 				return Long.MAX_VALUE;
 			}
+
+			public long getMaxCommitDelay() {
+				return MAX_COMMIT_DELAY;
+			}
+
+			public boolean useBlobStore() {
+				return false;
+			}
 		};
 	}
 
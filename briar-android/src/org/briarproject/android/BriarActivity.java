@@ -15,6 +15,7 @@ import org.briarproject.android.BriarService.BriarBinder;
 import org.briarproject.android.BriarService.BriarServiceConnection;
 import org.briarproject.api.db.DatabaseConfig;
 import org.briarproject.api.db.DatabaseExecutor;
+import org.briarproject.api.db.ReadOnlyDatabaseTask;
 import org.briarproject.api.lifecycle.LifecycleManager;
 
 import roboguice.activity.RoboActivity;
@@ -116,18 +117,11 @@ public class BriarActivity extends RoboActivity {
 		});
 	}
 
-	protected void runOnDbThread(final Runnable task) {
-		dbExecutor.execute(new Runnable() {
-			public void run() {
-				try {
-					lifecycleManager.waitForDatabase();
-					task.run();
-				} catch(InterruptedException e) {
-					LOG.warning("Interrupted while waiting for database");
-					Thread.currentThread().interrupt();
-				}
-			}
-		});
+	protected void runOnDbThread(Runnable task) {
+		// Preserve the classification of read-only tasks
+		if(task instanceof ReadOnlyDatabaseTask)
+			dbExecutor.execute(new ReadOnlyDatabaseWrapper(task));
+		else dbExecutor.execute(new DatabaseWrapper(task));
 	}
 
 	protected void finishOnUiThread() {
@@ -142,4 +136,32 @@ public class BriarActivity extends RoboActivity {
 		Object o = getSystemService(INPUT_METHOD_SERVICE);
 		((InputMethodManager) o).toggleSoftInput(HIDE_IMPLICIT_ONLY, 0);
 	}
+
+	/** Runs a task after waiting for the database to be opened. */
+	private class DatabaseWrapper implements Runnable {
+
+		private final Runnable task;
+
+		private DatabaseWrapper(Runnable task) {
+			this.task = task;
+		}
+
+		public void run() {
+			try {
+				lifecycleManager.waitForDatabase();
+				task.run();
+			} catch(InterruptedException e) {
+				LOG.warning("Interrupted while waiting for database");
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private class ReadOnlyDatabaseWrapper extends DatabaseWrapper
+	implements ReadOnlyDatabaseTask {
+
+		private ReadOnlyDatabaseWrapper(Runnable task) {
+			super(task);
+		}
+	}
 }
@@ -26,8 +26,10 @@ import org.briarproject.api.event.Event;
 import org.briarproject.api.event.EventBus;
 import org.briarproject.api.event.EventListener;
 import org.briarproject.api.event.MessageAddedEvent;
+import org.briarproject.api.event.MessagesAddedEvent;
 import org.briarproject.api.lifecycle.LifecycleManager;
 import org.briarproject.api.lifecycle.LifecycleManager.StartResult;
+import org.briarproject.api.messaging.Group;
 import org.briarproject.api.messaging.GroupId;
 
 import roboguice.service.RoboService;
@@ -169,6 +171,10 @@ public class BriarService extends RoboService implements EventListener {
 			GroupId g = m.getGroup().getId();
 			ContactId c = m.getContactId();
 			if(c != null) showMessageNotification(g, c);
+		} else if(e instanceof MessagesAddedEvent) {
+			MessagesAddedEvent m = (MessagesAddedEvent) e;
+			ContactId c = m.getContactId();
+			for(Group g : m.getGroups()) showMessageNotification(g.getId(), c);
 		}
 	}
 
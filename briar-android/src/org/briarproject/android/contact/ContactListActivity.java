@@ -24,12 +24,12 @@ import org.briarproject.android.invitation.AddContactActivity;
 import org.briarproject.android.util.HorizontalBorder;
 import org.briarproject.android.util.ListLoadingProgressBar;
 import org.briarproject.api.AuthorId;
-import org.briarproject.api.Contact;
 import org.briarproject.api.ContactId;
+import org.briarproject.api.db.ContactSummary;
 import org.briarproject.api.db.DatabaseComponent;
 import org.briarproject.api.db.DbException;
-import org.briarproject.api.db.MessageHeader;
 import org.briarproject.api.db.NoSuchContactException;
+import org.briarproject.api.db.ReadOnlyDatabaseTask;
 import org.briarproject.api.event.ContactAddedEvent;
 import org.briarproject.api.event.ContactConnectedEvent;
 import org.briarproject.api.event.ContactDisconnectedEvent;
@@ -39,6 +39,7 @@ import org.briarproject.api.event.EventBus;
 import org.briarproject.api.event.EventListener;
 import org.briarproject.api.event.MessageAddedEvent;
 import org.briarproject.api.event.MessageExpiredEvent;
+import org.briarproject.api.event.MessagesAddedEvent;
 import org.briarproject.api.messaging.GroupId;
 import org.briarproject.api.plugins.ConnectionRegistry;
 
@@ -134,24 +135,16 @@ EventListener {
 
 	private void loadContacts() {
 		clearContacts();
-		runOnDbThread(new Runnable() {
+		runOnDbThread(new ReadOnlyDatabaseTask() {
 			public void run() {
 				try {
 					long now = System.currentTimeMillis();
-					for(Contact c : db.getContacts()) {
-						try {
-							GroupId inbox = db.getInboxGroupId(c.getId());
-							Collection<MessageHeader> headers =
-									db.getInboxMessageHeaders(c.getId());
-							displayContact(c, inbox, headers);
-						} catch(NoSuchContactException e) {
-							// Continue
-						}
-					}
+					Collection<ContactSummary> summaries =
+							db.getContactSummaries();
 					long duration = System.currentTimeMillis() - now;
 					if(LOG.isLoggable(INFO))
 						LOG.info("Full load took " + duration + " ms");
-					hideProgressBar();
+					displayContacts(summaries);
 				} catch(DbException e) {
 					if(LOG.isLoggable(WARNING))
 						LOG.log(WARNING, e.toString(), e);
@@ -172,27 +165,17 @@ EventListener {
 		});
 	}
 
-	private void displayContact(final Contact c,
-			final GroupId inbox, final Collection<MessageHeader> headers) {
+	private void displayContacts(final Collection<ContactSummary> summaries) {
 		runOnUiThread(new Runnable() {
 			public void run() {
-				list.setVisibility(VISIBLE);
-				loading.setVisibility(GONE);
-				boolean connected = connectionRegistry.isConnected(c.getId());
-				// Remove the old item, if any
-				ContactListItem item = findItem(c.getId());
-				if(item != null) adapter.remove(item);
-				// Add a new item
-				adapter.add(new ContactListItem(c, connected, inbox, headers));
+				adapter.clear();
+				for(ContactSummary s : summaries) {
+					ContactId c = s.getContact().getId();
+					boolean connected = connectionRegistry.isConnected(c);
+					adapter.add(new ContactListItem(s, connected));
+				}
 				adapter.sort(ContactListItemComparator.INSTANCE);
 				adapter.notifyDataSetChanged();
-			}
-		});
-	}
-
-	private void hideProgressBar() {
-		runOnUiThread(new Runnable() {
-			public void run() {
 				if(adapter.isEmpty()) empty.setVisibility(VISIBLE);
 				else list.setVisibility(VISIBLE);
 				loading.setVisibility(GONE);
@@ -282,6 +265,9 @@ EventListener {
 			ContactId source = ((MessageAddedEvent) e).getContactId();
 			if(source == null) loadContacts();
 			else reloadContact(source);
+		} else if(e instanceof MessagesAddedEvent) {
+			LOG.info("Messages added, reloading");
+			reloadContact(((MessagesAddedEvent) e).getContactId());
 		} else if(e instanceof MessageExpiredEvent) {
 			LOG.info("Message expired, reloading");
 			loadContacts();
@@ -289,16 +275,15 @@ EventListener {
 	}
 
 	private void reloadContact(final ContactId c) {
-		runOnDbThread(new Runnable() {
+		runOnDbThread(new ReadOnlyDatabaseTask() {
 			public void run() {
 				try {
 					long now = System.currentTimeMillis();
-					Collection<MessageHeader> headers =
-							db.getInboxMessageHeaders(c);
+					ContactSummary summary = db.getContactSummary(c);
 					long duration = System.currentTimeMillis() - now;
 					if(LOG.isLoggable(INFO))
 						LOG.info("Partial load took " + duration + " ms");
-					updateItem(c, headers);
+					updateItem(c, summary);
 				} catch(NoSuchContactException e) {
 					removeItem(c);
 				} catch(DbException e) {
@@ -309,13 +294,12 @@ EventListener {
 		});
 	}
 
-	private void updateItem(final ContactId c,
-			final Collection<MessageHeader> headers) {
+	private void updateItem(final ContactId c, final ContactSummary summary) {
 		runOnUiThread(new Runnable() {
 			public void run() {
 				ContactListItem item = findItem(c);
 				if(item != null) {
-					item.setHeaders(headers);
+					item.setSummary(summary);
 					adapter.notifyDataSetChanged();
 				}
 			}
@@ -1,9 +1,7 @@
 package org.briarproject.android.contact;
 
-import java.util.Collection;
-
 import org.briarproject.api.Contact;
-import org.briarproject.api.db.MessageHeader;
+import org.briarproject.api.db.ContactSummary;
 import org.briarproject.api.messaging.GroupId;
 
 // This class is not thread-safe
@@ -15,24 +13,17 @@ class ContactListItem {
 	private long timestamp;
 	private int unread;
 
-	ContactListItem(Contact contact, boolean connected, GroupId inbox,
-			Collection<MessageHeader> headers) {
-		this.contact = contact;
-		this.inbox = inbox;
+	ContactListItem(ContactSummary summary, boolean connected) {
+		contact = summary.getContact();
+		inbox = summary.getInboxGroupId();
 		this.connected = connected;
-		setHeaders(headers);
+		setSummary(summary);
 	}
 
-	void setHeaders(Collection<MessageHeader> headers) {
-		empty = headers.isEmpty();
-		timestamp = 0;
-		unread = 0;
-		if(!empty) {
-			for(MessageHeader h : headers) {
-				if(h.getTimestamp() > timestamp) timestamp = h.getTimestamp();
-				if(!h.isRead()) unread++;
-			}
-		}
+	void setSummary(ContactSummary summary) {
+		empty = summary.isEmpty();
+		timestamp = summary.getTimestamp();
+		unread = summary.getUnreadCount();
 	}
 
 	Contact getContact() {
@@ -22,10 +22,11 @@ import java.security.GeneralSecurityException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.Executor;
 import java.util.logging.Logger;
@@ -46,7 +47,6 @@ import org.briarproject.api.db.DatabaseComponent;
 import org.briarproject.api.db.DbException;
 import org.briarproject.api.db.MessageHeader;
 import org.briarproject.api.db.NoSuchContactException;
-import org.briarproject.api.db.NoSuchMessageException;
 import org.briarproject.api.db.NoSuchSubscriptionException;
 import org.briarproject.api.event.ContactRemovedEvent;
 import org.briarproject.api.event.Event;
@@ -55,6 +55,7 @@ import org.briarproject.api.event.EventListener;
 import org.briarproject.api.event.MessageAddedEvent;
 import org.briarproject.api.event.MessageExpiredEvent;
 import org.briarproject.api.event.MessagesAckedEvent;
+import org.briarproject.api.event.MessagesAddedEvent;
 import org.briarproject.api.messaging.Group;
 import org.briarproject.api.messaging.GroupId;
 import org.briarproject.api.messaging.Message;
@@ -82,12 +83,13 @@ public class ConversationActivity extends BriarActivity
 implements EventListener, OnClickListener, OnItemClickListener {
 
 	private static final int REQUEST_READ = 2;
+	private static final int MAX_CACHED_BODIES = 100;
 	private static final Logger LOG =
 			Logger.getLogger(ConversationActivity.class.getName());
 
 	@Inject private AndroidNotificationManager notificationManager;
 	@Inject @CryptoExecutor private Executor cryptoExecutor;
-	private Map<MessageId, byte[]> bodyCache = new HashMap<MessageId, byte[]>();
+	private final Map<MessageId, byte[]> bodyCache = new BodyCache();
 	private TextView empty = null;
 	private ConversationAdapter adapter = null;
 	private ListView list = null;
@@ -265,34 +267,36 @@ implements EventListener, OnClickListener, OnItemClickListener {
 				} else {
 					empty.setVisibility(GONE);
 					list.setVisibility(VISIBLE);
+					List<MessageId> missing = new ArrayList<MessageId>();
 					for(MessageHeader h : headers) {
 						ConversationItem item = new ConversationItem(h);
 						byte[] body = bodyCache.get(h.getId());
-						if(body == null) loadMessageBody(h);
+						if(body == null) missing.add(h.getId());
 						else item.setBody(body);
 						adapter.add(item);
 					}
 					adapter.sort(ConversationItemComparator.INSTANCE);
 					// Scroll to the bottom
 					list.setSelection(adapter.getCount() - 1);
+					if(!missing.isEmpty()) loadMessageBodies(missing);
 				}
 				adapter.notifyDataSetChanged();
 			}
 		});
 	}
 
-	private void loadMessageBody(final MessageHeader h) {
+	private void loadMessageBodies(final Collection<MessageId> ids) {
 		runOnDbThread(new Runnable() {
 			public void run() {
 				try {
 					long now = System.currentTimeMillis();
-					byte[] body = db.getMessageBody(h.getId());
+					Map<MessageId, byte[]> bodies = db.getMessageBodies(ids);
 					long duration = System.currentTimeMillis() - now;
-					if(LOG.isLoggable(INFO))
-						LOG.info("Loading message took " + duration + " ms");
-					displayMessageBody(h.getId(), body);
-				} catch(NoSuchMessageException e) {
-					// The item will be removed when we get the event
+					if(LOG.isLoggable(INFO)) {
+						LOG.info("Loading " + bodies.size() + " messages took "
+								+ duration + " ms");
+					}
+					displayMessageBodies(bodies);
 				} catch(DbException e) {
 					if(LOG.isLoggable(WARNING))
 						LOG.log(WARNING, e.toString(), e);
@@ -301,21 +305,25 @@ implements EventListener, OnClickListener, OnItemClickListener {
 		});
 	}
 
-	private void displayMessageBody(final MessageId m, final byte[] body) {
+	private void displayMessageBodies(final Map<MessageId, byte[]> bodies) {
 		runOnUiThread(new Runnable() {
 			public void run() {
-				bodyCache.put(m, body);
+				bodyCache.putAll(bodies);
+				boolean changed = false;
 				int count = adapter.getCount();
 				for(int i = 0; i < count; i++) {
 					ConversationItem item = adapter.getItem(i);
-					if(item.getHeader().getId().equals(m)) {
+					byte[] body = bodies.get(item.getHeader().getId());
+					if(body != null) {
 						item.setBody(body);
-						adapter.notifyDataSetChanged();
-						// Scroll to the bottom
-						list.setSelection(count - 1);
-						return;
+						changed = true;
 					}
 				}
+				if(changed) {
+					adapter.notifyDataSetChanged();
+					// Scroll to the bottom
+					list.setSelection(count - 1);
+				}
 			}
 		});
 	}
@@ -356,7 +364,7 @@ implements EventListener, OnClickListener, OnItemClickListener {
 			public void run() {
 				try {
 					long now = System.currentTimeMillis();
-					for(MessageId m : unread) db.setReadFlag(m, true);
+					db.setReadFlags(unread, true);
 					long duration = System.currentTimeMillis() - now;
 					if(LOG.isLoggable(INFO))
 						LOG.info("Marking read took " + duration + " ms");
@@ -381,6 +389,14 @@ implements EventListener, OnClickListener, OnItemClickListener {
 				LOG.info("Message added, reloading");
 				loadHeaders();
 			}
+		} else if(e instanceof MessagesAddedEvent) {
+			for(Group g : ((MessagesAddedEvent) e).getGroups()) {
+				if(g.getId().equals(groupId)) {
+					LOG.info("Messages added, reloading");
+					loadHeaders();
+					break;
+				}
+			}
 		} else if(e instanceof MessageExpiredEvent) {
 			LOG.info("Message expired, reloading");
 			loadHeaders();
@@ -487,4 +503,20 @@ implements EventListener, OnClickListener, OnItemClickListener {
 		i.putExtra("briar.POSITION", position);
 		startActivityForResult(i, REQUEST_READ);
 	}
+
+	// Keeps the most recently used message bodies. This class is not
+	// thread-safe, so it must only be accessed from the UI thread
+	private static class BodyCache extends LinkedHashMap<MessageId, byte[]> {
+
+		private static final long serialVersionUID = -3614850426734178463L;
+
+		private BodyCache() {
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Entry<MessageId, byte[]> eldest) {
+			return size() > MAX_CACHED_BODIES;
+		}
+	}
 }
@@ -39,6 +39,7 @@ import org.briarproject.api.event.EventBus;
 import org.briarproject.api.event.EventListener;
 import org.briarproject.api.event.MessageAddedEvent;
 import org.briarproject.api.event.MessageExpiredEvent;
+import org.briarproject.api.event.MessagesAddedEvent;
 import org.briarproject.api.event.SubscriptionRemovedEvent;
 import org.briarproject.api.messaging.Group;
 import org.briarproject.api.messaging.GroupId;
@@ -315,6 +316,14 @@ OnClickListener, OnItemClickListener {
 				LOG.info("Message added, reloading");
 				loadHeaders();
 			}
+		} else if(e instanceof MessagesAddedEvent) {
+			for(Group g : ((MessagesAddedEvent) e).getGroups()) {
+				if(g.getId().equals(groupId)) {
+					LOG.info("Messages added, reloading");
+					loadHeaders();
+					break;
+				}
+			}
 		} else if(e instanceof MessageExpiredEvent) {
 			LOG.info("Message expired, reloading");
 			loadHeaders();
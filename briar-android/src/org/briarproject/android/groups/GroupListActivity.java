@@ -29,11 +29,13 @@ import org.briarproject.api.db.DatabaseComponent;
 import org.briarproject.api.db.DbException;
 import org.briarproject.api.db.MessageHeader;
 import org.briarproject.api.db.NoSuchSubscriptionException;
+import org.briarproject.api.db.ReadOnlyDatabaseTask;
 import org.briarproject.api.event.Event;
 import org.briarproject.api.event.EventBus;
 import org.briarproject.api.event.EventListener;
 import org.briarproject.api.event.MessageAddedEvent;
 import org.briarproject.api.event.MessageExpiredEvent;
+import org.briarproject.api.event.MessagesAddedEvent;
 import org.briarproject.api.event.RemoteSubscriptionsUpdatedEvent;
 import org.briarproject.api.event.SubscriptionAddedEvent;
 import org.briarproject.api.event.SubscriptionRemovedEvent;
@@ -151,21 +153,20 @@ implements EventListener, OnClickListener, OnItemClickListener {
 
 	private void loadHeaders() {
 		clearHeaders();
-		runOnDbThread(new Runnable() {
+		runOnDbThread(new ReadOnlyDatabaseTask() {
 			public void run() {
 				try {
 					int availableCount = 0;
 					long now = System.currentTimeMillis();
+					// Load the newest header and unread count for every group
+					Map<GroupId, MessageHeader> latest =
+							db.getLatestMessageHeaders();
+					Map<GroupId, Integer> unread = db.getUnreadMessageCounts();
 					for(GroupStatus s : db.getAvailableGroups()) {
 						Group g = s.getGroup();
 						if(s.isSubscribed()) {
-							try {
-								Collection<MessageHeader> headers =
-										db.getMessageHeaders(g.getId());
-								displayHeaders(g, headers);
-							} catch(NoSuchSubscriptionException e) {
-								// Continue
-							}
+							GroupId id = g.getId();
+							displayHeader(g, latest.get(id), unread.get(id));
 						} else {
 							availableCount++;
 						}
@@ -196,8 +197,8 @@ implements EventListener, OnClickListener, OnItemClickListener {
 		});
 	}
 
-	private void displayHeaders(final Group g,
-			final Collection<MessageHeader> headers) {
+	private void displayHeader(final Group g, final MessageHeader newest,
+			final Integer unread) {
 		runOnUiThread(new Runnable() {
 			public void run() {
 				GroupId id = g.getId();
@@ -208,7 +209,8 @@ implements EventListener, OnClickListener, OnItemClickListener {
 				GroupListItem item = findGroup(id);
 				if(item != null) adapter.remove(item);
 				// Add a new item
-				adapter.add(new GroupListItem(g, headers));
+				int unreadCount = unread == null ? 0 : unread;
+				adapter.add(new GroupListItem(g, newest, unreadCount));
 				adapter.sort(GroupListItemComparator.INSTANCE);
 				adapter.notifyDataSetChanged();
 				selectFirstUnread();
@@ -267,6 +269,13 @@ implements EventListener, OnClickListener, OnItemClickListener {
 				LOG.info("Message added, reloading");
 				loadHeaders(g);
 			}
+		} else if(e instanceof MessagesAddedEvent) {
+			for(Group g : ((MessagesAddedEvent) e).getGroups()) {
+				if(groups.containsKey(g.getId())) {
+					LOG.info("Messages added, reloading");
+					loadHeaders(g);
+				}
+			}
 		} else if(e instanceof MessageExpiredEvent) {
 			LOG.info("Message expired, reloading");
 			loadHeaders();
@@ -287,16 +296,20 @@ implements EventListener, OnClickListener, OnItemClickListener {
 	}
 
 	private void loadHeaders(final Group g) {
-		runOnDbThread(new Runnable() {
+		runOnDbThread(new ReadOnlyDatabaseTask() {
 			public void run() {
 				try {
 					long now = System.currentTimeMillis();
+					GroupId id = g.getId();
 					Collection<MessageHeader> headers =
-							db.getMessageHeaders(g.getId());
+							db.getMessageHeaders(id, null, 1);
+					MessageHeader newest = null;
+					if(!headers.isEmpty()) newest = headers.iterator().next();
+					Integer unread = db.getUnreadMessageCounts().get(id);
 					long duration = System.currentTimeMillis() - now;
 					if(LOG.isLoggable(INFO))
 						LOG.info("Partial load took " + duration + " ms");
-					displayHeaders(g, headers);
+					displayHeader(g, newest, unread);
 				} catch(NoSuchSubscriptionException e) {
 					removeGroup(g.getId());
 				} catch(DbException e) {
@@ -327,7 +340,7 @@ implements EventListener, OnClickListener, OnItemClickListener {
 	}
 
 	private void loadAvailable() {
-		runOnDbThread(new Runnable() {
+		runOnDbThread(new ReadOnlyDatabaseTask() {
 			public void run() {
 				try {
 					int available = 0;
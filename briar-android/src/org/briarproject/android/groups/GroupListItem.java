@@ -1,7 +1,5 @@
 package org.briarproject.android.groups;
 
-import java.util.Collection;
-
 import org.briarproject.api.Author;
 import org.briarproject.api.db.MessageHeader;
 import org.briarproject.api.messaging.Group;
@@ -14,30 +12,20 @@ class GroupListItem {
 	private final long timestamp;
 	private final int unread;
 
-	GroupListItem(Group group, Collection<MessageHeader> headers) {
+	GroupListItem(Group group, MessageHeader newest, int unread) {
 		this.group = group;
-		empty = headers.isEmpty();
+		empty = newest == null;
 		if(empty) {
 			authorName = null;
 			contentType = null;
 			timestamp = 0;
-			unread = 0;
+			this.unread = 0;
 		} else {
-			MessageHeader newest = null;
-			long timestamp = 0;
-			int unread = 0;
-			for(MessageHeader h : headers) {
-				if(h.getTimestamp() > timestamp) {
-					timestamp = h.getTimestamp();
-					newest = h;
-				}
-				if(!h.isRead()) unread++;
-			}
 			Author a = newest.getAuthor();
 			if(a == null) authorName = null;
 			else authorName = a.getName();
 			contentType = newest.getContentType();
-			this.timestamp = newest.getTimestamp();
+			timestamp = newest.getTimestamp();
 			this.unread = unread;
 		}
 	}
@@ -7,7 +7,10 @@ public interface AuthenticatedCipher {
 
 	/**
 	 * Initializes this cipher with a key, an initialisation vector (IV) and
-	 * additional authenticated data (AAD).
+	 * additional authenticated data (AAD). If the key is the same object that
+	 * was passed to the previous call, the cipher's existing key state is
+	 * reused, so callers should pass the same key object for every frame of
+	 * a stream.
 	 */
 	void init(boolean encrypt, SecretKey key, byte[] iv, byte[] aad)
 			throws GeneralSecurityException;
@@ -77,6 +77,12 @@ public interface CryptoComponent {
 	 */
 	SecretKey deriveFrameKey(byte[] secret, long streamNumber, boolean alice);
 
+	/**
+	 * Derives a key for encrypting the messages that the database stores
+	 * outside its own files from the given database key.
+	 */
+	SecretKey deriveBlobKey(byte[] databaseKey);
+
 	/** Returns a cipher for encrypting and authenticating frames. */
 	AuthenticatedCipher getFrameCipher();
 
@@ -0,0 +1,15 @@
+package org.briarproject.api.db;
+
+import org.briarproject.api.ContactId;
+
+/**
+ * A task for the {@link DatabaseExecutor} that only affects a single contact.
+ * Tasks for the same contact are executed in the order they're submitted and
+ * are not executed concurrently, but tasks for different contacts may be
+ * executed concurrently.
+ */
+public interface ContactDatabaseTask extends Runnable {
+
+	/** Returns the ID of the contact affected by the task. */
+	ContactId getContactId();
+}
@@ -0,0 +1,54 @@
+package org.briarproject.api.db;
+
+import org.briarproject.api.Contact;
+import org.briarproject.api.messaging.GroupId;
+
+/** A contact and a summary of the contact's inbox. */
+public class ContactSummary {
+
+	private final Contact contact;
+	private final GroupId inbox;
+	private final long timestamp;
+	private final int unread;
+	private final boolean empty;
+
+	public ContactSummary(Contact contact, GroupId inbox, long timestamp,
+			int unread, boolean empty) {
+		this.contact = contact;
+		this.inbox = inbox;
+		this.timestamp = timestamp;
+		this.unread = unread;
+		this.empty = empty;
+	}
+
+	/** Returns the contact. */
+	public Contact getContact() {
+		return contact;
+	}
+
+	/**
+	 * Returns the ID of the contact's inbox group, or null if no inbox group
+	 * has been set.
+	 */
+	public GroupId getInboxGroupId() {
+		return inbox;
+	}
+
+	/**
+	 * Returns the timestamp of the newest message in the contact's inbox, or
+	 * zero if the inbox is empty.
+	 */
+	public long getTimestamp() {
+		return timestamp;
+	}
+
+	/** Returns the number of unread messages in the contact's inbox. */
+	public int getUnreadCount() {
+		return unread;
+	}
+
+	/** Returns true if the contact's inbox contains no messages. */
+	public boolean isEmpty() {
+		return empty;
+	}
+}
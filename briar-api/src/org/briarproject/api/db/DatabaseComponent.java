@@ -28,6 +28,7 @@ import org.briarproject.api.messaging.SubscriptionUpdate;
 import org.briarproject.api.messaging.TransportAck;
 import org.briarproject.api.messaging.TransportUpdate;
 import org.briarproject.api.transport.Endpoint;
+import org.briarproject.api.transport.ReorderingWindowUpdate;
 import org.briarproject.api.transport.TemporarySecret;
 
 /**
@@ -84,8 +85,12 @@ public interface DatabaseComponent {
 	/**
 	 * Returns a batch of raw messages for the given contact, with a total
 	 * length less than or equal to the given length, for transmission over a
-	 * transport with the given maximum latency. Returns null if there are no
-	 * sendable messages that fit in the given length.
+	 * transport with the given maximum latency. If the next sendable message
+	 * is longer than the given length, a batch containing only that message
+	 * is returned, so the given length may be smaller than
+	 * {@link org.briarproject.api.messaging.MessagingConstants#MAX_PACKET_LENGTH
+	 * MAX_PACKET_LENGTH} to page through the sendable messages. Returns null
+	 * if there are no sendable messages.
 	 */
 	Collection<byte[]> generateBatch(ContactId c, int maxLength,
 			long maxLatency) throws DbException;
@@ -108,8 +113,9 @@ public interface DatabaseComponent {
 	 * Returns a batch of raw messages for the given contact, with a total
 	 * length less than or equal to the given length, for transmission over a
 	 * transport with the given maximum latency. Only messages that have been
-	 * requested by the contact are returned. Returns null if there are no
-	 * sendable messages that fit in the given length.
+	 * requested by the contact are returned. If the next sendable message is
+	 * longer than the given length, a batch containing only that message is
+	 * returned. Returns null if there are no sendable messages.
 	 */
 	Collection<byte[]> generateRequestedBatch(ContactId c, int maxLength,
 			long maxLatency) throws DbException;
@@ -169,6 +175,15 @@ public interface DatabaseComponent {
 	/** Returns the contact with the given ID. */
 	Contact getContact(ContactId c) throws DbException;
 
+	/** Returns a summary of the given contact and the contact's inbox. */
+	ContactSummary getContactSummary(ContactId c) throws DbException;
+
+	/**
+	 * Returns a summary of each contact and the contact's inbox, using a
+	 * single query rather than reading every contact's inbox.
+	 */
+	Collection<ContactSummary> getContactSummaries() throws DbException;
+
 	/** Returns all contacts. */
 	Collection<Contact> getContacts() throws DbException;
 
@@ -191,6 +206,20 @@ public interface DatabaseComponent {
 	Collection<MessageHeader> getInboxMessageHeaders(ContactId c)
 			throws DbException;
 
+	/**
+	 * Returns the headers of up to the given number of messages in the inbox
+	 * group for the given contact, newest first, starting after the given
+	 * header, or with the newest message if the given header is null.
+	 */
+	Collection<MessageHeader> getInboxMessageHeaders(ContactId c,
+			MessageHeader after, int maxMessages) throws DbException;
+
+	/**
+	 * Returns the header of the newest message in each subscribed group that
+	 * contains any messages.
+	 */
+	Map<GroupId, MessageHeader> getLatestMessageHeaders() throws DbException;
+
 	/** Returns the local pseudonym with the given ID. */
 	LocalAuthor getLocalAuthor(AuthorId a) throws DbException;
 
@@ -207,10 +236,25 @@ public interface DatabaseComponent {
 	/** Returns the body of the message with the given ID. */
 	byte[] getMessageBody(MessageId m) throws DbException;
 
+	/**
+	 * Returns the bodies of the messages with the given IDs, using a single
+	 * transaction. Any messages that no longer exist are omitted.
+	 */
+	Map<MessageId, byte[]> getMessageBodies(Collection<MessageId> m)
+			throws DbException;
+
 	/** Returns the headers of all messages in the given group. */
 	Collection<MessageHeader> getMessageHeaders(GroupId g)
 			throws DbException;
 
+	/**
+	 * Returns the headers of up to the given number of messages in the given
+	 * group, newest first, starting after the given header, or with the
+	 * newest message if the given header is null.
+	 */
+	Collection<MessageHeader> getMessageHeaders(GroupId g,
+			MessageHeader after, int maxMessages) throws DbException;
+
 	/** Returns true if the given message is marked as read. */
 	boolean getReadFlag(MessageId m) throws DbException;
 
@@ -237,12 +281,13 @@ public interface DatabaseComponent {
 	Collection<ContactId> getVisibility(GroupId g) throws DbException;
 
 	/**
-	 * Increments the outgoing stream counter for the given endpoint in the
-	 * given rotation period and returns the old value, or -1 if the counter
-	 * does not exist.
+	 * Adds the given amount to the outgoing stream counter for the given
+	 * endpoint in the given rotation period and returns the old value, or -1
+	 * if the counter does not exist. The caller may use the stream numbers
+	 * from the old value up to but not including the new value.
 	 */
-	long incrementStreamCounter(ContactId c, TransportId t, long period)
-			throws DbException;
+	long incrementStreamCounter(ContactId c, TransportId t, long period,
+			int increment) throws DbException;
 
 	/**
 	 * Merges the given configuration with existing configuration for the
@@ -260,12 +305,36 @@ public interface DatabaseComponent {
 	/** Merges the given settings with the existing settings. */
 	void mergeSettings(Settings s) throws DbException;
 
+	/**
+	 * Returns false if the given message is definitely not stored, or true
+	 * if it may be stored. This method doesn't access the database, so it
+	 * can be used to avoid further work for messages that are definitely not
+	 * duplicates.
+	 */
+	boolean mightContainMessage(MessageId m);
+
 	/** Processes an ack from the given contact. */
 	void receiveAck(ContactId c, Ack a) throws DbException;
 
+	/**
+	 * Processes a message from the given contact and returns true if the
+	 * message is already stored, or returns false without processing the
+	 * message if it's not stored. The message doesn't need to be verified,
+	 * since any message with the same ID has already been verified.
+	 */
+	boolean receiveDuplicateMessage(ContactId c, MessageId m, GroupId g)
+			throws DbException;
+
 	/** Processes a message from the given contact. */
 	void receiveMessage(ContactId c, Message m) throws DbException;
 
+	/**
+	 * Processes a batch of messages from the given contact in a single
+	 * transaction.
+	 */
+	void receiveMessages(ContactId c, Collection<Message> messages)
+			throws DbException;
+
 	/** Processes an offer from the given contact. */
 	void receiveOffer(ContactId c, Offer o) throws DbException;
 
@@ -314,6 +383,17 @@ public interface DatabaseComponent {
 	 */
 	void removeTransport(TransportId t) throws DbException;
 
+	/**
+	 * Sets the outgoing stream counter for the given endpoint in the given
+	 * rotation period to the given value, if its current value is the
+	 * expected value, and returns true if the counter was changed. This
+	 * allows stream numbers reserved by
+	 * {@link #incrementStreamCounter(ContactId, TransportId, long, int)} to
+	 * be returned if they haven't been used.
+	 */
+	boolean resetStreamCounter(ContactId c, TransportId t, long period,
+			long expected, long counter) throws DbException;
+
 	/**
 	 * Sets the reordering window for the given endpoint in the given rotation
 	 * period.
@@ -321,6 +401,14 @@ public interface DatabaseComponent {
 	void setReorderingWindow(ContactId c, TransportId t, long period,
 			long centre, byte[] bitmap) throws DbException;
 
+	/**
+	 * Stores the given reordering windows in a single transaction. Windows
+	 * belonging to contacts, transports or rotation periods that no longer
+	 * exist are ignored.
+	 */
+	void setReorderingWindows(Collection<ReorderingWindowUpdate> windows)
+			throws DbException;
+
 	/**
 	 * Makes a group visible to the given contact, adds it to the contact's
 	 * subscriptions, and sets it as the inbox group for the contact.
@@ -332,6 +420,13 @@ public interface DatabaseComponent {
 	 */
 	void setReadFlag(MessageId m, boolean read) throws DbException;
 
+	/**
+	 * Marks the given messages as read or unread, using a single
+	 * transaction. Any messages that no longer exist are ignored.
+	 */
+	void setReadFlags(Collection<MessageId> m, boolean read)
+			throws DbException;
+
 	/**
 	 * Sets the remote transport properties for the given contact, replacing
 	 * any existing properties.
@@ -13,4 +13,18 @@ public interface DatabaseConfig {
 	byte[] getEncryptionKey();
 
 	long getMaxSize();
+
+	/**
+	 * Returns the maximum time in milliseconds that a committed transaction
+	 * may wait for concurrent transactions to commit, so that their changes
+	 * can be synced to disk together, or zero if every transaction should be
+	 * synced to disk separately.
+	 */
+	long getMaxCommitDelay();
+
+	/**
+	 * Returns true if message bodies should be kept in an append-only store
+	 * outside the database, rather than in the database itself.
+	 */
+	boolean useBlobStore();
 }
@@ -13,9 +13,18 @@ import com.google.inject.BindingAnnotation;
 /**
  * Annotation for injecting the executor for database tasks.
  * <p>
- * The contract of this executor is that tasks are executed in the order
- * they're submitted, tasks are not executed concurrently, and submitting a
- * task will never block.
+ * The contract of this executor is that submitting a task will never block,
+ * and tasks are ordered as follows:
+ * <ul>
+ * <li>A {@link ReadOnlyDatabaseTask} may be executed concurrently with any
+ * other task and is not ordered with respect to any other task.</li>
+ * <li>{@link ContactDatabaseTask ContactDatabaseTasks} for the same contact
+ * are executed in the order they're submitted and are not executed
+ * concurrently.</li>
+ * <li>All other tasks are executed in the order they're submitted and are
+ * not executed concurrently with each other.</li>
+ * </ul>
+ * Tasks belonging to different classes above may be executed concurrently.
  */
 @BindingAnnotation
 @Target({ FIELD, METHOD, PARAMETER })
@@ -0,0 +1,35 @@
+package org.briarproject.api.db;
+
+/**
+ * Statistics about the tasks submitted to the {@link DatabaseExecutor}, which
+ * can be used to detect when the executor is saturated.
+ */
+public interface DatabaseExecutorMetrics {
+
+	/** Returns the number of tasks waiting to be executed. */
+	int getQueuedTaskCount();
+
+	/** Returns the number of tasks currently being executed. */
+	int getActiveTaskCount();
+
+	/** Returns the number of tasks that have finished executing. */
+	long getCompletedTaskCount();
+
+	/**
+	 * Returns the mean time in milliseconds that completed tasks spent
+	 * waiting to be executed.
+	 */
+	long getAverageQueueTime();
+
+	/**
+	 * Returns the longest time in milliseconds that any completed task spent
+	 * waiting to be executed.
+	 */
+	long getMaxQueueTime();
+
+	/**
+	 * Returns the mean time in milliseconds that completed tasks spent
+	 * executing.
+	 */
+	long getAverageExecutionTime();
+}
@@ -0,0 +1,8 @@
+package org.briarproject.api.db;
+
+/**
+ * A task for the {@link DatabaseExecutor} that only reads from the database.
+ * Read-only tasks may be executed concurrently with each other and with
+ * other tasks, and are not ordered with respect to any other task.
+ */
+public interface ReadOnlyDatabaseTask extends Runnable {}
@@ -0,0 +1,31 @@
+package org.briarproject.api.event;
+
+import java.util.Collection;
+
+import org.briarproject.api.ContactId;
+import org.briarproject.api.messaging.Group;
+
+/**
+ * An event that is broadcast when a batch of messages received from a
+ * contact is added to the database.
+ */
+public class MessagesAddedEvent extends Event {
+
+	private final Collection<Group> groups;
+	private final ContactId contactId;
+
+	public MessagesAddedEvent(Collection<Group> groups, ContactId contactId) {
+		this.groups = groups;
+		this.contactId = contactId;
+	}
+
+	/** Returns the groups to which the messages belong. */
+	public Collection<Group> getGroups() {
+		return groups;
+	}
+
+	/** Returns the ID of the contact from which the messages were received. */
+	public ContactId getContactId() {
+		return contactId;
+	}
+}
@@ -5,5 +5,18 @@ import java.security.GeneralSecurityException;
 /** Verifies the signatures on an {@link UnverifiedMessage}. */
 public interface MessageVerifier {
 
+	/**
+	 * Hashes the given message to get its ID without verifying its
+	 * signatures, which is much cheaper than verifying the message.
+	 */
+	MessageId getMessageId(UnverifiedMessage m);
+
 	Message verifyMessage(UnverifiedMessage m) throws GeneralSecurityException;
+
+	/**
+	 * Verifies the given message, which has already been hashed to get the
+	 * given ID.
+	 */
+	Message verifyMessage(UnverifiedMessage m, MessageId id)
+			throws GeneralSecurityException;
 }
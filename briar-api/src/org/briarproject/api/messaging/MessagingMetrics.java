@@ -0,0 +1,31 @@
+package org.briarproject.api.messaging;
+
+/** Statistics about the messages received by messaging sessions. */
+public interface MessagingMetrics {
+
+	/**
+	 * Returns the number of received messages that were found to be
+	 * duplicates before their signatures were verified, so verification was
+	 * skipped.
+	 */
+	long getSkippedVerificationCount();
+
+	/**
+	 * Returns the number of signed messages whose author's public key had
+	 * already been parsed and validated.
+	 */
+	long getPublicKeyCacheHitCount();
+
+	/**
+	 * Returns the number of signed messages whose author's public key had to
+	 * be parsed and validated.
+	 */
+	long getPublicKeyCacheMissCount();
+
+	/**
+	 * Returns an estimate of the time in milliseconds saved by not parsing
+	 * and validating public keys that had already been parsed, based on the
+	 * mean time taken to parse and validate a key.
+	 */
+	long getPublicKeyParsingTimeSaved();
+}
@@ -0,0 +1,45 @@
+package org.briarproject.api.transport;
+
+import org.briarproject.api.ContactId;
+import org.briarproject.api.TransportId;
+
+/**
+ * The state of the reordering window for an endpoint in a rotation period,
+ * to be stored in the database.
+ */
+public class ReorderingWindowUpdate {
+
+	private final ContactId contactId;
+	private final TransportId transportId;
+	private final long period, centre;
+	private final byte[] bitmap;
+
+	public ReorderingWindowUpdate(ContactId contactId, TransportId transportId,
+			long period, long centre, byte[] bitmap) {
+		this.contactId = contactId;
+		this.transportId = transportId;
+		this.period = period;
+		this.centre = centre;
+		this.bitmap = bitmap;
+	}
+
+	public ContactId getContactId() {
+		return contactId;
+	}
+
+	public TransportId getTransportId() {
+		return transportId;
+	}
+
+	public long getPeriod() {
+		return period;
+	}
+
+	public long getWindowCentre() {
+		return centre;
+	}
+
+	public byte[] getWindowBitmap() {
+		return bitmap;
+	}
+}
@@ -1,5 +1,7 @@
 package org.briarproject.api.transport;
 
+import java.util.Collection;
+
 import org.briarproject.api.ContactId;
 import org.briarproject.api.TransportId;
 import org.briarproject.api.db.DbException;
@@ -16,6 +18,12 @@ public interface TagRecogniser {
 
 	void addSecret(TemporarySecret s);
 
+	/**
+	 * Adds the given secrets, deriving their expected tags in parallel, and
+	 * returns when all of them have been added.
+	 */
+	void addSecrets(Collection<TemporarySecret> secrets);
+
 	void removeSecret(ContactId c, TransportId t, long period);
 
 	void removeSecrets(ContactId c);
@@ -0,0 +1,18 @@
+package org.briarproject.crypto;
+
+import org.spongycastle.crypto.BlockCipher;
+
+/**
+ * Creates the AES block ciphers used by the frame cipher and for encoding
+ * tags. Implementations must produce the same output as
+ * {@link LightAesEngineFactory}, which is checked when the crypto component
+ * starts.
+ */
+public interface AesEngineFactory {
+
+	/** Returns a new, uninitialised AES block cipher. */
+	BlockCipher createEngine();
+
+	/** Returns a human-readable name for the implementation. */
+	String getName();
+}
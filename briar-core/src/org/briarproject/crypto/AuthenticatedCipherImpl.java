@@ -15,6 +15,8 @@ class AuthenticatedCipherImpl implements AuthenticatedCipher {
 	private final AEADBlockCipher cipher;
 	private final int macLength;
 
+	private SecretKey key = null; // The key the cipher was last set up with
+
 	AuthenticatedCipherImpl(AEADBlockCipher cipher, int macLength) {
 		this.cipher = cipher;
 		this.macLength = macLength;
@@ -38,13 +40,20 @@ class AuthenticatedCipherImpl implements AuthenticatedCipher {
 
 	public void init(boolean encrypt, SecretKey key, byte[] iv, byte[] aad)
 			throws GeneralSecurityException {
-		KeyParameter k = new KeyParameter(key.getEncoded());
+		// Throws an exception if the key has been erased
+		byte[] encoded = key.getEncoded();
+		// Expanding the key and building the GHASH tables is expensive, so
+		// if the key hasn't changed since the last frame, only the IV and AAD
+		// are passed to the cipher and it reuses its existing key state
+		KeyParameter k = key == this.key ? null : new KeyParameter(encoded);
 		AEADParameters params = new AEADParameters(k, macLength * 8, iv, aad);
+		this.key = null;
 		try {
 			cipher.init(encrypt, params);
 		} catch(IllegalArgumentException e) {
 			throw new GeneralSecurityException(e.getMessage());
 		}
+		this.key = key;
 	}
 
 	public int getMacLength() {
@@ -1,6 +1,7 @@
 package org.briarproject.crypto;
 
 import static java.util.logging.Level.INFO;
+import static java.util.logging.Level.WARNING;
 import static org.briarproject.api.invitation.InvitationConstants.CODE_BITS;
 import static org.briarproject.api.transport.TransportConstants.TAG_LENGTH;
 import static org.briarproject.crypto.EllipticCurveConstants.P;
@@ -15,6 +16,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 import java.util.logging.Logger;
 
 import javax.inject.Inject;
@@ -80,6 +82,7 @@ class CryptoComponentImpl implements CryptoComponent {
 		{ 'A', '_', 'F', 'R', 'A', 'M', 'E', '\0' };
 	private static final byte[] B_FRAME =
 		{ 'B', '_', 'F', 'R', 'A', 'M', 'E', '\0' };
+	private static final byte[] BLOB = { 'B', 'L', 'O', 'B', '\0' };
 	// Blank secret for argument validation
 	private static final byte[] BLANK_SECRET = new byte[CIPHER_KEY_BYTES];
 
@@ -87,10 +90,26 @@ class CryptoComponentImpl implements CryptoComponent {
 	private final ECKeyPairGenerator agreementKeyPairGenerator;
 	private final ECKeyPairGenerator signatureKeyPairGenerator;
 	private final KeyParser agreementKeyParser, signatureKeyParser;
+	private final AesEngineFactory aesEngineFactory;
 
-	@Inject
 	CryptoComponentImpl(SeedProvider r) {
+		this(r, new LightAesEngineFactory());
+	}
+
+	@Inject
+	CryptoComponentImpl(SeedProvider r, AesEngineFactory aesEngineFactory) {
 		if(!FortunaSecureRandom.selfTest()) throw new RuntimeException();
+		if(testAesEngine(aesEngineFactory)) {
+			if(LOG.isLoggable(INFO))
+				LOG.info("AES engine: " + aesEngineFactory.getName());
+			this.aesEngineFactory = aesEngineFactory;
+		} else {
+			if(LOG.isLoggable(WARNING)) {
+				LOG.warning("AES engine " + aesEngineFactory.getName()
+						+ " failed self-test, using default");
+			}
+			this.aesEngineFactory = new LightAesEngineFactory();
+		}
 		SecureRandom secureRandom1 = new SecureRandom();
 		if(LOG.isLoggable(INFO)) {
 			String provider = secureRandom1.getProvider().getName();
@@ -295,13 +314,22 @@ class CryptoComponentImpl implements CryptoComponent {
 		else return deriveKey(secret, B_FRAME, streamNumber);
 	}
 
+	public SecretKey deriveBlobKey(byte[] databaseKey) {
+		if(databaseKey.length != CIPHER_KEY_BYTES)
+			throw new IllegalArgumentException();
+		if(Arrays.equals(databaseKey, BLANK_SECRET))
+			throw new IllegalArgumentException();
+		return deriveKey(databaseKey, BLOB, 0);
+	}
+
 	private SecretKey deriveKey(byte[] secret, byte[] label, long context) {
 		byte[] key = counterModeKdf(secret, label, context);
 		return new SecretKeyImpl(key);
 	}
 
 	public AuthenticatedCipher getFrameCipher() {
-		AEADBlockCipher a = new GCMBlockCipher(new AESLightEngine());
+		BlockCipher engine = aesEngineFactory.createEngine();
+		AEADBlockCipher a = new GCMBlockCipher(engine);
 		return new AuthenticatedCipherImpl(a, MAC_BYTES);
 	}
 
@@ -311,7 +339,7 @@ class CryptoComponentImpl implements CryptoComponent {
 			throw new IllegalArgumentException();
 		for(int i = 0; i < TAG_LENGTH; i++) tag[i] = 0;
 		ByteUtils.writeUint32(streamNumber, tag, 0);
-		BlockCipher cipher = new AESLightEngine();
+		BlockCipher cipher = aesEngineFactory.createEngine();
 		assert cipher.getBlockSize() == TAG_LENGTH;
 		KeyParameter k = new KeyParameter(tagKey.getEncoded());
 		cipher.init(true, k);
@@ -391,6 +419,64 @@ class CryptoComponentImpl implements CryptoComponent {
 		}
 	}
 
+	/**
+	 * Tests that the given AES engine produces the same output as the
+	 * table-free engine, both for single blocks and in GCM mode. Package
+	 * access for testing.
+	 */
+	static boolean testAesEngine(AesEngineFactory f) {
+		Random random = new Random();
+		try {
+			for(int i = 0; i < 8; i++) {
+				byte[] key = new byte[CIPHER_KEY_BYTES];
+				random.nextBytes(key);
+				byte[] input = new byte[1024 + i];
+				random.nextBytes(input);
+				// Encrypt and decrypt single blocks
+				for(boolean encrypt : new boolean[] { true, false }) {
+					BlockCipher expected = new AESLightEngine();
+					expected.init(encrypt, new KeyParameter(key));
+					BlockCipher actual = f.createEngine();
+					actual.init(encrypt, new KeyParameter(key));
+					if(actual.getBlockSize() != expected.getBlockSize())
+						return false;
+					int blockSize = expected.getBlockSize();
+					byte[] out = new byte[blockSize];
+					byte[] out1 = new byte[blockSize];
+					for(int off = 0; off + blockSize <= input.length;
+							off += blockSize) {
+						expected.processBlock(input, off, out, 0);
+						actual.processBlock(input, off, out1, 0);
+						if(!Arrays.equals(out, out1)) return false;
+					}
+				}
+				// Encrypt a frame in GCM mode
+				byte[] iv = new byte[12];
+				random.nextBytes(iv);
+				byte[] out = gcmEncrypt(new AESLightEngine(), key, iv, input);
+				byte[] out1 = gcmEncrypt(f.createEngine(), key, iv, input);
+				if(!Arrays.equals(out, out1)) return false;
+			}
+			return true;
+		} catch(RuntimeException e) {
+			if(LOG.isLoggable(WARNING)) LOG.log(WARNING, e.toString(), e);
+			return false;
+		} catch(GeneralSecurityException e) {
+			if(LOG.isLoggable(WARNING)) LOG.log(WARNING, e.toString(), e);
+			return false;
+		}
+	}
+
+	private static byte[] gcmEncrypt(BlockCipher engine, byte[] key,
+			byte[] iv, byte[] input) throws GeneralSecurityException {
+		AuthenticatedCipher cipher = new AuthenticatedCipherImpl(
+				new GCMBlockCipher(engine), MAC_BYTES);
+		cipher.init(true, new SecretKeyImpl(key.clone()), iv, null);
+		byte[] output = new byte[input.length + MAC_BYTES];
+		cipher.doFinal(input, 0, input.length, output, 0);
+		return output;
+	}
+
 	// Key derivation function based on a hash function - see NIST SP 800-56A,
 	// section 5.8
 	private byte[] concatenationKdf(byte[] rawSecret, byte[] label,
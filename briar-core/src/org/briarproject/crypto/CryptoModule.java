@@ -26,20 +26,39 @@ public class CryptoModule extends AbstractModule {
 			Runtime.getRuntime().availableProcessors();
 
 	private final ExecutorService cryptoExecutor;
+	private final AesEngineFactory aesEngineFactory;
 
+	/** Creates a module that uses the default, table-free AES engine. */
 	public CryptoModule() {
+		this(new LightAesEngineFactory());
+	}
+
+	/**
+	 * Creates a module that uses the given AES engine for the frame cipher
+	 * and tag encoding. The engine is checked against the default engine
+	 * when the crypto component is created, and the default is used instead
+	 * if the check fails.
+	 */
+	public CryptoModule(AesEngineFactory aesEngineFactory) {
+		this.aesEngineFactory = aesEngineFactory;
 		// Use an unbounded queue
 		BlockingQueue<Runnable> queue = new LinkedBlockingQueue<Runnable>();
 		// Discard tasks that are submitted during shutdown
 		RejectedExecutionHandler policy =
 				new ThreadPoolExecutor.DiscardPolicy();
-		// Create a limited # of threads and keep them in the pool for 60 secs
-		cryptoExecutor = new ThreadPoolExecutor(0, MAX_EXECUTOR_THREADS,
-				60, SECONDS, queue, policy);
+		// Create a limited # of threads and keep them in the pool for 60 secs.
+		// With an unbounded queue the pool never grows beyond its core size,
+		// so the core threads are allowed to time out instead
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(
+				MAX_EXECUTOR_THREADS, MAX_EXECUTOR_THREADS, 60, SECONDS, queue,
+				policy);
+		executor.allowCoreThreadTimeOut(true);
+		cryptoExecutor = executor;
 	}
 
 	@Override
 	protected void configure() {
+		bind(AesEngineFactory.class).toInstance(aesEngineFactory);
 		bind(CryptoComponent.class).to(
 				CryptoComponentImpl.class).in(Singleton.class);
 		bind(PasswordStrengthEstimator.class).to(
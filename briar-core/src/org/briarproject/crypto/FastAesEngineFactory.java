@@ -0,0 +1,20 @@
+package org.briarproject.crypto;
+
+import org.spongycastle.crypto.BlockCipher;
+import org.spongycastle.crypto.engines.AESFastEngine;
+
+/**
+ * Creates AES engines that use large lookup tables. These are several times
+ * faster than {@link LightAesEngineFactory light engines}, but may be
+ * vulnerable to cache timing attacks by code running on the same machine.
+ */
+public class FastAesEngineFactory implements AesEngineFactory {
+
+	public BlockCipher createEngine() {
+		return new AESFastEngine();
+	}
+
+	public String getName() {
+		return "AESFastEngine";
+	}
+}
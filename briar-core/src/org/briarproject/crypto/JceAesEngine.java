@@ -0,0 +1,71 @@
+package org.briarproject.crypto;
+
+import static javax.crypto.Cipher.DECRYPT_MODE;
+import static javax.crypto.Cipher.ENCRYPT_MODE;
+
+import java.security.GeneralSecurityException;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.spongycastle.crypto.BlockCipher;
+import org.spongycastle.crypto.CipherParameters;
+import org.spongycastle.crypto.DataLengthException;
+import org.spongycastle.crypto.OutputLengthException;
+import org.spongycastle.crypto.params.KeyParameter;
+
+/** Adapts a JCE AES cipher in ECB mode to the {@link BlockCipher} interface. */
+class JceAesEngine implements BlockCipher {
+
+	private static final int BLOCK_SIZE = 16;
+
+	private final Cipher cipher;
+
+	private boolean initialised = false;
+
+	JceAesEngine() {
+		try {
+			cipher = Cipher.getInstance("AES/ECB/NoPadding");
+		} catch(GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public void init(boolean forEncryption, CipherParameters params) {
+		if(!(params instanceof KeyParameter))
+			throw new IllegalArgumentException();
+		byte[] key = ((KeyParameter) params).getKey();
+		int mode = forEncryption ? ENCRYPT_MODE : DECRYPT_MODE;
+		try {
+			// The key spec copies the key, so the caller can erase it
+			cipher.init(mode, new SecretKeySpec(key, "AES"));
+		} catch(GeneralSecurityException e) {
+			throw new IllegalArgumentException(e);
+		}
+		initialised = true;
+	}
+
+	public String getAlgorithmName() {
+		return "AES";
+	}
+
+	public int getBlockSize() {
+		return BLOCK_SIZE;
+	}
+
+	public int processBlock(byte[] in, int inOff, byte[] out, int outOff) {
+		if(!initialised) throw new IllegalStateException();
+		if(inOff + BLOCK_SIZE > in.length)
+			throw new DataLengthException("Input buffer too short");
+		if(outOff + BLOCK_SIZE > out.length)
+			throw new OutputLengthException("Output buffer too short");
+		try {
+			return cipher.update(in, inOff, BLOCK_SIZE, out, outOff);
+		} catch(ShortBufferException e) {
+			throw new OutputLengthException("Output buffer too short");
+		}
+	}
+
+	public void reset() {}
+}
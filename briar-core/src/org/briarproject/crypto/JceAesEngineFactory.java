@@ -0,0 +1,18 @@
+package org.briarproject.crypto;
+
+import org.spongycastle.crypto.BlockCipher;
+
+/**
+ * Creates AES engines backed by the default JCE provider, which may use
+ * hardware AES instructions where they're available.
+ */
+public class JceAesEngineFactory implements AesEngineFactory {
+
+	public BlockCipher createEngine() {
+		return new JceAesEngine();
+	}
+
+	public String getName() {
+		return "JCE";
+	}
+}
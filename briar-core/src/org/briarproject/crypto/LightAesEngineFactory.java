@@ -0,0 +1,19 @@
+package org.briarproject.crypto;
+
+import org.spongycastle.crypto.BlockCipher;
+import org.spongycastle.crypto.engines.AESLightEngine;
+
+/**
+ * Creates table-free AES engines. This is the slowest implementation, but
+ * it doesn't leak key material through cache timing, so it's the default.
+ */
+public class LightAesEngineFactory implements AesEngineFactory {
+
+	public BlockCipher createEngine() {
+		return new AESLightEngine();
+	}
+
+	public String getName() {
+		return "AESLightEngine";
+	}
+}
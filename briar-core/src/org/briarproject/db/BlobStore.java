@@ -0,0 +1,254 @@
+package org.briarproject.db;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.briarproject.api.crypto.AuthenticatedCipher;
+import org.briarproject.api.crypto.CryptoComponent;
+import org.briarproject.api.crypto.SecretKey;
+import org.briarproject.api.messaging.MessageId;
+
+/**
+ * An append-only store for serialised messages, kept outside the database so
+ * that message bodies don't fill the database's page cache.
+ * <p>
+ * Messages are appended to the current segment file; all other segments are
+ * sealed. The database stores the segment and offset of each message. Each
+ * record is encrypted and authenticated with a key derived from the database
+ * key, using the message ID as additional authenticated data, so a record
+ * can only be read back as the message it was written for.
+ */
+class BlobStore {
+
+	private static final String SEGMENT_SUFFIX = ".seg";
+	private static final int IV_BYTES = 12; // 96 bits
+	private static final int MAC_BYTES = 16; // 128 bits
+
+	/** The number of bytes each record adds to the length of a message. */
+	static final int RECORD_OVERHEAD = IV_BYTES + MAC_BYTES;
+
+	private final File dir;
+	private final long maxSegmentSize;
+	private final CryptoComponent crypto;
+	private final SecureRandom random;
+
+	// Locking: this
+	private final Map<Integer, FileChannel> channels;
+	private final Set<Integer> unsynced;
+	private SecretKey key = null;
+	private int currentSegment = 0;
+	private long currentSize = 0;
+
+	BlobStore(File dir, long maxSegmentSize, CryptoComponent crypto) {
+		this.dir = dir;
+		this.maxSegmentSize = maxSegmentSize;
+		this.crypto = crypto;
+		random = crypto.getSecureRandom();
+		channels = new HashMap<Integer, FileChannel>();
+		unsynced = new HashSet<Integer>();
+	}
+
+	/**
+	 * Opens the store, deriving the record key from the given database key.
+	 * New records are written to a new segment, so any partial record at the
+	 * end of the previous segment is never appended to.
+	 */
+	synchronized void open(byte[] databaseKey) {
+		key = crypto.deriveBlobKey(databaseKey);
+		int next = 0;
+		for(int segment : getSegmentFiles().keySet())
+			if(segment >= next) next = segment + 1;
+		currentSegment = next;
+		currentSize = 0;
+	}
+
+	/**
+	 * Returns the size in bytes of each segment file, including the current
+	 * segment if it has been created.
+	 */
+	synchronized Map<Integer, Long> getSegmentSizes() {
+		Map<Integer, Long> sizes = new HashMap<Integer, Long>();
+		for(Map.Entry<Integer, File> e : getSegmentFiles().entrySet())
+			sizes.put(e.getKey(), e.getValue().length());
+		return sizes;
+	}
+
+	/** Returns the segment to which new records are appended. */
+	synchronized int getCurrentSegment() {
+		return currentSegment;
+	}
+
+	/**
+	 * Appends the given message to the current segment and returns the
+	 * location of the record, which must be passed to
+	 * {@link #read(MessageId, int, Location)} along with the length of the
+	 * message to read it back.
+	 */
+	synchronized Location append(MessageId m, byte[] raw) throws IOException {
+		if(key == null) throw new IllegalStateException();
+		int recordLength = raw.length + RECORD_OVERHEAD;
+		if(currentSize > 0 && currentSize + recordLength > maxSegmentSize) {
+			// Seal the current segment and start a new one
+			currentSegment++;
+			currentSize = 0;
+		}
+		byte[] record = new byte[recordLength];
+		byte[] iv = new byte[IV_BYTES];
+		random.nextBytes(iv);
+		System.arraycopy(iv, 0, record, 0, IV_BYTES);
+		try {
+			AuthenticatedCipher cipher = createCipher(key, true, m, iv);
+			cipher.doFinal(raw, 0, raw.length, record, IV_BYTES);
+		} catch(GeneralSecurityException e) {
+			throw new IllegalStateException(e);
+		}
+		FileChannel channel = getChannel(currentSegment);
+		ByteBuffer buf = ByteBuffer.wrap(record);
+		long position = currentSize;
+		while(buf.hasRemaining())
+			position += channel.write(buf, position);
+		Location location = new Location(currentSegment, currentSize);
+		currentSize = position;
+		unsynced.add(currentSegment);
+		return location;
+	}
+
+	/** Reads and decrypts the message stored at the given location. */
+	byte[] read(MessageId m, int length, Location location)
+			throws IOException, GeneralSecurityException {
+		SecretKey key;
+		FileChannel channel;
+		synchronized(this) {
+			if(this.key == null) throw new IllegalStateException();
+			key = this.key;
+			channel = getChannel(location.getSegment());
+		}
+		// Positional reads don't affect other readers or the writer
+		byte[] record = new byte[length + RECORD_OVERHEAD];
+		ByteBuffer buf = ByteBuffer.wrap(record);
+		long position = location.getOffset();
+		while(buf.hasRemaining()) {
+			int read = channel.read(buf, position);
+			if(read == -1) throw new IOException("Truncated record");
+			position += read;
+		}
+		byte[] iv = new byte[IV_BYTES];
+		System.arraycopy(record, 0, iv, 0, IV_BYTES);
+		AuthenticatedCipher cipher = createCipher(key, false, m, iv);
+		byte[] raw = new byte[length];
+		cipher.doFinal(record, IV_BYTES, record.length - IV_BYTES, raw, 0);
+		return raw;
+	}
+
+	/** Forces any records written since the last sync to disk. */
+	synchronized void sync() throws IOException {
+		for(int segment : unsynced) {
+			FileChannel channel = channels.get(segment);
+			if(channel != null) channel.force(false);
+		}
+		unsynced.clear();
+	}
+
+	/** Deletes a sealed segment. */
+	synchronized void deleteSegment(int segment) throws IOException {
+		if(segment == currentSegment) throw new IllegalArgumentException();
+		FileChannel channel = channels.remove(segment);
+		if(channel != null) channel.close();
+		unsynced.remove(segment);
+		File f = getSegmentFile(segment);
+		if(f.exists() && !f.delete())
+			throw new IOException("Could not delete " + f);
+	}
+
+	synchronized void close() throws IOException {
+		IOException first = null;
+		for(FileChannel channel : channels.values()) {
+			try {
+				channel.close();
+			} catch(IOException e) {
+				if(first == null) first = e;
+			}
+		}
+		channels.clear();
+		unsynced.clear();
+		if(key != null) key.erase();
+		key = null;
+		if(first != null) throw first;
+	}
+
+	// Locking: this
+	private FileChannel getChannel(int segment) throws IOException {
+		FileChannel channel = channels.get(segment);
+		if(channel == null) {
+			dir.mkdirs();
+			File f = getSegmentFile(segment);
+			// Only the current segment is created on demand
+			if(segment != currentSegment && !f.exists())
+				throw new FileNotFoundException(f.toString());
+			channel = new RandomAccessFile(f, "rw").getChannel();
+			channels.put(segment, channel);
+		}
+		return channel;
+	}
+
+	private AuthenticatedCipher createCipher(SecretKey key, boolean encrypt,
+			MessageId m, byte[] iv) throws GeneralSecurityException {
+		AuthenticatedCipher cipher = crypto.getFrameCipher();
+		if(cipher.getMacLength() != MAC_BYTES)
+			throw new IllegalStateException();
+		cipher.init(encrypt, key, iv, m.getBytes());
+		return cipher;
+	}
+
+	private File getSegmentFile(int segment) {
+		return new File(dir, segment + SEGMENT_SUFFIX);
+	}
+
+	private Map<Integer, File> getSegmentFiles() {
+		Map<Integer, File> files = new HashMap<Integer, File>();
+		File[] children = dir.listFiles();
+		if(children == null) return files;
+		for(File f : children) {
+			String name = f.getName();
+			if(!name.endsWith(SEGMENT_SUFFIX)) continue;
+			String number = name.substring(0,
+					name.length() - SEGMENT_SUFFIX.length());
+			try {
+				files.put(Integer.valueOf(number), f);
+			} catch(NumberFormatException e) {
+				// Not a segment file
+			}
+		}
+		return files;
+	}
+
+	/** The location of a record in the store. */
+	static class Location {
+
+		private final int segment;
+		private final long offset;
+
+		Location(int segment, long offset) {
+			this.segment = segment;
+			this.offset = offset;
+		}
+
+		int getSegment() {
+			return segment;
+		}
+
+		long getOffset() {
+			return offset;
+		}
+	}
+}
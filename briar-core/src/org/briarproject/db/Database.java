@@ -13,6 +13,7 @@ import org.briarproject.api.Settings;
 import org.briarproject.api.TransportConfig;
 import org.briarproject.api.TransportId;
 import org.briarproject.api.TransportProperties;
+import org.briarproject.api.db.ContactSummary;
 import org.briarproject.api.db.DbException;
 import org.briarproject.api.db.MessageHeader;
 import org.briarproject.api.messaging.Group;
@@ -27,6 +28,7 @@ import org.briarproject.api.messaging.SubscriptionUpdate;
 import org.briarproject.api.messaging.TransportAck;
 import org.briarproject.api.messaging.TransportUpdate;
 import org.briarproject.api.transport.Endpoint;
+import org.briarproject.api.transport.ReorderingWindowUpdate;
 import org.briarproject.api.transport.TemporarySecret;
 
 // FIXME: Document the preconditions for calling each method
@@ -39,6 +41,9 @@ import org.briarproject.api.transport.TemporarySecret;
  * {@link #commitTransaction(T)}, even if an exception is thrown.
  * <p>
  * Read-write locking is provided by the DatabaseComponent implementation.
+ * Methods that only modify rows belonging to a single contact may be called
+ * with the read lock held, provided the caller also holds the lock stripe for
+ * that contact.
  */
 interface Database<T> {
 
@@ -137,7 +142,8 @@ interface Database<T> {
 
 	/**
 	 * Initialises the status of the given message with respect to the given
-	 * contact.
+	 * contact. Statuses are only created for contacts that can see the
+	 * message's group.
 	 * <p>
 	 * Locking: write.
 	 * @param ack whether the message needs to be acknowledged.
@@ -146,6 +152,17 @@ interface Database<T> {
 	void addStatus(T txn, ContactId c, MessageId m, boolean ack, boolean seen)
 			throws DbException;
 
+	/**
+	 * Initialises the status of each of the given messages, which were
+	 * received from the given contact, with respect to every contact that
+	 * can see the message's group. Any such contact that has offered the
+	 * message is treated as having seen it, and the offer is removed.
+	 * <p>
+	 * Locking: write.
+	 */
+	void addStatuses(T txn, ContactId sender, Collection<MessageId> ms)
+			throws DbException;
+
 	/**
 	 * Stores a transport and returns true if the transport was not previously
 	 * in the database.
@@ -156,7 +173,9 @@ interface Database<T> {
 			throws DbException;
 
 	/**
-	 * Makes a group visible to the given contact.
+	 * Makes a group visible to the given contact and initialises the status
+	 * of each message in the group that doesn't already have a status with
+	 * respect to the contact.
 	 * <p>
 	 * Locking: write.
 	 */
@@ -258,6 +277,20 @@ interface Database<T> {
 	 */
 	Collection<ContactId> getContactIds(T txn) throws DbException;
 
+	/**
+	 * Returns a summary of the given contact and the contact's inbox.
+	 * <p>
+	 * Locking: read.
+	 */
+	ContactSummary getContactSummary(T txn, ContactId c) throws DbException;
+
+	/**
+	 * Returns a summary of each contact and the contact's inbox.
+	 * <p>
+	 * Locking: read.
+	 */
+	Collection<ContactSummary> getContactSummaries(T txn) throws DbException;
+
 	/**
 	 * Returns all contacts.
 	 * <p>
@@ -317,6 +350,26 @@ interface Database<T> {
 	Collection<MessageHeader> getInboxMessageHeaders(T txn, ContactId c)
 			throws DbException;
 
+	/**
+	 * Returns the headers of up to the given number of messages in the inbox
+	 * group for the given contact, newest first. If the given message ID is
+	 * not null, the headers start after the message with the given timestamp
+	 * and ID; otherwise they start with the newest message.
+	 * <p>
+	 * Locking: read.
+	 */
+	Collection<MessageHeader> getInboxMessageHeaders(T txn, ContactId c,
+			long timestamp, MessageId m, int maxMessages) throws DbException;
+
+	/**
+	 * Returns the header of the newest message in each subscribed group that
+	 * contains any messages.
+	 * <p>
+	 * Locking: read.
+	 */
+	Map<GroupId, MessageHeader> getLatestMessageHeaders(T txn)
+			throws DbException;
+
 	/**
 	 * Returns the local pseudonym with the given ID.
 	 * <p>
@@ -354,6 +407,15 @@ interface Database<T> {
 	 */
 	byte[] getMessageBody(T txn, MessageId m) throws DbException;
 
+	/**
+	 * Returns the bodies of the messages identified by the given IDs. Any
+	 * messages that are not in the database are omitted from the map.
+	 * <p>
+	 * Locking: read.
+	 */
+	Map<MessageId, byte[]> getMessageBodies(T txn, Collection<MessageId> m)
+			throws DbException;
+
 	/**
 	 * Returns the headers of all messages in the given group.
 	 * <p>
@@ -362,6 +424,24 @@ interface Database<T> {
 	Collection<MessageHeader> getMessageHeaders(T txn, GroupId g)
 			throws DbException;
 
+	/**
+	 * Returns the headers of up to the given number of messages in the given
+	 * group, newest first. If the given message ID is not null, the headers
+	 * start after the message with the given timestamp and ID; otherwise
+	 * they start with the newest message.
+	 * <p>
+	 * Locking: read.
+	 */
+	Collection<MessageHeader> getMessageHeaders(T txn, GroupId g,
+			long timestamp, MessageId m, int maxMessages) throws DbException;
+
+	/**
+	 * Returns the IDs of all messages.
+	 * <p>
+	 * Locking: read.
+	 */
+	Collection<MessageId> getMessageIds(T txn) throws DbException;
+
 	/**
 	 * Returns the IDs of some messages received from the given contact that
 	 * need to be acknowledged, up to the given number of messages.
@@ -542,14 +622,14 @@ interface Database<T> {
 	Collection<ContactId> getVisibility(T txn, GroupId g) throws DbException;
 
 	/**
-	 * Increments the outgoing stream counter for the given endpoint in the
-	 * given rotation period and returns the old value, or -1 if the counter
-	 * does not exist.
+	 * Adds the given amount to the outgoing stream counter for the given
+	 * endpoint in the given rotation period and returns the old value, or -1
+	 * if the counter does not exist.
 	 * <p>
 	 * Locking: write.
 	 */
-	long incrementStreamCounter(T txn, ContactId c, TransportId t, long period)
-			throws DbException;
+	long incrementStreamCounter(T txn, ContactId c, TransportId t, long period,
+			int increment) throws DbException;
 
 	/**
 	 * Increments the retention time versions for all contacts to indicate that
@@ -647,7 +727,9 @@ interface Database<T> {
 	void removeLocalAuthor(T txn, AuthorId a) throws DbException;
 
 	/**
-	 * Removes a message (and all associated state) from the database.
+	 * Removes a message (and all associated state) from the database. If
+	 * the message is kept in the blob store, sparse segments of the blob
+	 * store may be compacted.
 	 * <p>
 	 * Locking: write.
 	 */
@@ -693,6 +775,16 @@ interface Database<T> {
 	 */
 	void resetExpiryTime(T txn, ContactId c, MessageId m) throws DbException;
 
+	/**
+	 * Sets the outgoing stream counter for the given endpoint in the given
+	 * rotation period to the given value, if its current value is the
+	 * expected value, and returns true if the counter was changed.
+	 * <p>
+	 * Locking: write.
+	 */
+	boolean resetStreamCounter(T txn, ContactId c, TransportId t, long period,
+			long expected, long counter) throws DbException;
+
 	/**
 	 * Sets the reordering window for the given endpoint in the given rotation
 	 * period.
@@ -702,6 +794,15 @@ interface Database<T> {
 	void setReorderingWindow(T txn, ContactId c, TransportId t, long period,
 			long centre, byte[] bitmap) throws DbException;
 
+	/**
+	 * Sets the given reordering windows. Windows belonging to contacts,
+	 * transports or rotation periods that don't exist are ignored.
+	 * <p>
+	 * Locking: write.
+	 */
+	void setReorderingWindows(T txn,
+			Collection<ReorderingWindowUpdate> windows) throws DbException;
+
 	/**
 	 * Updates the groups to which the given contact subscribes and returns
 	 * true, unless an update with an equal or higher version number has
@@ -727,6 +828,15 @@ interface Database<T> {
 	 */
 	void setReadFlag(T txn, MessageId m, boolean read) throws DbException;
 
+	/**
+	 * Marks the given messages as read or unread. Any messages that are not
+	 * in the database are ignored.
+	 * <p>
+	 * Locking: write.
+	 */
+	void setReadFlags(T txn, Collection<MessageId> m, boolean read)
+			throws DbException;
+
 	/**
 	 * Sets the remote transport properties for the given contact, replacing
 	 * any existing properties.
@@ -792,12 +902,12 @@ interface Database<T> {
 	void setVisibleToAll(T txn, GroupId g, boolean all) throws DbException;
 
 	/**
-	 * Updates the transmission count and expiry time of the given message
+	 * Updates the transmission counts and expiry times of the given messages
 	 * with respect to the given contact, using the latency of the transport
-	 * over which it was sent.
+	 * over which they were sent.
 	 * <p>
 	 * Locking: write.
 	 */
-	void updateExpiryTime(T txn, ContactId c, MessageId m, long maxLatency)
-			throws DbException;
+	void updateExpiryTime(T txn, ContactId c, Collection<MessageId> sent,
+			long maxLatency) throws DbException;
 }
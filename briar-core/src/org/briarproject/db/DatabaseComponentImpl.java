@@ -2,6 +2,7 @@ package org.briarproject.db;
 
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.WARNING;
+import static org.briarproject.api.messaging.MessagingConstants.MAX_PACKET_LENGTH;
 import static org.briarproject.db.DatabaseConstants.BYTES_PER_SWEEP;
 import static org.briarproject.db.DatabaseConstants.CRITICAL_FREE_SPACE;
 import static org.briarproject.db.DatabaseConstants.MAX_OFFERED_MESSAGES;
@@ -12,9 +13,13 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.logging.Logger;
 
@@ -30,6 +35,7 @@ import org.briarproject.api.TransportConfig;
 import org.briarproject.api.TransportId;
 import org.briarproject.api.TransportProperties;
 import org.briarproject.api.db.ContactExistsException;
+import org.briarproject.api.db.ContactSummary;
 import org.briarproject.api.db.DatabaseComponent;
 import org.briarproject.api.db.DbException;
 import org.briarproject.api.db.LocalAuthorExistsException;
@@ -47,6 +53,7 @@ import org.briarproject.api.event.LocalAuthorRemovedEvent;
 import org.briarproject.api.event.LocalSubscriptionsUpdatedEvent;
 import org.briarproject.api.event.LocalTransportsUpdatedEvent;
 import org.briarproject.api.event.MessageAddedEvent;
+import org.briarproject.api.event.MessagesAddedEvent;
 import org.briarproject.api.event.MessageExpiredEvent;
 import org.briarproject.api.event.MessageRequestedEvent;
 import org.briarproject.api.event.MessageToAckEvent;
@@ -76,6 +83,7 @@ import org.briarproject.api.messaging.SubscriptionUpdate;
 import org.briarproject.api.messaging.TransportAck;
 import org.briarproject.api.messaging.TransportUpdate;
 import org.briarproject.api.transport.Endpoint;
+import org.briarproject.api.transport.ReorderingWindowUpdate;
 import org.briarproject.api.transport.TemporarySecret;
 
 /**
@@ -83,6 +91,26 @@ import org.briarproject.api.transport.TemporarySecret;
  * Depending on the JVM's lock implementation, this implementation may allow
  * writers to starve. LockFairnessTest can be used to test whether this
  * implementation is safe on a given JVM.
+ * <p>
+ * Global state (contacts, groups, visibilities, local authors, transports,
+ * settings and the set of stored messages) is protected by a single
+ * read-write lock. Operations that only modify rows belonging to one contact
+ * (acks, offers, requests, updates, stream counters and reordering windows)
+ * hold the global lock's read lock plus one of a fixed set of contact lock
+ * stripes, so operations on different contacts can proceed concurrently.
+ * <p>
+ * Lock ordering: the global lock must always be acquired before a contact
+ * stripe. An operation that needs several contact stripes must acquire them
+ * in ascending order.
+ * Operations that need to modify state belonging to several contacts take
+ * the global write lock, which excludes all contact operations.
+ * <p>
+ * The database holds an exclusive lock on each table a transaction writes
+ * until the transaction commits, so operations on different contacts can
+ * still deadlock inside the database if they write the same tables in
+ * different orders. Contact operations that write more than one table must
+ * therefore write them in this order: groupVersions, statuses, offers,
+ * contactGroups.
  */
 class DatabaseComponentImpl<T> implements DatabaseComponent,
 DatabaseCleaner.Callback {
@@ -90,6 +118,7 @@ DatabaseCleaner.Callback {
 	private static final Logger LOG =
 			Logger.getLogger(DatabaseComponentImpl.class.getName());
 	private static final int MS_BETWEEN_SWEEPS = 10 * 1000; // 10 seconds
+	private static final int CONTACT_LOCK_STRIPES = 64; // Must be a power of 2
 
 	private final Database<T> db;
 	private final DatabaseCleaner cleaner;
@@ -98,10 +127,23 @@ DatabaseCleaner.Callback {
 
 	private final ReentrantReadWriteLock lock =
 			new ReentrantReadWriteLock(true);
+	private final ReentrantLock[] contactLocks =
+			new ReentrantLock[CONTACT_LOCK_STRIPES];
 
 	private boolean open = false; // Locking: lock.writeLock
 	private int shutdownHandle = -1; // Locking: lock.writeLock
 
+	// The IDs of stored messages, which can be checked without holding any
+	// locks. Replaced while holding the write lock
+	private volatile MessageIdFilter messageFilter = new MessageIdFilter(0);
+
+	// The result of the last call to getAvailableGroups(), or null if the
+	// available groups may have changed since the result was cached
+	private final Object availableGroupsLock = new Object();
+	private Collection<GroupStatus> availableGroups = null;
+	// Incremented whenever the available groups may have changed
+	private long availableGroupsVersion = 0;
+
 	@Inject
 	DatabaseComponentImpl(Database<T> db, DatabaseCleaner cleaner,
 			EventBus eventBus, ShutdownManager shutdown) {
@@ -109,6 +151,24 @@ DatabaseCleaner.Callback {
 		this.cleaner = cleaner;
 		this.eventBus = eventBus;
 		this.shutdown = shutdown;
+		for(int i = 0; i < contactLocks.length; i++)
+			contactLocks[i] = new ReentrantLock(true);
+	}
+
+	/**
+	 * Acquires the global read lock and the lock stripe for the given contact.
+	 * Contact IDs are allocated sequentially, so the low bits of the ID spread
+	 * contacts evenly across the stripes.
+	 */
+	private void lockContact(ContactId c) {
+		lock.readLock().lock();
+		contactLocks[c.getInt() & (CONTACT_LOCK_STRIPES - 1)].lock();
+	}
+
+	/** Releases the locks acquired by {@link #lockContact(ContactId)}. */
+	private void unlockContact(ContactId c) {
+		contactLocks[c.getInt() & (CONTACT_LOCK_STRIPES - 1)].unlock();
+		lock.readLock().unlock();
 	}
 
 	public boolean open() throws DbException, IOException {
@@ -134,6 +194,14 @@ DatabaseCleaner.Callback {
 			if(open) throw new IllegalStateException();
 			open = true;
 			boolean reopened = db.open();
+			T txn = db.startTransaction();
+			try {
+				rebuildMessageFilter(txn);
+				db.commitTransaction(txn);
+			} catch(DbException e) {
+				db.abortTransaction(txn);
+				throw e;
+			}
 			cleaner.startCleaning(this, MS_BETWEEN_SWEEPS);
 			shutdownHandle = shutdown.addShutdownHook(shutdownHook);
 			return reopened;
@@ -209,6 +277,7 @@ DatabaseCleaner.Callback {
 				if(!db.containsGroup(txn, g.getId()))
 					added = db.addGroup(txn, g);
 				db.commitTransaction(txn);
+				if(added) availableGroupsChanged();
 			} catch(DbException e) {
 				db.abortTransaction(txn);
 				throw e;
@@ -261,33 +330,56 @@ DatabaseCleaner.Callback {
 	}
 
 	/**
-	 * Stores a message, initialises its status with respect to each contact,
-	 * and marks it as read if it was locally generated.
+	 * Stores a message, initialises its status with respect to each contact
+	 * that can see its group, and marks it as read if it was locally generated.
 	 * <p>
 	 * Locking: write.
 	 * @param sender null for a locally generated message.
 	 */
 	private void addMessage(T txn, Message m, ContactId sender)
 			throws DbException {
+		storeMessage(txn, m, sender);
+		Group g = m.getGroup();
+		Collection<ContactId> visibility = db.getVisibility(txn, g.getId());
+		if(sender != null && !visibility.contains(sender))
+			throw new IllegalStateException();
+		for(ContactId c : visibility) {
+			boolean offered = db.removeOfferedMessage(txn, c, m.getId());
+			boolean seen = offered || c.equals(sender);
+			db.addStatus(txn, c, m.getId(), offered, seen);
+		}
+	}
+
+	/**
+	 * Stores a message without initialising its status, and marks it as read
+	 * if it was locally generated.
+	 * <p>
+	 * Locking: write.
+	 * @param sender null for a locally generated message.
+	 */
+	private void storeMessage(T txn, Message m, ContactId sender)
+			throws DbException {
 		if(sender == null) {
 			db.addMessage(txn, m, true);
 			db.setReadFlag(txn, m.getId(), true);
 		} else {
 			db.addMessage(txn, m, false);
 		}
-		Group g = m.getGroup();
-		Collection<ContactId> visibility = db.getVisibility(txn, g.getId());
-		visibility = new HashSet<ContactId>(visibility);
-		for(ContactId c : db.getContactIds(txn)) {
-			if(visibility.contains(c)) {
-				boolean offered = db.removeOfferedMessage(txn, c, m.getId());
-				boolean seen = offered || c.equals(sender);
-				db.addStatus(txn, c, m.getId(), offered, seen);
-			} else {
-				if(c.equals(sender)) throw new IllegalStateException();
-				db.addStatus(txn, c, m.getId(), false, false);
-			}
-		}
+		messageFilter.add(m.getId().getBytes());
+		if(messageFilter.needsRebuilding()) rebuildMessageFilter(txn);
+	}
+
+	/**
+	 * Replaces the message filter with one containing the IDs of all stored
+	 * messages and room for as many again.
+	 * <p>
+	 * Locking: write.
+	 */
+	private void rebuildMessageFilter(T txn) throws DbException {
+		Collection<MessageId> ids = db.getMessageIds(txn);
+		MessageIdFilter f = new MessageIdFilter(ids.size() * 2);
+		for(MessageId m : ids) f.add(m.getBytes());
+		messageFilter = f;
 	}
 
 	public void addSecrets(Collection<TemporarySecret> secrets)
@@ -336,7 +428,7 @@ DatabaseCleaner.Callback {
 
 	public Ack generateAck(ContactId c, int maxMessages) throws DbException {
 		Collection<MessageId> ids;
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -350,7 +442,7 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 		if(ids.isEmpty()) return null;
 		return new Ack(ids);
@@ -360,49 +452,59 @@ DatabaseCleaner.Callback {
 			long maxLatency) throws DbException {
 		Collection<MessageId> ids;
 		List<byte[]> messages = new ArrayList<byte[]>();
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
 				if(!db.containsContact(txn, c))
 					throw new NoSuchContactException();
 				ids = db.getMessagesToSend(txn, c, maxLength);
-				for(MessageId m : ids) {
-					messages.add(db.getRawMessage(txn, m));
-					db.updateExpiryTime(txn, c, m, maxLatency);
+				if(ids.isEmpty() && maxLength < MAX_PACKET_LENGTH) {
+					// The next message may be longer than the page
+					ids = getFirst(db.getMessagesToSend(txn, c,
+							MAX_PACKET_LENGTH));
+				}
+				for(MessageId m : ids) messages.add(db.getRawMessage(txn, m));
+				if(!ids.isEmpty()) {
+					db.updateExpiryTime(txn, c, ids, maxLatency);
+					db.lowerRequestedFlag(txn, c, ids);
 				}
-				if(!ids.isEmpty()) db.lowerRequestedFlag(txn, c, ids);
 				db.commitTransaction(txn);
 			} catch(DbException e) {
 				db.abortTransaction(txn);
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 		if(messages.isEmpty()) return null;
 		return Collections.unmodifiableList(messages);
 	}
 
+	private Collection<MessageId> getFirst(Collection<MessageId> ids) {
+		if(ids.isEmpty()) return ids;
+		return Collections.singletonList(ids.iterator().next());
+	}
+
 	public Offer generateOffer(ContactId c, int maxMessages, long maxLatency)
 			throws DbException {
 		Collection<MessageId> ids;
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
 				if(!db.containsContact(txn, c))
 					throw new NoSuchContactException();
 				ids = db.getMessagesToOffer(txn, c, maxMessages);
-				for(MessageId m : ids)
-					db.updateExpiryTime(txn, c, m, maxLatency);
+				if(!ids.isEmpty())
+					db.updateExpiryTime(txn, c, ids, maxLatency);
 				db.commitTransaction(txn);
 			} catch(DbException e) {
 				db.abortTransaction(txn);
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 		if(ids.isEmpty()) return null;
 		return new Offer(ids);
@@ -411,7 +513,7 @@ DatabaseCleaner.Callback {
 	public Request generateRequest(ContactId c, int maxMessages)
 			throws DbException {
 		Collection<MessageId> ids;
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -425,7 +527,7 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 		if(ids.isEmpty()) return null;
 		return new Request(ids);
@@ -435,32 +537,37 @@ DatabaseCleaner.Callback {
 			long maxLatency) throws DbException {
 		Collection<MessageId> ids;
 		List<byte[]> messages = new ArrayList<byte[]>();
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
 				if(!db.containsContact(txn, c))
 					throw new NoSuchContactException();
 				ids = db.getRequestedMessagesToSend(txn, c, maxLength);
-				for(MessageId m : ids) {
-					messages.add(db.getRawMessage(txn, m));
-					db.updateExpiryTime(txn, c, m, maxLatency);
+				if(ids.isEmpty() && maxLength < MAX_PACKET_LENGTH) {
+					// The next message may be longer than the page
+					ids = getFirst(db.getRequestedMessagesToSend(txn, c,
+							MAX_PACKET_LENGTH));
+				}
+				for(MessageId m : ids) messages.add(db.getRawMessage(txn, m));
+				if(!ids.isEmpty()) {
+					db.updateExpiryTime(txn, c, ids, maxLatency);
+					db.lowerRequestedFlag(txn, c, ids);
 				}
-				if(!ids.isEmpty()) db.lowerRequestedFlag(txn, c, ids);
 				db.commitTransaction(txn);
 			} catch(DbException e) {
 				db.abortTransaction(txn);
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 		if(messages.isEmpty()) return null;
 		return Collections.unmodifiableList(messages);
 	}
 
 	public RetentionAck generateRetentionAck(ContactId c) throws DbException {
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -474,13 +581,13 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 	}
 
 	public RetentionUpdate generateRetentionUpdate(ContactId c, long maxLatency)
 			throws DbException {
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -494,13 +601,13 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 	}
 
 	public SubscriptionAck generateSubscriptionAck(ContactId c)
 			throws DbException {
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -514,13 +621,13 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 	}
 
 	public SubscriptionUpdate generateSubscriptionUpdate(ContactId c,
 			long maxLatency) throws DbException {
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -535,13 +642,13 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 	}
 
 	public Collection<TransportAck> generateTransportAcks(ContactId c)
 			throws DbException {
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -555,13 +662,13 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 	}
 
 	public Collection<TransportUpdate> generateTransportUpdates(ContactId c,
 			long maxLatency) throws DbException {
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -576,18 +683,23 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 	}
 
 	public Collection<GroupStatus> getAvailableGroups() throws DbException {
+		long version;
+		synchronized(availableGroupsLock) {
+			if(availableGroups != null) return availableGroups;
+			version = availableGroupsVersion;
+		}
+		Collection<GroupStatus> groups;
 		lock.readLock().lock();
 		try {
 			T txn = db.startTransaction();
 			try {
-				Collection<GroupStatus> groups = db.getAvailableGroups(txn);
+				groups = db.getAvailableGroups(txn);
 				db.commitTransaction(txn);
-				return groups;
 			} catch(DbException e) {
 				db.abortTransaction(txn);
 				throw e;
@@ -595,6 +707,23 @@ DatabaseCleaner.Callback {
 		} finally {
 			lock.readLock().unlock();
 		}
+		synchronized(availableGroupsLock) {
+			// Don't cache the result if it may already be out of date
+			if(availableGroupsVersion == version) availableGroups = groups;
+		}
+		return groups;
+	}
+
+	/**
+	 * Discards the cached available groups. This must be called after
+	 * committing any transaction that changes the local or remote
+	 * subscriptions, the groups' visibility or the contacts' inbox groups.
+	 */
+	private void availableGroupsChanged() {
+		synchronized(availableGroupsLock) {
+			availableGroupsVersion++;
+			availableGroups = null;
+		}
 	}
 
 	public TransportConfig getConfig(TransportId t) throws DbException {
@@ -635,6 +764,44 @@ DatabaseCleaner.Callback {
 		}
 	}
 
+	public ContactSummary getContactSummary(ContactId c) throws DbException {
+		lock.readLock().lock();
+		try {
+			T txn = db.startTransaction();
+			try {
+				if(!db.containsContact(txn, c))
+					throw new NoSuchContactException();
+				ContactSummary summary = db.getContactSummary(txn, c);
+				db.commitTransaction(txn);
+				return summary;
+			} catch(DbException e) {
+				db.abortTransaction(txn);
+				throw e;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public Collection<ContactSummary> getContactSummaries()
+			throws DbException {
+		lock.readLock().lock();
+		try {
+			T txn = db.startTransaction();
+			try {
+				Collection<ContactSummary> summaries =
+						db.getContactSummaries(txn);
+				db.commitTransaction(txn);
+				return summaries;
+			} catch(DbException e) {
+				db.abortTransaction(txn);
+				throw e;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
 	public Collection<Contact> getContacts() throws DbException {
 		lock.readLock().lock();
 		try {
@@ -728,6 +895,52 @@ DatabaseCleaner.Callback {
 		}
 	}
 
+	public Collection<MessageHeader> getInboxMessageHeaders(ContactId c,
+			MessageHeader after, int maxMessages) throws DbException {
+		lock.readLock().lock();
+		try {
+			T txn = db.startTransaction();
+			try {
+				if(!db.containsContact(txn, c))
+					throw new NoSuchContactException();
+				Collection<MessageHeader> headers;
+				if(after == null) {
+					headers = db.getInboxMessageHeaders(txn, c, 0, null,
+							maxMessages);
+				} else {
+					headers = db.getInboxMessageHeaders(txn, c,
+							after.getTimestamp(), after.getId(), maxMessages);
+				}
+				db.commitTransaction(txn);
+				return headers;
+			} catch(DbException e) {
+				db.abortTransaction(txn);
+				throw e;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	public Map<GroupId, MessageHeader> getLatestMessageHeaders()
+			throws DbException {
+		lock.readLock().lock();
+		try {
+			T txn = db.startTransaction();
+			try {
+				Map<GroupId, MessageHeader> headers =
+						db.getLatestMessageHeaders(txn);
+				db.commitTransaction(txn);
+				return headers;
+			} catch(DbException e) {
+				db.abortTransaction(txn);
+				throw e;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
 	public LocalAuthor getLocalAuthor(AuthorId a) throws DbException {
 		lock.readLock().lock();
 		try {
@@ -822,6 +1035,24 @@ DatabaseCleaner.Callback {
 		}
 	}
 
+	public Map<MessageId, byte[]> getMessageBodies(Collection<MessageId> m)
+			throws DbException {
+		lock.readLock().lock();
+		try {
+			T txn = db.startTransaction();
+			try {
+				Map<MessageId, byte[]> bodies = db.getMessageBodies(txn, m);
+				db.commitTransaction(txn);
+				return bodies;
+			} catch(DbException e) {
+				db.abortTransaction(txn);
+				throw e;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
 	public Collection<MessageHeader> getMessageHeaders(GroupId g)
 			throws DbException {
 		lock.readLock().lock();
@@ -843,6 +1074,33 @@ DatabaseCleaner.Callback {
 		}
 	}
 
+	public Collection<MessageHeader> getMessageHeaders(GroupId g,
+			MessageHeader after, int maxMessages) throws DbException {
+		lock.readLock().lock();
+		try {
+			T txn = db.startTransaction();
+			try {
+				if(!db.containsGroup(txn, g))
+					throw new NoSuchSubscriptionException();
+				Collection<MessageHeader> headers;
+				if(after == null) {
+					headers = db.getMessageHeaders(txn, g, 0, null,
+							maxMessages);
+				} else {
+					headers = db.getMessageHeaders(txn, g,
+							after.getTimestamp(), after.getId(), maxMessages);
+				}
+				db.commitTransaction(txn);
+				return headers;
+			} catch(DbException e) {
+				db.abortTransaction(txn);
+				throw e;
+			}
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
 	public boolean getReadFlag(MessageId m) throws DbException {
 		lock.readLock().lock();
 		try {
@@ -987,8 +1245,9 @@ DatabaseCleaner.Callback {
 	}
 
 	public long incrementStreamCounter(ContactId c, TransportId t,
-			long period) throws DbException {
-		lock.writeLock().lock();
+			long period, int increment) throws DbException {
+		if(increment < 1) throw new IllegalArgumentException();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -996,7 +1255,8 @@ DatabaseCleaner.Callback {
 					throw new NoSuchContactException();
 				if(!db.containsTransport(txn, t))
 					throw new NoSuchTransportException();
-				long counter = db.incrementStreamCounter(txn, c, t, period);
+				long counter = db.incrementStreamCounter(txn, c, t, period,
+						increment);
 				db.commitTransaction(txn);
 				return counter;
 			} catch(DbException e) {
@@ -1004,7 +1264,7 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 	}
 
@@ -1072,9 +1332,13 @@ DatabaseCleaner.Callback {
 		if(changed) eventBus.broadcast(new SettingsUpdatedEvent());
 	}
 
+	public boolean mightContainMessage(MessageId m) {
+		return messageFilter.mightContain(m.getBytes());
+	}
+
 	public void receiveAck(ContactId c, Ack a) throws DbException {
 		Collection<MessageId> acked = new ArrayList<MessageId>();
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -1092,14 +1356,40 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 		eventBus.broadcast(new MessagesAckedEvent(c, acked));
 	}
 
+	public boolean receiveDuplicateMessage(ContactId c, MessageId m,
+			GroupId g) throws DbException {
+		boolean duplicate, visible;
+		// Acking a duplicate only affects the sender's status
+		lockContact(c);
+		try {
+			T txn = db.startTransaction();
+			try {
+				if(!db.containsContact(txn, c))
+					throw new NoSuchContactException();
+				duplicate = db.containsMessage(txn, m);
+				visible = duplicate && db.containsVisibleGroup(txn, c, g);
+				if(visible) db.raiseAckFlag(txn, c, m);
+				db.commitTransaction(txn);
+			} catch(DbException e) {
+				db.abortTransaction(txn);
+				throw e;
+			}
+		} finally {
+			unlockContact(c);
+		}
+		if(visible) eventBus.broadcast(new MessageToAckEvent(c));
+		return duplicate;
+	}
+
 	public void receiveMessage(ContactId c, Message m) throws DbException {
 		boolean duplicate, visible;
-		lock.writeLock().lock();
+		// Acking a duplicate only affects the sender's status
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -1107,17 +1397,39 @@ DatabaseCleaner.Callback {
 					throw new NoSuchContactException();
 				duplicate = db.containsMessage(txn, m.getId());
 				visible = db.containsVisibleGroup(txn, c, m.getGroup().getId());
-				if(visible) {
-					if(!duplicate) addMessage(txn, m, c);
-					db.raiseAckFlag(txn, c, m.getId());
-				}
+				if(visible && duplicate) db.raiseAckFlag(txn, c, m.getId());
 				db.commitTransaction(txn);
 			} catch(DbException e) {
 				db.abortTransaction(txn);
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
+		}
+		if(visible && !duplicate) {
+			// Storing a new message affects every contact's status, so check
+			// again while holding the global write lock
+			lock.writeLock().lock();
+			try {
+				T txn = db.startTransaction();
+				try {
+					if(!db.containsContact(txn, c))
+						throw new NoSuchContactException();
+					duplicate = db.containsMessage(txn, m.getId());
+					visible = db.containsVisibleGroup(txn, c,
+							m.getGroup().getId());
+					if(visible) {
+						if(!duplicate) addMessage(txn, m, c);
+						db.raiseAckFlag(txn, c, m.getId());
+					}
+					db.commitTransaction(txn);
+				} catch(DbException e) {
+					db.abortTransaction(txn);
+					throw e;
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
 		}
 		if(visible) {
 			if(!duplicate)
@@ -1126,33 +1438,130 @@ DatabaseCleaner.Callback {
 		}
 	}
 
+	public void receiveMessages(ContactId c, Collection<Message> messages)
+			throws DbException {
+		List<Message> toStore = new ArrayList<Message>();
+		boolean ack = false;
+		// Acking duplicates only affects the sender's status
+		lockContact(c);
+		try {
+			T txn = db.startTransaction();
+			try {
+				if(!db.containsContact(txn, c))
+					throw new NoSuchContactException();
+				Map<GroupId, Boolean> visible = new HashMap<GroupId, Boolean>();
+				for(Message m : messages) {
+					if(!isVisible(txn, c, m.getGroup().getId(), visible))
+						continue;
+					if(db.containsMessage(txn, m.getId())) {
+						db.raiseAckFlag(txn, c, m.getId());
+						ack = true;
+					} else {
+						toStore.add(m);
+					}
+				}
+				db.commitTransaction(txn);
+			} catch(DbException e) {
+				db.abortTransaction(txn);
+				throw e;
+			}
+		} finally {
+			unlockContact(c);
+		}
+		Map<GroupId, Group> added = new HashMap<GroupId, Group>();
+		if(!toStore.isEmpty()) {
+			// Storing new messages affects every contact's status, so check
+			// again while holding the global write lock
+			lock.writeLock().lock();
+			try {
+				T txn = db.startTransaction();
+				try {
+					if(!db.containsContact(txn, c))
+						throw new NoSuchContactException();
+					Map<GroupId, Boolean> visible =
+							new HashMap<GroupId, Boolean>();
+					List<MessageId> stored = new ArrayList<MessageId>();
+					List<MessageId> toAck = new ArrayList<MessageId>();
+					for(Message m : toStore) {
+						Group g = m.getGroup();
+						if(!isVisible(txn, c, g.getId(), visible)) continue;
+						MessageId id = m.getId();
+						if(!db.containsMessage(txn, id)) {
+							storeMessage(txn, m, c);
+							stored.add(id);
+							added.put(g.getId(), g);
+						}
+						toAck.add(id);
+					}
+					if(!stored.isEmpty()) db.addStatuses(txn, c, stored);
+					for(MessageId id : toAck) db.raiseAckFlag(txn, c, id);
+					if(!toAck.isEmpty()) ack = true;
+					db.commitTransaction(txn);
+				} catch(DbException e) {
+					db.abortTransaction(txn);
+					throw e;
+				}
+			} finally {
+				lock.writeLock().unlock();
+			}
+		}
+		if(!added.isEmpty()) {
+			Collection<Group> groups = new ArrayList<Group>(added.values());
+			eventBus.broadcast(new MessagesAddedEvent(groups, c));
+		}
+		if(ack) eventBus.broadcast(new MessageToAckEvent(c));
+	}
+
+	/**
+	 * Returns true if the given group is visible to the given contact, using
+	 * and updating the given map of groups already checked.
+	 * <p>
+	 * Locking: contact read.
+	 */
+	private boolean isVisible(T txn, ContactId c, GroupId g,
+			Map<GroupId, Boolean> checked) throws DbException {
+		Boolean visible = checked.get(g);
+		if(visible == null) {
+			visible = db.containsVisibleGroup(txn, c, g);
+			checked.put(g, visible);
+		}
+		return visible;
+	}
+
 	public void receiveOffer(ContactId c, Offer o) throws DbException {
 		boolean ack = false, request = false;
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
 				if(!db.containsContact(txn, c))
 					throw new NoSuchContactException();
 				int count = db.countOfferedMessages(txn, c);
+				List<MessageId> seen = new ArrayList<MessageId>();
+				List<MessageId> offered = new ArrayList<MessageId>();
 				for(MessageId m : o.getMessageIds()) {
 					if(db.containsVisibleMessage(txn, c, m)) {
-						db.raiseSeenFlag(txn, c, m);
-						db.raiseAckFlag(txn, c, m);
-						ack = true;
+						seen.add(m);
 					} else if(count < MAX_OFFERED_MESSAGES) {
-						db.addOfferedMessage(txn, c, m);
-						request = true;
+						offered.add(m);
 						count++;
 					}
 				}
+				// Write the statuses before the offers - see the class comment
+				for(MessageId m : seen) {
+					db.raiseSeenFlag(txn, c, m);
+					db.raiseAckFlag(txn, c, m);
+				}
+				for(MessageId m : offered) db.addOfferedMessage(txn, c, m);
+				ack = !seen.isEmpty();
+				request = !offered.isEmpty();
 				db.commitTransaction(txn);
 			} catch(DbException e) {
 				db.abortTransaction(txn);
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 		if(ack) eventBus.broadcast(new MessageToAckEvent(c));
 		if(request) eventBus.broadcast(new MessageToRequestEvent(c));
@@ -1160,7 +1569,7 @@ DatabaseCleaner.Callback {
 
 	public void receiveRequest(ContactId c, Request r) throws DbException {
 		boolean requested = false;
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -1179,14 +1588,14 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 		if(requested) eventBus.broadcast(new MessageRequestedEvent(c));
 	}
 
 	public void receiveRetentionAck(ContactId c, RetentionAck a)
 			throws DbException {
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -1199,14 +1608,14 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 	}
 
 	public void receiveRetentionUpdate(ContactId c, RetentionUpdate u)
 			throws DbException {
 		boolean updated;
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -1220,14 +1629,14 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 		if(updated) eventBus.broadcast(new RemoteRetentionTimeUpdatedEvent(c));
 	}
 
 	public void receiveSubscriptionAck(ContactId c, SubscriptionAck a)
 			throws DbException {
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -1240,14 +1649,14 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 	}
 
 	public void receiveSubscriptionUpdate(ContactId c, SubscriptionUpdate u)
 			throws DbException {
 		boolean updated;
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -1255,19 +1664,20 @@ DatabaseCleaner.Callback {
 					throw new NoSuchContactException();
 				updated = db.setGroups(txn, c, u.getGroups(), u.getVersion());
 				db.commitTransaction(txn);
+				if(updated) availableGroupsChanged();
 			} catch(DbException e) {
 				db.abortTransaction(txn);
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 		if(updated) eventBus.broadcast(new RemoteSubscriptionsUpdatedEvent(c));
 	}
 
 	public void receiveTransportAck(ContactId c, TransportAck a)
 			throws DbException {
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -1282,14 +1692,14 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 	}
 
 	public void receiveTransportUpdate(ContactId c, TransportUpdate u)
 			throws DbException {
 		boolean updated;
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -1305,7 +1715,7 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 		if(updated)
 			eventBus.broadcast(new RemoteTransportsUpdatedEvent(c, u.getId()));
@@ -1322,6 +1732,7 @@ DatabaseCleaner.Callback {
 				if(g != null) db.removeGroup(txn, g);
 				db.removeContact(txn, c);
 				db.commitTransaction(txn);
+				availableGroupsChanged();
 			} catch(DbException e) {
 				db.abortTransaction(txn);
 				throw e;
@@ -1344,6 +1755,7 @@ DatabaseCleaner.Callback {
 				affected = db.getVisibility(txn, id);
 				db.removeGroup(txn, id);
 				db.commitTransaction(txn);
+				availableGroupsChanged();
 			} catch(DbException e) {
 				db.abortTransaction(txn);
 				throw e;
@@ -1370,6 +1782,7 @@ DatabaseCleaner.Callback {
 				}
 				db.removeLocalAuthor(txn, a);
 				db.commitTransaction(txn);
+				availableGroupsChanged();
 			} catch(DbException e) {
 				db.abortTransaction(txn);
 				throw e;
@@ -1401,9 +1814,32 @@ DatabaseCleaner.Callback {
 		eventBus.broadcast(new TransportRemovedEvent(t));
 	}
 
+	public boolean resetStreamCounter(ContactId c, TransportId t, long period,
+			long expected, long counter) throws DbException {
+		lockContact(c);
+		try {
+			T txn = db.startTransaction();
+			try {
+				if(!db.containsContact(txn, c))
+					throw new NoSuchContactException();
+				if(!db.containsTransport(txn, t))
+					throw new NoSuchTransportException();
+				boolean reset = db.resetStreamCounter(txn, c, t, period,
+						expected, counter);
+				db.commitTransaction(txn);
+				return reset;
+			} catch(DbException e) {
+				db.abortTransaction(txn);
+				throw e;
+			}
+		} finally {
+			unlockContact(c);
+		}
+	}
+
 	public void setReorderingWindow(ContactId c, TransportId t, long period,
 			long centre, byte[] bitmap) throws DbException {
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -1418,7 +1854,33 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
+		}
+	}
+
+	public void setReorderingWindows(Collection<ReorderingWindowUpdate> windows)
+			throws DbException {
+		// Lock the stripes of the contacts in the batch in ascending order
+		SortedSet<Integer> stripes = new TreeSet<Integer>();
+		for(ReorderingWindowUpdate w : windows)
+			stripes.add(w.getContactId().getInt() & (CONTACT_LOCK_STRIPES - 1));
+		lock.readLock().lock();
+		try {
+			for(int i : stripes) contactLocks[i].lock();
+			try {
+				T txn = db.startTransaction();
+				try {
+					db.setReorderingWindows(txn, windows);
+					db.commitTransaction(txn);
+				} catch(DbException e) {
+					db.abortTransaction(txn);
+					throw e;
+				}
+			} finally {
+				for(int i : stripes) contactLocks[i].unlock();
+			}
+		} finally {
+			lock.readLock().unlock();
 		}
 	}
 
@@ -1431,6 +1893,7 @@ DatabaseCleaner.Callback {
 					throw new NoSuchContactException();
 				db.setInboxGroup(txn, c, g);
 				db.commitTransaction(txn);
+				availableGroupsChanged();
 			} catch(DbException e) {
 				db.abortTransaction(txn);
 				throw e;
@@ -1458,9 +1921,26 @@ DatabaseCleaner.Callback {
 		}
 	}
 
+	public void setReadFlags(Collection<MessageId> m, boolean read)
+			throws DbException {
+		lock.writeLock().lock();
+		try {
+			T txn = db.startTransaction();
+			try {
+				db.setReadFlags(txn, m, read);
+				db.commitTransaction(txn);
+			} catch(DbException e) {
+				db.abortTransaction(txn);
+				throw e;
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
 	public void setRemoteProperties(ContactId c,
 			Map<TransportId, TransportProperties> p) throws DbException {
-		lock.writeLock().lock();
+		lockContact(c);
 		try {
 			T txn = db.startTransaction();
 			try {
@@ -1473,7 +1953,7 @@ DatabaseCleaner.Callback {
 				throw e;
 			}
 		} finally {
-			lock.writeLock().unlock();
+			unlockContact(c);
 		}
 	}
 
@@ -1505,6 +1985,7 @@ DatabaseCleaner.Callback {
 				// Make the group invisible to future contacts
 				db.setVisibleToAll(txn, g, false);
 				db.commitTransaction(txn);
+				availableGroupsChanged();
 			} catch(DbException e) {
 				db.abortTransaction(txn);
 				throw e;
@@ -1538,6 +2019,7 @@ DatabaseCleaner.Callback {
 					}
 				}
 				db.commitTransaction(txn);
+				availableGroupsChanged();
 			} catch(DbException e) {
 				db.abortTransaction(txn);
 				throw e;
@@ -1577,6 +2059,9 @@ DatabaseCleaner.Callback {
 				expired = db.getOldMessages(txn, size);
 				if(!expired.isEmpty()) {
 					for(MessageId m : expired) db.removeMessage(txn, m);
+					messageFilter.removed(expired.size());
+					if(messageFilter.needsRebuilding())
+						rebuildMessageFilter(txn);
 					db.incrementRetentionVersions(txn);
 					if(LOG.isLoggable(INFO))
 						LOG.info("Expired " + expired.size() + " messages");
@@ -38,4 +38,12 @@ interface DatabaseConstants {
 	 * time it is necessary to expire messages.
 	 */
 	int BYTES_PER_SWEEP = 10 * 1024 * 1024; // 10 MiB
+
+	/**
+	 * The maximum size in bytes of each segment of the blob store. Sealed
+	 * segments are compacted whenever a quarter of this many bytes of
+	 * messages have been removed from the blob store since the last
+	 * compaction.
+	 */
+	long MAX_BLOB_SEGMENT_SIZE = 64 * 1024 * 1024; // 64 MiB
 }
@@ -0,0 +1,172 @@
+package org.briarproject.db;
+
+import static java.util.logging.Level.INFO;
+
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+import org.briarproject.api.db.ContactDatabaseTask;
+import org.briarproject.api.db.DatabaseExecutorMetrics;
+import org.briarproject.api.db.ReadOnlyDatabaseTask;
+import org.briarproject.api.system.Clock;
+
+/**
+ * An executor for database tasks that runs tasks on a bounded pool of
+ * threads, executing read-only tasks in parallel while keeping the tasks for
+ * each contact, and all unclassified tasks, in submission order. See
+ * {@link org.briarproject.api.db.DatabaseExecutor DatabaseExecutor} for the
+ * ordering contract.
+ */
+class DatabaseExecutorImpl implements Executor, DatabaseExecutorMetrics {
+
+	private static final Logger LOG =
+			Logger.getLogger(DatabaseExecutorImpl.class.getName());
+
+	/** Tasks that wait longer than this to be executed will be logged. */
+	private static final long SLOW_QUEUE_TIME = 1000; // 1 second
+
+	/** The key for tasks that aren't classified as read-only or per-contact. */
+	private static final Object GLOBAL = new Object();
+
+	private final Executor pool;
+	private final Clock clock;
+	// Locking: self
+	private final Map<Object, LinkedList<Task>> queues;
+	private final AtomicInteger queued = new AtomicInteger(0);
+	private final AtomicInteger active = new AtomicInteger(0);
+
+	// Locking: this
+	private long completed = 0, totalQueueTime = 0, maxQueueTime = 0;
+	private long totalExecutionTime = 0;
+
+	DatabaseExecutorImpl(Executor pool, Clock clock) {
+		this.pool = pool;
+		this.clock = clock;
+		queues = new HashMap<Object, LinkedList<Task>>();
+	}
+
+	public void execute(Runnable r) {
+		Task task = new Task(r, clock.currentTimeMillis());
+		queued.incrementAndGet();
+		if(r instanceof ReadOnlyDatabaseTask) {
+			pool.execute(task);
+			return;
+		}
+		Object key;
+		if(r instanceof ContactDatabaseTask)
+			key = ((ContactDatabaseTask) r).getContactId();
+		else key = GLOBAL;
+		boolean start = false;
+		synchronized(queues) {
+			LinkedList<Task> queue = queues.get(key);
+			if(queue == null) {
+				queue = new LinkedList<Task>();
+				queues.put(key, queue);
+				start = true;
+			}
+			queue.add(task);
+		}
+		// If the queue was idle, start draining it
+		if(start) pool.execute(new Drain(key));
+	}
+
+	public int getQueuedTaskCount() {
+		return queued.get();
+	}
+
+	public int getActiveTaskCount() {
+		return active.get();
+	}
+
+	public synchronized long getCompletedTaskCount() {
+		return completed;
+	}
+
+	public synchronized long getAverageQueueTime() {
+		if(completed == 0) return 0;
+		return totalQueueTime / completed;
+	}
+
+	public synchronized long getMaxQueueTime() {
+		return maxQueueTime;
+	}
+
+	public synchronized long getAverageExecutionTime() {
+		if(completed == 0) return 0;
+		return totalExecutionTime / completed;
+	}
+
+	private synchronized void taskCompleted(long queueTime,
+			long executionTime) {
+		completed++;
+		totalQueueTime += queueTime;
+		if(queueTime > maxQueueTime) maxQueueTime = queueTime;
+		totalExecutionTime += executionTime;
+	}
+
+	private class Task implements Runnable {
+
+		private final Runnable delegate;
+		private final long submitted;
+
+		private Task(Runnable delegate, long submitted) {
+			this.delegate = delegate;
+			this.submitted = submitted;
+		}
+
+		public void run() {
+			long started = clock.currentTimeMillis();
+			queued.decrementAndGet();
+			active.incrementAndGet();
+			long queueTime = started - submitted;
+			if(queueTime > SLOW_QUEUE_TIME && LOG.isLoggable(INFO)) {
+				LOG.info("Database task waited " + queueTime + " ms, "
+						+ queued.get() + " tasks queued");
+			}
+			try {
+				delegate.run();
+			} finally {
+				active.decrementAndGet();
+				long executionTime = clock.currentTimeMillis() - started;
+				taskCompleted(queueTime, executionTime);
+			}
+		}
+	}
+
+	/**
+	 * Executes the task at the head of a queue, then resubmits itself to the
+	 * pool if the queue is not empty, so that a busy queue can't monopolise
+	 * a thread.
+	 */
+	private class Drain implements Runnable {
+
+		private final Object key;
+
+		private Drain(Object key) {
+			this.key = key;
+		}
+
+		public void run() {
+			Task task;
+			synchronized(queues) {
+				task = queues.get(key).getFirst();
+			}
+			try {
+				task.run();
+			} finally {
+				boolean more;
+				synchronized(queues) {
+					LinkedList<Task> queue = queues.get(key);
+					queue.removeFirst();
+					more = !queue.isEmpty();
+					if(!more) queues.remove(key);
+				}
+				if(more) pool.execute(this);
+			}
+		}
+	}
+}
@@ -12,9 +12,11 @@ import java.util.concurrent.ThreadPoolExecutor;
 
 import javax.inject.Singleton;
 
+import org.briarproject.api.crypto.CryptoComponent;
 import org.briarproject.api.db.DatabaseComponent;
 import org.briarproject.api.db.DatabaseConfig;
 import org.briarproject.api.db.DatabaseExecutor;
+import org.briarproject.api.db.DatabaseExecutorMetrics;
 import org.briarproject.api.event.EventBus;
 import org.briarproject.api.lifecycle.LifecycleManager;
 import org.briarproject.api.lifecycle.ShutdownManager;
@@ -26,7 +28,11 @@ import com.google.inject.Provides;
 
 public class DatabaseModule extends AbstractModule {
 
-	private final ExecutorService databaseExecutor;
+	/** The maximum number of threads used for database tasks. */
+	private static final int MAX_DATABASE_THREADS = 4;
+
+	private final ExecutorService databaseThreadPool;
+	private final DatabaseExecutorImpl databaseExecutor;
 
 	public DatabaseModule() {
 		// Use an unbounded queue
@@ -34,9 +40,16 @@ public class DatabaseModule extends AbstractModule {
 		// Discard tasks that are submitted during shutdown
 		RejectedExecutionHandler policy =
 				new ThreadPoolExecutor.DiscardPolicy();
-		// Use a single thread and keep it in the pool for 60 secs
-		databaseExecutor = new ThreadPoolExecutor(0, 1, 60, SECONDS, queue,
-				policy);
+		// Use one thread per processor, between two and the maximum
+		int processors = Runtime.getRuntime().availableProcessors();
+		int threads = Math.max(2, Math.min(processors, MAX_DATABASE_THREADS));
+		// Keep idle threads in the pool for 60 secs
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+				60, SECONDS, queue, policy);
+		pool.allowCoreThreadTimeOut(true);
+		databaseThreadPool = pool;
+		// Order the tasks for each contact, and all unclassified tasks
+		databaseExecutor = new DatabaseExecutorImpl(pool, new SystemClock());
 	}
 
 	@Override
@@ -46,8 +59,8 @@ public class DatabaseModule extends AbstractModule {
 
 	@Provides
 	Database<Connection> getDatabase(DatabaseConfig config,
-			FileUtils fileUtils) {
-		return new H2Database(config, fileUtils, new SystemClock());
+			FileUtils fileUtils, CryptoComponent crypto) {
+		return new H2Database(config, fileUtils, new SystemClock(), crypto);
 	}
 
 	@Provides @Singleton
@@ -60,7 +73,12 @@ public class DatabaseModule extends AbstractModule {
 
 	@Provides @Singleton @DatabaseExecutor
 	Executor getDatabaseExecutor(LifecycleManager lifecycleManager) {
-		lifecycleManager.registerForShutdown(databaseExecutor);
+		lifecycleManager.registerForShutdown(databaseThreadPool);
+		return databaseExecutor;
+	}
+
+	@Provides
+	DatabaseExecutorMetrics getDatabaseExecutorMetrics() {
 		return databaseExecutor;
 	}
 }
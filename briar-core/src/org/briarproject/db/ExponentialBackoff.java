@@ -27,4 +27,20 @@ class ExponentialBackoff {
 		long expiry = now + roundTrip;
 		return expiry < 0 ? Long.MAX_VALUE : expiry;
 	}
+
+	/**
+	 * Returns the largest transmission count for which
+	 * {@link #calculateExpiry(long, long, int)} returns an expiry time less
+	 * than Long.MAX_VALUE, or -1 if it returns Long.MAX_VALUE for every
+	 * transmission count. This allows the expiry time to be calculated in
+	 * SQL without overflowing.
+	 */
+	static int getMaxTxCount(long now, long maxLatency) {
+		if(now < 0) throw new IllegalArgumentException();
+		if(maxLatency <= 0) throw new IllegalArgumentException();
+		int txCount = -1;
+		while(calculateExpiry(now, maxLatency, txCount + 1) < Long.MAX_VALUE)
+			txCount++;
+		return txCount;
+	}
 }
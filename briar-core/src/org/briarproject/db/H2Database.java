@@ -1,5 +1,7 @@
 package org.briarproject.db;
 
+import static org.briarproject.db.DatabaseConstants.MAX_BLOB_SEGMENT_SIZE;
+
 import java.io.File;
 import java.io.IOException;
 import java.sql.Connection;
@@ -10,6 +12,7 @@ import java.util.Properties;
 
 import javax.inject.Inject;
 
+import org.briarproject.api.crypto.CryptoComponent;
 import org.briarproject.api.db.DatabaseConfig;
 import org.briarproject.api.db.DbException;
 import org.briarproject.api.system.Clock;
@@ -29,19 +32,32 @@ class H2Database extends JdbcDatabase {
 	private final String url;
 
 	@Inject
-	H2Database(DatabaseConfig config, FileUtils fileUtils, Clock clock) {
-		super(HASH_TYPE, BINARY_TYPE, COUNTER_TYPE, SECRET_TYPE, clock);
+	H2Database(DatabaseConfig config, FileUtils fileUtils, Clock clock,
+			CryptoComponent crypto) {
+		this(config, fileUtils, clock, crypto, MAX_BLOB_SEGMENT_SIZE);
+	}
+
+	H2Database(DatabaseConfig config, FileUtils fileUtils, Clock clock,
+			CryptoComponent crypto, long maxBlobSegmentSize) {
+		super(HASH_TYPE, BINARY_TYPE, COUNTER_TYPE, SECRET_TYPE, clock,
+				config.getMaxCommitDelay(),
+				new BlobStore(new File(config.getDatabaseDirectory(), "blobs"),
+						maxBlobSegmentSize, crypto),
+				config.useBlobStore(), maxBlobSegmentSize / 4);
 		this.config = config;
 		this.fileUtils = fileUtils;
 		String path = new File(config.getDatabaseDirectory(), "db").getPath();
 		// FIXME: Remove WRITE_DELAY=0 after implementing BTPv2?
+		// Database tasks run on several threads, so wait longer than the
+		// default for table locks held by other connections
 		url = "jdbc:h2:split:" + path + ";CIPHER=AES;MULTI_THREADED=1"
-				+ ";WRITE_DELAY=0;DB_CLOSE_ON_EXIT=false";
+				+ ";WRITE_DELAY=0;LOCK_TIMEOUT=10000;DB_CLOSE_ON_EXIT=false";
 	}
 
 	public boolean open() throws DbException, IOException {
 		boolean reopen = config.databaseExists();
 		if(!reopen) config.getDatabaseDirectory().mkdirs();
+		super.openBlobStore(config.getEncryptionKey());
 		super.open("org.h2.Driver", reopen);
 		return reopen;
 	}
@@ -50,8 +66,11 @@ class H2Database extends JdbcDatabase {
 		// H2 will close the database when the last connection closes
 		try {
 			super.closeAllConnections();
+			super.closeBlobStore();
 		} catch(SQLException e) {
 			throw new DbException(e);
+		} catch(IOException e) {
+			throw new DbException(e);
 		}
 	}
 
@@ -1,16 +1,24 @@
 package org.briarproject.db;
 
+import static java.sql.Types.BIGINT;
 import static java.sql.Types.BINARY;
+import static java.sql.Types.BLOB;
+import static java.sql.Types.INTEGER;
 import static java.sql.Types.VARCHAR;
+import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.WARNING;
 import static org.briarproject.api.Author.Status.ANONYMOUS;
 import static org.briarproject.api.Author.Status.UNKNOWN;
 import static org.briarproject.api.Author.Status.VERIFIED;
 import static org.briarproject.api.messaging.MessagingConstants.MAX_SUBSCRIPTIONS;
 import static org.briarproject.api.messaging.MessagingConstants.RETENTION_GRANULARITY;
+import static org.briarproject.db.BlobStore.RECORD_OVERHEAD;
 import static org.briarproject.db.ExponentialBackoff.calculateExpiry;
+import static org.briarproject.db.ExponentialBackoff.getMaxTxCount;
 
 import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.sql.Blob;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
@@ -21,12 +29,15 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import org.briarproject.api.Author;
@@ -38,6 +49,7 @@ import org.briarproject.api.Settings;
 import org.briarproject.api.TransportConfig;
 import org.briarproject.api.TransportId;
 import org.briarproject.api.TransportProperties;
+import org.briarproject.api.db.ContactSummary;
 import org.briarproject.api.db.DbClosedException;
 import org.briarproject.api.db.DbException;
 import org.briarproject.api.db.MessageHeader;
@@ -54,7 +66,9 @@ import org.briarproject.api.messaging.TransportAck;
 import org.briarproject.api.messaging.TransportUpdate;
 import org.briarproject.api.system.Clock;
 import org.briarproject.api.transport.Endpoint;
+import org.briarproject.api.transport.ReorderingWindowUpdate;
 import org.briarproject.api.transport.TemporarySecret;
+import org.briarproject.db.BlobStore.Location;
 
 /**
  * A generic database implementation that can be used with any JDBC-compatible
@@ -62,8 +76,14 @@ import org.briarproject.api.transport.TemporarySecret;
  */
 abstract class JdbcDatabase implements Database<Connection> {
 
-	private static final int SCHEMA_VERSION = 6;
-	private static final int MIN_SCHEMA_VERSION = 5;
+	private static final int SCHEMA_VERSION = 11;
+	private static final int MIN_SCHEMA_VERSION = 11;
+
+	/**
+	 * Databases with schema versions from this version up to, but not
+	 * including, the current version are upgraded when they're opened.
+	 */
+	private static final int MIN_UPGRADABLE_SCHEMA_VERSION = 5;
 
 	private static final String CREATE_SETTINGS =
 			"CREATE TABLE settings"
@@ -99,6 +119,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " name VARCHAR NOT NULL,"
 					+ " salt BINARY NOT NULL,"
 					+ " visibleToAll BOOLEAN NOT NULL,"
+					+ " unread INT NOT NULL," // Number of unread messages
 					+ " PRIMARY KEY (groupId))";
 
 	private static final String CREATE_GROUP_VISIBILITIES =
@@ -152,7 +173,9 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " length INT NOT NULL,"
 					+ " bodyStart INT NOT NULL,"
 					+ " bodyLength INT NOT NULL,"
-					+ " raw BLOB NOT NULL,"
+					+ " raw BLOB," // Null if stored in the blob store
+					+ " blobSegment INT," // Null if stored in the database
+					+ " blobOffset BIGINT," // Null if stored in the database
 					+ " local BOOLEAN NOT NULL,"
 					+ " read BOOLEAN NOT NULL,"
 					+ " PRIMARY KEY (messageId),"
@@ -163,6 +186,11 @@ abstract class JdbcDatabase implements Database<Connection> {
 	private static final String INDEX_MESSAGES_BY_TIMESTAMP =
 			"CREATE INDEX messagesByTimestamp ON messages (timestamp)";
 
+	// Allows the newest messages in a group to be read in index order
+	private static final String INDEX_MESSAGES_BY_GROUP_AND_TIMESTAMP =
+			"CREATE INDEX IF NOT EXISTS messagesByGroupAndTimestamp"
+					+ " ON messages (groupId, timestamp DESC, messageId DESC)";
+
 	private static final String CREATE_OFFERS =
 			"CREATE TABLE offers"
 					+ " (messageId HASH NOT NULL," // Not a foreign key
@@ -195,6 +223,16 @@ abstract class JdbcDatabase implements Database<Connection> {
 	private static final String INDEX_STATUSES_BY_CONTACT =
 			"CREATE INDEX statusesByContact ON statuses (contactId)";
 
+	// Finds the messages to acknowledge without reading every status row
+	private static final String INDEX_STATUSES_BY_CONTACT_AND_ACK =
+			"CREATE INDEX IF NOT EXISTS statusesByContactAndAck"
+					+ " ON statuses (contactId, ack)";
+
+	// Finds the messages to offer or send without reading every status row
+	private static final String INDEX_STATUSES_BY_CONTACT_AND_FLAGS =
+			"CREATE INDEX IF NOT EXISTS statusesByContactAndFlags"
+					+ " ON statuses (contactId, seen, requested, expiry)";
+
 	private static final String CREATE_RETENTION_VERSIONS =
 			"CREATE TABLE retentionVersions"
 					+ " (contactId INT NOT NULL,"
@@ -305,31 +343,59 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " REFERENCES transports (transportId)"
 					+ " ON DELETE CASCADE)";
 
+	/** The maximum number of prepared statements cached per connection. */
+	private static final int MAX_CACHED_STATEMENTS = 128;
+
 	private static final Logger LOG =
 			Logger.getLogger(JdbcDatabase.class.getName());
 
 	// Different database libraries use different names for certain types
 	private final String hashType, binaryType, counterType, secretType;
 	private final Clock clock;
+	private final long maxCommitDelay;
+	private final BlobStore blobStore;
+	private final boolean useBlobStore;
+	private final long bytesBetweenCompactions;
+
+	// Blob segments to delete when each transaction commits
+	private final Map<Connection, Set<Integer>> segmentsToDelete =
+			new ConcurrentHashMap<Connection, Set<Integer>>();
+	// Bytes removed from the blob store since the last compaction
+	private final AtomicLong removedBlobBytes = new AtomicLong(0);
 
 	private final LinkedList<Connection> connections =
 			new LinkedList<Connection>(); // Locking: self
 
 	private final AtomicInteger transactionCount = new AtomicInteger(0);
 
+	// Each cache is only used by the thread that holds its connection
+	private final Map<Connection, StatementCache> statementCaches =
+			new ConcurrentHashMap<Connection, StatementCache>();
+
 	private int openConnections = 0; // Locking: connections
 	private boolean closed = false; // Locking: connections
 
+	// Group commit state
+	private final Object syncLock = new Object();
+	private long commitCount = 0, syncCount = 0; // Locking: syncLock
+	private boolean syncing = false; // Locking: syncLock
+
 	protected abstract Connection createConnection() throws SQLException;
 	protected abstract void flushBuffersToDisk(Statement s) throws SQLException;
 
 	JdbcDatabase(String hashType, String binaryType, String counterType,
-			String secretType, Clock clock) {
+			String secretType, Clock clock, long maxCommitDelay,
+			BlobStore blobStore, boolean useBlobStore,
+			long bytesBetweenCompactions) {
 		this.hashType = hashType;
 		this.binaryType = binaryType;
 		this.counterType = counterType;
 		this.secretType = secretType;
 		this.clock = clock;
+		this.maxCommitDelay = maxCommitDelay;
+		this.blobStore = blobStore;
+		this.useBlobStore = useBlobStore;
+		this.bytesBetweenCompactions = bytesBetweenCompactions;
 	}
 
 	protected void open(String driverClass, boolean reopen) throws DbException,
@@ -345,12 +411,10 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			if(reopen) {
 				if(!checkSchemaVersion(txn)) throw new DbException();
+				deleteUnusedBlobSegments(txn);
 			} else {
 				createTables(txn);
-				Settings s = new Settings();
-				s.put("schemaVersion", String.valueOf(SCHEMA_VERSION));
-				s.put("minSchemaVersion", String.valueOf(MIN_SCHEMA_VERSION));
-				mergeSettings(txn, s);
+				storeSchemaVersion(txn);
 			}
 			commitTransaction(txn);
 		} catch(DbException e) {
@@ -364,6 +428,11 @@ abstract class JdbcDatabase implements Database<Connection> {
 			Settings s = getSettings(txn);
 			int schemaVersion = Integer.valueOf(s.get("schemaVersion"));
 			if(schemaVersion == SCHEMA_VERSION) return true;
+			if(schemaVersion >= MIN_UPGRADABLE_SCHEMA_VERSION
+					&& schemaVersion < SCHEMA_VERSION) {
+				upgradeSchema(txn, schemaVersion);
+				return true;
+			}
 			if(schemaVersion < MIN_SCHEMA_VERSION) return false;
 			int minSchemaVersion = Integer.valueOf(s.get("minSchemaVersion"));
 			return SCHEMA_VERSION >= minSchemaVersion;
@@ -372,6 +441,63 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	private void storeSchemaVersion(Connection txn) throws DbException {
+		Settings s = new Settings();
+		s.put("schemaVersion", String.valueOf(SCHEMA_VERSION));
+		s.put("minSchemaVersion", String.valueOf(MIN_SCHEMA_VERSION));
+		mergeSettings(txn, s);
+	}
+
+	private void upgradeSchema(Connection txn, int schemaVersion)
+			throws DbException {
+		if(LOG.isLoggable(INFO))
+			LOG.info("Upgrading schema from version " + schemaVersion);
+		Statement s = null;
+		try {
+			s = txn.createStatement();
+			if(schemaVersion < 7) {
+				// Allow messages to be kept in the blob store
+				s.executeUpdate("ALTER TABLE messages"
+						+ " ALTER COLUMN raw SET NULL");
+				s.executeUpdate("ALTER TABLE messages"
+						+ " ADD (blobSegment INT, blobOffset BIGINT)");
+			}
+			if(schemaVersion < 8) {
+				// Count the unread messages in each group
+				s.executeUpdate("ALTER TABLE groups"
+						+ " ADD unread INT DEFAULT 0 NOT NULL");
+				s.executeUpdate("UPDATE groups SET unread ="
+						+ " (SELECT COUNT(*) FROM messages AS m"
+						+ " WHERE m.groupId = groups.groupId"
+						+ " AND read = FALSE)");
+			}
+			if(schemaVersion < 9)
+				s.executeUpdate(INDEX_MESSAGES_BY_GROUP_AND_TIMESTAMP);
+			if(schemaVersion < 10) {
+				s.executeUpdate(INDEX_STATUSES_BY_CONTACT_AND_ACK);
+				s.executeUpdate(INDEX_STATUSES_BY_CONTACT_AND_FLAGS);
+			}
+			if(schemaVersion < 11) {
+				// Delete statuses for contacts that can't see the group,
+				// unless they hold flags that addVisibility wouldn't restore
+				s.executeUpdate("DELETE FROM statuses"
+						+ " WHERE ack = FALSE AND seen = FALSE"
+						+ " AND requested = FALSE AND txCount = 0"
+						+ " AND NOT EXISTS"
+						+ " (SELECT NULL FROM messages AS m"
+						+ " JOIN groupVisibilities AS gv"
+						+ " ON m.groupId = gv.groupId"
+						+ " WHERE m.messageId = statuses.messageId"
+						+ " AND gv.contactId = statuses.contactId)");
+			}
+			s.close();
+		} catch(SQLException e) {
+			tryToClose(s);
+			throw new DbException(e);
+		}
+		storeSchemaVersion(txn);
+	}
+
 	private void tryToClose(ResultSet rs) {
 		try {
 			if(rs != null) rs.close();
@@ -388,6 +514,49 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	/**
+	 * Returns a prepared statement for the given SQL, reusing a statement
+	 * previously prepared on the same connection if possible. The statement
+	 * belongs to the connection's cache and must not be closed by the caller
+	 * unless an error has occurred.
+	 */
+	private PreparedStatement prepareStatement(Connection txn, String sql)
+			throws SQLException {
+		StatementCache cache = statementCaches.get(txn);
+		if(cache == null) {
+			cache = new StatementCache();
+			statementCaches.put(txn, cache);
+		}
+		PreparedStatement ps = cache.get(sql);
+		// Statements are closed after errors, so check before reusing
+		if(ps == null || ps.isClosed()) {
+			ps = txn.prepareStatement(sql);
+			cache.put(sql, ps);
+		}
+		return ps;
+	}
+
+	/**
+	 * Discards any updates that an aborted transaction added to the batches
+	 * of the connection's cached statements, so they won't be executed by the
+	 * next transaction that uses the connection.
+	 */
+	private void clearBatches(Connection c) throws SQLException {
+		StatementCache cache = statementCaches.get(c);
+		if(cache != null) {
+			for(PreparedStatement ps : cache.values())
+				if(!ps.isClosed()) ps.clearBatch();
+		}
+	}
+
+	private void closeStatements(Connection c) {
+		StatementCache cache = statementCaches.remove(c);
+		if(cache != null) {
+			for(PreparedStatement ps : cache.values()) tryToClose(ps);
+			cache.clear();
+		}
+	}
+
 	private void createTables(Connection txn) throws DbException {
 		Statement s = null;
 		try {
@@ -401,10 +570,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 			s.executeUpdate(insertTypeNames(CREATE_GROUP_VERSIONS));
 			s.executeUpdate(insertTypeNames(CREATE_MESSAGES));
 			s.executeUpdate(INDEX_MESSAGES_BY_TIMESTAMP);
+			s.executeUpdate(INDEX_MESSAGES_BY_GROUP_AND_TIMESTAMP);
 			s.executeUpdate(insertTypeNames(CREATE_OFFERS));
 			s.executeUpdate(insertTypeNames(CREATE_STATUSES));
 			s.executeUpdate(INDEX_STATUSES_BY_MESSAGE);
 			s.executeUpdate(INDEX_STATUSES_BY_CONTACT);
+			s.executeUpdate(INDEX_STATUSES_BY_CONTACT_AND_ACK);
+			s.executeUpdate(INDEX_STATUSES_BY_CONTACT_AND_FLAGS);
 			s.executeUpdate(insertTypeNames(CREATE_RETENTION_VERSIONS));
 			s.executeUpdate(insertTypeNames(CREATE_TRANSPORTS));
 			s.executeUpdate(insertTypeNames(CREATE_TRANSPORT_CONFIGS));
@@ -453,7 +625,10 @@ abstract class JdbcDatabase implements Database<Connection> {
 	}
 
 	public void abortTransaction(Connection txn) {
+		// Segments emptied by the transaction are still in use
+		segmentsToDelete.remove(txn);
 		try {
+			clearBatches(txn);
 			txn.rollback();
 			synchronized(connections) {
 				connections.add(txn);
@@ -462,6 +637,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 		} catch(SQLException e) {
 			// Try to close the connection
 			if(LOG.isLoggable(WARNING)) LOG.log(WARNING, e.toString(), e);
+			closeStatements(txn);
 			try {
 				txn.close();
 			} catch(SQLException e1) {
@@ -476,22 +652,94 @@ abstract class JdbcDatabase implements Database<Connection> {
 	}
 
 	public void commitTransaction(Connection txn) throws DbException {
+		// Sync any new blobs before committing the rows that refer to them
+		try {
+			blobStore.sync();
+		} catch(IOException e) {
+			throw new DbException(e);
+		}
 		Statement s = null;
 		try {
 			txn.commit();
 			s = txn.createStatement();
-			flushBuffersToDisk(s);
+			if(maxCommitDelay == 0) flushBuffersToDisk(s);
+			else groupCommit(s);
 			s.close();
 		} catch(SQLException e) {
 			tryToClose(s);
 			throw new DbException(e);
 		}
+		// Delete any segments the transaction emptied
+		Set<Integer> segments = segmentsToDelete.remove(txn);
+		if(segments != null) {
+			for(int segment : segments) deleteBlobSegment(segment);
+		}
 		synchronized(connections) {
 			connections.add(txn);
 			connections.notifyAll();
 		}
 	}
 
+	/**
+	 * Returns when the changes made by a committed transaction have been
+	 * synced to disk. The first caller to find no sync in progress becomes
+	 * the leader: it waits for the other open transactions to commit, or
+	 * until the maximum commit delay has passed, and then syncs the changes
+	 * of every transaction committed so far.
+	 */
+	private void groupCommit(Statement s) throws SQLException {
+		boolean interrupted = false;
+		long target;
+		synchronized(syncLock) {
+			long ticket = ++commitCount;
+			// Wake the leader, if any, to check whether it can sync early
+			syncLock.notifyAll();
+			while(syncing && syncCount < ticket) {
+				try {
+					syncLock.wait();
+				} catch(InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if(syncCount >= ticket) {
+				// Another transaction synced our changes
+				if(interrupted) Thread.currentThread().interrupt();
+				return;
+			}
+			syncing = true;
+			long now = clock.currentTimeMillis();
+			long end = now + maxCommitDelay;
+			while(now < end
+					&& commitCount - syncCount < getOpenTransactions()) {
+				try {
+					syncLock.wait(end - now);
+				} catch(InterruptedException e) {
+					interrupted = true;
+				}
+				now = clock.currentTimeMillis();
+			}
+			target = commitCount;
+		}
+		boolean synced = false;
+		try {
+			flushBuffersToDisk(s);
+			synced = true;
+		} finally {
+			synchronized(syncLock) {
+				if(synced) syncCount = target;
+				syncing = false;
+				syncLock.notifyAll();
+			}
+			if(interrupted) Thread.currentThread().interrupt();
+		}
+	}
+
+	private int getOpenTransactions() {
+		synchronized(connections) {
+			return openConnections - connections.size();
+		}
+	}
+
 	public int getTransactionCount() {
 		return transactionCount.get();
 	}
@@ -504,7 +752,10 @@ abstract class JdbcDatabase implements Database<Connection> {
 		boolean interrupted = false;
 		synchronized(connections) {
 			closed = true;
-			for(Connection c : connections) c.close();
+			for(Connection c : connections) {
+				closeStatements(c);
+				c.close();
+			}
 			openConnections -= connections.size();
 			connections.clear();
 			while(openConnections > 0) {
@@ -514,7 +765,10 @@ abstract class JdbcDatabase implements Database<Connection> {
 					LOG.warning("Interrupted while closing connections");
 					interrupted = true;
 				}
-				for(Connection c : connections) c.close();
+				for(Connection c : connections) {
+					closeStatements(c);
+					c.close();
+				}
 				openConnections -= connections.size();
 				connections.clear();
 			}
@@ -522,6 +776,159 @@ abstract class JdbcDatabase implements Database<Connection> {
 		if(interrupted) Thread.currentThread().interrupt();
 	}
 
+	protected void openBlobStore(byte[] key) {
+		if(key == null) throw new IllegalStateException();
+		blobStore.open(key);
+	}
+
+	protected void closeBlobStore() throws IOException {
+		blobStore.close();
+	}
+
+	private byte[] readBlob(MessageId m, int length, Location location)
+			throws DbException {
+		try {
+			return blobStore.read(m, length, location);
+		} catch(IOException e) {
+			throw new DbException(e);
+		} catch(GeneralSecurityException e) {
+			throw new DbException(e);
+		}
+	}
+
+	private void deleteBlobSegment(int segment) {
+		try {
+			blobStore.deleteSegment(segment);
+		} catch(IOException e) {
+			// The segment will be deleted next time the database is opened
+			if(LOG.isLoggable(WARNING)) LOG.log(WARNING, e.toString(), e);
+		}
+	}
+
+	/**
+	 * Returns the number of bytes in each segment of the blob store that
+	 * belong to messages in the database.
+	 */
+	private Map<Integer, Long> getLiveBlobBytes(Connection txn)
+			throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT blobSegment, COUNT(*), SUM(length)"
+					+ " FROM messages WHERE blobSegment IS NOT NULL"
+					+ " GROUP BY blobSegment";
+			ps = prepareStatement(txn, sql);
+			rs = ps.executeQuery();
+			Map<Integer, Long> live = new HashMap<Integer, Long>();
+			while(rs.next()) {
+				long overhead = rs.getLong(2) * RECORD_OVERHEAD;
+				live.put(rs.getInt(1), rs.getLong(3) + overhead);
+			}
+			rs.close();
+			return live;
+		} catch(SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	/**
+	 * Deletes any sealed segments of the blob store that don't belong to
+	 * any messages, such as segments emptied by compaction before a crash.
+	 */
+	private void deleteUnusedBlobSegments(Connection txn) throws DbException {
+		Map<Integer, Long> live = getLiveBlobBytes(txn);
+		int current = blobStore.getCurrentSegment();
+		for(int segment : blobStore.getSegmentSizes().keySet()) {
+			if(segment != current && !live.containsKey(segment))
+				deleteBlobSegment(segment);
+		}
+	}
+
+	/**
+	 * Moves the live messages out of any sealed segments of the blob store
+	 * that are less than half full. The emptied segments are deleted when
+	 * the transaction commits.
+	 * <p>
+	 * Locking: write.
+	 */
+	private void compactBlobStore(Connection txn) throws DbException {
+		Map<Integer, Long> live = getLiveBlobBytes(txn);
+		int current = blobStore.getCurrentSegment();
+		Set<Integer> segments = segmentsToDelete.get(txn);
+		if(segments == null) {
+			segments = new HashSet<Integer>();
+			segmentsToDelete.put(txn, segments);
+		}
+		Set<Integer> emptied = new HashSet<Integer>();
+		for(Entry<Integer, Long> e : blobStore.getSegmentSizes().entrySet()) {
+			int segment = e.getKey();
+			// Skip segments already emptied by this transaction
+			if(segment == current || segments.contains(segment)) continue;
+			Long liveBytes = live.get(segment);
+			if(liveBytes == null) {
+				emptied.add(segment);
+			} else if(liveBytes < e.getValue() / 2) {
+				moveBlobs(txn, segment);
+				emptied.add(segment);
+			}
+		}
+		if(emptied.isEmpty()) return;
+		if(LOG.isLoggable(INFO))
+			LOG.info("Compacting " + emptied.size() + " blob segments");
+		segments.addAll(emptied);
+	}
+
+	private void moveBlobs(Connection txn, int segment) throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT messageId, length, blobOffset FROM messages"
+					+ " WHERE blobSegment = ?";
+			ps = prepareStatement(txn, sql);
+			ps.setInt(1, segment);
+			rs = ps.executeQuery();
+			List<MessageId> ids = new ArrayList<MessageId>();
+			List<Integer> lengths = new ArrayList<Integer>();
+			List<Long> offsets = new ArrayList<Long>();
+			while(rs.next()) {
+				ids.add(new MessageId(rs.getBytes(1)));
+				lengths.add(rs.getInt(2));
+				offsets.add(rs.getLong(3));
+			}
+			rs.close();
+			if(ids.isEmpty()) return;
+			sql = "UPDATE messages SET blobSegment = ?, blobOffset = ?"
+					+ " WHERE messageId = ?";
+			ps = prepareStatement(txn, sql);
+			for(int i = 0; i < ids.size(); i++) {
+				MessageId m = ids.get(i);
+				Location from = new Location(segment, offsets.get(i));
+				byte[] raw = readBlob(m, lengths.get(i), from);
+				Location to = blobStore.append(m, raw);
+				ps.setInt(1, to.getSegment());
+				ps.setLong(2, to.getOffset());
+				ps.setBytes(3, m.getBytes());
+				ps.addBatch();
+			}
+			int[] batchAffected = ps.executeBatch();
+			if(batchAffected.length != ids.size())
+				throw new DbStateException();
+			for(int i = 0; i < batchAffected.length; i++) {
+				if(batchAffected[i] != 1) throw new DbStateException();
+			}
+		} catch(IOException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		} catch(SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
 	public ContactId addContact(Connection txn, Author remote, AuthorId local)
 			throws DbException {
 		PreparedStatement ps = null;
@@ -531,63 +938,34 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "INSERT INTO contacts"
 					+ " (authorId, name, publicKey, localAuthorId)"
 					+ " VALUES (?, ?, ?, ?)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, remote.getId().getBytes());
 			ps.setString(2, remote.getName());
 			ps.setBytes(3, remote.getPublicKey());
 			ps.setBytes(4, local.getBytes());
 			int affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
 			// Get the new (highest) contact ID
 			sql = "SELECT contactId FROM contacts"
 					+ " ORDER BY contactId DESC LIMIT 1";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			rs = ps.executeQuery();
 			if(!rs.next()) throw new DbStateException();
 			ContactId c = new ContactId(rs.getInt(1));
 			if(rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
-			// Create a status row for each message
-			sql = "SELECT messageID FROM messages";
-			ps = txn.prepareStatement(sql);
-			rs = ps.executeQuery();
-			Collection<byte[]> ids = new ArrayList<byte[]>();
-			while(rs.next()) ids.add(rs.getBytes(1));
-			rs.close();
-			ps.close();
-			if(!ids.isEmpty()) {
-				sql = "INSERT INTO statuses (messageId, contactId, ack,"
-						+ " seen, requested, expiry, txCount)"
-						+ " VALUES (?, ?, FALSE, FALSE, FALSE, 0, 0)";
-				ps = txn.prepareStatement(sql);
-				ps.setInt(2, c.getInt());
-				for(byte[] id : ids) {
-					ps.setBytes(1, id);
-					ps.addBatch();
-				}
-				int[] batchAffected = ps.executeBatch();
-				if(batchAffected.length != ids.size())
-					throw new DbStateException();
-				for(int i = 0; i < batchAffected.length; i++) {
-					if(batchAffected[i] != 1) throw new DbStateException();
-				}
-				ps.close();
-			}
 			// Make groups that are visible to everyone visible to this contact
 			sql = "SELECT groupId FROM groups WHERE visibleToAll = TRUE";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			rs = ps.executeQuery();
-			ids = new ArrayList<byte[]>();
+			Collection<byte[]> ids = new ArrayList<byte[]>();
 			while(rs.next()) ids.add(rs.getBytes(1));
 			rs.close();
-			ps.close();
 			if(!ids.isEmpty()) {
 				sql = "INSERT INTO groupVisibilities"
 						+ " (contactId, groupId, inbox)"
 						+ " VALUES (?, ?, FALSE)";
-				ps = txn.prepareStatement(sql);
+				ps = prepareStatement(txn, sql);
 				ps.setInt(1, c.getInt());
 				for(byte[] id : ids) {
 					ps.setBytes(2, id);
@@ -599,41 +977,49 @@ abstract class JdbcDatabase implements Database<Connection> {
 				for(int i = 0; i < batchAffected.length; i++) {
 					if(batchAffected[i] != 1) throw new DbStateException();
 				}
-				ps.close();
+				// Create a status row for each message in those groups
+				sql = "INSERT INTO statuses (messageId, contactId, ack,"
+						+ " seen, requested, expiry, txCount)"
+						+ " SELECT messageId, ?, FALSE, FALSE, FALSE, 0, 0"
+						+ " FROM messages AS m"
+						+ " JOIN groupVisibilities AS gv"
+						+ " ON m.groupId = gv.groupId"
+						+ " WHERE gv.contactId = ?";
+				ps = prepareStatement(txn, sql);
+				ps.setInt(1, c.getInt());
+				ps.setInt(2, c.getInt());
+				ps.executeUpdate();
 			}
 			// Create a retention version row
 			sql = "INSERT INTO retentionVersions (contactId, retention,"
 					+ " localVersion, localAcked, remoteVersion, remoteAcked,"
 					+ " expiry, txCount)"
 					+ " VALUES (?, 0, 1, 0, 0, TRUE, 0, 0)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
 			// Create a group version row
 			sql = "INSERT INTO groupVersions (contactId, localVersion,"
 					+ " localAcked, remoteVersion, remoteAcked, expiry,"
 					+ " txCount)"
 					+ " VALUES (?, 1, 0, 0, TRUE, 0, 0)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
 			// Create a transport version row for each local transport
 			sql = "SELECT transportId FROM transports";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			rs = ps.executeQuery();
 			Collection<String> transports = new ArrayList<String>();
 			while(rs.next()) transports.add(rs.getString(1));
 			rs.close();
-			ps.close();
 			if(transports.isEmpty()) return c;
 			sql = "INSERT INTO transportVersions (contactId, transportId,"
 					+ " localVersion, localAcked, expiry, txCount)"
 					+ " VALUES (?, ?, 1, 0, 0, 0)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			for(String t : transports) {
 				ps.setString(2, t);
@@ -645,7 +1031,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			for(int i = 0; i < batchAffected.length; i++) {
 				if(batchAffected[i] != 1) throw new DbStateException();
 			}
-			ps.close();
 			return c;
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -660,14 +1045,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "INSERT INTO endpoints"
 					+ " (contactId, transportId, epoch, alice)"
 					+ " VALUES (?, ?, ?, ?)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, ep.getContactId().getInt());
 			ps.setString(2, ep.getTransportId().getString());
 			ps.setLong(3, ep.getEpoch());
 			ps.setBoolean(4, ep.getAlice());
 			int affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -679,25 +1063,23 @@ abstract class JdbcDatabase implements Database<Connection> {
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT COUNT (groupId) FROM groups";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			rs = ps.executeQuery();
 			if(!rs.next()) throw new DbStateException();
 			int count = rs.getInt(1);
 			if(rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			if(count > MAX_SUBSCRIPTIONS) throw new DbStateException();
 			if(count == MAX_SUBSCRIPTIONS) return false;
 			sql = "INSERT INTO groups"
-					+ " (groupId, name, salt, visibleToAll)"
-					+ " VALUES (?, ?, ?, FALSE)";
-			ps = txn.prepareStatement(sql);
+					+ " (groupId, name, salt, visibleToAll, unread)"
+					+ " VALUES (?, ?, ?, FALSE, 0)";
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, g.getId().getBytes());
 			ps.setString(2, g.getName());
 			ps.setBytes(3, g.getSalt());
 			int affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
 			return true;
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -713,7 +1095,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "INSERT INTO localAuthors"
 					+ " (authorId, name, publicKey, privateKey, created)"
 					+ " VALUES (?, ?, ?, ?, ?)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, a.getId().getBytes());
 			ps.setString(2, a.getName());
 			ps.setBytes(3, a.getPublicKey());
@@ -721,7 +1103,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			ps.setLong(5, a.getTimeCreated());
 			int affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -735,9 +1116,10 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "INSERT INTO messages (messageId, parentId, groupId,"
 					+ " authorId, authorName, authorKey, contentType,"
 					+ " timestamp, length, bodyStart, bodyLength, raw,"
-					+ " local, read)"
-					+ " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, FALSE)";
-			ps = txn.prepareStatement(sql);
+					+ " blobSegment, blobOffset, local, read)"
+					+ " VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?,"
+					+ " FALSE)";
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getId().getBytes());
 			if(m.getParent() == null) ps.setNull(2, BINARY);
 			else ps.setBytes(2, m.getParent().getBytes());
@@ -758,11 +1140,28 @@ abstract class JdbcDatabase implements Database<Connection> {
 			ps.setInt(9, raw.length);
 			ps.setInt(10, m.getBodyStart());
 			ps.setInt(11, m.getBodyLength());
-			ps.setBytes(12, raw);
-			ps.setBoolean(13, local);
+			if(useBlobStore) {
+				Location location = blobStore.append(m.getId(), raw);
+				ps.setNull(12, BLOB);
+				ps.setInt(13, location.getSegment());
+				ps.setLong(14, location.getOffset());
+			} else {
+				ps.setBytes(12, raw);
+				ps.setNull(13, INTEGER);
+				ps.setNull(14, BIGINT);
+			}
+			ps.setBoolean(15, local);
 			int affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
+			// New messages are unread
+			sql = "UPDATE groups SET unread = unread + 1 WHERE groupId = ?";
+			ps = prepareStatement(txn, sql);
+			ps.setBytes(1, m.getGroup().getId().getBytes());
+			affected = ps.executeUpdate();
+			if(affected != 1) throw new DbStateException();
+		} catch(IOException e) {
+			tryToClose(ps);
+			throw new DbException(e);
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -776,22 +1175,20 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "SELECT NULL FROM offers"
 					+ " WHERE messageId = ? AND contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			ps.setInt(2, c.getInt());
 			rs = ps.executeQuery();
 			boolean found = rs.next();
 			if(rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			if(found) return;
 			sql = "INSERT INTO offers (messageId, contactId) VALUES (?, ?)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			ps.setInt(2, c.getInt());
 			int affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(rs);
 			tryToClose(ps);
@@ -807,7 +1204,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "INSERT INTO secrets (contactId, transportId, period,"
 					+ " secret, outgoing, centre, bitmap)"
 					+ " VALUES (?, ?, ?, ?, ?, ?, ?)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			for(TemporarySecret s : secrets) {
 				ps.setInt(1, s.getContactId().getInt());
 				ps.setString(2, s.getTransportId().getString());
@@ -824,11 +1221,10 @@ abstract class JdbcDatabase implements Database<Connection> {
 			for(int i = 0; i < batchAffected.length; i++) {
 				if(batchAffected[i] != 1) throw new DbStateException();
 			}
-			ps.close();
 			// Delete any obsolete secrets
 			sql = "DELETE FROM secrets"
 					+ " WHERE contactId = ? AND transportId = ? AND period < ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			for(TemporarySecret s : secrets) {
 				ps.setInt(1, s.getContactId().getInt());
 				ps.setString(2, s.getTransportId().getString());
@@ -838,7 +1234,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			batchAffected = ps.executeBatch();
 			if(batchAffected.length != secrets.size())
 				throw new DbStateException();
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -852,20 +1247,93 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "INSERT INTO statuses (messageId, contactId, ack,"
 					+ " seen, requested, expiry, txCount)"
 					+ " VALUES (?, ?, ?, ?, FALSE, 0, 0)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			ps.setInt(2, c.getInt());
 			ps.setBoolean(3, ack);
 			ps.setBoolean(4, seen);
 			int affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
 		}
 	}
 
+	public void addStatuses(Connection txn, ContactId sender,
+			Collection<MessageId> ms) throws DbException {
+		PreparedStatement ps = null;
+		try {
+			// Add a status row for each contact that can see the message's
+			// group, using any offer of the message from the contact
+			String sql = "INSERT INTO statuses (messageId, contactId, ack,"
+					+ " seen, requested, expiry, txCount)"
+					+ " SELECT m.messageId, gv.contactId,"
+					+ " (o.contactId IS NOT NULL),"
+					+ " (o.contactId IS NOT NULL OR gv.contactId = ?),"
+					+ " FALSE, 0, 0"
+					+ " FROM messages AS m"
+					+ " JOIN groupVisibilities AS gv"
+					+ " ON m.groupId = gv.groupId"
+					+ " LEFT OUTER JOIN offers AS o"
+					+ " ON o.contactId = gv.contactId"
+					+ " AND o.messageId = m.messageId"
+					+ " WHERE m.messageId = ?";
+			ps = prepareStatement(txn, sql);
+			for(MessageId m : ms) {
+				ps.setInt(1, sender.getInt());
+				ps.setBytes(2, m.getBytes());
+				ps.addBatch();
+			}
+			int[] batchAffected = ps.executeBatch();
+			if(batchAffected.length != ms.size()) throw new DbStateException();
+			// Remove the offers from contacts that can see the messages
+			sql = "DELETE FROM offers"
+					+ " WHERE messageId = ?"
+					+ " AND contactId IN"
+					+ " (SELECT contactId FROM groupVisibilities AS gv"
+					+ " JOIN messages AS m"
+					+ " ON gv.groupId = m.groupId"
+					+ " WHERE m.messageId = ?)";
+			ps = prepareStatement(txn, sql);
+			for(MessageId m : ms) {
+				ps.setBytes(1, m.getBytes());
+				ps.setBytes(2, m.getBytes());
+				ps.addBatch();
+			}
+			batchAffected = ps.executeBatch();
+			if(batchAffected.length != ms.size()) throw new DbStateException();
+		} catch(SQLException e) {
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	/**
+	 * Creates a status row for the given contact for each message in the
+	 * given group that doesn't already have one. This is called when the
+	 * group becomes visible to the contact. Rows left over from an earlier
+	 * period of visibility are kept, so messages the contact has already
+	 * seen aren't sent again.
+	 */
+	private void addStatusesForGroup(Connection txn, ContactId c, GroupId g)
+			throws SQLException {
+		String sql = "INSERT INTO statuses (messageId, contactId, ack,"
+				+ " seen, requested, expiry, txCount)"
+				+ " SELECT messageId, ?, FALSE, FALSE, FALSE, 0, 0"
+				+ " FROM messages AS m"
+				+ " WHERE groupId = ?"
+				+ " AND NOT EXISTS"
+				+ " (SELECT NULL FROM statuses AS s"
+				+ " WHERE s.messageId = m.messageId"
+				+ " AND s.contactId = ?)";
+		PreparedStatement ps = prepareStatement(txn, sql);
+		ps.setInt(1, c.getInt());
+		ps.setBytes(2, g.getBytes());
+		ps.setInt(3, c.getInt());
+		ps.executeUpdate();
+	}
+
 	public boolean addTransport(Connection txn, TransportId t, long maxLatency)
 			throws DbException {
 		PreparedStatement ps = null;
@@ -873,36 +1341,33 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			// Return false if the transport is already in the database
 			String sql = "SELECT NULL FROM transports WHERE transportId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setString(1, t.getString());
 			rs = ps.executeQuery();
 			boolean found = rs.next();
 			if(rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			if(found) return false;
 			// Create a transport row
 			sql = "INSERT INTO transports (transportId, maxLatency)"
 					+ " VALUES (?, ?)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setString(1, t.getString());
 			ps.setLong(2, maxLatency);
 			int affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
 			// Create a transport version row for each contact
 			sql = "SELECT contactId FROM contacts";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			rs = ps.executeQuery();
 			Collection<Integer> contacts = new ArrayList<Integer>();
 			while(rs.next()) contacts.add(rs.getInt(1));
 			rs.close();
-			ps.close();
 			if(contacts.isEmpty()) return true;
 			sql = "INSERT INTO transportVersions (contactId, transportId,"
 					+ " localVersion, localAcked, expiry, txCount)"
 					+ " VALUES (?, ?, 1, 0, 0, 0)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setString(2, t.getString());
 			for(Integer c : contacts) {
 				ps.setInt(1, c);
@@ -929,22 +1394,21 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "INSERT INTO groupVisibilities"
 					+ " (contactId, groupId, inbox)"
 					+ " VALUES (?, ?, FALSE)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setBytes(2, g.getBytes());
 			int affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
+			addStatusesForGroup(txn, c, g);
 			// Bump the subscription version
 			sql = "UPDATE groupVersions"
 					+ " SET localVersion = localVersion + 1,"
 					+ " expiry = 0, txCount = 0"
 					+ " WHERE contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -957,13 +1421,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT NULL FROM contacts WHERE authorId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, a.getBytes());
 			rs = ps.executeQuery();
 			boolean found = rs.next();
 			if(rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			return found;
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -978,13 +1441,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT NULL FROM contacts WHERE contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			rs = ps.executeQuery();
 			boolean found = rs.next();
 			if(rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			return found;
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -999,13 +1461,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT NULL FROM groups WHERE groupId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, g.getBytes());
 			rs = ps.executeQuery();
 			boolean found = rs.next();
 			if(rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			return found;
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1020,13 +1481,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT NULL FROM localAuthors WHERE authorId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, a.getBytes());
 			rs = ps.executeQuery();
 			boolean found = rs.next();
 			if(rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			return found;
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1041,13 +1501,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT NULL FROM messages WHERE messageId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			rs = ps.executeQuery();
 			boolean found = rs.next();
 			if(rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			return found;
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1062,13 +1521,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT NULL FROM transports WHERE transportId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setString(1, t.getString());
 			rs = ps.executeQuery();
 			boolean found = rs.next();
 			if(rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			return found;
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1084,14 +1542,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "SELECT NULL FROM groupVisibilities"
 					+ " WHERE contactId = ? AND groupId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setBytes(2, g.getBytes());
 			rs = ps.executeQuery();
 			boolean found = rs.next();
 			if(rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			return found;
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1110,14 +1567,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " ON m.groupId = gv.groupId"
 					+ " WHERE messageId = ?"
 					+ " AND contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			ps.setInt(2, c.getInt());
 			rs = ps.executeQuery();
 			boolean found = rs.next();
 			if(rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			return found;
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1133,14 +1589,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "SELECT COUNT (messageId) FROM offers "
 					+ " WHERE contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			rs = ps.executeQuery();
 			if(!rs.next()) throw new DbException();
 			int count = rs.getInt(1);
 			if(rs.next()) throw new DbException();
 			rs.close();
-			ps.close();
 			return count;
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1161,7 +1616,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " ON g.groupId = gv.groupId"
 					+ " WHERE inbox = FALSE OR inbox IS NULL"
 					+ " GROUP BY g.groupId";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			rs = ps.executeQuery();
 			List<GroupStatus> groups = new ArrayList<GroupStatus>();
 			Set<GroupId> ids = new HashSet<GroupId>();
@@ -1175,7 +1630,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				groups.add(new GroupStatus(group, true, visibleToAll));
 			}
 			rs.close();
-			ps.close();
 			// Add all unsubscribed groups to the list
 			sql = "SELECT DISTINCT cg.groupId, cg.name, cg.salt"
 					+ " FROM contactGroups AS cg"
@@ -1183,7 +1637,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " ON cg.groupId = g.groupId"
 					+ " WHERE g.groupId IS NULL"
 					+ " GROUP BY cg.groupId";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			rs = ps.executeQuery();
 			while(rs.next()) {
 				GroupId id = new GroupId(rs.getBytes(1));
@@ -1194,7 +1648,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				groups.add(new GroupStatus(group, false, false));
 			}
 			rs.close();
-			ps.close();
 			return Collections.unmodifiableList(groups);
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1210,13 +1663,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "SELECT key, value FROM transportConfigs"
 					+ " WHERE transportId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setString(1, t.getString());
 			rs = ps.executeQuery();
 			TransportConfig c = new TransportConfig();
 			while(rs.next()) c.put(rs.getString(1), rs.getString(2));
 			rs.close();
-			ps.close();
 			return c;
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1232,7 +1684,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "SELECT authorId, name, publicKey, localAuthorId"
 					+ " FROM contacts"
 					+ " WHERE contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			rs = ps.executeQuery();
 			if(!rs.next()) throw new DbStateException();
@@ -1241,7 +1693,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			byte[] publicKey = rs.getBytes(3);
 			AuthorId localAuthorId = new AuthorId(rs.getBytes(4));
 			rs.close();
-			ps.close();
 			Author author = new Author(authorId, name, publicKey);
 			return new Contact(c, author, localAuthorId);
 		} catch(SQLException e) {
@@ -1257,12 +1708,11 @@ abstract class JdbcDatabase implements Database<Connection> {
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT contactId FROM contacts";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			rs = ps.executeQuery();
 			List<ContactId> ids = new ArrayList<ContactId>();
 			while(rs.next()) ids.add(new ContactId(rs.getInt(1)));
 			rs.close();
-			ps.close();
 			return Collections.unmodifiableList(ids);
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1271,6 +1721,72 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	public ContactSummary getContactSummary(Connection txn, ContactId c)
+			throws DbException {
+		return getContactSummaries(txn, c).get(0);
+	}
+
+	public Collection<ContactSummary> getContactSummaries(Connection txn)
+			throws DbException {
+		return getContactSummaries(txn, null);
+	}
+
+	// Returns the summary of the given contact, or all contacts if the given
+	// contact ID is null
+	private List<ContactSummary> getContactSummaries(Connection txn,
+			ContactId c) throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			// The unread count is maintained by the groups table and the
+			// newest message is the first entry in the index on (groupId,
+			// timestamp), so no inbox needs to be read in full. As in
+			// getMessageHeaders(), bounding the timestamp makes the query
+			// planner choose that index
+			String sql = "SELECT c.contactId, authorId, c.name, publicKey,"
+					+ " localAuthorId, gv.groupId, unread,"
+					+ " (SELECT timestamp FROM messages AS m"
+					+ " WHERE m.groupId = gv.groupId AND timestamp <= ?"
+					+ " ORDER BY m.groupId, timestamp DESC, messageId DESC"
+					+ " LIMIT 1)"
+					+ " FROM contacts AS c"
+					+ " LEFT OUTER JOIN groupVisibilities AS gv"
+					+ " ON c.contactId = gv.contactId AND inbox = TRUE"
+					+ " LEFT OUTER JOIN groups AS g"
+					+ " ON gv.groupId = g.groupId";
+			if(c != null) sql += " WHERE c.contactId = ?";
+			ps = prepareStatement(txn, sql);
+			ps.setLong(1, Long.MAX_VALUE);
+			if(c != null) ps.setInt(2, c.getInt());
+			rs = ps.executeQuery();
+			List<ContactSummary> summaries = new ArrayList<ContactSummary>();
+			while(rs.next()) {
+				ContactId contactId = new ContactId(rs.getInt(1));
+				AuthorId authorId = new AuthorId(rs.getBytes(2));
+				String name = rs.getString(3);
+				byte[] publicKey = rs.getBytes(4);
+				Author author = new Author(authorId, name, publicKey);
+				AuthorId localAuthorId = new AuthorId(rs.getBytes(5));
+				Contact contact = new Contact(contactId, author, localAuthorId);
+				byte[] b = rs.getBytes(6);
+				GroupId inbox = b == null ? null : new GroupId(b);
+				int unread = rs.getInt(7);
+				long timestamp = rs.getLong(8);
+				boolean empty = rs.wasNull();
+				summaries.add(new ContactSummary(contact, inbox, timestamp,
+						unread, empty));
+			}
+			rs.close();
+			if(c != null && summaries.size() != 1)
+				throw new DbStateException();
+			return Collections.unmodifiableList(summaries);
+		} catch(SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
 	public Collection<Contact> getContacts(Connection txn)
 			throws DbException {
 		PreparedStatement ps = null;
@@ -1279,7 +1795,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "SELECT contactId, authorId, name, publicKey,"
 					+ " localAuthorId"
 					+ " FROM contacts";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			rs = ps.executeQuery();
 			List<Contact> contacts = new ArrayList<Contact>();
 			while(rs.next()) {
@@ -1292,7 +1808,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				contacts.add(new Contact(contactId, author, localAuthorId));
 			}
 			rs.close();
-			ps.close();
 			return Collections.unmodifiableList(contacts);
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1308,13 +1823,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "SELECT contactId FROM contacts"
 					+ " WHERE localAuthorId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, a.getBytes());
 			rs = ps.executeQuery();
 			List<ContactId> ids = new ArrayList<ContactId>();
 			while(rs.next()) ids.add(new ContactId(rs.getInt(1)));
 			rs.close();
-			ps.close();
 			return Collections.unmodifiableList(ids);
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1330,7 +1844,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "SELECT contactId, transportId, epoch, alice"
 					+ " FROM endpoints";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			rs = ps.executeQuery();
 			List<Endpoint> endpoints = new ArrayList<Endpoint>();
 			while(rs.next()) {
@@ -1354,14 +1868,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT name, salt FROM groups WHERE groupId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, g.getBytes());
 			rs = ps.executeQuery();
 			if(!rs.next()) throw new DbStateException();
 			String name = rs.getString(1);
 			byte[] salt = rs.getBytes(2);
 			rs.close();
-			ps.close();
 			return new Group(g, name, salt);
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1375,7 +1888,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT groupId, name, salt FROM groups";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			rs = ps.executeQuery();
 			List<Group> groups = new ArrayList<Group>();
 			while(rs.next()) {
@@ -1385,7 +1898,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				groups.add(new Group(id, name, salt));
 			}
 			rs.close();
-			ps.close();
 			return Collections.unmodifiableList(groups);
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1402,14 +1914,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "SELECT groupId FROM groupVisibilities"
 					+ " WHERE contactId = ?"
 					+ " AND inbox = TRUE";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			rs = ps.executeQuery();
 			GroupId inbox = null;
 			if(rs.next()) inbox = new GroupId(rs.getBytes(1));
 			if(rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			return inbox;
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1420,31 +1931,14 @@ abstract class JdbcDatabase implements Database<Connection> {
 
 	public Collection<MessageHeader> getInboxMessageHeaders(Connection txn,
 			ContactId c) throws DbException {
+		// Get the local and remote authors
+		Author[] authors = getInboxAuthors(txn, c);
+		Author localAuthor = authors[0], remoteAuthor = authors[1];
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
-			// Get the local and remote authors
-			String sql = "SELECT la.authorId, la.name, la.publicKey,"
-					+ " c.authorId, c.name, c.publicKey"
-					+ " FROM localAuthors AS la"
-					+ " JOIN contacts AS c"
-					+ " ON la.authorId = c.localAuthorId"
-					+ " WHERE contactId = ?";
-			ps = txn.prepareStatement(sql);
-			ps.setInt(1, c.getInt());
-			rs = ps.executeQuery();
-			if(!rs.next()) throw new DbException();
-			AuthorId localId = new AuthorId(rs.getBytes(1));
-			String localName = rs.getString(2);
-			byte[] localKey = rs.getBytes(3);
-			Author localAuthor = new Author(localId, localName, localKey);
-			AuthorId remoteId = new AuthorId(rs.getBytes(4));
-			String remoteName = rs.getString(5);
-			byte[] remoteKey = rs.getBytes(6);
-			Author remoteAuthor = new Author(remoteId, remoteName, remoteKey);
-			if(rs.next()) throw new DbException();
 			// Get the message headers
-			sql = "SELECT m.messageId, parentId, m.groupId, contentType,"
+			String sql = "SELECT m.messageId, parentId, m.groupId, contentType,"
 					+ " timestamp, local, read, seen"
 					+ " FROM messages AS m"
 					+ " JOIN groups AS g"
@@ -1456,7 +1950,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " AND gv.contactId = s.contactId"
 					+ " WHERE gv.contactId = ?"
 					+ " AND inbox = TRUE";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			rs = ps.executeQuery();
 			List<MessageHeader> headers = new ArrayList<MessageHeader>();
@@ -1475,7 +1969,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 						VERIFIED, contentType, timestamp, local, read, seen));
 			}
 			rs.close();
-			ps.close();
 			return Collections.unmodifiableList(headers);
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1484,6 +1977,96 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	public Collection<MessageHeader> getInboxMessageHeaders(Connection txn,
+			ContactId c, long timestamp, MessageId m, int maxMessages)
+					throws DbException {
+		GroupId g = getInboxGroupId(txn, c);
+		if(g == null) return Collections.emptyList();
+		Author[] authors = getInboxAuthors(txn, c);
+		Author localAuthor = authors[0], remoteAuthor = authors[1];
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT m.messageId, parentId, contentType,"
+					+ " timestamp, local, read, seen"
+					+ " FROM messages AS m"
+					+ " JOIN statuses AS s"
+					+ " ON m.messageId = s.messageId"
+					+ " WHERE m.groupId = ? AND s.contactId = ?"
+					+ " AND timestamp <= ?";
+			// Start after the given message, if any
+			if(m != null) sql += " AND (timestamp < ? OR m.messageId < ?)";
+			sql += " ORDER BY m.groupId, timestamp DESC, m.messageId DESC"
+					+ " LIMIT ?";
+			ps = prepareStatement(txn, sql);
+			int i = 1;
+			ps.setBytes(i++, g.getBytes());
+			ps.setInt(i++, c.getInt());
+			// See getMessageHeaders(Connection, GroupId, long, MessageId, int)
+			ps.setLong(i++, m == null ? Long.MAX_VALUE : timestamp);
+			if(m != null) {
+				ps.setLong(i++, timestamp);
+				ps.setBytes(i++, m.getBytes());
+			}
+			ps.setInt(i, maxMessages);
+			rs = ps.executeQuery();
+			List<MessageHeader> headers = new ArrayList<MessageHeader>();
+			while(rs.next()) {
+				MessageId id = new MessageId(rs.getBytes(1));
+				byte[] b = rs.getBytes(2);
+				MessageId parent = b == null ? null : new MessageId(b);
+				String contentType = rs.getString(3);
+				long time = rs.getLong(4);
+				boolean local = rs.getBoolean(5);
+				boolean read = rs.getBoolean(6);
+				boolean seen = rs.getBoolean(7);
+				Author author = local ? localAuthor : remoteAuthor;
+				headers.add(new MessageHeader(id, parent, g, author,
+						VERIFIED, contentType, time, local, read, seen));
+			}
+			rs.close();
+			return Collections.unmodifiableList(headers);
+		} catch(SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	// Returns the local and remote authors of the given contact's inbox
+	private Author[] getInboxAuthors(Connection txn, ContactId c)
+			throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT la.authorId, la.name, la.publicKey,"
+					+ " c.authorId, c.name, c.publicKey"
+					+ " FROM localAuthors AS la"
+					+ " JOIN contacts AS c"
+					+ " ON la.authorId = c.localAuthorId"
+					+ " WHERE contactId = ?";
+			ps = prepareStatement(txn, sql);
+			ps.setInt(1, c.getInt());
+			rs = ps.executeQuery();
+			if(!rs.next()) throw new DbException();
+			AuthorId localId = new AuthorId(rs.getBytes(1));
+			String localName = rs.getString(2);
+			byte[] localKey = rs.getBytes(3);
+			Author localAuthor = new Author(localId, localName, localKey);
+			AuthorId remoteId = new AuthorId(rs.getBytes(4));
+			String remoteName = rs.getString(5);
+			byte[] remoteKey = rs.getBytes(6);
+			Author remoteAuthor = new Author(remoteId, remoteName, remoteKey);
+			if(rs.next()) throw new DbException();
+			rs.close();
+			return new Author[] { localAuthor, remoteAuthor };
+		} catch(SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
 	public LocalAuthor getLocalAuthor(Connection txn, AuthorId a)
 			throws DbException {
 		PreparedStatement ps = null;
@@ -1492,7 +2075,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "SELECT name, publicKey, privateKey, created"
 					+ " FROM localAuthors"
 					+ " WHERE authorId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, a.getBytes());
 			rs = ps.executeQuery();
 			if(!rs.next()) throw new DbStateException();
@@ -1504,7 +2087,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 					privateKey, created);
 			if(rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			return localAuthor;
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1520,7 +2102,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "SELECT authorId, name, publicKey, privateKey, created"
 					+ " FROM localAuthors";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			rs = ps.executeQuery();
 			List<LocalAuthor> authors = new ArrayList<LocalAuthor>();
 			while(rs.next()) {
@@ -1533,7 +2115,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 						privateKey, created));
 			}
 			rs.close();
-			ps.close();
 			return Collections.unmodifiableList(authors);
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1550,7 +2131,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "SELECT transportId, key, value"
 					+ " FROM transportProperties"
 					+ " ORDER BY transportId";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			rs = ps.executeQuery();
 			Map<TransportId, TransportProperties> properties =
 					new HashMap<TransportId, TransportProperties>();
@@ -1567,7 +2148,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				p.put(key, value);
 			}
 			rs.close();
-			ps.close();
 			return Collections.unmodifiableMap(properties);
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1583,13 +2163,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "SELECT key, value FROM transportProperties"
 					+ " WHERE transportId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setString(1, t.getString());
 			rs = ps.executeQuery();
 			TransportProperties p = new TransportProperties();
 			while(rs.next()) p.put(rs.getString(1), rs.getString(2));
 			rs.close();
-			ps.close();
 			return p;
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1603,19 +2182,29 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
-			String sql = "SELECT bodyStart, bodyLength, raw FROM messages"
-					+ " WHERE messageId = ?";
-			ps = txn.prepareStatement(sql);
+			String sql = "SELECT bodyStart, bodyLength, length, raw,"
+					+ " blobSegment, blobOffset"
+					+ " FROM messages WHERE messageId = ?";
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			rs = ps.executeQuery();
 			if(!rs.next()) throw new DbStateException();
 			int bodyStart = rs.getInt(1);
 			int bodyLength = rs.getInt(2);
+			int length = rs.getInt(3);
+			Blob raw = rs.getBlob(4);
+			byte[] body = null;
+			Location location = null;
 			// Bytes are indexed from 1 rather than 0
-			byte[] body = rs.getBlob(3).getBytes(bodyStart + 1, bodyLength);
+			if(raw == null) location = new Location(rs.getInt(5), rs.getLong(6));
+			else body = raw.getBytes(bodyStart + 1, bodyLength);
 			if(rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
+			if(body == null) {
+				byte[] b = readBlob(m, length, location);
+				body = new byte[bodyLength];
+				System.arraycopy(b, bodyStart, body, 0, bodyLength);
+			}
 			return body;
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1624,6 +2213,51 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	public Map<MessageId, byte[]> getMessageBodies(Connection txn,
+			Collection<MessageId> ids) throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT bodyStart, bodyLength, length, raw,"
+					+ " blobSegment, blobOffset"
+					+ " FROM messages WHERE messageId = ?";
+			ps = prepareStatement(txn, sql);
+			Map<MessageId, byte[]> bodies = new HashMap<MessageId, byte[]>();
+			for(MessageId m : ids) {
+				ps.setBytes(1, m.getBytes());
+				rs = ps.executeQuery();
+				if(!rs.next()) {
+					// The message may have expired
+					rs.close();
+					continue;
+				}
+				int bodyStart = rs.getInt(1);
+				int bodyLength = rs.getInt(2);
+				int length = rs.getInt(3);
+				Blob raw = rs.getBlob(4);
+				byte[] body = null;
+				Location location = null;
+				// Bytes are indexed from 1 rather than 0
+				if(raw == null)
+					location = new Location(rs.getInt(5), rs.getLong(6));
+				else body = raw.getBytes(bodyStart + 1, bodyLength);
+				if(rs.next()) throw new DbStateException();
+				rs.close();
+				if(body == null) {
+					byte[] b = readBlob(m, length, location);
+					body = new byte[bodyLength];
+					System.arraycopy(b, bodyStart, body, 0, bodyLength);
+				}
+				bodies.put(m, body);
+			}
+			return Collections.unmodifiableMap(bodies);
+		} catch(SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
 	public Collection<MessageHeader> getMessageHeaders(Connection txn,
 			GroupId g) throws DbException {
 		PreparedStatement ps = null;
@@ -1638,39 +2272,54 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " LEFT OUTER JOIN contacts AS c"
 					+ " ON m.authorId = c.authorId"
 					+ " WHERE groupId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, g.getBytes());
 			rs = ps.executeQuery();
 			List<MessageHeader> headers = new ArrayList<MessageHeader>();
-			while(rs.next()) {
-				MessageId id = new MessageId(rs.getBytes(1));
-				byte[] b = rs.getBytes(2);
-				MessageId parent = b == null ? null : new MessageId(b);
-				Author author;
-				b = rs.getBytes(3);
-				if(b == null) {
-					author = null;
-				} else {
-					AuthorId authorId = new AuthorId(b);
-					String authorName = rs.getString(4);
-					byte[] authorKey = rs.getBytes(5);
-					author = new Author(authorId, authorName, authorKey);
-				}
-				String contentType = rs.getString(6);
-				long timestamp = rs.getLong(7);
-				boolean local = rs.getBoolean(8);
-				boolean read = rs.getBoolean(9);
-				boolean isSelf = rs.getBoolean(10);
-				boolean isContact = rs.getBoolean(11);
-				Author.Status status;
-				if(author == null) status = ANONYMOUS;
-				else if(isSelf || isContact) status = VERIFIED;
-				else status = UNKNOWN;
-				headers.add(new MessageHeader(id, parent, g, author, status,
-						contentType, timestamp, local, read, false));
-			}
-			rs.close();
-			ps.close();
+			while(rs.next()) headers.add(getMessageHeader(rs, g));
+			rs.close();
+			return Collections.unmodifiableList(headers);
+		} catch(SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	public Collection<MessageHeader> getMessageHeaders(Connection txn,
+			GroupId g, long timestamp, MessageId m, int maxMessages)
+					throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT messageId, parentId, m.authorId, authorName,"
+					+ " authorKey, contentType, timestamp, local, read,"
+					+ " la.authorId IS NOT NULL, c.authorId IS NOT NULL"
+					+ " FROM messages AS m"
+					+ " LEFT OUTER JOIN localAuthors AS la"
+					+ " ON m.authorId = la.authorId"
+					+ " LEFT OUTER JOIN contacts AS c"
+					+ " ON m.authorId = c.authorId"
+					+ " WHERE groupId = ? AND timestamp <= ?";
+			// Start after the given message, if any
+			if(m != null) sql += " AND (timestamp < ? OR messageId < ?)";
+			sql += " ORDER BY groupId, timestamp DESC, messageId DESC"
+					+ " LIMIT ?";
+			ps = prepareStatement(txn, sql);
+			int i = 1;
+			ps.setBytes(i++, g.getBytes());
+			// Bounding the timestamp on the first page as well lets the
+			// index on (groupId, timestamp) return the rows in order
+			ps.setLong(i++, m == null ? Long.MAX_VALUE : timestamp);
+			if(m != null) {
+				ps.setLong(i++, timestamp);
+				ps.setBytes(i++, m.getBytes());
+			}
+			ps.setInt(i, maxMessages);
+			rs = ps.executeQuery();
+			List<MessageHeader> headers = new ArrayList<MessageHeader>();
+			while(rs.next()) headers.add(getMessageHeader(rs, g));
+			rs.close();
 			return Collections.unmodifiableList(headers);
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1679,6 +2328,68 @@ abstract class JdbcDatabase implements Database<Connection> {
 		}
 	}
 
+	private MessageHeader getMessageHeader(ResultSet rs, GroupId g)
+			throws SQLException {
+		MessageId id = new MessageId(rs.getBytes(1));
+		byte[] b = rs.getBytes(2);
+		MessageId parent = b == null ? null : new MessageId(b);
+		Author author;
+		b = rs.getBytes(3);
+		if(b == null) {
+			author = null;
+		} else {
+			AuthorId authorId = new AuthorId(b);
+			String authorName = rs.getString(4);
+			byte[] authorKey = rs.getBytes(5);
+			author = new Author(authorId, authorName, authorKey);
+		}
+		String contentType = rs.getString(6);
+		long timestamp = rs.getLong(7);
+		boolean local = rs.getBoolean(8);
+		boolean read = rs.getBoolean(9);
+		boolean isSelf = rs.getBoolean(10);
+		boolean isContact = rs.getBoolean(11);
+		Author.Status status;
+		if(author == null) status = ANONYMOUS;
+		else if(isSelf || isContact) status = VERIFIED;
+		else status = UNKNOWN;
+		return new MessageHeader(id, parent, g, author, status, contentType,
+				timestamp, local, read, false);
+	}
+
+	public Collection<MessageId> getMessageIds(Connection txn)
+			throws DbException {
+		PreparedStatement ps = null;
+		ResultSet rs = null;
+		try {
+			String sql = "SELECT messageId FROM messages";
+			ps = prepareStatement(txn, sql);
+			rs = ps.executeQuery();
+			List<MessageId> ids = new ArrayList<MessageId>();
+			while(rs.next()) ids.add(new MessageId(rs.getBytes(1)));
+			rs.close();
+			return Collections.unmodifiableList(ids);
+		} catch(SQLException e) {
+			tryToClose(rs);
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	public Map<GroupId, MessageHeader> getLatestMessageHeaders(Connection txn)
+			throws DbException {
+		Map<GroupId, MessageHeader> latest =
+				new HashMap<GroupId, MessageHeader>();
+		// One indexed lookup per group rather than a scan of all messages
+		for(Group g : getGroups(txn)) {
+			GroupId id = g.getId();
+			Collection<MessageHeader> headers =
+					getMessageHeaders(txn, id, 0, null, 1);
+			if(!headers.isEmpty()) latest.put(id, headers.iterator().next());
+		}
+		return Collections.unmodifiableMap(latest);
+	}
+
 	public Collection<MessageId> getMessagesToAck(Connection txn, ContactId c,
 			int maxMessages) throws DbException {
 		PreparedStatement ps = null;
@@ -1687,14 +2398,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "SELECT messageId FROM statuses"
 					+ " WHERE contactId = ? AND ack = TRUE"
 					+ " LIMIT ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setInt(2, maxMessages);
 			rs = ps.executeQuery();
 			List<MessageId> ids = new ArrayList<MessageId>();
 			while(rs.next()) ids.add(new MessageId(rs.getBytes(1)));
 			rs.close();
-			ps.close();
 			return Collections.unmodifiableList(ids);
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1725,7 +2435,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " AND seen = FALSE AND requested = FALSE"
 					+ " AND s.expiry < ?"
 					+ " ORDER BY timestamp DESC LIMIT ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setLong(2, now);
 			ps.setInt(3, maxMessages);
@@ -1733,7 +2443,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			List<MessageId> ids = new ArrayList<MessageId>();
 			while(rs.next()) ids.add(new MessageId(rs.getBytes(1)));
 			rs.close();
-			ps.close();
 			return Collections.unmodifiableList(ids);
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1750,14 +2459,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "SELECT messageId FROM offers"
 					+ " WHERE contactId = ?"
 					+ " LIMIT ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setInt(2, maxMessages);
 			rs = ps.executeQuery();
 			List<MessageId> ids = new ArrayList<MessageId>();
 			while(rs.next()) ids.add(new MessageId(rs.getBytes(1)));
 			rs.close();
-			ps.close();
 			return Collections.unmodifiableList(ids);
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1788,7 +2496,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " AND seen = FALSE"
 					+ " AND s.expiry < ?"
 					+ " ORDER BY timestamp DESC";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setLong(2, now);
 			rs = ps.executeQuery();
@@ -1801,7 +2509,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				total += length;
 			}
 			rs.close();
-			ps.close();
 			return Collections.unmodifiableList(ids);
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1817,7 +2524,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "SELECT length, messageId FROM messages"
 					+ " ORDER BY timestamp";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			rs = ps.executeQuery();
 			List<MessageId> ids = new ArrayList<MessageId>();
 			int total = 0;
@@ -1828,7 +2535,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				total += length;
 			}
 			rs.close();
-			ps.close();
 			return Collections.unmodifiableList(ids);
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1846,7 +2552,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " ON m1.parentId = m2.messageId"
 					+ " AND m1.groupId = m2.groupId"
 					+ " WHERE m1.messageId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			rs = ps.executeQuery();
 			MessageId parent = null;
@@ -1855,7 +2561,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				if(rs.next()) throw new DbStateException();
 			}
 			rs.close();
-			ps.close();
 			return parent;
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1869,17 +2574,22 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
-			String sql = "SELECT length, raw FROM messages WHERE messageId = ?";
-			ps = txn.prepareStatement(sql);
+			String sql = "SELECT length, raw, blobSegment, blobOffset"
+					+ " FROM messages WHERE messageId = ?";
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			rs = ps.executeQuery();
 			if(!rs.next()) throw new DbStateException();
 			int length = rs.getInt(1);
-			byte[] raw = rs.getBlob(2).getBytes(1, length);
-			if(raw.length != length) throw new DbStateException();
+			Blob blob = rs.getBlob(2);
+			byte[] raw = null;
+			Location location = null;
+			if(blob == null) location = new Location(rs.getInt(3), rs.getLong(4));
+			else raw = blob.getBytes(1, length);
 			if(rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
+			if(raw == null) raw = readBlob(m, length, location);
+			if(raw.length != length) throw new DbStateException();
 			return raw;
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1893,14 +2603,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT read FROM messages WHERE messageId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			rs = ps.executeQuery();
 			if(!rs.next()) throw new DbStateException();
 			boolean read = rs.getBoolean(1);
 			if(rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			return read;
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1918,7 +2627,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " FROM contactTransportProperties"
 					+ " WHERE transportId = ?"
 					+ " ORDER BY contactId";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setString(1, t.getString());
 			rs = ps.executeQuery();
 			Map<ContactId, TransportProperties> properties =
@@ -1936,7 +2645,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				p.put(key, value);
 			}
 			rs.close();
-			ps.close();
 			return Collections.unmodifiableMap(properties);
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1967,7 +2675,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " AND seen = FALSE AND requested = TRUE"
 					+ " AND s.expiry < ?"
 					+ " ORDER BY timestamp DESC";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setLong(2, now);
 			rs = ps.executeQuery();
@@ -1980,7 +2688,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				total += length;
 			}
 			rs.close();
-			ps.close();
 			return Collections.unmodifiableList(ids);
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -1996,25 +2703,22 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "SELECT remoteVersion FROM retentionVersions"
 					+ " WHERE contactId = ? AND remoteAcked = FALSE";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			rs = ps.executeQuery();
 			if(!rs.next()) {
 				rs.close();
-				ps.close();
 				return null;
 			}
 			long version = rs.getLong(1);
 			if(rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			sql = "UPDATE retentionVersions SET remoteAcked = TRUE"
 					+ " WHERE contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			int affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
 			return new RetentionAck(version);
 		} catch(SQLException e) {
 			tryToClose(ps);
@@ -2034,23 +2738,21 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " WHERE contactId = ?"
 					+ " AND localVersion > localAcked"
 					+ " AND expiry < ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setLong(2, now);
 			rs = ps.executeQuery();
 			if(!rs.next()) {
 				rs.close();
-				ps.close();
 				return null;
 			}
 			long version = rs.getLong(1);
 			int txCount = rs.getInt(2);
 			if(rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			sql = "SELECT timestamp FROM messages AS m"
 					+ " ORDER BY timestamp LIMIT 1";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			rs = ps.executeQuery();
 			long retention = 0;
 			if(rs.next()) {
@@ -2059,16 +2761,14 @@ abstract class JdbcDatabase implements Database<Connection> {
 			}
 			if(rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			sql = "UPDATE retentionVersions"
 					+ " SET expiry = ?, txCount = txCount + 1"
 					+ " WHERE contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setLong(1, calculateExpiry(now, maxLatency, txCount));
 			ps.setInt(2, c.getInt());
 			int affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
 			return new RetentionUpdate(retention, version);
 		} catch(SQLException e) {
 			tryToClose(ps);
@@ -2088,7 +2788,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " JOIN secrets AS s"
 					+ " ON e.contactId = s.contactId"
 					+ " AND e.transportId = s.transportId";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			rs = ps.executeQuery();
 			List<TemporarySecret> secrets = new ArrayList<TemporarySecret>();
 			while(rs.next()) {
@@ -2105,7 +2805,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 						alice, period, secret, outgoing, centre, bitmap));
 			}
 			rs.close();
-			ps.close();
 			return Collections.unmodifiableList(secrets);
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -2119,12 +2818,11 @@ abstract class JdbcDatabase implements Database<Connection> {
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT key, value FROM settings";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			rs = ps.executeQuery();
 			Settings s = new Settings();
 			while(rs.next()) s.put(rs.getString(1), rs.getString(2));
 			rs.close();
-			ps.close();
 			return s;
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -2144,7 +2842,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " JOIN contactGroups AS cg"
 					+ " ON c.contactId = cg.contactId"
 					+ " WHERE groupId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, g.getBytes());
 			rs = ps.executeQuery();
 			List<Contact> contacts = new ArrayList<Contact>();
@@ -2158,7 +2856,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				contacts.add(new Contact(contactId, author, localAuthorId));
 			}
 			rs.close();
-			ps.close();
 			return Collections.unmodifiableList(contacts);
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -2174,25 +2871,22 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "SELECT remoteVersion FROM groupVersions"
 					+ " WHERE contactId = ? AND remoteAcked = FALSE";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			rs = ps.executeQuery();
 			if(!rs.next()) {
 				rs.close();
-				ps.close();
 				return null;
 			}
 			long version = rs.getLong(1);
 			if(rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			sql = "UPDATE groupVersions SET remoteAcked = TRUE"
 					+ " WHERE contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			int affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
 			return new SubscriptionAck(version);
 		} catch(SQLException e) {
 			tryToClose(ps);
@@ -2216,7 +2910,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " WHERE gvis.contactId = ?"
 					+ " AND localVersion > localAcked"
 					+ " AND expiry < ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setLong(2, now);
 			rs = ps.executeQuery();
@@ -2234,17 +2928,15 @@ abstract class JdbcDatabase implements Database<Connection> {
 				txCount = rs.getInt(5);
 			}
 			rs.close();
-			ps.close();
 			if(groups.isEmpty()) return null;
 			sql = "UPDATE groupVersions"
 					+ " SET expiry = ?, txCount = txCount + 1"
 					+ " WHERE contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setLong(1, calculateExpiry(now, maxLatency, txCount));
 			ps.setInt(2, c.getInt());
 			int affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
 			groups = Collections.unmodifiableList(groups);
 			return new SubscriptionUpdate(groups, version);
 		} catch(SQLException e) {
@@ -2262,7 +2954,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "SELECT transportId, remoteVersion"
 					+ " FROM contactTransportVersions"
 					+ " WHERE contactId = ? AND remoteAcked = FALSE";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			rs = ps.executeQuery();
 			List<TransportAck> acks = new ArrayList<TransportAck>();
@@ -2271,11 +2963,10 @@ abstract class JdbcDatabase implements Database<Connection> {
 				acks.add(new TransportAck(id, rs.getLong(2)));
 			}
 			rs.close();
-			ps.close();
 			if(acks.isEmpty()) return null;
 			sql = "UPDATE contactTransportVersions SET remoteAcked = TRUE"
 					+ " WHERE contactId = ? AND transportId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			for(TransportAck a : acks) {
 				ps.setString(2, a.getId().getString());
@@ -2287,7 +2978,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			for(int i = 0; i < batchAffected.length; i++) {
 				if(batchAffected[i] != 1) throw new DbStateException();
 			}
-			ps.close();
 			return Collections.unmodifiableList(acks);
 		} catch(SQLException e) {
 			tryToClose(ps);
@@ -2302,7 +2992,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 		ResultSet rs = null;
 		try {
 			String sql = "SELECT transportId, maxLatency FROM transports";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			rs = ps.executeQuery();
 			Map<TransportId, Long> latencies = new HashMap<TransportId, Long>();
 			while(rs.next()){
@@ -2310,7 +3000,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				latencies.put(id, rs.getLong(2));
 			}
 			rs.close();
-			ps.close();
 			return Collections.unmodifiableMap(latencies);
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -2334,7 +3023,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " AND localVersion > localAcked"
 					+ " AND expiry < ?"
 					+ " ORDER BY tp.transportId";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setLong(2, now);
 			rs = ps.executeQuery();
@@ -2356,12 +3045,11 @@ abstract class JdbcDatabase implements Database<Connection> {
 				p.put(key, value);
 			}
 			rs.close();
-			ps.close();
 			if(updates.isEmpty()) return null;
 			sql = "UPDATE transportVersions"
 					+ " SET expiry = ?, txCount = txCount + 1"
 					+ " WHERE contactId = ? AND transportId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(2, c.getInt());
 			int i = 0;
 			for(TransportUpdate u : updates) {
@@ -2376,7 +3064,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			for(i = 0; i < batchAffected.length; i++) {
 				if(batchAffected[i] != 1) throw new DbStateException();
 			}
-			ps.close();
 			return Collections.unmodifiableList(updates);
 		} catch(SQLException e) {
 			tryToClose(ps);
@@ -2390,11 +3077,8 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
-			String sql = "SELECT groupId, COUNT(*)"
-					+ " FROM messages AS m"
-					+ " WHERE read = FALSE"
-					+ " GROUP BY groupId";
-			ps = txn.prepareStatement(sql);
+			String sql = "SELECT groupId, unread FROM groups WHERE unread > 0";
+			ps = prepareStatement(txn, sql);
 			rs = ps.executeQuery();
 			Map<GroupId, Integer> counts = new HashMap<GroupId, Integer>();
 			while(rs.next()) {
@@ -2402,7 +3086,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				counts.put(groupId, rs.getInt(2));
 			}
 			rs.close();
-			ps.close();
 			return Collections.unmodifiableMap(counts);
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -2418,13 +3101,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "SELECT contactId FROM groupVisibilities"
 					+ " WHERE groupId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, g.getBytes());
 			rs = ps.executeQuery();
 			List<ContactId> visible = new ArrayList<ContactId>();
 			while(rs.next()) visible.add(new ContactId(rs.getInt(1)));
 			rs.close();
-			ps.close();
 			return Collections.unmodifiableList(visible);
 		} catch(SQLException e) {
 			tryToClose(rs);
@@ -2434,37 +3116,35 @@ abstract class JdbcDatabase implements Database<Connection> {
 	}
 
 	public long incrementStreamCounter(Connection txn, ContactId c,
-			TransportId t, long period) throws DbException {
+			TransportId t, long period, int increment) throws DbException {
 		PreparedStatement ps = null;
 		ResultSet rs = null;
 		try {
 			// Get the current stream counter
 			String sql = "SELECT outgoing FROM secrets"
 					+ " WHERE contactId = ? AND transportId = ? AND period = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setString(2, t.getString());
 			ps.setLong(3, period);
 			rs = ps.executeQuery();
 			if(!rs.next()) {
 				rs.close();
-				ps.close();
 				return -1;
 			}
 			long streamNumber = rs.getLong(1);
 			if(rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			// Increment the stream counter
-			sql = "UPDATE secrets SET outgoing = outgoing + 1"
+			sql = "UPDATE secrets SET outgoing = outgoing + ?"
 					+ " WHERE contactId = ? AND transportId = ? AND period = ?";
-			ps = txn.prepareStatement(sql);
-			ps.setInt(1, c.getInt());
-			ps.setString(2, t.getString());
-			ps.setLong(3, period);
+			ps = prepareStatement(txn, sql);
+			ps.setInt(1, increment);
+			ps.setInt(2, c.getInt());
+			ps.setString(3, t.getString());
+			ps.setLong(4, period);
 			int affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
 			return streamNumber;
 		} catch(SQLException e) {
 			tryToClose(ps);
@@ -2478,7 +3158,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "UPDATE retentionVersions"
 					+ " SET localVersion = localVersion + 1, expiry = 0";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.executeUpdate();
 		} catch(SQLException e) {
 			tryToClose(ps);
@@ -2492,7 +3172,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "UPDATE statuses SET ack = FALSE"
 					+ " WHERE messageId = ? AND contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(2, c.getInt());
 			for(MessageId m : acked) {
 				ps.setBytes(1, m.getBytes());
@@ -2505,7 +3185,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				if(batchAffected[i] < 0) throw new DbStateException();
 				if(batchAffected[i] > 1) throw new DbStateException();
 			}
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2518,7 +3197,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "UPDATE statuses SET requested = FALSE"
 					+ " WHERE messageId = ? AND contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(2, c.getInt());
 			for(MessageId m : requested) {
 				ps.setBytes(1, m.getBytes());
@@ -2531,7 +3210,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 				if(batchAffected[i] < 0) throw new DbStateException();
 				if(batchAffected[i] > 1) throw new DbStateException();
 			}
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2554,10 +3232,9 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "UPDATE transportVersions"
 					+ " SET localVersion = localVersion + 1, expiry = 0"
 					+ " WHERE transportId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setString(1, t.getString());
 			ps.executeUpdate();
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2571,7 +3248,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			// Update any properties that already exist
 			String sql = "UPDATE " + tableName + " SET value = ?"
 					+ " WHERE transportId = ? AND key = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setString(2, t.getString());
 			for(Entry<String, String> e : m.entrySet()) {
 				ps.setString(1, e.getValue());
@@ -2587,7 +3264,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			// Insert any properties that don't already exist
 			sql = "INSERT INTO " + tableName + " (transportId, key, value)"
 					+ " VALUES (?, ?, ?)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setString(1, t.getString());
 			int updateIndex = 0, inserted = 0;
 			for(Entry<String, String> e : m.entrySet()) {
@@ -2604,7 +3281,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			for(int i = 0; i < batchAffected.length; i++) {
 				if(batchAffected[i] != 1) throw new DbStateException();
 			}
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2616,7 +3292,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			// Update any settings that already exist
 			String sql = "UPDATE settings SET value = ? WHERE key = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			for(Entry<String, String> e : s.entrySet()) {
 				ps.setString(1, e.getValue());
 				ps.setString(2, e.getKey());
@@ -2630,7 +3306,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			}
 			// Insert any settings that don't already exist
 			sql = "INSERT INTO settings (key, value) VALUES (?, ?)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			int updateIndex = 0, inserted = 0;
 			for(Entry<String, String> e : s.entrySet()) {
 				if(batchAffected[updateIndex] == 0) {
@@ -2646,7 +3322,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			for(int i = 0; i < batchAffected.length; i++) {
 				if(batchAffected[i] != 1) throw new DbStateException();
 			}
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2659,12 +3334,11 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "UPDATE statuses SET ack = TRUE"
 					+ " WHERE messageId = ? AND contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			ps.setInt(2, c.getInt());
 			int affected = ps.executeUpdate();
 			if(affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2678,12 +3352,11 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "UPDATE statuses SET requested = TRUE"
 					+ " WHERE messageId = ? AND contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			ps.setInt(2, c.getInt());
 			int affected = ps.executeUpdate();
 			if(affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(rs);
 			tryToClose(ps);
@@ -2698,12 +3371,11 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "UPDATE statuses SET seen = TRUE"
 					+ " WHERE messageId = ? AND contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			ps.setInt(2, c.getInt());
 			int affected = ps.executeUpdate();
 			if(affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(rs);
 			tryToClose(ps);
@@ -2716,11 +3388,10 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		try {
 			String sql = "DELETE FROM contacts WHERE contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			int affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2734,26 +3405,24 @@ abstract class JdbcDatabase implements Database<Connection> {
 			// Find out which contacts are affected
 			String sql = "SELECT contactId FROM groupVisibilities"
 					+ " WHERE groupId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, g.getBytes());
 			rs = ps.executeQuery();
 			Collection<Integer> visible = new ArrayList<Integer>();
 			while(rs.next()) visible.add(rs.getInt(1));
 			rs.close();
-			ps.close();
 			// Delete the group
 			sql = "DELETE FROM groups WHERE groupId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, g.getBytes());
 			int affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
 			if(visible.isEmpty()) return;
 			// Bump the subscription versions for the affected contacts
 			sql = "UPDATE groupVersions"
 					+ " SET localVersion = localVersion + 1, expiry = 0"
 					+ " WHERE contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			for(Integer c : visible) {
 				ps.setInt(1, c);
 				ps.addBatch();
@@ -2764,7 +3433,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			for(int i = 0; i < batchAffected.length; i++) {
 				if(batchAffected[i] != 1) throw new DbStateException();
 			}
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(ps);
 			tryToClose(rs);
@@ -2777,11 +3445,10 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		try {
 			String sql = "DELETE FROM localAuthors WHERE authorId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, a.getBytes());
 			int affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2790,14 +3457,42 @@ abstract class JdbcDatabase implements Database<Connection> {
 
 	public void removeMessage(Connection txn, MessageId m) throws DbException {
 		PreparedStatement ps = null;
+		ResultSet rs = null;
 		try {
-			String sql = "DELETE FROM messages WHERE messageId = ?";
-			ps = txn.prepareStatement(sql);
+			String sql = "SELECT groupId, read, length, blobSegment"
+					+ " FROM messages WHERE messageId = ?";
+			ps = prepareStatement(txn, sql);
+			ps.setBytes(1, m.getBytes());
+			rs = ps.executeQuery();
+			if(!rs.next()) throw new DbStateException();
+			byte[] groupId = rs.getBytes(1);
+			boolean read = rs.getBoolean(2);
+			// Find out how much space will be freed in the blob store
+			long freed = 0;
+			if(rs.getObject(4) != null) freed = rs.getInt(3) + RECORD_OVERHEAD;
+			if(rs.next()) throw new DbStateException();
+			rs.close();
+			sql = "DELETE FROM messages WHERE messageId = ?";
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			int affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
+			if(!read) {
+				sql = "UPDATE groups SET unread = unread - 1"
+						+ " WHERE groupId = ?";
+				ps = prepareStatement(txn, sql);
+				ps.setBytes(1, groupId);
+				affected = ps.executeUpdate();
+				if(affected != 1) throw new DbStateException();
+			}
+			if(freed == 0) return;
+			long removed = removedBlobBytes.addAndGet(freed);
+			if(removed >= bytesBetweenCompactions) {
+				removedBlobBytes.set(0);
+				compactBlobStore(txn);
+			}
 		} catch(SQLException e) {
+			tryToClose(rs);
 			tryToClose(ps);
 			throw new DbException(e);
 		}
@@ -2809,12 +3504,11 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "DELETE FROM offers"
 					+ " WHERE contactId = ? AND messageId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setBytes(2, m.getBytes());
 			int affected = ps.executeUpdate();
 			if(affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
 			return affected == 1;
 		} catch(SQLException e) {
 			tryToClose(ps);
@@ -2828,7 +3522,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "DELETE FROM offers"
 					+ " WHERE contactId = ? AND messageId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			for(MessageId m : requested) {
 				ps.setBytes(2, m.getBytes());
@@ -2840,7 +3534,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			for(int i = 0; i < batchAffected.length; i++) {
 				if(batchAffected[i] != 1) throw new DbStateException();
 			}
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2852,11 +3545,10 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		try {
 			String sql = "DELETE FROM transports WHERE transportId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setString(1, t.getString());
 			int affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2869,21 +3561,19 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "DELETE FROM groupVisibilities"
 					+ " WHERE contactId = ? AND groupId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setBytes(2, g.getBytes());
 			int affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
 			// Bump the subscription version
 			sql = "UPDATE groupVersions"
 					+ " SET localVersion = localVersion + 1, expiry = 0"
 					+ " WHERE contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2896,24 +3586,47 @@ abstract class JdbcDatabase implements Database<Connection> {
 		try {
 			String sql = "UPDATE statuses SET expiry = 0, txCount = 0"
 					+ " WHERE messageId = ? AND contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBytes(1, m.getBytes());
 			ps.setInt(2, c.getInt());
 			int affected = ps.executeUpdate();
 			if(affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
 		}
 	}
+	public boolean resetStreamCounter(Connection txn, ContactId c,
+			TransportId t, long period, long expected, long counter)
+			throws DbException {
+		PreparedStatement ps = null;
+		try {
+			// Only reset the counter if no more numbers have been reserved
+			String sql = "UPDATE secrets SET outgoing = ?"
+					+ " WHERE contactId = ? AND transportId = ? AND period = ?"
+					+ " AND outgoing = ?";
+			ps = prepareStatement(txn, sql);
+			ps.setLong(1, counter);
+			ps.setInt(2, c.getInt());
+			ps.setString(3, t.getString());
+			ps.setLong(4, period);
+			ps.setLong(5, expected);
+			int affected = ps.executeUpdate();
+			if(affected < 0 || affected > 1) throw new DbStateException();
+			return affected == 1;
+		} catch(SQLException e) {
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
 	public void setReorderingWindow(Connection txn, ContactId c, TransportId t,
 			long period, long centre, byte[] bitmap) throws DbException {
 		PreparedStatement ps = null;
 		try {
 			String sql = "UPDATE secrets SET centre = ?, bitmap = ?"
 					+ " WHERE contactId = ? AND transportId = ? AND period = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setLong(1, centre);
 			ps.setBytes(2, bitmap);
 			ps.setInt(3, c.getInt());
@@ -2921,7 +3634,35 @@ abstract class JdbcDatabase implements Database<Connection> {
 			ps.setLong(5, period);
 			int affected = ps.executeUpdate();
 			if(affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
+		} catch(SQLException e) {
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	public void setReorderingWindows(Connection txn,
+			Collection<ReorderingWindowUpdate> windows) throws DbException {
+		if(windows.isEmpty()) return;
+		PreparedStatement ps = null;
+		try {
+			String sql = "UPDATE secrets SET centre = ?, bitmap = ?"
+					+ " WHERE contactId = ? AND transportId = ? AND period = ?";
+			ps = prepareStatement(txn, sql);
+			for(ReorderingWindowUpdate w : windows) {
+				ps.setLong(1, w.getWindowCentre());
+				ps.setBytes(2, w.getWindowBitmap());
+				ps.setInt(3, w.getContactId().getInt());
+				ps.setString(4, w.getTransportId().getString());
+				ps.setLong(5, w.getPeriod());
+				ps.addBatch();
+			}
+			int[] batchAffected = ps.executeBatch();
+			if(batchAffected.length != windows.size())
+				throw new DbStateException();
+			for(int i = 0; i < batchAffected.length; i++) {
+				if(batchAffected[i] < 0 || batchAffected[i] > 1)
+					throw new DbStateException();
+			}
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -2937,13 +3678,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "UPDATE groupVersions"
 					+ " SET remoteVersion = ?, remoteAcked = FALSE"
 					+ " WHERE contactId = ? AND remoteVersion < ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setLong(1, version);
 			ps.setInt(2, c.getInt());
 			ps.setLong(3, version);
 			int affected = ps.executeUpdate();
 			if(affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
 			// Return false if the update is obsolete
 			if(affected == 0) return false;
 			// Find any messages in groups that are being removed
@@ -2954,7 +3694,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " JOIN contactGroups AS cg"
 					+ " ON m.groupId = cg.groupId"
 					+ " WHERE contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			rs = ps.executeQuery();
 			List<MessageId> removed = new ArrayList<MessageId>();
@@ -2963,13 +3703,12 @@ abstract class JdbcDatabase implements Database<Connection> {
 					removed.add(new MessageId(rs.getBytes(1)));
 			}
 			rs.close();
-			ps.close();
 			// Reset any statuses for messages in groups that are being removed
 			if(!removed.isEmpty()) {
 				sql = "UPDATE statuses SET ack = FALSE, seen = FALSE,"
 						+ " requested = FALSE, expiry = 0, txCount = 0"
 						+ " WHERE contactId = ? AND messageId = ?";
-				ps = txn.prepareStatement(sql);
+				ps = prepareStatement(txn, sql);
 				ps.setInt(1, c.getInt());
 				for(MessageId m : removed) {
 					ps.setBytes(2, m.getBytes());
@@ -2981,11 +3720,10 @@ abstract class JdbcDatabase implements Database<Connection> {
 				for(int i = 0; i < batchAffected.length; i++) {
 					if(batchAffected[i] < 0) throw new DbStateException();
 				}
-				ps.close();
 			}
 			// Delete the existing subscriptions, if any
 			sql = "DELETE FROM contactGroups WHERE contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.executeUpdate();
 			// Store the new subscriptions, if any
@@ -2993,7 +3731,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			sql = "INSERT INTO contactGroups"
 					+ " (contactId, groupId, name, salt)"
 					+ " VALUES (?, ?, ?, ?)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			for(Group g : groups) {
 				ps.setBytes(2, g.getId().getBytes());
@@ -3007,7 +3745,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			for(int i = 0; i < batchAffected.length; i++) {
 				if(batchAffected[i] != 1) throw new DbStateException();
 			}
-			ps.close();
 			return true;
 		} catch(SQLException e) {
 			tryToClose(ps);
@@ -3025,34 +3762,32 @@ abstract class JdbcDatabase implements Database<Connection> {
 					+ " SET inbox = FALSE"
 					+ " WHERE contactId = ?"
 					+ " AND inbox = TRUE";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.executeUpdate();
 			int affected = ps.executeUpdate();
 			if(affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
 			// Make the group visible to the contact and set it as the inbox
 			sql = "INSERT INTO groupVisibilities"
 					+ " (contactId, groupId, inbox)"
 					+ " VALUES (?, ?, TRUE)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setBytes(2, g.getId().getBytes());
 			affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
+			addStatusesForGroup(txn, c, g.getId());
 			// Add the group to the contact's subscriptions
 			sql = "INSERT INTO contactGroups"
 					+ " (contactId, groupId, name, salt)"
 					+ " VALUES (?, ?, ?, ?)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setBytes(2, g.getId().getBytes());
 			ps.setString(3, g.getName());
 			ps.setBytes(4, g.getSalt());
 			affected = ps.executeUpdate();
 			if(affected != 1) throw new DbStateException();
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -3063,13 +3798,68 @@ abstract class JdbcDatabase implements Database<Connection> {
 			throws DbException {
 		PreparedStatement ps = null;
 		try {
-			String sql = "UPDATE messages SET read = ? WHERE messageId = ?";
-			ps = txn.prepareStatement(sql);
+			String sql = "UPDATE messages SET read = ?"
+					+ " WHERE messageId = ? AND read = ?";
+			ps = prepareStatement(txn, sql);
 			ps.setBoolean(1, read);
 			ps.setBytes(2, m.getBytes());
+			ps.setBoolean(3, !read);
 			int affected = ps.executeUpdate();
 			if(affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
+			if(affected == 0) return;
+			// The flag has changed, so update the group's unread count
+			sql = "UPDATE groups SET unread = unread + ?"
+					+ " WHERE groupId = (SELECT groupId FROM messages"
+					+ " WHERE messageId = ?)";
+			ps = prepareStatement(txn, sql);
+			ps.setInt(1, read ? -1 : 1);
+			ps.setBytes(2, m.getBytes());
+			affected = ps.executeUpdate();
+			if(affected != 1) throw new DbStateException();
+		} catch(SQLException e) {
+			tryToClose(ps);
+			throw new DbException(e);
+		}
+	}
+
+	public void setReadFlags(Connection txn, Collection<MessageId> ids,
+			boolean read) throws DbException {
+		if(ids.isEmpty()) return;
+		PreparedStatement ps = null;
+		try {
+			String sql = "UPDATE messages SET read = ?"
+					+ " WHERE messageId = ? AND read = ?";
+			ps = prepareStatement(txn, sql);
+			ps.setBoolean(1, read);
+			ps.setBoolean(3, !read);
+			for(MessageId m : ids) {
+				ps.setBytes(2, m.getBytes());
+				ps.addBatch();
+			}
+			int[] batchAffected = ps.executeBatch();
+			if(batchAffected.length != ids.size())
+				throw new DbStateException();
+			// Update the unread counts of the groups whose messages changed
+			sql = "UPDATE groups SET unread = unread + ?"
+					+ " WHERE groupId = (SELECT groupId FROM messages"
+					+ " WHERE messageId = ?)";
+			ps = prepareStatement(txn, sql);
+			ps.setInt(1, read ? -1 : 1);
+			int i = 0, changed = 0;
+			for(MessageId m : ids) {
+				int affected = batchAffected[i++];
+				if(affected < 0 || affected > 1) throw new DbStateException();
+				if(affected == 0) continue;
+				ps.setBytes(2, m.getBytes());
+				ps.addBatch();
+				changed++;
+			}
+			if(changed == 0) return;
+			batchAffected = ps.executeBatch();
+			if(batchAffected.length != changed) throw new DbStateException();
+			for(i = 0; i < batchAffected.length; i++) {
+				if(batchAffected[i] != 1) throw new DbStateException();
+			}
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -3083,15 +3873,14 @@ abstract class JdbcDatabase implements Database<Connection> {
 			// Delete the existing properties, if any
 			String sql = "DELETE FROM contactTransportProperties"
 					+ " WHERE contactId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.executeUpdate();
-			ps.close();
 			// Store the new properties
 			sql = "INSERT INTO contactTransportProperties"
 					+ " (contactId, transportId, key, value)"
 					+ " VALUES (?, ?, ?, ?)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			int batchSize = 0;
 			for(Entry<TransportId, TransportProperties> e : p.entrySet()) {
@@ -3108,7 +3897,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			for(int i = 0; i < batchAffected.length; i++) {
 				if(batchAffected[i] != 1) throw new DbStateException();
 			}
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -3124,14 +3912,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 			// Find the existing version, if any
 			String sql = "SELECT NULL FROM contactTransportVersions"
 					+ " WHERE contactId = ? AND transportId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setString(2, t.getString());
 			rs = ps.executeQuery();
 			boolean found = rs.next();
 			if(rs.next()) throw new DbStateException();
 			rs.close();
-			ps.close();
 			// Mark the update as needing to be acked
 			if(found) {
 				// The row exists - update it
@@ -3139,14 +3926,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 						+ " SET remoteVersion = ?, remoteAcked = FALSE"
 						+ " WHERE contactId = ? AND transportId = ?"
 						+ " AND remoteVersion < ?";
-				ps = txn.prepareStatement(sql);
+				ps = prepareStatement(txn, sql);
 				ps.setLong(1, version);
 				ps.setInt(2, c.getInt());
 				ps.setString(3, t.getString());
 				ps.setLong(4, version);
 				int affected = ps.executeUpdate();
 				if(affected < 0 || affected > 1) throw new DbStateException();
-				ps.close();
 				// Return false if the update is obsolete
 				if(affected == 0) return false;
 			} else {
@@ -3154,28 +3940,26 @@ abstract class JdbcDatabase implements Database<Connection> {
 				sql = "INSERT INTO contactTransportVersions (contactId,"
 						+ " transportId, remoteVersion, remoteAcked)"
 						+ " VALUES (?, ?, ?, FALSE)";
-				ps = txn.prepareStatement(sql);
+				ps = prepareStatement(txn, sql);
 				ps.setInt(1, c.getInt());
 				ps.setString(2, t.getString());
 				ps.setLong(3, version);
 				int affected = ps.executeUpdate();
 				if(affected != 1) throw new DbStateException();
-				ps.close();
 			}
 			// Delete the existing properties, if any
 			sql = "DELETE FROM contactTransportProperties"
 					+ " WHERE contactId = ? AND transportId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setString(2, t.getString());
 			ps.executeUpdate();
-			ps.close();
 			// Store the new properties, if any
 			if(p.isEmpty()) return true;
 			sql = "INSERT INTO contactTransportProperties"
 					+ " (contactId, transportId, key, value)"
 					+ " VALUES (?, ?, ?, ?)";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setInt(1, c.getInt());
 			ps.setString(2, t.getString());
 			for(Entry<String, String> e : p.entrySet()) {
@@ -3188,7 +3972,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			for(int i = 0; i < batchAffected.length; i++) {
 				if(batchAffected[i] != 1) throw new DbStateException();
 			}
-			ps.close();
 			return true;
 		} catch(SQLException e) {
 			tryToClose(ps);
@@ -3204,14 +3987,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "UPDATE retentionVersions SET retention = ?,"
 					+ " remoteVersion = ?, remoteAcked = FALSE"
 					+ " WHERE contactId = ? AND remoteVersion < ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setLong(1, retention);
 			ps.setLong(2, version);
 			ps.setInt(3, c.getInt());
 			ps.setLong(4, version);
 			int affected = ps.executeUpdate();
 			if(affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
 			return affected == 1;
 		} catch(SQLException e) {
 			tryToClose(ps);
@@ -3226,14 +4008,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "UPDATE retentionVersions SET localAcked = ?"
 					+ " WHERE contactId = ?"
 					+ " AND localAcked < ? AND localVersion >= ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setLong(1, version);
 			ps.setInt(2, c.getInt());
 			ps.setLong(3, version);
 			ps.setLong(4, version);
 			int affected = ps.executeUpdate();
 			if(affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -3247,14 +4028,13 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "UPDATE groupVersions SET localAcked = ?"
 					+ " WHERE contactId = ?"
 					+ " AND localAcked < ? AND localVersion >= ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setLong(1, version);
 			ps.setInt(2, c.getInt());
 			ps.setLong(3, version);
 			ps.setLong(4, version);
 			int affected = ps.executeUpdate();
 			if(affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -3268,7 +4048,7 @@ abstract class JdbcDatabase implements Database<Connection> {
 			String sql = "UPDATE transportVersions SET localAcked = ?"
 					+ " WHERE contactId = ? AND transportId = ?"
 					+ " AND localAcked < ? AND localVersion >= ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setLong(1, version);
 			ps.setInt(2, c.getInt());
 			ps.setString(3, t.getString());
@@ -3276,7 +4056,6 @@ abstract class JdbcDatabase implements Database<Connection> {
 			ps.setLong(5, version);
 			int affected = ps.executeUpdate();
 			if(affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
@@ -3288,48 +4067,76 @@ abstract class JdbcDatabase implements Database<Connection> {
 		PreparedStatement ps = null;
 		try {
 			String sql = "UPDATE groups SET visibleToAll = ? WHERE groupId = ?";
-			ps = txn.prepareStatement(sql);
+			ps = prepareStatement(txn, sql);
 			ps.setBoolean(1, all);
 			ps.setBytes(2, g.getBytes());
 			int affected = ps.executeUpdate();
 			if(affected < 0 || affected > 1) throw new DbStateException();
-			ps.close();
 		} catch(SQLException e) {
 			tryToClose(ps);
 			throw new DbException(e);
 		}
 	}
 
-	public void updateExpiryTime(Connection txn, ContactId c, MessageId m,
-			long maxLatency) throws DbException {
+	public void updateExpiryTime(Connection txn, ContactId c,
+			Collection<MessageId> sent, long maxLatency) throws DbException {
 		PreparedStatement ps = null;
-		ResultSet rs = null;
 		try {
-			String sql = "SELECT txCount FROM statuses"
-					+ " WHERE messageId = ? AND contactId = ?";
-			ps = txn.prepareStatement(sql);
-			ps.setBytes(1, m.getBytes());
-			ps.setInt(2, c.getInt());
-			rs = ps.executeQuery();
-			if(!rs.next()) throw new DbStateException();
-			int txCount = rs.getInt(1);
-			if(rs.next()) throw new DbStateException();
-			rs.close();
-			ps.close();
-			sql = "UPDATE statuses SET expiry = ?, txCount = txCount + 1"
-					+ " WHERE messageId = ? AND contactId = ?";
-			ps = txn.prepareStatement(sql);
+			// Calculate the expiry time from the old transmission count, as
+			// ExponentialBackoff does, saturating rather than overflowing
 			long now = clock.currentTimeMillis();
-			ps.setLong(1, calculateExpiry(now, maxLatency, txCount));
-			ps.setBytes(2, m.getBytes());
-			ps.setInt(3, c.getInt());
-			int affected = ps.executeUpdate();
-			if(affected != 1) throw new DbStateException();
-			ps.close();
+			int maxTxCount = getMaxTxCount(now, maxLatency);
+			String sql = "UPDATE statuses SET expiry = CASE"
+					+ " WHEN txCount > ? THEN ?"
+					+ " ELSE ? + ? * CAST(POWER(2, txCount) AS BIGINT) END,"
+					+ " txCount = txCount + 1"
+					+ " WHERE messageId = ? AND contactId = ?";
+			ps = prepareStatement(txn, sql);
+			ps.setInt(1, maxTxCount);
+			ps.setLong(2, Long.MAX_VALUE);
+			ps.setLong(3, now);
+			// If maxTxCount is -1 the round-trip time may overflow
+			ps.setLong(4, maxTxCount == -1 ? 0 : maxLatency * 2);
+			ps.setInt(6, c.getInt());
+			for(MessageId m : sent) {
+				ps.setBytes(5, m.getBytes());
+				ps.addBatch();
+			}
+			int[] batchAffected = ps.executeBatch();
+			if(batchAffected.length != sent.size())
+				throw new DbStateException();
+			for(int i = 0; i < batchAffected.length; i++) {
+				if(batchAffected[i] != 1) throw new DbStateException();
+			}
 		} catch(SQLException e) {
-			tryToClose(rs);
 			tryToClose(ps);
 			throw new DbException(e);
 		}
 	}
+
+	/**
+	 * A bounded cache of prepared statements for a single connection, which
+	 * closes the least recently used statement when it's full.
+	 */
+	private static class StatementCache
+	extends LinkedHashMap<String, PreparedStatement> {
+
+		private static final long serialVersionUID = 7249043874474654345L;
+
+		private StatementCache() {
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(
+				Entry<String, PreparedStatement> eldest) {
+			if(size() <= MAX_CACHED_STATEMENTS) return false;
+			try {
+				eldest.getValue().close();
+			} catch(SQLException e) {
+				if(LOG.isLoggable(WARNING)) LOG.log(WARNING, e.toString(), e);
+			}
+			return true;
+		}
+	}
 }
@@ -0,0 +1,71 @@
+package org.briarproject.db;
+
+import static org.briarproject.api.UniqueId.LENGTH;
+import static org.briarproject.util.ByteUtils.readUint32;
+
+/**
+ * A Bloom filter recording the IDs of stored messages, which can be checked
+ * without accessing the database. If the filter doesn't contain an ID, the
+ * message is definitely not stored; if it does, the message may be stored.
+ * <p>
+ * Message IDs are hashes, so the bit positions are taken directly from the
+ * ID rather than hashing it again. IDs can't be removed from the filter, so
+ * the owner rebuilds the filter when it's full or when too many of the IDs
+ * it contains have been removed from the database.
+ * <p>
+ * This class is thread-safe.
+ */
+class MessageIdFilter {
+
+	private static final int MIN_CAPACITY = 1024;
+	// Ten bits per ID and seven bit positions give a 1% false positive rate
+	private static final int BITS_PER_ID = 10, POSITIONS = 7;
+
+	private final int capacity;
+	private final long[] bits; // Locking: this
+
+	private int added = 0, removed = 0; // Locking: this
+
+	/** Creates a filter with room for at least the given number of IDs. */
+	MessageIdFilter(int capacity) {
+		this.capacity = Math.max(MIN_CAPACITY, capacity);
+		bits = new long[(this.capacity * BITS_PER_ID + 63) / 64];
+	}
+
+	synchronized void add(byte[] id) {
+		if(id.length != LENGTH) throw new IllegalArgumentException();
+		long numBits = bits.length * 64L;
+		long h1 = readUint32(id, 0), h2 = readUint32(id, 4) | 1;
+		for(int i = 0; i < POSITIONS; i++) {
+			long bit = (h1 + i * h2) % numBits;
+			bits[(int) (bit >>> 6)] |= 1L << (bit & 63);
+		}
+		added++;
+	}
+
+	synchronized boolean mightContain(byte[] id) {
+		if(id.length != LENGTH) throw new IllegalArgumentException();
+		long numBits = bits.length * 64L;
+		long h1 = readUint32(id, 0), h2 = readUint32(id, 4) | 1;
+		for(int i = 0; i < POSITIONS; i++) {
+			long bit = (h1 + i * h2) % numBits;
+			if((bits[(int) (bit >>> 6)] & (1L << (bit & 63))) == 0)
+				return false;
+		}
+		return true;
+	}
+
+	/** Records that the given number of IDs have been removed. */
+	synchronized void removed(int count) {
+		removed += count;
+	}
+
+	/**
+	 * Returns true if the filter should be rebuilt, either because it holds
+	 * more IDs than it was created for or because more than half of the IDs
+	 * it holds have been removed.
+	 */
+	synchronized boolean needsRebuilding() {
+		return added > capacity || removed * 2 > added;
+	}
+}
@@ -2,7 +2,6 @@ package org.briarproject.messaging;
 
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.WARNING;
-import static org.briarproject.api.messaging.MessagingConstants.MAX_PACKET_LENGTH;
 
 import java.io.IOException;
 import java.io.OutputStream;
@@ -14,6 +13,7 @@ import java.util.logging.Logger;
 
 import org.briarproject.api.ContactId;
 import org.briarproject.api.TransportId;
+import org.briarproject.api.db.ContactDatabaseTask;
 import org.briarproject.api.db.DatabaseComponent;
 import org.briarproject.api.db.DbException;
 import org.briarproject.api.event.ContactRemovedEvent;
@@ -25,6 +25,7 @@ import org.briarproject.api.event.LocalTransportsUpdatedEvent;
 import org.briarproject.api.event.MessageAddedEvent;
 import org.briarproject.api.event.MessageExpiredEvent;
 import org.briarproject.api.event.MessageRequestedEvent;
+import org.briarproject.api.event.MessagesAddedEvent;
 import org.briarproject.api.event.MessageToAckEvent;
 import org.briarproject.api.event.MessageToRequestEvent;
 import org.briarproject.api.event.RemoteRetentionTimeUpdatedEvent;
@@ -57,6 +58,9 @@ class DuplexOutgoingSession implements MessagingSession, EventListener {
 	private static final Logger LOG =
 			Logger.getLogger(DuplexOutgoingSession.class.getName());
 
+	// The maximum total length of the messages in each batch
+	private static final int BATCH_PAGE_LENGTH = 64 * 1024; // 64 KiB
+
 	private static final ThrowingRunnable<IOException> CLOSE =
 			new ThrowingRunnable<IOException>() {
 		public void run() {}
@@ -133,6 +137,8 @@ class DuplexOutgoingSession implements MessagingSession, EventListener {
 			if(c.getContactId().equals(contactId)) interrupt();
 		} else if(e instanceof MessageAddedEvent) {
 			dbExecutor.execute(new GenerateOffer());
+		} else if(e instanceof MessagesAddedEvent) {
+			dbExecutor.execute(new GenerateOffer());
 		} else if(e instanceof MessageExpiredEvent) {
 			dbExecutor.execute(new GenerateRetentionUpdate());
 		} else if(e instanceof LocalSubscriptionsUpdatedEvent) {
@@ -178,8 +184,16 @@ class DuplexOutgoingSession implements MessagingSession, EventListener {
 		}
 	}
 
+	/** A database task that only affects the contact of this session. */
+	private abstract class ContactTask implements ContactDatabaseTask {
+
+		public ContactId getContactId() {
+			return contactId;
+		}
+	}
+
 	// This task runs on the database thread
-	private class GenerateAck implements Runnable {
+	private class GenerateAck extends ContactTask {
 
 		public void run() {
 			if(interrupted) return;
@@ -214,13 +228,13 @@ class DuplexOutgoingSession implements MessagingSession, EventListener {
 	}
 
 	// This task runs on the database thread
-	private class GenerateBatch implements Runnable {
+	private class GenerateBatch extends ContactTask {
 
 		public void run() {
 			if(interrupted) return;
 			try {
 				Collection<byte[]> b = db.generateRequestedBatch(contactId,
-						MAX_PACKET_LENGTH, maxLatency);
+						BATCH_PAGE_LENGTH, maxLatency);
 				if(LOG.isLoggable(INFO))
 					LOG.info("Generated batch: " + (b != null));
 				if(b != null) writerTasks.add(new WriteBatch(b));
@@ -242,14 +256,15 @@ class DuplexOutgoingSession implements MessagingSession, EventListener {
 
 		public void run() throws IOException {
 			if(interrupted) return;
+			// Read the next page while this one is being written
+			dbExecutor.execute(new GenerateBatch());
 			for(byte[] raw : batch) packetWriter.writeMessage(raw);
 			LOG.info("Sent batch");
-			dbExecutor.execute(new GenerateBatch());
 		}
 	}
 
 	// This task runs on the database thread
-	private class GenerateOffer implements Runnable {
+	private class GenerateOffer extends ContactTask {
 
 		public void run() {
 			if(interrupted) return;
@@ -285,7 +300,7 @@ class DuplexOutgoingSession implements MessagingSession, EventListener {
 	}
 
 	// This task runs on the database thread
-	private class GenerateRequest implements Runnable {
+	private class GenerateRequest extends ContactTask {
 
 		public void run() {
 			if(interrupted) return;
@@ -321,7 +336,7 @@ class DuplexOutgoingSession implements MessagingSession, EventListener {
 	}
 
 	// This task runs on the database thread
-	private class GenerateRetentionAck implements Runnable {
+	private class GenerateRetentionAck extends ContactTask {
 
 		public void run() {
 			if(interrupted) return;
@@ -356,7 +371,7 @@ class DuplexOutgoingSession implements MessagingSession, EventListener {
 	}
 
 	// This task runs on the database thread
-	private class GenerateRetentionUpdate implements Runnable {
+	private class GenerateRetentionUpdate extends ContactTask {
 
 		public void run() {
 			if(interrupted) return;
@@ -392,7 +407,7 @@ class DuplexOutgoingSession implements MessagingSession, EventListener {
 	}
 
 	// This task runs on the database thread
-	private class GenerateSubscriptionAck implements Runnable {
+	private class GenerateSubscriptionAck extends ContactTask {
 
 		public void run() {
 			if(interrupted) return;
@@ -427,7 +442,7 @@ class DuplexOutgoingSession implements MessagingSession, EventListener {
 	}
 
 	// This task runs on the database thread
-	private class GenerateSubscriptionUpdate implements Runnable {
+	private class GenerateSubscriptionUpdate extends ContactTask {
 
 		public void run() {
 			if(interrupted) return;
@@ -463,7 +478,7 @@ class DuplexOutgoingSession implements MessagingSession, EventListener {
 	}
 
 	// This task runs on the database thread
-	private class GenerateTransportAcks implements Runnable {
+	private class GenerateTransportAcks extends ContactTask {
 
 		public void run() {
 			if(interrupted) return;
@@ -498,7 +513,7 @@ class DuplexOutgoingSession implements MessagingSession, EventListener {
 	}
 
 	// This task runs on the database thread
-	private class GenerateTransportUpdates implements Runnable {
+	private class GenerateTransportUpdates extends ContactTask {
 
 		public void run() {
 			if(interrupted) return;
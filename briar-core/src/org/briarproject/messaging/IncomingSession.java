@@ -1,16 +1,23 @@
 package org.briarproject.messaging;
 
+import static java.util.concurrent.TimeUnit.SECONDS;
 import static java.util.logging.Level.WARNING;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
 import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
 import java.util.logging.Logger;
 
 import org.briarproject.api.ContactId;
 import org.briarproject.api.FormatException;
 import org.briarproject.api.TransportId;
+import org.briarproject.api.db.ContactDatabaseTask;
 import org.briarproject.api.db.DatabaseComponent;
 import org.briarproject.api.db.DbException;
 import org.briarproject.api.event.ContactRemovedEvent;
@@ -21,6 +28,7 @@ import org.briarproject.api.event.ShutdownEvent;
 import org.briarproject.api.event.TransportRemovedEvent;
 import org.briarproject.api.messaging.Ack;
 import org.briarproject.api.messaging.Message;
+import org.briarproject.api.messaging.MessageId;
 import org.briarproject.api.messaging.MessageVerifier;
 import org.briarproject.api.messaging.MessagingSession;
 import org.briarproject.api.messaging.Offer;
@@ -44,19 +52,35 @@ class IncomingSession implements MessagingSession, EventListener {
 	private static final Logger LOG =
 			Logger.getLogger(IncomingSession.class.getName());
 
+	/**
+	 * The maximum number of messages that can be read before earlier
+	 * messages have been verified and stored. When this many messages are
+	 * outstanding the session stops reading, so a fast contact can't fill
+	 * the heap with messages waiting to be verified. Package access for
+	 * testing.
+	 */
+	static final int MAX_OUTSTANDING_MESSAGES = 256;
+
 	private final DatabaseComponent db;
 	private final Executor dbExecutor, cryptoExecutor;
 	private final EventBus eventBus;
 	private final MessageVerifier messageVerifier;
+	private final MessagingMetricsImpl metrics;
 	private final ContactId contactId;
 	private final TransportId transportId;
 	private final PacketReader packetReader;
 
+	private final Semaphore outstanding;
+	private final Object pendingLock = new Object();
+	private final Queue<PendingMessage> pending; // Locking: pendingLock
+
+	private boolean deliveryScheduled = false; // Locking: pendingLock
+
 	private volatile boolean interrupted = false;
 
 	IncomingSession(DatabaseComponent db, Executor dbExecutor,
 			Executor cryptoExecutor, EventBus eventBus,
-			MessageVerifier messageVerifier,
+			MessageVerifier messageVerifier, MessagingMetricsImpl metrics,
 			PacketReaderFactory packetReaderFactory, ContactId contactId,
 			TransportId transportId, InputStream in) {
 		this.db = db;
@@ -64,9 +88,12 @@ class IncomingSession implements MessagingSession, EventListener {
 		this.cryptoExecutor = cryptoExecutor;
 		this.eventBus = eventBus;
 		this.messageVerifier = messageVerifier;
+		this.metrics = metrics;
 		this.contactId = contactId;
 		this.transportId = transportId;
 		packetReader = packetReaderFactory.createPacketReader(in);
+		outstanding = new Semaphore(MAX_OUTSTANDING_MESSAGES);
+		pending = new LinkedList<PendingMessage>();
 	}
 
 	public void run() throws IOException {
@@ -79,7 +106,13 @@ class IncomingSession implements MessagingSession, EventListener {
 					dbExecutor.execute(new ReceiveAck(a));
 				} else if(packetReader.hasMessage()) {
 					UnverifiedMessage m = packetReader.readMessage();
-					cryptoExecutor.execute(new VerifyMessage(m));
+					// Stop reading if too many messages are outstanding
+					if(!waitForOutstandingMessages()) break;
+					PendingMessage p = new PendingMessage(m);
+					synchronized(pendingLock) {
+						pending.add(p);
+					}
+					cryptoExecutor.execute(new VerifyMessage(p));
 				} else if(packetReader.hasOffer()) {
 					Offer o = packetReader.readOffer();
 					dbExecutor.execute(new ReceiveOffer(o));
@@ -130,7 +163,15 @@ class IncomingSession implements MessagingSession, EventListener {
 		}
 	}
 
-	private class ReceiveAck implements Runnable {
+	/** A database task that only affects the contact of this session. */
+	private abstract class ContactTask implements ContactDatabaseTask {
+
+		public ContactId getContactId() {
+			return contactId;
+		}
+	}
+
+	private class ReceiveAck extends ContactTask {
 
 		private final Ack ack;
 
@@ -148,26 +189,174 @@ class IncomingSession implements MessagingSession, EventListener {
 		}
 	}
 
+	/**
+	 * Waits until fewer than the maximum number of messages are outstanding,
+	 * and returns false if the session is interrupted while waiting.
+	 */
+	private boolean waitForOutstandingMessages() throws IOException {
+		try {
+			while(!interrupted) {
+				if(outstanding.tryAcquire(1, SECONDS)) return true;
+			}
+			return false;
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting");
+		}
+	}
+
+	/**
+	 * Marks the given message as ready to be delivered to the database and
+	 * schedules a delivery if the message is at the head of the queue.
+	 */
+	private void messageReady(PendingMessage p) {
+		boolean schedule = false;
+		synchronized(pendingLock) {
+			p.ready = true;
+			if(!deliveryScheduled && pending.peek().ready) {
+				deliveryScheduled = true;
+				schedule = true;
+			}
+		}
+		if(schedule) dbExecutor.execute(new DeliverMessages());
+	}
+
+	/** A message that has been read but not yet delivered to the database. */
+	private static class PendingMessage {
+
+		private final UnverifiedMessage unverified;
+
+		private MessageId id = null; // Locking: pendingLock
+		private Message verified = null; // Locking: pendingLock
+		private boolean ready = false; // Locking: pendingLock
+		private boolean failed = false; // Locking: pendingLock
+
+		private PendingMessage(UnverifiedMessage unverified) {
+			this.unverified = unverified;
+		}
+	}
+
+	/**
+	 * Hashes a message to get its ID and checks whether the message may be a
+	 * duplicate before verifying its signatures, since most messages in busy
+	 * groups arrive from several contacts.
+	 */
 	private class VerifyMessage implements Runnable {
 
+		private final PendingMessage pendingMessage;
+
+		private VerifyMessage(PendingMessage pendingMessage) {
+			this.pendingMessage = pendingMessage;
+		}
+
+		public void run() {
+			UnverifiedMessage u = pendingMessage.unverified;
+			MessageId id = null;
+			Message m = null;
+			boolean failed = true;
+			try {
+				id = messageVerifier.getMessageId(u);
+				if(!db.mightContainMessage(id))
+					m = messageVerifier.verifyMessage(u, id);
+				failed = false;
+			} catch(GeneralSecurityException e) {
+				if(LOG.isLoggable(WARNING)) LOG.log(WARNING, e.toString(), e);
+			} catch(RuntimeException e) {
+				// A malformed signature may cause an unchecked exception
+				if(LOG.isLoggable(WARNING)) LOG.log(WARNING, e.toString(), e);
+			} finally {
+				// Stop reading, but deliver the messages already read
+				if(failed) interrupt();
+				synchronized(pendingLock) {
+					pendingMessage.id = id;
+					pendingMessage.verified = m;
+					pendingMessage.failed = failed;
+				}
+				messageReady(pendingMessage);
+			}
+		}
+	}
+
+	/**
+	 * Delivers the messages at the head of the queue that are ready to the
+	 * database, storing the verified messages in a single transaction in the
+	 * order they were read. Messages that failed verification are discarded.
+	 * Messages that may be duplicates haven't been verified; if they turn
+	 * out not to be duplicates they're verified and stored separately.
+	 */
+	private class DeliverMessages extends ContactTask {
+
+		public void run() {
+			List<PendingMessage> ready = new ArrayList<PendingMessage>();
+			synchronized(pendingLock) {
+				while(!pending.isEmpty() && pending.peek().ready)
+					ready.add(pending.poll());
+				deliveryScheduled = false;
+			}
+			List<Message> verified = new ArrayList<Message>();
+			int failed = 0;
+			for(PendingMessage p : ready) {
+				if(p.failed) failed++;
+				else if(p.verified != null) verified.add(p.verified);
+			}
+			if(failed > 0) outstanding.release(failed);
+			try {
+				if(!verified.isEmpty()) {
+					db.receiveMessages(contactId, verified);
+					outstanding.release(verified.size());
+				}
+				for(PendingMessage p : ready) {
+					if(p.failed || p.verified != null) continue;
+					if(db.receiveDuplicateMessage(contactId, p.id,
+							p.unverified.getGroup().getId())) {
+						metrics.verificationSkipped();
+						outstanding.release();
+					} else {
+						// Hold on to the outstanding slot until it's stored
+						cryptoExecutor.execute(new VerifyDuplicateMessage(
+								p.unverified, p.id));
+					}
+				}
+			} catch(DbException e) {
+				if(LOG.isLoggable(WARNING)) LOG.log(WARNING, e.toString(), e);
+				interrupt();
+			}
+		}
+	}
+
+	/** Verifies a message that was wrongly thought to be a duplicate. */
+	private class VerifyDuplicateMessage implements Runnable {
+
 		private final UnverifiedMessage message;
+		private final MessageId id;
 
-		private VerifyMessage(UnverifiedMessage message) {
+		private VerifyDuplicateMessage(UnverifiedMessage message,
+				MessageId id) {
 			this.message = message;
+			this.id = id;
 		}
 
 		public void run() {
+			boolean verified = false;
 			try {
-				Message m = messageVerifier.verifyMessage(message);
+				Message m = messageVerifier.verifyMessage(message, id);
 				dbExecutor.execute(new ReceiveMessage(m));
+				verified = true;
 			} catch(GeneralSecurityException e) {
 				if(LOG.isLoggable(WARNING)) LOG.log(WARNING, e.toString(), e);
-				interrupt();
+			} catch(RuntimeException e) {
+				// A malformed signature may cause an unchecked exception
+				if(LOG.isLoggable(WARNING)) LOG.log(WARNING, e.toString(), e);
+			} finally {
+				if(!verified) {
+					interrupt();
+					outstanding.release();
+				}
 			}
 		}
 	}
 
-	private class ReceiveMessage implements Runnable {
+	private class ReceiveMessage extends ContactTask {
 
 		private final Message message;
 
@@ -178,6 +367,7 @@ class IncomingSession implements MessagingSession, EventListener {
 		public void run() {
 			try {
 				db.receiveMessage(contactId, message);
+				outstanding.release();
 			} catch(DbException e) {
 				if(LOG.isLoggable(WARNING)) LOG.log(WARNING, e.toString(), e);
 				interrupt();
@@ -185,7 +375,7 @@ class IncomingSession implements MessagingSession, EventListener {
 		}
 	}
 
-	private class ReceiveOffer implements Runnable {
+	private class ReceiveOffer extends ContactTask {
 
 		private final Offer offer;
 
@@ -203,7 +393,7 @@ class IncomingSession implements MessagingSession, EventListener {
 		}
 	}
 
-	private class ReceiveRequest implements Runnable {
+	private class ReceiveRequest extends ContactTask {
 
 		private final Request request;
 
@@ -221,7 +411,7 @@ class IncomingSession implements MessagingSession, EventListener {
 		}
 	}
 
-	private class ReceiveRetentionAck implements Runnable {
+	private class ReceiveRetentionAck extends ContactTask {
 
 		private final RetentionAck ack;
 
@@ -239,7 +429,7 @@ class IncomingSession implements MessagingSession, EventListener {
 		}
 	}
 
-	private class ReceiveRetentionUpdate implements Runnable {
+	private class ReceiveRetentionUpdate extends ContactTask {
 
 		private final RetentionUpdate update;
 
@@ -257,7 +447,7 @@ class IncomingSession implements MessagingSession, EventListener {
 		}
 	}
 
-	private class ReceiveSubscriptionAck implements Runnable {
+	private class ReceiveSubscriptionAck extends ContactTask {
 
 		private final SubscriptionAck ack;
 
@@ -275,7 +465,7 @@ class IncomingSession implements MessagingSession, EventListener {
 		}
 	}
 
-	private class ReceiveSubscriptionUpdate implements Runnable {
+	private class ReceiveSubscriptionUpdate extends ContactTask {
 
 		private final SubscriptionUpdate update;
 
@@ -293,7 +483,7 @@ class IncomingSession implements MessagingSession, EventListener {
 		}
 	}
 
-	private class ReceiveTransportAck implements Runnable {
+	private class ReceiveTransportAck extends ContactTask {
 
 		private final TransportAck ack;
 
@@ -311,7 +501,7 @@ class IncomingSession implements MessagingSession, EventListener {
 		}
 	}
 
-	private class ReceiveTransportUpdate implements Runnable {
+	private class ReceiveTransportUpdate extends ContactTask {
 
 		private final TransportUpdate update;
 
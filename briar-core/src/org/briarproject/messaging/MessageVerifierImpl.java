@@ -4,11 +4,15 @@ import static java.util.logging.Level.INFO;
 import static org.briarproject.api.transport.TransportConstants.MAX_CLOCK_DIFFERENCE;
 
 import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
 import java.util.logging.Logger;
 
 import javax.inject.Inject;
 
 import org.briarproject.api.Author;
+import org.briarproject.api.AuthorId;
 import org.briarproject.api.crypto.CryptoComponent;
 import org.briarproject.api.crypto.KeyParser;
 import org.briarproject.api.crypto.MessageDigest;
@@ -25,33 +29,48 @@ class MessageVerifierImpl implements MessageVerifier {
 	private static final Logger LOG =
 			Logger.getLogger(MessageVerifierImpl.class.getName());
 
+	/** The maximum number of parsed public keys to cache. */
+	private static final int MAX_CACHED_KEYS = 1000;
+
 	private final CryptoComponent crypto;
 	private final Clock clock;
+	private final MessagingMetricsImpl metrics;
 	private final KeyParser keyParser;
+	private final PublicKeyCache keyCache; // Locking: keyCache
 
 	@Inject
-	MessageVerifierImpl(CryptoComponent crypto, Clock clock) {
+	MessageVerifierImpl(CryptoComponent crypto, Clock clock,
+			MessagingMetricsImpl metrics) {
 		this.crypto = crypto;
 		this.clock = clock;
+		this.metrics = metrics;
 		keyParser = crypto.getSignatureKeyParser();
+		keyCache = new PublicKeyCache();
+	}
+
+	public MessageId getMessageId(UnverifiedMessage m) {
+		MessageDigest messageDigest = crypto.getMessageDigest();
+		messageDigest.update(m.getSerialised());
+		return new MessageId(messageDigest.digest());
 	}
 
 	public Message verifyMessage(UnverifiedMessage m)
 			throws GeneralSecurityException {
+		return verifyMessage(m, getMessageId(m));
+	}
+
+	public Message verifyMessage(UnverifiedMessage m, MessageId id)
+			throws GeneralSecurityException {
 		long now = System.currentTimeMillis();
-		MessageDigest messageDigest = crypto.getMessageDigest();
 		Signature signature = crypto.getSignature();
 		// Reject the message if it's too far in the future
 		if(m.getTimestamp() > clock.currentTimeMillis() + MAX_CLOCK_DIFFERENCE)
 			throw new GeneralSecurityException();
-		// Hash the message to get the message ID
 		byte[] raw = m.getSerialised();
-		messageDigest.update(raw);
-		MessageId id = new MessageId(messageDigest.digest());
 		// Verify the author's signature, if there is one
 		Author author = m.getAuthor();
 		if(author != null) {
-			PublicKey k = keyParser.parsePublicKey(author.getPublicKey());
+			PublicKey k = getPublicKey(author);
 			signature.initVerify(k);
 			signature.update(raw, 0, m.getSignedLength());
 			if(!signature.verify(m.getSignature()))
@@ -65,4 +84,59 @@ class MessageVerifierImpl implements MessageVerifier {
 			LOG.info("Verifying message took " + duration + " ms");
 		return verified;
 	}
+
+	/**
+	 * Returns the author's public key, parsing and validating it unless it
+	 * has already been parsed. Validating a key is almost as expensive as
+	 * verifying a signature, and authors usually sign many messages.
+	 */
+	private PublicKey getPublicKey(Author a) throws GeneralSecurityException {
+		AuthorId id = a.getId();
+		byte[] encoded = a.getPublicKey();
+		synchronized(keyCache) {
+			CachedKey cached = keyCache.get(id);
+			if(cached != null && Arrays.equals(cached.encoded, encoded)) {
+				metrics.publicKeyCacheHit();
+				return cached.key;
+			}
+		}
+		long start = System.nanoTime();
+		// Invalid keys are not cached, so they'll be rejected every time
+		PublicKey k = keyParser.parsePublicKey(encoded);
+		metrics.publicKeyCacheMiss(System.nanoTime() - start);
+		synchronized(keyCache) {
+			keyCache.put(id, new CachedKey(encoded, k));
+		}
+		return k;
+	}
+
+	private static class CachedKey {
+
+		private final byte[] encoded;
+		private final PublicKey key;
+
+		private CachedKey(byte[] encoded, PublicKey key) {
+			this.encoded = encoded;
+			this.key = key;
+		}
+	}
+
+	/**
+	 * A bounded cache of parsed public keys, which discards the least
+	 * recently used key when it's full.
+	 */
+	private static class PublicKeyCache
+	extends LinkedHashMap<AuthorId, CachedKey> {
+
+		private static final long serialVersionUID = -3412962301474361128L;
+
+		private PublicKeyCache() {
+			super(16, 0.75f, true);
+		}
+
+		@Override
+		protected boolean removeEldestEntry(Entry<AuthorId, CachedKey> e) {
+			return size() > MAX_CACHED_KEYS;
+		}
+	}
 }
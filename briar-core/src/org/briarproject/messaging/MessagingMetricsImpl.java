@@ -0,0 +1,50 @@
+package org.briarproject.messaging;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+
+import org.briarproject.api.messaging.MessagingMetrics;
+
+class MessagingMetricsImpl implements MessagingMetrics {
+
+	private final AtomicLong skippedVerifications = new AtomicLong(0);
+	private final AtomicLong keyCacheHits = new AtomicLong(0);
+	private final AtomicLong keyCacheMisses = new AtomicLong(0);
+	private final AtomicLong keyParsingNanos = new AtomicLong(0);
+
+	@Inject
+	MessagingMetricsImpl() {}
+
+	public long getSkippedVerificationCount() {
+		return skippedVerifications.get();
+	}
+
+	public long getPublicKeyCacheHitCount() {
+		return keyCacheHits.get();
+	}
+
+	public long getPublicKeyCacheMissCount() {
+		return keyCacheMisses.get();
+	}
+
+	public long getPublicKeyParsingTimeSaved() {
+		long misses = keyCacheMisses.get();
+		if(misses == 0) return 0;
+		long meanNanos = keyParsingNanos.get() / misses;
+		return keyCacheHits.get() * meanNanos / 1000 / 1000;
+	}
+
+	void verificationSkipped() {
+		skippedVerifications.incrementAndGet();
+	}
+
+	void publicKeyCacheHit() {
+		keyCacheHits.incrementAndGet();
+	}
+
+	void publicKeyCacheMiss(long parsingNanos) {
+		keyCacheMisses.incrementAndGet();
+		keyParsingNanos.addAndGet(parsingNanos);
+	}
+}
@@ -9,6 +9,7 @@ import org.briarproject.api.messaging.Group;
 import org.briarproject.api.messaging.GroupFactory;
 import org.briarproject.api.messaging.MessageFactory;
 import org.briarproject.api.messaging.MessageVerifier;
+import org.briarproject.api.messaging.MessagingMetrics;
 import org.briarproject.api.messaging.PacketReaderFactory;
 import org.briarproject.api.messaging.PacketWriterFactory;
 import org.briarproject.api.messaging.MessagingSessionFactory;
@@ -26,11 +27,14 @@ public class MessagingModule extends AbstractModule {
 		bind(AuthorFactory.class).to(AuthorFactoryImpl.class);
 		bind(GroupFactory.class).to(GroupFactoryImpl.class);
 		bind(MessageFactory.class).to(MessageFactoryImpl.class);
-		bind(MessageVerifier.class).to(MessageVerifierImpl.class);
+		bind(MessageVerifier.class).to(
+				MessageVerifierImpl.class).in(Singleton.class);
 		bind(PacketReaderFactory.class).to(PacketReaderFactoryImpl.class);
 		bind(PacketWriterFactory.class).to(PacketWriterFactoryImpl.class);
 		bind(MessagingSessionFactory.class).to(
 				MessagingSessionFactoryImpl.class).in(Singleton.class);
+		bind(MessagingMetricsImpl.class).in(Singleton.class);
+		bind(MessagingMetrics.class).to(MessagingMetricsImpl.class);
 	}
 
 	@Provides
@@ -23,6 +23,7 @@ class MessagingSessionFactoryImpl implements MessagingSessionFactory {
 	private final DatabaseComponent db;
 	private final Executor dbExecutor, cryptoExecutor;
 	private final MessageVerifier messageVerifier;
+	private final MessagingMetricsImpl metrics;
 	private final EventBus eventBus;
 	private final PacketReaderFactory packetReaderFactory;
 	private final PacketWriterFactory packetWriterFactory;
@@ -31,13 +32,14 @@ class MessagingSessionFactoryImpl implements MessagingSessionFactory {
 	MessagingSessionFactoryImpl(DatabaseComponent db,
 			@DatabaseExecutor Executor dbExecutor,
 			@CryptoExecutor Executor cryptoExecutor,
-			MessageVerifier messageVerifier, EventBus eventBus,
-			PacketReaderFactory packetReaderFactory,
+			MessageVerifier messageVerifier, MessagingMetricsImpl metrics,
+			EventBus eventBus, PacketReaderFactory packetReaderFactory,
 			PacketWriterFactory packetWriterFactory) {
 		this.db = db;
 		this.dbExecutor = dbExecutor;
 		this.cryptoExecutor = cryptoExecutor;
 		this.messageVerifier = messageVerifier;
+		this.metrics = metrics;
 		this.eventBus = eventBus;
 		this.packetReaderFactory = packetReaderFactory;
 		this.packetWriterFactory = packetWriterFactory;
@@ -46,7 +48,7 @@ class MessagingSessionFactoryImpl implements MessagingSessionFactory {
 	public MessagingSession createIncomingSession(ContactId c, TransportId t,
 			InputStream in) {
 		return new IncomingSession(db, dbExecutor, cryptoExecutor, eventBus,
-				messageVerifier, packetReaderFactory, c, t, in);
+				messageVerifier, metrics, packetReaderFactory, c, t, in);
 	}
 
 	public MessagingSession createOutgoingSession(ContactId c, TransportId t,
@@ -2,7 +2,6 @@ package org.briarproject.messaging;
 
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.WARNING;
-import static org.briarproject.api.messaging.MessagingConstants.MAX_PACKET_LENGTH;
 
 import java.io.IOException;
 import java.io.OutputStream;
@@ -15,6 +14,7 @@ import java.util.logging.Logger;
 
 import org.briarproject.api.ContactId;
 import org.briarproject.api.TransportId;
+import org.briarproject.api.db.ContactDatabaseTask;
 import org.briarproject.api.db.DatabaseComponent;
 import org.briarproject.api.db.DbException;
 import org.briarproject.api.event.ContactRemovedEvent;
@@ -45,6 +45,14 @@ class SimplexOutgoingSession implements MessagingSession, EventListener {
 	private static final Logger LOG =
 			Logger.getLogger(SimplexOutgoingSession.class.getName());
 
+	/**
+	 * The maximum total length of the messages in each batch. Each batch is
+	 * written while the next one is read from the database, so this bounds
+	 * the memory used for outgoing messages and the delay before the first
+	 * message is written.
+	 */
+	private static final int BATCH_PAGE_LENGTH = 64 * 1024; // 64 KiB
+
 	private static final ThrowingRunnable<IOException> CLOSE =
 			new ThrowingRunnable<IOException>() {
 		public void run() {}
@@ -129,8 +137,16 @@ class SimplexOutgoingSession implements MessagingSession, EventListener {
 		}
 	}
 
+	/** A database task that only affects the contact of this session. */
+	private abstract class ContactTask implements ContactDatabaseTask {
+
+		public ContactId getContactId() {
+			return contactId;
+		}
+	}
+
 	// This task runs on the database thread
-	private class GenerateAck implements Runnable {
+	private class GenerateAck extends ContactTask {
 
 		public void run() {
 			if(interrupted) return;
@@ -166,13 +182,13 @@ class SimplexOutgoingSession implements MessagingSession, EventListener {
 	}
 
 	// This task runs on the database thread
-	private class GenerateBatch implements Runnable {
+	private class GenerateBatch extends ContactTask {
 
 		public void run() {
 			if(interrupted) return;
 			try {
 				Collection<byte[]> b = db.generateBatch(contactId,
-						MAX_PACKET_LENGTH, maxLatency);
+						BATCH_PAGE_LENGTH, maxLatency);
 				if(LOG.isLoggable(INFO))
 					LOG.info("Generated batch: " + (b != null));
 				if(b == null) decrementOutstandingQueries();
@@ -195,14 +211,15 @@ class SimplexOutgoingSession implements MessagingSession, EventListener {
 
 		public void run() throws IOException {
 			if(interrupted) return;
+			// Read the next page while this one is being written
+			dbExecutor.execute(new GenerateBatch());
 			for(byte[] raw : batch) packetWriter.writeMessage(raw);
 			LOG.info("Sent batch");
-			dbExecutor.execute(new GenerateBatch());
 		}
 	}
 
 	// This task runs on the database thread
-	private class GenerateRetentionAck implements Runnable {
+	private class GenerateRetentionAck extends ContactTask {
 
 		public void run() {
 			if(interrupted) return;
@@ -238,7 +255,7 @@ class SimplexOutgoingSession implements MessagingSession, EventListener {
 	}
 
 	// This task runs on the database thread
-	private class GenerateRetentionUpdate implements Runnable {
+	private class GenerateRetentionUpdate extends ContactTask {
 
 		public void run() {
 			if(interrupted) return;
@@ -275,7 +292,7 @@ class SimplexOutgoingSession implements MessagingSession, EventListener {
 	}
 
 	// This task runs on the database thread
-	private class GenerateSubscriptionAck implements Runnable {
+	private class GenerateSubscriptionAck extends ContactTask {
 
 		public void run() {
 			if(interrupted) return;
@@ -311,7 +328,7 @@ class SimplexOutgoingSession implements MessagingSession, EventListener {
 	}
 
 	// This task runs on the database thread
-	private class GenerateSubscriptionUpdate implements Runnable {
+	private class GenerateSubscriptionUpdate extends ContactTask {
 
 		public void run() {
 			if(interrupted) return;
@@ -348,7 +365,7 @@ class SimplexOutgoingSession implements MessagingSession, EventListener {
 	}
 
 	// This task runs on the database thread
-	private class GenerateTransportAcks implements Runnable {
+	private class GenerateTransportAcks extends ContactTask {
 
 		public void run() {
 			if(interrupted) return;
@@ -384,7 +401,7 @@ class SimplexOutgoingSession implements MessagingSession, EventListener {
 	}
 
 	// This task runs on the database thread
-	private class GenerateTransportUpdates implements Runnable {
+	private class GenerateTransportUpdates extends ContactTask {
 
 		public void run() {
 			if(interrupted) return;
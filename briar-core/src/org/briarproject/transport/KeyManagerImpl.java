@@ -2,6 +2,7 @@ package org.briarproject.transport;
 
 import static java.util.logging.Level.WARNING;
 import static org.briarproject.api.transport.TransportConstants.MAX_CLOCK_DIFFERENCE;
+import static org.briarproject.api.transport.TransportConstants.REORDERING_WINDOW_SIZE;
 
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -40,6 +41,25 @@ class KeyManagerImpl extends TimerTask implements KeyManager, EventListener {
 
 	private static final int MS_BETWEEN_CHECKS = 60 * 1000;
 
+	/**
+	 * The maximum number of outgoing stream numbers reserved by each database
+	 * write. The stream counter is incremented before any of the numbers are
+	 * used, so numbers are never reused after a crash. Unused numbers are
+	 * returned when the key manager is stopped cleanly, but they're skipped
+	 * if the process is killed.
+	 * <p>
+	 * The recipient only recognises stream numbers less than half a
+	 * reordering window ahead of the highest number it has received, and
+	 * the numbers skipped by each unclean restart add up until the recipient
+	 * receives a stream. Each endpoint's first lease after starting holds a
+	 * single number, and the lease only doubles in size when it's used up,
+	 * so a restart skips at most this many numbers minus one, and only for
+	 * endpoints that were busy. With the current limit, five unclean
+	 * restarts between successful connections skip at most 15 numbers,
+	 * which is still inside the window. Package access for testing.
+	 */
+	static final int MAX_STREAM_NUMBERS_PER_LEASE = REORDERING_WINDOW_SIZE / 8;
+
 	private static final Logger LOG =
 			Logger.getLogger(KeyManagerImpl.class.getName());
 
@@ -55,11 +75,23 @@ class KeyManagerImpl extends TimerTask implements KeyManager, EventListener {
 	private final Map<EndpointKey, TemporarySecret> oldSecrets;
 	private final Map<EndpointKey, TemporarySecret> currentSecrets;
 	private final Map<EndpointKey, TemporarySecret> newSecrets;
+	private final Map<EndpointKey, StreamNumberLease> leases;
+
+	private final int maxLeaseSize;
 
 	@Inject
 	KeyManagerImpl(CryptoComponent crypto, DatabaseComponent db,
 			EventBus eventBus, TagRecogniser tagRecogniser, Clock clock,
 			Timer timer) {
+		this(crypto, db, eventBus, tagRecogniser, clock, timer,
+				MAX_STREAM_NUMBERS_PER_LEASE);
+	}
+
+	KeyManagerImpl(CryptoComponent crypto, DatabaseComponent db,
+			EventBus eventBus, TagRecogniser tagRecogniser, Clock clock,
+			Timer timer, int maxLeaseSize) {
+		if(maxLeaseSize < 1 || maxLeaseSize >= REORDERING_WINDOW_SIZE / 2)
+			throw new IllegalArgumentException();
 		this.crypto = crypto;
 		this.db = db;
 		this.eventBus = eventBus;
@@ -70,6 +102,8 @@ class KeyManagerImpl extends TimerTask implements KeyManager, EventListener {
 		oldSecrets = new HashMap<EndpointKey, TemporarySecret>();
 		currentSecrets = new HashMap<EndpointKey, TemporarySecret>();
 		newSecrets = new HashMap<EndpointKey, TemporarySecret>();
+		leases = new HashMap<EndpointKey, StreamNumberLease>();
+		this.maxLeaseSize = maxLeaseSize;
 	}
 
 	public synchronized boolean start() {
@@ -98,12 +132,11 @@ class KeyManagerImpl extends TimerTask implements KeyManager, EventListener {
 			}
 		}
 		// Pass the old, current and new secrets to the recogniser
-		for(TemporarySecret s : oldSecrets.values())
-			tagRecogniser.addSecret(s);
-		for(TemporarySecret s : currentSecrets.values())
-			tagRecogniser.addSecret(s);
-		for(TemporarySecret s : newSecrets.values())
-			tagRecogniser.addSecret(s);
+		Collection<TemporarySecret> all = new ArrayList<TemporarySecret>();
+		all.addAll(oldSecrets.values());
+		all.addAll(currentSecrets.values());
+		all.addAll(newSecrets.values());
+		if(!all.isEmpty()) tagRecogniser.addSecrets(all);
 		// Schedule periodic key rotation
 		timer.scheduleAtFixedRate(this, MS_BETWEEN_CHECKS, MS_BETWEEN_CHECKS);
 		return true;
@@ -223,9 +256,27 @@ class KeyManagerImpl extends TimerTask implements KeyManager, EventListener {
 		removeAndEraseSecrets(oldSecrets);
 		removeAndEraseSecrets(currentSecrets);
 		removeAndEraseSecrets(newSecrets);
+		returnUnusedStreamNumbers();
 		return true;
 	}
 
+	// Locking: this
+	private void returnUnusedStreamNumbers() {
+		for(Entry<EndpointKey, StreamNumberLease> e : leases.entrySet()) {
+			EndpointKey k = e.getKey();
+			StreamNumberLease lease = e.getValue();
+			if(lease.next == lease.end) continue;
+			try {
+				// This fails harmlessly if the counter has moved on
+				db.resetStreamCounter(k.contactId, k.transportId, lease.period,
+						lease.end, lease.next);
+			} catch(DbException ex) {
+				if(LOG.isLoggable(WARNING)) LOG.log(WARNING, ex.toString(), ex);
+			}
+		}
+		leases.clear();
+	}
+
 	// Locking: this
 	private void removeAndEraseSecrets(Map<?, TemporarySecret> m) {
 		for(TemporarySecret s : m.values()) ByteUtils.erase(s.getSecret());
@@ -234,22 +285,35 @@ class KeyManagerImpl extends TimerTask implements KeyManager, EventListener {
 
 	public synchronized StreamContext getStreamContext(ContactId c,
 			TransportId t) {
-		TemporarySecret s = currentSecrets.get(new EndpointKey(c, t));
+		EndpointKey k = new EndpointKey(c, t);
+		TemporarySecret s = currentSecrets.get(k);
 		if(s == null) {
 			LOG.info("No secret for endpoint");
 			return null;
 		}
-		long streamNumber;
-		try {
-			streamNumber = db.incrementStreamCounter(c, t, s.getPeriod());
-			if(streamNumber == -1) {
-				LOG.info("No counter for period");
+		// Reserve a block of stream numbers if the lease has run out
+		StreamNumberLease lease = leases.get(k);
+		if(lease == null || lease.period != s.getPeriod()
+				|| lease.next == lease.end) {
+			// Double the size of the lease each time it's used up
+			int size = 1;
+			if(lease != null && lease.period == s.getPeriod())
+				size = Math.min(lease.size * 2, maxLeaseSize);
+			long start;
+			try {
+				start = db.incrementStreamCounter(c, t, s.getPeriod(), size);
+				if(start == -1) {
+					LOG.info("No counter for period");
+					return null;
+				}
+			} catch(DbException e) {
+				if(LOG.isLoggable(WARNING)) LOG.log(WARNING, e.toString(), e);
 				return null;
 			}
-		} catch(DbException e) {
-			if(LOG.isLoggable(WARNING)) LOG.log(WARNING, e.toString(), e);
-			return null;
+			lease = new StreamNumberLease(s.getPeriod(), start, size);
+			leases.put(k, lease);
 		}
+		long streamNumber = lease.next++;
 		// Clone the secret - the original will be erased
 		byte[] secret = s.getSecret().clone();
 		return new StreamContext(c, t, secret, streamNumber, s.getAlice());
@@ -288,9 +352,7 @@ class KeyManagerImpl extends TimerTask implements KeyManager, EventListener {
 			return;
 		}
 		// Pass the new secrets to the recogniser
-		tagRecogniser.addSecret(s1);
-		tagRecogniser.addSecret(s2);
-		tagRecogniser.addSecret(s3);
+		tagRecogniser.addSecrets(Arrays.asList(s1, s2, s3));
 	}
 
 	@Override
@@ -306,6 +368,14 @@ class KeyManagerImpl extends TimerTask implements KeyManager, EventListener {
 		// Work out what phase of its lifecycle each secret is in
 		long now = clock.currentTimeMillis();
 		Collection<TemporarySecret> dead = assignSecretsToMaps(now, secrets);
+		// Discard any leases for periods that are no longer current
+		Iterator<Entry<EndpointKey, StreamNumberLease>> it =
+				leases.entrySet().iterator();
+		while(it.hasNext()) {
+			Entry<EndpointKey, StreamNumberLease> e = it.next();
+			TemporarySecret s = currentSecrets.get(e.getKey());
+			if(s == null || s.getPeriod() != e.getValue().period) it.remove();
+		}
 		// Remove any dead secrets from the recogniser
 		for(TemporarySecret s : dead) {
 			ContactId c = s.getContactId();
@@ -323,7 +393,7 @@ class KeyManagerImpl extends TimerTask implements KeyManager, EventListener {
 				if(LOG.isLoggable(WARNING)) LOG.log(WARNING, e.toString(), e);
 			}
 			// Pass any secrets that have been created to the recogniser
-			for(TemporarySecret s : created) tagRecogniser.addSecret(s);
+			tagRecogniser.addSecrets(created);
 		}
 	}
 
@@ -365,6 +435,37 @@ class KeyManagerImpl extends TimerTask implements KeyManager, EventListener {
 		}
 	}
 
+	// Locking: this
+	private void removeLeases(ContactId c) {
+		Iterator<EndpointKey> it = leases.keySet().iterator();
+		while(it.hasNext()) if(it.next().contactId.equals(c)) it.remove();
+	}
+
+	// Locking: this
+	private void removeLeases(TransportId t) {
+		Iterator<EndpointKey> it = leases.keySet().iterator();
+		while(it.hasNext()) if(it.next().transportId.equals(t)) it.remove();
+	}
+
+	/**
+	 * A block of outgoing stream numbers that have been reserved in the
+	 * database for an endpoint's current rotation period.
+	 */
+	private static class StreamNumberLease {
+
+		private final long period, end;
+		private final int size;
+
+		private long next;
+
+		private StreamNumberLease(long period, long start, int size) {
+			this.period = period;
+			this.size = size;
+			next = start;
+			end = start + size;
+		}
+	}
+
 	private static class EndpointKey {
 
 		private final ContactId contactId;
@@ -411,6 +512,7 @@ class KeyManagerImpl extends TimerTask implements KeyManager, EventListener {
 				removeAndEraseSecrets(c, oldSecrets);
 				removeAndEraseSecrets(c, currentSecrets);
 				removeAndEraseSecrets(c, newSecrets);
+				removeLeases(c);
 			}
 		}
 	}
@@ -448,6 +550,7 @@ class KeyManagerImpl extends TimerTask implements KeyManager, EventListener {
 				removeAndEraseSecrets(t, oldSecrets);
 				removeAndEraseSecrets(t, currentSecrets);
 				removeAndEraseSecrets(t, newSecrets);
+				removeLeases(t);
 			}
 		}
 	}
@@ -0,0 +1,214 @@
+package org.briarproject.transport;
+
+import static org.briarproject.api.transport.TransportConstants.AAD_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.HEADER_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.IV_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.MAC_LENGTH;
+import static org.briarproject.util.ByteUtils.MAX_32_BIT_UNSIGNED;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.Executor;
+
+import org.briarproject.api.crypto.AuthenticatedCipher;
+import org.briarproject.api.crypto.CryptoComponent;
+import org.briarproject.api.crypto.SecretKey;
+
+/**
+ * A {@link FrameWriter} that encrypts frames in parallel on an executor and
+ * writes them to the output stream in order. Each frame's IV depends only on
+ * its frame number, so frames can be encrypted independently. The output is
+ * identical to that of an {@link OutgoingEncryptionLayer}.
+ * <p>
+ * At most a fixed number of frames are in flight. When they're all in use,
+ * the writing thread waits for the oldest frame to be encrypted - or encrypts
+ * it, if no executor thread has started to - and writes it.
+ * <p>
+ * This class is not thread-safe.
+ */
+class PipelinedEncryptionLayer implements FrameWriter {
+
+	private final OutputStream out;
+	private final Executor cryptoExecutor;
+	private final SecretKey frameKey;
+	private final byte[] tag;
+	private final int frameLength;
+	private final EncryptionTask[] tasks;
+
+	private long frameNumber = 0; // The next frame to encrypt
+	private long nextFrameToWrite = 0;
+	private boolean writeTag;
+
+	PipelinedEncryptionLayer(OutputStream out, Executor cryptoExecutor,
+			CryptoComponent crypto, SecretKey frameKey, int frameLength,
+			byte[] tag, int maxFramesInFlight) {
+		if(maxFramesInFlight < 1) throw new IllegalArgumentException();
+		this.out = out;
+		this.cryptoExecutor = cryptoExecutor;
+		this.frameKey = frameKey;
+		this.frameLength = frameLength;
+		this.tag = tag;
+		tasks = new EncryptionTask[maxFramesInFlight];
+		for(int i = 0; i < tasks.length; i++)
+			tasks[i] = new EncryptionTask(crypto.getFrameCipher());
+		writeTag = (tag != null);
+	}
+
+	public void writeFrame(byte[] frame, int payloadLength, boolean finalFrame)
+			throws IOException {
+		if(frameNumber > MAX_32_BIT_UNSIGNED) throw new IllegalStateException();
+		// Write the tag if required
+		if(writeTag) writeTag();
+		// If all the tasks are in use, write the oldest frame
+		if(frameNumber - nextFrameToWrite == tasks.length) writeNextFrame(true);
+		EncryptionTask task = tasks[(int) (frameNumber % tasks.length)];
+		// Encode the header
+		FrameEncoder.encodeHeader(frame, finalFrame, payloadLength);
+		// Don't pad the final frame
+		int plaintextLength, ciphertextLength;
+		if(finalFrame) {
+			plaintextLength = HEADER_LENGTH + payloadLength;
+			ciphertextLength = plaintextLength + MAC_LENGTH;
+		} else {
+			plaintextLength = frameLength - MAC_LENGTH;
+			ciphertextLength = frameLength;
+		}
+		// If there's any padding it must all be zeroes
+		for(int i = HEADER_LENGTH + payloadLength; i < plaintextLength; i++) {
+			frame[i] = 0;
+		}
+		// Copy the frame, since the caller will reuse the buffer
+		task.prepare(frame, plaintextLength, ciphertextLength, frameNumber);
+		frameNumber++;
+		cryptoExecutor.execute(task);
+		// Write any frames that are ready without waiting
+		while(nextFrameToWrite < frameNumber && writeNextFrame(false));
+	}
+
+	public void flush() throws IOException {
+		// Write the tag if required
+		if(writeTag) writeTag();
+		// Wait for all the frames in flight and write them
+		while(nextFrameToWrite < frameNumber) writeNextFrame(true);
+		out.flush();
+	}
+
+	private void writeTag() throws IOException {
+		try {
+			out.write(tag, 0, tag.length);
+		} catch(IOException e) {
+			frameKey.erase();
+			throw e;
+		}
+		writeTag = false;
+	}
+
+	/**
+	 * Writes the oldest frame in flight and returns true, or returns false
+	 * without writing anything if <tt>wait</tt> is false and the frame hasn't
+	 * been encrypted yet.
+	 */
+	private boolean writeNextFrame(boolean wait) throws IOException {
+		EncryptionTask task = tasks[(int) (nextFrameToWrite % tasks.length)];
+		if(wait) task.await();
+		else if(!task.isDone()) return false;
+		if(task.failure != null) {
+			frameKey.erase();
+			throw task.failure;
+		}
+		try {
+			out.write(task.ciphertext, 0, task.ciphertextLength);
+		} catch(IOException e) {
+			frameKey.erase();
+			throw e;
+		}
+		nextFrameToWrite++;
+		return true;
+	}
+
+	private class EncryptionTask implements Runnable {
+
+		private static final int QUEUED = 0, RUNNING = 1, DONE = 2;
+
+		private final AuthenticatedCipher frameCipher;
+		private final byte[] plaintext, ciphertext, iv, aad;
+
+		private int plaintextLength, ciphertextLength;
+		private RuntimeException failure;
+		private int state = DONE; // Locking: this
+
+		private EncryptionTask(AuthenticatedCipher frameCipher) {
+			this.frameCipher = frameCipher;
+			plaintext = new byte[frameLength - MAC_LENGTH];
+			ciphertext = new byte[frameLength];
+			iv = new byte[IV_LENGTH];
+			aad = new byte[AAD_LENGTH];
+		}
+
+		// Called by the writing thread before the task is queued
+		private void prepare(byte[] frame, int plaintextLength,
+				int ciphertextLength, long frameNumber) {
+			System.arraycopy(frame, 0, plaintext, 0, plaintextLength);
+			this.plaintextLength = plaintextLength;
+			this.ciphertextLength = ciphertextLength;
+			FrameEncoder.encodeIv(iv, frameNumber);
+			FrameEncoder.encodeAad(aad, frameNumber, plaintextLength);
+			failure = null;
+			synchronized(this) {
+				state = QUEUED;
+			}
+		}
+
+		public void run() {
+			if(claim()) encrypt();
+		}
+
+		// Returns true if the caller should encrypt the frame
+		private synchronized boolean claim() {
+			if(state != QUEUED) return false;
+			state = RUNNING;
+			return true;
+		}
+
+		private synchronized boolean isDone() {
+			return state == DONE;
+		}
+
+		// Waits for the frame to be encrypted, encrypting it on the calling
+		// thread if no executor thread has started to
+		private void await() throws IOException {
+			if(claim()) {
+				encrypt();
+				return;
+			}
+			synchronized(this) {
+				try {
+					while(state != DONE) wait();
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("Interrupted while encrypting");
+				}
+			}
+		}
+
+		private void encrypt() {
+			try {
+				frameCipher.init(true, frameKey, iv, aad);
+				int encrypted = frameCipher.doFinal(plaintext, 0,
+						plaintextLength, ciphertext, 0);
+				if(encrypted != ciphertextLength)
+					throw new RuntimeException();
+			} catch(GeneralSecurityException badCipher) {
+				failure = new RuntimeException(badCipher);
+			} catch(RuntimeException e) {
+				failure = e;
+			} finally {
+				synchronized(this) {
+					state = DONE;
+					notifyAll();
+				}
+			}
+		}
+	}
+}
@@ -3,21 +3,24 @@ package org.briarproject.transport;
 import static org.briarproject.api.transport.TransportConstants.REORDERING_WINDOW_SIZE;
 import static org.briarproject.util.ByteUtils.MAX_32_BIT_UNSIGNED;
 
-import java.util.ArrayList;
-import java.util.Collection;
-import java.util.HashSet;
-import java.util.Set;
-
-// This class is not thread-safe
+/**
+ * A window of stream numbers around a centre, recording which of them have
+ * been seen. The window is stored as a bitmap in the same format that's
+ * stored in the database: the most significant bit of the first byte
+ * represents the stream number <tt>centre - REORDERING_WINDOW_SIZE / 2</tt>,
+ * and a bit is set if the stream number has been seen. Bits representing
+ * stream numbers outside the valid range are always clear.
+ * <p>
+ * This class is not thread-safe.
+ */
 class ReorderingWindow {
 
-	private final Set<Long> unseen;
+	private final byte[] bitmap;
 
 	private long centre;
 
 	ReorderingWindow() {
-		unseen = new HashSet<Long>();
-		for(long l = 0; l < REORDERING_WINDOW_SIZE / 2; l++) unseen.add(l);
+		bitmap = new byte[REORDERING_WINDOW_SIZE / 8];
 		centre = 0;
 	}
 
@@ -27,43 +30,82 @@ class ReorderingWindow {
 		if(bitmap.length != REORDERING_WINDOW_SIZE / 8)
 			throw new IllegalArgumentException();
 		this.centre = centre;
-		unseen = new HashSet<Long>();
+		this.bitmap = bitmap.clone();
+		// Ignore any bits representing invalid stream numbers
 		long bitmapBottom = centre - REORDERING_WINDOW_SIZE / 2;
-		for(int bytes = 0; bytes < bitmap.length; bytes++) {
-			for(int bits = 0; bits < 8; bits++) {
-				long streamNumber = bitmapBottom + bytes * 8 + bits;
-				if(streamNumber >= 0 && streamNumber <= MAX_32_BIT_UNSIGNED) {
-					if((bitmap[bytes] & (128 >> bits)) == 0)
-						unseen.add(streamNumber);
-				}
-			}
+		for(int i = 0; i < REORDERING_WINDOW_SIZE; i++) {
+			long streamNumber = bitmapBottom + i;
+			if(streamNumber < 0 || streamNumber > MAX_32_BIT_UNSIGNED)
+				clearBit(i);
 		}
 	}
 
+	/**
+	 * Returns true if the given stream number has been seen or is outside
+	 * the window.
+	 */
 	boolean isSeen(long streamNumber) {
-		return !unseen.contains(streamNumber);
+		if(streamNumber < getBottom(centre) || streamNumber > getTop(centre))
+			return true;
+		return getBit(getIndex(streamNumber));
+	}
+
+	/**
+	 * Marks the given stream number as seen, sliding the window if
+	 * necessary.
+	 * @throws IllegalArgumentException if the stream number is outside the
+	 * window or has already been seen.
+	 */
+	void setSeen(long streamNumber) {
+		setSeen(streamNumber, null);
 	}
 
-	Collection<Long> setSeen(long streamNumber) {
+	/**
+	 * Marks the given stream number as seen, sliding the window if
+	 * necessary, and returns the number of unseen stream numbers that have
+	 * left or entered the window. If <tt>changed</tt> is not null, those
+	 * stream numbers are written to it in ascending order: it must have room
+	 * for {@link
+	 * org.briarproject.api.transport.TransportConstants#REORDERING_WINDOW_SIZE
+	 * REORDERING_WINDOW_SIZE} entries.
+	 * @throws IllegalArgumentException if the stream number is outside the
+	 * window or has already been seen.
+	 */
+	int setSeen(long streamNumber, long[] changed) {
+		if(changed != null && changed.length < REORDERING_WINDOW_SIZE)
+			throw new IllegalArgumentException();
 		long bottom = getBottom(centre);
 		long top = getTop(centre);
 		if(streamNumber < bottom || streamNumber > top)
 			throw new IllegalArgumentException();
-		if(!unseen.remove(streamNumber))
-			throw new IllegalArgumentException();
-		Collection<Long> changed = new ArrayList<Long>();
-		if(streamNumber >= centre) {
-			centre = streamNumber + 1;
-			long newBottom = getBottom(centre);
-			long newTop = getTop(centre);
-			for(long l = bottom; l < newBottom; l++) {
-				if(unseen.remove(l)) changed.add(l);
-			}
-			for(long l = top + 1; l <= newTop; l++) {
-				if(unseen.add(l)) changed.add(l);
+		int index = getIndex(streamNumber);
+		if(getBit(index)) throw new IllegalArgumentException();
+		setBit(index);
+		if(streamNumber < centre) return 0;
+		// Slide the window so the centre is just above the stream number
+		long newCentre = streamNumber + 1;
+		long newBottom = getBottom(newCentre);
+		long newTop = getTop(newCentre);
+		int count = 0;
+		for(long l = bottom; l < newBottom; l++) {
+			if(!getBit(getIndex(l))) {
+				if(changed != null) changed[count] = l;
+				count++;
 			}
 		}
-		return changed;
+		for(long l = top + 1; l <= newTop; l++) {
+			if(changed != null) changed[count] = l;
+			count++;
+		}
+		// Shift the bitmap towards the most significant bit
+		int shift = (int) (newCentre - centre);
+		for(int i = 0; i < REORDERING_WINDOW_SIZE; i++) {
+			if(i + shift < REORDERING_WINDOW_SIZE && getBit(i + shift))
+				setBit(i);
+			else clearBit(i);
+		}
+		centre = newCentre;
+		return count;
 	}
 
 	long getCentre() {
@@ -71,18 +113,37 @@ class ReorderingWindow {
 	}
 
 	byte[] getBitmap() {
-		byte[] bitmap = new byte[REORDERING_WINDOW_SIZE / 8];
-		long bitmapBottom = centre - REORDERING_WINDOW_SIZE / 2;
-		for(int bytes = 0; bytes < bitmap.length; bytes++) {
-			for(int bits = 0; bits < 8; bits++) {
-				long streamNumber = bitmapBottom + bytes * 8 + bits;
-				if(streamNumber >= 0 && streamNumber <= MAX_32_BIT_UNSIGNED) {
-					if(!unseen.contains(streamNumber))
-						bitmap[bytes] |= 128 >> bits;
-				}
-			}
-		}
-		return bitmap;
+		return bitmap.clone();
+	}
+
+	/** Returns the unseen stream numbers in the window in ascending order. */
+	long[] getUnseen() {
+		long bottom = getBottom(centre);
+		long top = getTop(centre);
+		int count = 0;
+		for(long l = bottom; l <= top; l++) if(!getBit(getIndex(l))) count++;
+		long[] unseen = new long[count];
+		count = 0;
+		for(long l = bottom; l <= top; l++)
+			if(!getBit(getIndex(l))) unseen[count++] = l;
+		return unseen;
+	}
+
+	// Returns the index of the bit representing the given stream number
+	private int getIndex(long streamNumber) {
+		return (int) (streamNumber - centre + REORDERING_WINDOW_SIZE / 2);
+	}
+
+	private boolean getBit(int index) {
+		return (bitmap[index / 8] & (128 >> (index % 8))) != 0;
+	}
+
+	private void setBit(int index) {
+		bitmap[index / 8] |= 128 >> (index % 8);
+	}
+
+	private void clearBit(int index) {
+		bitmap[index / 8] &= ~(128 >> (index % 8));
 	}
 
 	// Returns the lowest value contained in a window with the given centre
@@ -95,8 +156,4 @@ class ReorderingWindow {
 		return Math.min(MAX_32_BIT_UNSIGNED,
 				centre + REORDERING_WINDOW_SIZE / 2 - 1);
 	}
-
-	public Collection<Long> getUnseen() {
-		return unseen;
-	}
 }
@@ -0,0 +1,152 @@
+package org.briarproject.transport;
+
+import static java.util.logging.Level.WARNING;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.logging.Logger;
+
+import org.briarproject.api.ContactId;
+import org.briarproject.api.TransportId;
+import org.briarproject.api.db.DatabaseComponent;
+import org.briarproject.api.db.DbException;
+import org.briarproject.api.transport.ReorderingWindowUpdate;
+
+/**
+ * Stores reordering windows in the database on behalf of the tag
+ * recognisers, so that the recognisers don't make database calls while
+ * holding their locks.
+ * <p>
+ * A recogniser {@link #queue(ReorderingWindowUpdate) queues} the new state
+ * of a window while holding its lock, replacing any queued state for the
+ * same window. The thread that recognised the tag then calls
+ * {@link #flush()} without holding any locks. The first thread to flush
+ * writes every queued window in a single transaction, while threads that
+ * arrive meanwhile wait and are served by the same or the next transaction.
+ * <p>
+ * Recovery: a thread doesn't return from {@link #flush()} until the windows
+ * it queued have been committed, and
+ * {@link org.briarproject.api.transport.TagRecogniser#recogniseTag(
+ * TransportId, byte[]) recogniseTag()} doesn't return a stream context
+ * until then. So no stream is read unless the window recording its tag as
+ * seen is durable, and if the device crashes before then, the stream has
+ * not been read. A tag replayed after a crash is therefore rejected if the
+ * stream was read before the crash, and accepted at most once otherwise.
+ */
+class ReorderingWindowWriter {
+
+	private static final Logger LOG =
+			Logger.getLogger(ReorderingWindowWriter.class.getName());
+
+	private final DatabaseComponent db;
+	private final Object lock = new Object();
+
+	// Locking: lock
+	private Map<WindowKey, ReorderingWindowUpdate> queued =
+			new HashMap<WindowKey, ReorderingWindowUpdate>();
+	// Sequence numbers of the last update queued and the last update known
+	// to have been written. Locking: lock
+	private long lastQueued = 0, lastWritten = 0;
+	private boolean writing = false; // Locking: lock
+
+	ReorderingWindowWriter(DatabaseComponent db) {
+		this.db = db;
+	}
+
+	/**
+	 * Queues the given window to be stored, replacing any queued state for
+	 * the same contact, transport and rotation period.
+	 */
+	void queue(ReorderingWindowUpdate u) {
+		WindowKey k = new WindowKey(u.getContactId(), u.getTransportId(),
+				u.getPeriod());
+		synchronized(lock) {
+			queued.put(k, u);
+			lastQueued++;
+		}
+	}
+
+	/**
+	 * Returns when every window queued before this method was called has
+	 * been stored, writing the queued windows if no other thread is doing
+	 * so.
+	 */
+	void flush() throws DbException {
+		long sequence;
+		Map<WindowKey, ReorderingWindowUpdate> batch;
+		synchronized(lock) {
+			sequence = lastQueued;
+			// Wait for any write in progress, which may include our windows
+			boolean interrupted = false;
+			while(writing && lastWritten < sequence) {
+				try {
+					lock.wait();
+				} catch(InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if(interrupted) Thread.currentThread().interrupt();
+			if(lastWritten >= sequence) return;
+			// Write all the queued windows, including any queued by threads
+			// that are waiting for this write
+			writing = true;
+			batch = queued;
+			queued = new HashMap<WindowKey, ReorderingWindowUpdate>();
+			sequence = lastQueued;
+		}
+		boolean success = false;
+		try {
+			db.setReorderingWindows(batch.values());
+			success = true;
+		} finally {
+			synchronized(lock) {
+				writing = false;
+				if(success) {
+					lastWritten = sequence;
+				} else {
+					// Requeue the windows unless newer states have been queued
+					if(LOG.isLoggable(WARNING))
+						LOG.warning("Failed to store reordering windows");
+					for(Entry<WindowKey, ReorderingWindowUpdate> e :
+						batch.entrySet()) {
+						if(!queued.containsKey(e.getKey()))
+							queued.put(e.getKey(), e.getValue());
+					}
+				}
+				lock.notifyAll();
+			}
+		}
+	}
+
+	private static class WindowKey {
+
+		private final ContactId contactId;
+		private final TransportId transportId;
+		private final long period;
+
+		private WindowKey(ContactId contactId, TransportId transportId,
+				long period) {
+			this.contactId = contactId;
+			this.transportId = transportId;
+			this.period = period;
+		}
+
+		@Override
+		public int hashCode() {
+			return contactId.hashCode() ^ transportId.hashCode()
+					^ (int) (period ^ (period >>> 32));
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(o instanceof WindowKey) {
+				WindowKey k = (WindowKey) o;
+				return contactId.equals(k.contactId)
+						&& transportId.equals(k.transportId)
+						&& period == k.period;
+			}
+			return false;
+		}
+	}
+}
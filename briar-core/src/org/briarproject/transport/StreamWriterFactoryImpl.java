@@ -3,8 +3,7 @@ package org.briarproject.transport;
 import static org.briarproject.api.transport.TransportConstants.TAG_LENGTH;
 
 import java.io.OutputStream;
-
-import javax.inject.Inject;
+import java.util.concurrent.Executor;
 
 import org.briarproject.api.crypto.CryptoComponent;
 import org.briarproject.api.crypto.SecretKey;
@@ -15,10 +14,20 @@ import org.briarproject.api.transport.StreamWriterFactory;
 class StreamWriterFactoryImpl implements StreamWriterFactory {
 
 	private final CryptoComponent crypto;
-
-	@Inject
-	StreamWriterFactoryImpl(CryptoComponent crypto) {
+	private final Executor cryptoExecutor;
+	private final int maxFramesInFlight;
+
+	/**
+	 * @param maxFramesInFlight the maximum number of frames per stream to
+	 * encrypt in parallel on the crypto executor, or zero to encrypt frames
+	 * on the writing thread.
+	 */
+	StreamWriterFactoryImpl(CryptoComponent crypto, Executor cryptoExecutor,
+			int maxFramesInFlight) {
+		if(maxFramesInFlight < 0) throw new IllegalArgumentException();
 		this.crypto = crypto;
+		this.cryptoExecutor = cryptoExecutor;
+		this.maxFramesInFlight = maxFramesInFlight;
 	}
 
 	public StreamWriter createStreamWriter(OutputStream out,
@@ -31,8 +40,14 @@ class StreamWriterFactoryImpl implements StreamWriterFactory {
 		crypto.encodeTag(tag, tagKey, streamNumber);
 		tagKey.erase();
 		SecretKey frameKey = crypto.deriveFrameKey(secret, streamNumber, alice);
-		FrameWriter frameWriter = new OutgoingEncryptionLayer(out,
-				crypto.getFrameCipher(), frameKey, maxFrameLength, tag);
+		FrameWriter frameWriter;
+		if(maxFramesInFlight == 0) {
+			frameWriter = new OutgoingEncryptionLayer(out,
+					crypto.getFrameCipher(), frameKey, maxFrameLength, tag);
+		} else {
+			frameWriter = new PipelinedEncryptionLayer(out, cryptoExecutor,
+					crypto, frameKey, maxFrameLength, tag, maxFramesInFlight);
+		}
 		return new StreamWriterImpl(frameWriter, maxFrameLength);
 	}
 
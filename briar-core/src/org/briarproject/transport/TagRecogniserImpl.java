@@ -1,30 +1,42 @@
 package org.briarproject.transport;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 
 import javax.inject.Inject;
 
 import org.briarproject.api.ContactId;
 import org.briarproject.api.TransportId;
 import org.briarproject.api.crypto.CryptoComponent;
+import org.briarproject.api.crypto.CryptoExecutor;
 import org.briarproject.api.db.DatabaseComponent;
 import org.briarproject.api.db.DbException;
 import org.briarproject.api.transport.StreamContext;
 import org.briarproject.api.transport.TagRecogniser;
 import org.briarproject.api.transport.TemporarySecret;
+import org.briarproject.util.ByteUtils;
 
 class TagRecogniserImpl implements TagRecogniser {
 
+	private static final int MAX_PARALLELISM =
+			Runtime.getRuntime().availableProcessors();
+
 	private final CryptoComponent crypto;
-	private final DatabaseComponent db;
+	private final Executor cryptoExecutor;
+	private final ReorderingWindowWriter windowWriter;
 	// Locking: this
 	private final Map<TransportId, TransportTagRecogniser> recognisers;
 
 	@Inject
-	TagRecogniserImpl(CryptoComponent crypto, DatabaseComponent db) {
+	TagRecogniserImpl(CryptoComponent crypto, DatabaseComponent db,
+			@CryptoExecutor Executor cryptoExecutor) {
 		this.crypto = crypto;
-		this.db = db;
+		this.cryptoExecutor = cryptoExecutor;
+		windowWriter = new ReorderingWindowWriter(db);
 		recognisers = new HashMap<TransportId, TransportTagRecogniser>();
 	}
 
@@ -35,22 +47,54 @@ class TagRecogniserImpl implements TagRecogniser {
 			r = recognisers.get(t);
 		}
 		if(r == null) return null;
-		return r.recogniseTag(tag);
+		StreamContext ctx = r.recogniseTag(tag);
+		if(ctx == null) return null;
+		// Don't return the context until the window has been stored
+		try {
+			windowWriter.flush();
+		} catch(DbException e) {
+			ByteUtils.erase(ctx.getSecret());
+			throw e;
+		}
+		return ctx;
 	}
 
 	public void addSecret(TemporarySecret s) {
-		TransportId t = s.getTransportId();
 		TransportTagRecogniser r;
 		synchronized(this) {
-			r = recognisers.get(t);
-			if(r == null) {
-				r = new TransportTagRecogniser(crypto, db, t);
-				recognisers.put(t, r);
-			}
+			r = getOrCreateRecogniser(s.getTransportId());
 		}
 		r.addSecret(s);
 	}
 
+	public void addSecrets(Collection<TemporarySecret> secrets) {
+		if(secrets.isEmpty()) return;
+		List<TemporarySecret> s = new ArrayList<TemporarySecret>(secrets);
+		List<TransportTagRecogniser> r =
+				new ArrayList<TransportTagRecogniser>(s.size());
+		synchronized(this) {
+			for(TemporarySecret t : s)
+				r.add(getOrCreateRecogniser(t.getTransportId()));
+		}
+		// Derive the tags on the crypto executor, with the calling thread
+		// taking part in case the executor is busy or shutting down
+		AddSecretsTask task = new AddSecretsTask(s, r);
+		int helpers = Math.min(s.size(), MAX_PARALLELISM) - 1;
+		for(int i = 0; i < helpers; i++) cryptoExecutor.execute(task);
+		task.run();
+		task.await();
+	}
+
+	// Locking: this
+	private TransportTagRecogniser getOrCreateRecogniser(TransportId t) {
+		TransportTagRecogniser r = recognisers.get(t);
+		if(r == null) {
+			r = new TransportTagRecogniser(crypto, windowWriter, t);
+			recognisers.put(t, r);
+		}
+		return r;
+	}
+
 	public void removeSecret(ContactId c, TransportId t, long period) {
 		TransportTagRecogniser r;
 		synchronized(this) {
@@ -72,4 +116,60 @@ class TagRecogniserImpl implements TagRecogniser {
 		for(TransportTagRecogniser r : recognisers.values())
 			r.removeSecrets();
 	}
+
+	/**
+	 * Adds a list of secrets to their recognisers. Any number of threads can
+	 * run the task at once, each claiming the next secret until none are
+	 * left.
+	 */
+	private static class AddSecretsTask implements Runnable {
+
+		private final List<TemporarySecret> secrets;
+		private final List<TransportTagRecogniser> recognisers;
+
+		private int claimed = 0, finished = 0; // Locking: this
+		private RuntimeException failure = null; // Locking: this
+
+		private AddSecretsTask(List<TemporarySecret> secrets,
+				List<TransportTagRecogniser> recognisers) {
+			this.secrets = secrets;
+			this.recognisers = recognisers;
+		}
+
+		public void run() {
+			while(true) {
+				int i;
+				synchronized(this) {
+					if(claimed == secrets.size()) return;
+					i = claimed++;
+				}
+				RuntimeException e1 = null;
+				try {
+					recognisers.get(i).addSecret(secrets.get(i));
+				} catch(RuntimeException e) {
+					e1 = e;
+				} finally {
+					synchronized(this) {
+						if(failure == null) failure = e1;
+						finished++;
+						if(finished == secrets.size()) notifyAll();
+					}
+				}
+			}
+		}
+
+		// Waits for every claimed secret to be added
+		private synchronized void await() {
+			boolean interrupted = false;
+			while(finished < secrets.size()) {
+				try {
+					wait();
+				} catch(InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if(interrupted) Thread.currentThread().interrupt();
+			if(failure != null) throw failure;
+		}
+	}
 }
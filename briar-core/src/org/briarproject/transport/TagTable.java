@@ -0,0 +1,154 @@
+package org.briarproject.transport;
+
+import static org.briarproject.api.transport.TransportConstants.TAG_LENGTH;
+
+/**
+ * A hash table mapping tags to values and stream numbers. Each tag is stored
+ * as two longs in parallel arrays, using open addressing with linear probing,
+ * so looking up a tag doesn't allocate any objects.
+ * <p>
+ * This class is not thread-safe.
+ */
+class TagTable<V> {
+
+	private static final int MIN_CAPACITY = 16;
+
+	private long[] high, low, streamNumbers;
+	private Object[] values; // Null if the slot is empty
+	private int size = 0;
+
+	TagTable() {
+		allocate(MIN_CAPACITY);
+	}
+
+	int size() {
+		return size;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Adds the given tag to the table and returns true, or returns false
+	 * without changing the table if the tag is already present.
+	 */
+	boolean put(byte[] tag, V value, long streamNumber) {
+		if(value == null) throw new IllegalArgumentException();
+		long h = readLong(tag, 0), l = readLong(tag, 8);
+		if(find(h, l) != -1) return false;
+		// Keep the load factor at or below one half
+		if((size + 1) * 2 > values.length) resize(values.length * 2);
+		int slot = hash(h, l) & (values.length - 1);
+		while(values[slot] != null) slot = (slot + 1) & (values.length - 1);
+		high[slot] = h;
+		low[slot] = l;
+		values[slot] = value;
+		streamNumbers[slot] = streamNumber;
+		size++;
+		return true;
+	}
+
+	/**
+	 * Returns the slot containing the given tag, or -1 if it's absent. Slots
+	 * are only valid until the table is next modified.
+	 */
+	int find(byte[] tag) {
+		if(tag.length < TAG_LENGTH) throw new IllegalArgumentException();
+		return find(readLong(tag, 0), readLong(tag, 8));
+	}
+
+	@SuppressWarnings("unchecked")
+	V getValue(int slot) {
+		V value = (V) values[slot];
+		if(value == null) throw new IllegalArgumentException();
+		return value;
+	}
+
+	long getStreamNumber(int slot) {
+		if(values[slot] == null) throw new IllegalArgumentException();
+		return streamNumbers[slot];
+	}
+
+	/** Removes the given tag and returns true if it was present. */
+	boolean remove(byte[] tag) {
+		int slot = find(tag);
+		if(slot == -1) return false;
+		remove(slot);
+		return true;
+	}
+
+	/** Removes the tag in the given slot. */
+	void remove(int slot) {
+		if(values[slot] == null) throw new IllegalArgumentException();
+		int mask = values.length - 1;
+		// Shift any later entries in the probe sequence back to fill the gap,
+		// so lookups never need to skip over deleted slots
+		int gap = slot;
+		for(int i = (gap + 1) & mask; values[i] != null; i = (i + 1) & mask) {
+			int home = hash(high[i], low[i]) & mask;
+			// Move the entry unless its home lies cyclically in (gap, i]
+			boolean stay = gap <= i ? gap < home && home <= i
+					: gap < home || home <= i;
+			if(!stay) {
+				high[gap] = high[i];
+				low[gap] = low[i];
+				values[gap] = values[i];
+				streamNumbers[gap] = streamNumbers[i];
+				gap = i;
+			}
+		}
+		values[gap] = null;
+		size--;
+		// Shrink the table if it's mostly empty
+		if(values.length > MIN_CAPACITY && size * 8 < values.length)
+			resize(values.length / 2);
+	}
+
+	private int find(long h, long l) {
+		int mask = values.length - 1;
+		int slot = hash(h, l) & mask;
+		while(values[slot] != null) {
+			if(high[slot] == h && low[slot] == l) return slot;
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	private void allocate(int capacity) {
+		high = new long[capacity];
+		low = new long[capacity];
+		streamNumbers = new long[capacity];
+		values = new Object[capacity];
+	}
+
+	private void resize(int capacity) {
+		long[] oldHigh = high, oldLow = low, oldStreamNumbers = streamNumbers;
+		Object[] oldValues = values;
+		allocate(capacity);
+		int mask = capacity - 1;
+		for(int i = 0; i < oldValues.length; i++) {
+			if(oldValues[i] == null) continue;
+			int slot = hash(oldHigh[i], oldLow[i]) & mask;
+			while(values[slot] != null) slot = (slot + 1) & mask;
+			high[slot] = oldHigh[i];
+			low[slot] = oldLow[i];
+			values[slot] = oldValues[i];
+			streamNumbers[slot] = oldStreamNumbers[i];
+		}
+	}
+
+	// Tags are pseudo-random, so a cheap mixing function is enough
+	private static int hash(long h, long l) {
+		long x = (h ^ (l * 0x9E3779B97F4A7C15L));
+		x ^= x >>> 32;
+		x *= 0x9E3779B97F4A7C15L;
+		return (int) (x >>> 32);
+	}
+
+	private static long readLong(byte[] b, int off) {
+		long x = 0;
+		for(int i = 0; i < 8; i++) x = (x << 8) | (b[off + i] & 0xFF);
+		return x;
+	}
+}
@@ -1,5 +1,6 @@
 package org.briarproject.transport;
 
+import static org.briarproject.api.transport.TransportConstants.REORDERING_WINDOW_SIZE;
 import static org.briarproject.api.transport.TransportConstants.TAG_LENGTH;
 
 import java.util.ArrayList;
@@ -7,105 +8,118 @@ import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
-import org.briarproject.api.Bytes;
 import org.briarproject.api.ContactId;
 import org.briarproject.api.TransportId;
 import org.briarproject.api.crypto.CryptoComponent;
 import org.briarproject.api.crypto.SecretKey;
-import org.briarproject.api.db.DatabaseComponent;
-import org.briarproject.api.db.DbException;
+import org.briarproject.api.transport.ReorderingWindowUpdate;
 import org.briarproject.api.transport.StreamContext;
 import org.briarproject.api.transport.TemporarySecret;
 
-// FIXME: Don't make alien calls with a lock held
 /**
  * A {@link org.briarproject.api.transport.TagRecogniser TagRecogniser} for a
- * specific transport.
+ * specific transport. Updated reordering windows are queued with a
+ * {@link ReorderingWindowWriter}, which the caller must flush before using
+ * the stream context.
  */
 class TransportTagRecogniser {
 
 	private final CryptoComponent crypto;
-	private final DatabaseComponent db;
+	private final ReorderingWindowWriter windowWriter;
 	private final TransportId transportId;
-	private final Map<Bytes, TagContext> tagMap; // Locking: this
-	private final Map<RemovalKey, RemovalContext> removalMap; // Locking: this
+	private final TagTable<SecretContext> tagTable; // Locking: this
+	private final Map<RemovalKey, SecretContext> removalMap; // Locking: this
+	private final long[] changed; // Locking: this
 
-	TransportTagRecogniser(CryptoComponent crypto, DatabaseComponent db,
-			TransportId transportId) {
+	TransportTagRecogniser(CryptoComponent crypto,
+			ReorderingWindowWriter windowWriter, TransportId transportId) {
 		this.crypto = crypto;
-		this.db = db;
+		this.windowWriter = windowWriter;
 		this.transportId = transportId;
-		tagMap = new HashMap<Bytes, TagContext>();
-		removalMap = new HashMap<RemovalKey, RemovalContext>();
+		tagTable = new TagTable<SecretContext>();
+		removalMap = new HashMap<RemovalKey, SecretContext>();
+		changed = new long[REORDERING_WINDOW_SIZE];
 	}
 
-	synchronized StreamContext recogniseTag(byte[] tag) throws DbException {
-		TagContext t = tagMap.remove(new Bytes(tag));
-		if(t == null) return null; // The tag was not expected
+	synchronized StreamContext recogniseTag(byte[] tag) {
+		int slot = tagTable.find(tag);
+		if(slot == -1) return null; // The tag was not expected
+		SecretContext s = tagTable.getValue(slot);
+		long streamNumber = tagTable.getStreamNumber(slot);
+		tagTable.remove(slot);
 		// Update the reordering window and the expected tags
-		SecretKey key = crypto.deriveTagKey(t.secret, !t.alice);
-		for(long streamNumber : t.window.setSeen(t.streamNumber)) {
-			byte[] tag1 = new byte[TAG_LENGTH];
-			crypto.encodeTag(tag1, key, streamNumber);
-			if(streamNumber < t.streamNumber) {
-				TagContext removed = tagMap.remove(new Bytes(tag1));
-				assert removed != null;
+		SecretKey key = crypto.deriveTagKey(s.secret, !s.alice);
+		byte[] tag1 = new byte[TAG_LENGTH];
+		int changes = s.window.setSeen(streamNumber, changed);
+		for(int i = 0; i < changes; i++) {
+			long streamNumber1 = changed[i];
+			crypto.encodeTag(tag1, key, streamNumber1);
+			if(streamNumber1 < streamNumber) {
+				boolean removed = tagTable.remove(tag1);
+				assert removed;
 			} else {
-				TagContext added = new TagContext(t, streamNumber);
-				TagContext duplicate = tagMap.put(new Bytes(tag1), added);
-				assert duplicate == null;
+				boolean added = tagTable.put(tag1, s, streamNumber1);
+				assert added;
 			}
 		}
 		key.erase();
-		// Store the updated reordering window in the DB
-		db.setReorderingWindow(t.contactId, transportId, t.period,
-				t.window.getCentre(), t.window.getBitmap());
+		// Queue the updated reordering window to be stored
+		windowWriter.queue(new ReorderingWindowUpdate(s.contactId, transportId,
+				s.period, s.window.getCentre(), s.window.getBitmap()));
 		// Clone the secret - the key manager will erase the original
-		byte[] secret = t.secret.clone();
-		return new StreamContext(t.contactId, transportId, secret,
-				t.streamNumber, t.alice);
+		byte[] secret = s.secret.clone();
+		return new StreamContext(s.contactId, transportId, secret,
+				streamNumber, s.alice);
 	}
 
-	synchronized void addSecret(TemporarySecret s) {
-		ContactId contactId = s.getContactId();
-		boolean alice = s.getAlice();
-		long period = s.getPeriod();
-		byte[] secret = s.getSecret();
-		long centre = s.getWindowCentre();
-		byte[] bitmap = s.getWindowBitmap();
-		// Create the reordering window and the expected tags
+	/**
+	 * Adds the expected tags for the given secret. The tags are derived
+	 * before acquiring the lock, so several threads can add secrets in
+	 * parallel.
+	 */
+	void addSecret(TemporarySecret t) {
+		ContactId contactId = t.getContactId();
+		boolean alice = t.getAlice();
+		long period = t.getPeriod();
+		byte[] secret = t.getSecret();
+		long centre = t.getWindowCentre();
+		byte[] bitmap = t.getWindowBitmap();
+		// Create the reordering window and derive the expected tags
 		SecretKey key = crypto.deriveTagKey(secret, !alice);
 		ReorderingWindow window = new ReorderingWindow(centre, bitmap);
-		for(long streamNumber : window.getUnseen()) {
-			byte[] tag = new byte[TAG_LENGTH];
-			crypto.encodeTag(tag, key, streamNumber);
-			TagContext added = new TagContext(contactId, alice, period,
-					secret, window, streamNumber);
-			TagContext duplicate = tagMap.put(new Bytes(tag), added);
-			assert duplicate == null;
-		}
+		SecretContext s = new SecretContext(contactId, alice, period, secret,
+				window);
+		long[] unseen = window.getUnseen();
+		byte[][] tags = new byte[unseen.length][TAG_LENGTH];
+		for(int i = 0; i < unseen.length; i++)
+			crypto.encodeTag(tags[i], key, unseen[i]);
 		key.erase();
-		// Create a removal context to remove the window and the tags later
-		RemovalContext r = new RemovalContext(window, secret, alice);
-		removalMap.put(new RemovalKey(contactId, period), r);
+		synchronized(this) {
+			for(int i = 0; i < unseen.length; i++) {
+				boolean added = tagTable.put(tags[i], s, unseen[i]);
+				assert added;
+			}
+			// Remember the context so the window and the tags can be removed
+			removalMap.put(new RemovalKey(contactId, period), s);
+		}
 	}
 
 	synchronized void removeSecret(ContactId contactId, long period) {
 		RemovalKey k = new RemovalKey(contactId, period);
-		RemovalContext removed = removalMap.remove(k);
+		SecretContext removed = removalMap.remove(k);
 		if(removed == null) throw new IllegalArgumentException();
 		removeSecret(removed);
 	}
 
 	// Locking: this
-	private void removeSecret(RemovalContext r) {
+	private void removeSecret(SecretContext s) {
 		// Remove the expected tags
-		SecretKey key = crypto.deriveTagKey(r.secret, !r.alice);
+		SecretKey key = crypto.deriveTagKey(s.secret, !s.alice);
 		byte[] tag = new byte[TAG_LENGTH];
-		for(long streamNumber : r.window.getUnseen()) {
+		for(long streamNumber : s.window.getUnseen()) {
 			crypto.encodeTag(tag, key, streamNumber);
-			TagContext removed = tagMap.remove(new Bytes(tag));
-			assert removed != null;
+			boolean removed = tagTable.remove(tag);
+			assert removed;
 		}
 		key.erase();
 	}
@@ -118,33 +132,27 @@ class TransportTagRecogniser {
 	}
 
 	synchronized void removeSecrets() {
-		for(RemovalContext r : removalMap.values()) removeSecret(r);
-		assert tagMap.isEmpty();
+		for(SecretContext s : removalMap.values()) removeSecret(s);
+		assert tagTable.isEmpty();
 		removalMap.clear();
 	}
 
-	private static class TagContext {
+	/** The state shared by all the expected tags for a temporary secret. */
+	private static class SecretContext {
 
 		private final ContactId contactId;
 		private final boolean alice;
 		private final long period;
 		private final byte[] secret;
 		private final ReorderingWindow window;
-		private final long streamNumber;
 
-		private TagContext(ContactId contactId, boolean alice, long period,
-				byte[] secret, ReorderingWindow window, long streamNumber) {
+		private SecretContext(ContactId contactId, boolean alice, long period,
+				byte[] secret, ReorderingWindow window) {
 			this.contactId = contactId;
 			this.alice = alice;
 			this.period = period;
 			this.secret = secret;
 			this.window = window;
-			this.streamNumber = streamNumber;
-		}
-
-		private TagContext(TagContext t, long streamNumber) {
-			this(t.contactId, t.alice, t.period, t.secret, t.window,
-					streamNumber);
 		}
 	}
 
@@ -172,18 +180,4 @@ class TransportTagRecogniser {
 			return false;
 		}
 	}
-
-	private static class RemovalContext {
-
-		private final ReorderingWindow window;
-		private final byte[] secret;
-		private final boolean alice;
-
-		private RemovalContext(ReorderingWindow window, byte[] secret,
-				boolean alice) {
-			this.window = window;
-			this.secret = secret;
-			this.alice = alice;
-		}
-	}
 }
@@ -3,16 +3,31 @@ package org.briarproject;
 import java.io.File;
 
 import org.briarproject.api.db.DatabaseConfig;
+import org.briarproject.util.StringUtils;
 
 public class TestDatabaseConfig implements DatabaseConfig {
 
 	private final File dir;
-	private final long maxSize;
-	private volatile byte[] key = new byte[] { 'f', 'o', 'o' };
+	private final long maxSize, maxCommitDelay;
+	private final boolean useBlobStore;
+	// The same key is used every time, so a test can reopen its database
+	private volatile byte[] key = StringUtils.fromHexString(
+			"000102030405060708090A0B0C0D0E0F101112131415161718191A1B1C1D1E1F");
 
 	public TestDatabaseConfig(File dir, long maxSize) {
+		this(dir, maxSize, 0);
+	}
+
+	public TestDatabaseConfig(File dir, long maxSize, long maxCommitDelay) {
+		this(dir, maxSize, maxCommitDelay, false);
+	}
+
+	public TestDatabaseConfig(File dir, long maxSize, long maxCommitDelay,
+			boolean useBlobStore) {
 		this.dir = dir;
 		this.maxSize = maxSize;
+		this.maxCommitDelay = maxCommitDelay;
+		this.useBlobStore = useBlobStore;
 	}
 
 	public boolean databaseExists() {
@@ -34,4 +49,12 @@ public class TestDatabaseConfig implements DatabaseConfig {
 	public long getMaxSize() {
 		return maxSize;
 	}
+
+	public long getMaxCommitDelay() {
+		return maxCommitDelay;
+	}
+
+	public boolean useBlobStore() {
+		return useBlobStore;
+	}
 }
@@ -0,0 +1,66 @@
+package org.briarproject.crypto;
+
+import static org.briarproject.api.transport.TransportConstants.TAG_LENGTH;
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.Random;
+
+import org.briarproject.BriarTestCase;
+import org.briarproject.TestSeedProvider;
+import org.briarproject.api.crypto.CryptoComponent;
+import org.briarproject.api.crypto.SecretKey;
+import org.junit.Test;
+import org.spongycastle.crypto.BlockCipher;
+import org.spongycastle.crypto.CipherParameters;
+import org.spongycastle.crypto.engines.AESLightEngine;
+
+public class AesEngineFactoryTest extends BriarTestCase {
+
+	@Test
+	public void testEnginesPassSelfTest() {
+		assertTrue(CryptoComponentImpl.testAesEngine(
+				new LightAesEngineFactory()));
+		assertTrue(CryptoComponentImpl.testAesEngine(
+				new FastAesEngineFactory()));
+		assertTrue(CryptoComponentImpl.testAesEngine(
+				new JceAesEngineFactory()));
+	}
+
+	@Test
+	public void testBrokenEngineFailsSelfTest() {
+		assertFalse(CryptoComponentImpl.testAesEngine(
+				new BrokenAesEngineFactory()));
+	}
+
+	@Test
+	public void testBrokenEngineIsReplacedWithDefault() {
+		CryptoComponent expected = new CryptoComponentImpl(
+				new TestSeedProvider(), new LightAesEngineFactory());
+		CryptoComponent actual = new CryptoComponentImpl(
+				new TestSeedProvider(), new BrokenAesEngineFactory());
+		byte[] secret = new byte[32];
+		new Random().nextBytes(secret);
+		SecretKey tagKey = expected.deriveTagKey(secret, true);
+		byte[] tag = new byte[TAG_LENGTH], tag1 = new byte[TAG_LENGTH];
+		expected.encodeTag(tag, tagKey, 123);
+		actual.encodeTag(tag1, tagKey, 123);
+		assertArrayEquals(tag, tag1);
+	}
+
+	private static class BrokenAesEngineFactory implements AesEngineFactory {
+
+		public BlockCipher createEngine() {
+			return new AESLightEngine() {
+				@Override
+				public void init(boolean encrypt, CipherParameters params) {
+					// Always decrypt
+					super.init(false, params);
+				}
+			};
+		}
+
+		public String getName() {
+			return "Broken";
+		}
+	}
+}
@@ -0,0 +1,81 @@
+package org.briarproject.crypto;
+
+import java.util.Random;
+
+import org.briarproject.TestSeedProvider;
+import org.briarproject.api.crypto.AuthenticatedCipher;
+import org.briarproject.api.crypto.CryptoComponent;
+import org.briarproject.api.crypto.SecretKey;
+import org.spongycastle.crypto.BlockCipher;
+import org.spongycastle.crypto.params.KeyParameter;
+
+// Not a JUnit test
+public class AesEnginePerformanceTest {
+
+	private static final AesEngineFactory[] FACTORIES = {
+		new LightAesEngineFactory(),
+		new FastAesEngineFactory(),
+		new JceAesEngineFactory()
+	};
+	private static final int DATA_LENGTH = 16 * 1024 * 1024;
+	private static final int FRAME_LENGTH = 1024;
+	private static final int ITERATIONS = 5;
+
+	public static void main(String[] args) throws Exception {
+		byte[] key = new byte[32];
+		new Random().nextBytes(key);
+		for(AesEngineFactory f : FACTORIES) {
+			if(!CryptoComponentImpl.testAesEngine(f)) {
+				System.out.println(f.getName() + ": failed self-test");
+				continue;
+			}
+			CryptoComponent crypto = new CryptoComponentImpl(
+					new TestSeedProvider(), f);
+			SecretKey frameKey = new SecretKeyImpl(key.clone());
+			// Warm up, then take the best of several runs
+			testBlocks(f, key);
+			testFrames(crypto, frameKey);
+			double blocks = 0, frames = 0;
+			for(int i = 0; i < ITERATIONS; i++) {
+				blocks = Math.max(blocks, testBlocks(f, key));
+				frames = Math.max(frames, testFrames(crypto, frameKey));
+			}
+			System.out.println(f.getName() + ": blocks " + (int) blocks
+					+ " MB/s, " + FRAME_LENGTH + "-byte GCM frames "
+					+ (int) frames + " MB/s");
+		}
+	}
+
+	// Returns the throughput of raw block encryption in megabytes per second
+	private static double testBlocks(AesEngineFactory f, byte[] key) {
+		BlockCipher engine = f.createEngine();
+		engine.init(true, new KeyParameter(key));
+		int blockSize = engine.getBlockSize();
+		byte[] block = new byte[blockSize];
+		long start = System.nanoTime();
+		for(int i = 0; i < DATA_LENGTH; i += blockSize)
+			engine.processBlock(block, 0, block, 0);
+		return getThroughput(System.nanoTime() - start);
+	}
+
+	// Returns the throughput of frame encryption in megabytes per second
+	private static double testFrames(CryptoComponent crypto, SecretKey key)
+			throws Exception {
+		AuthenticatedCipher cipher = crypto.getFrameCipher();
+		byte[] iv = new byte[12], aad = new byte[12];
+		byte[] plaintext = new byte[FRAME_LENGTH - cipher.getMacLength()];
+		byte[] ciphertext = new byte[FRAME_LENGTH];
+		long start = System.nanoTime();
+		for(int i = 0; i < DATA_LENGTH; i += FRAME_LENGTH) {
+			iv[0]++;
+			cipher.init(true, key, iv, aad);
+			cipher.doFinal(plaintext, 0, plaintext.length, ciphertext, 0);
+		}
+		return getThroughput(System.nanoTime() - start);
+	}
+
+	private static double getThroughput(long nanos) {
+		double megabytes = DATA_LENGTH / (1024.0 * 1024.0);
+		return megabytes * 1000 * 1000 * 1000 / nanos;
+	}
+}
@@ -0,0 +1,88 @@
+package org.briarproject.crypto;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.briarproject.BriarTestCase;
+import org.briarproject.api.crypto.AuthenticatedCipher;
+import org.briarproject.api.crypto.SecretKey;
+import org.junit.Test;
+import org.spongycastle.crypto.engines.AESLightEngine;
+import org.spongycastle.crypto.modes.GCMBlockCipher;
+
+public class AuthenticatedCipherImplTest extends BriarTestCase {
+
+	private static final int KEY_BYTES = 32; // 256 bits
+	private static final int IV_BYTES = 12; // 96 bits
+	private static final int MAC_BYTES = 16; // 128 bits
+
+	private final Random random = new Random();
+
+	@Test
+	public void testReusedKeyGivesSameOutputAsNewCipher() throws Exception {
+		SecretKey key = createKey();
+		AuthenticatedCipher reused = createCipher();
+		for(int i = 0; i < 10; i++) {
+			byte[] iv = new byte[IV_BYTES], aad = new byte[8];
+			random.nextBytes(iv);
+			random.nextBytes(aad);
+			byte[] plaintext = new byte[100 + i];
+			random.nextBytes(plaintext);
+			byte[] expected = encrypt(createCipher(), key, iv, aad, plaintext);
+			byte[] actual = encrypt(reused, key, iv, aad, plaintext);
+			assertArrayEquals(expected, actual);
+			// Decrypting with the same cipher should also reuse the key
+			assertArrayEquals(plaintext, decrypt(reused, key, iv, aad,
+					actual));
+		}
+	}
+
+	@Test
+	public void testChangingKeyIsNotIgnored() throws Exception {
+		SecretKey key = createKey(), key1 = createKey();
+		AuthenticatedCipher cipher = createCipher();
+		byte[] iv = new byte[IV_BYTES], aad = new byte[8];
+		byte[] plaintext = new byte[100];
+		random.nextBytes(plaintext);
+		byte[] ciphertext = encrypt(cipher, key, iv, aad, plaintext);
+		byte[] ciphertext1 = encrypt(cipher, key1, iv, aad, plaintext);
+		assertFalse(Arrays.equals(ciphertext, ciphertext1));
+		assertArrayEquals(ciphertext1,
+				encrypt(createCipher(), key1, iv, aad, plaintext));
+		// Decrypting with the wrong key should fail
+		try {
+			decrypt(cipher, key, iv, aad, ciphertext1);
+			fail();
+		} catch(GeneralSecurityException expected) {}
+	}
+
+	private SecretKey createKey() {
+		byte[] b = new byte[KEY_BYTES];
+		random.nextBytes(b);
+		return new SecretKeyImpl(b);
+	}
+
+	private AuthenticatedCipher createCipher() {
+		return new AuthenticatedCipherImpl(
+				new GCMBlockCipher(new AESLightEngine()), MAC_BYTES);
+	}
+
+	private byte[] encrypt(AuthenticatedCipher cipher, SecretKey key,
+			byte[] iv, byte[] aad, byte[] plaintext) throws Exception {
+		cipher.init(true, key, iv, aad);
+		byte[] ciphertext = new byte[plaintext.length + MAC_BYTES];
+		cipher.doFinal(plaintext, 0, plaintext.length, ciphertext, 0);
+		return ciphertext;
+	}
+
+	private byte[] decrypt(AuthenticatedCipher cipher, SecretKey key,
+			byte[] iv, byte[] aad, byte[] ciphertext) throws Exception {
+		cipher.init(false, key, iv, aad);
+		byte[] plaintext = new byte[ciphertext.length - MAC_BYTES];
+		cipher.doFinal(ciphertext, 0, ciphertext.length, plaintext, 0);
+		return plaintext;
+	}
+}
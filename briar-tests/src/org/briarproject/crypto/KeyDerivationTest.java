@@ -29,9 +29,10 @@ public class KeyDerivationTest extends BriarTestCase {
 		keys.add(crypto.deriveFrameKey(secret, 0, false));
 		keys.add(crypto.deriveTagKey(secret, true));
 		keys.add(crypto.deriveTagKey(secret, false));
-		for(int i = 0; i < 4; i++) {
+		keys.add(crypto.deriveBlobKey(secret));
+		for(int i = 0; i < 5; i++) {
 			byte[] keyI = keys.get(i).getEncoded();
-			for(int j = 0; j < 4; j++) {
+			for(int j = 0; j < 5; j++) {
 				byte[] keyJ = keys.get(j).getEncoded();
 				assertEquals(i == j, Arrays.equals(keyI, keyJ));
 			}
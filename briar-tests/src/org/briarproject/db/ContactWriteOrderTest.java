@@ -0,0 +1,236 @@
+package org.briarproject.db;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.briarproject.api.AuthorConstants.MAX_PUBLIC_KEY_LENGTH;
+import static org.briarproject.api.messaging.MessagingConstants.GROUP_SALT_LENGTH;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.briarproject.BriarTestCase;
+import org.briarproject.TestDatabaseConfig;
+import org.briarproject.TestFileUtils;
+import org.briarproject.TestLifecycleModule;
+import org.briarproject.TestMessage;
+import org.briarproject.TestSystemModule;
+import org.briarproject.TestUtils;
+import org.briarproject.api.Author;
+import org.briarproject.api.AuthorId;
+import org.briarproject.api.ContactId;
+import org.briarproject.api.LocalAuthor;
+import org.briarproject.api.crypto.CryptoComponent;
+import org.briarproject.api.db.DatabaseComponent;
+import org.briarproject.api.event.Event;
+import org.briarproject.api.event.EventBus;
+import org.briarproject.api.event.EventListener;
+import org.briarproject.api.lifecycle.ShutdownManager;
+import org.briarproject.api.messaging.Group;
+import org.briarproject.api.messaging.GroupId;
+import org.briarproject.api.messaging.Message;
+import org.briarproject.api.messaging.MessageId;
+import org.briarproject.api.messaging.Offer;
+import org.briarproject.crypto.CryptoModule;
+import org.briarproject.system.SystemClock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Checks that contact operations, which can run concurrently for different
+ * contacts, write the database's tables in a consistent order and therefore
+ * can't deadlock on the database's table locks.
+ */
+public class ContactWriteOrderTest extends BriarTestCase {
+
+	private static final long MAX_SIZE = Long.MAX_VALUE;
+
+	private final File testDir = TestUtils.getTestDirectory();
+	private final CryptoComponent crypto;
+	private final Group group;
+	private final Message message;
+	private final LocalAuthor localAuthor;
+
+	public ContactWriteOrderTest() {
+		Injector i = Guice.createInjector(new CryptoModule(),
+				new TestLifecycleModule(), new TestSystemModule());
+		crypto = i.getInstance(CryptoComponent.class);
+		GroupId groupId = new GroupId(TestUtils.getRandomId());
+		group = new Group(groupId, "Group", new byte[GROUP_SALT_LENGTH]);
+		AuthorId localAuthorId = new AuthorId(TestUtils.getRandomId());
+		localAuthor = new LocalAuthor(localAuthorId, "Alice",
+				new byte[MAX_PUBLIC_KEY_LENGTH], new byte[100], 1234);
+		MessageId messageId = new MessageId(TestUtils.getRandomId());
+		message = new TestMessage(messageId, null, group, null, "text/plain",
+				"Subject", System.currentTimeMillis(), new byte[100]);
+	}
+
+	@Before
+	public void setUp() {
+		testDir.mkdirs();
+	}
+
+	@Test
+	public void testConcurrentOffersDoNotDeadlock() throws Exception {
+		final CountDownLatch firstHasWritten = new CountDownLatch(1);
+		final CountDownLatch secondHasWritten = new CountDownLatch(1);
+		final AtomicReference<ContactId> first =
+				new AtomicReference<ContactId>();
+		// Pause the first contact's transaction after its first write to give
+		// the second contact's transaction a chance to write another table
+		WritePauser pauser = new WritePauser() {
+
+			@Override
+			void written(ContactId c) throws InterruptedException {
+				if(c.equals(first.get())) {
+					if(firstHasWritten.getCount() == 0) return;
+					firstHasWritten.countDown();
+					// If the second transaction is waiting for a table lock
+					// held by the first, this will time out
+					secondHasWritten.await(1, SECONDS);
+				} else {
+					secondHasWritten.countDown();
+				}
+			}
+		};
+		final DatabaseComponent db = open(pauser);
+		db.addLocalAuthor(localAuthor);
+		final ContactId contactA = addContact(db, "Bob");
+		final ContactId contactB = addContact(db, "Carol");
+		db.addGroup(group);
+		db.setVisibility(group.getId(), Arrays.asList(contactA, contactB));
+		db.addLocalMessage(message);
+		first.set(contactA);
+		// The offers list the stored message and an unknown message in
+		// opposite orders
+		final MessageId unknownA = new MessageId(TestUtils.getRandomId());
+		final MessageId unknownB = new MessageId(TestUtils.getRandomId());
+		final AtomicReference<Exception> error =
+				new AtomicReference<Exception>();
+		Thread threadA = new Thread() {
+			@Override
+			public void run() {
+				try {
+					db.receiveOffer(contactA, new Offer(Arrays.asList(
+							message.getId(), unknownA)));
+				} catch(Exception e) {
+					error.set(e);
+				}
+			}
+		};
+		Thread threadB = new Thread() {
+			@Override
+			public void run() {
+				try {
+					assertTrue(firstHasWritten.await(10, SECONDS));
+					db.receiveOffer(contactB, new Offer(Arrays.asList(
+							unknownB, message.getId())));
+				} catch(Exception e) {
+					error.set(e);
+				}
+			}
+		};
+		threadA.start();
+		threadB.start();
+		threadA.join();
+		threadB.join();
+		assertNull(error.get());
+		// Both contacts should have acked the message and offered another
+		assertNotNull(db.generateAck(contactA, 10));
+		assertNotNull(db.generateAck(contactB, 10));
+		assertNotNull(db.generateRequest(contactA, 10));
+		assertNotNull(db.generateRequest(contactB, 10));
+		db.close();
+	}
+
+	private ContactId addContact(DatabaseComponent db, String name)
+			throws Exception {
+		AuthorId authorId = new AuthorId(TestUtils.getRandomId());
+		Author author = new Author(authorId, name,
+				new byte[MAX_PUBLIC_KEY_LENGTH]);
+		return db.addContact(author, localAuthor.getId());
+	}
+
+	private DatabaseComponent open(WritePauser pauser) throws Exception {
+		Database<Connection> h2 = new H2Database(new TestDatabaseConfig(
+				testDir, MAX_SIZE), new TestFileUtils(), new SystemClock(),
+				crypto);
+		pauser.delegate = h2;
+		@SuppressWarnings("unchecked")
+		Database<Connection> database = (Database<Connection>)
+				Proxy.newProxyInstance(Database.class.getClassLoader(),
+						new Class<?>[] { Database.class }, pauser);
+		DatabaseCleaner cleaner = new DatabaseCleaner() {
+
+			public void startCleaning(Callback callback, long msBetweenSweeps) {
+			}
+
+			public void stopCleaning() {}
+		};
+		EventBus eventBus = new EventBus() {
+
+			public void addListener(EventListener l) {}
+
+			public void removeListener(EventListener l) {}
+
+			public void broadcast(Event e) {}
+		};
+		ShutdownManager shutdown = new ShutdownManager() {
+
+			public int addShutdownHook(Runnable hook) {
+				return 0;
+			}
+
+			public boolean removeShutdownHook(int handle) {
+				return true;
+			}
+		};
+		DatabaseComponent db = new DatabaseComponentImpl<Connection>(database,
+				cleaner, eventBus, shutdown);
+		db.open();
+		return db;
+	}
+
+	@Override
+	@After
+	public void tearDown() {
+		TestUtils.deleteTestDirectory(testDir);
+	}
+
+	/**
+	 * Passes calls through to the real database, and calls
+	 * {@link #written(ContactId)} after each write that's made while
+	 * receiving an offer.
+	 */
+	private static abstract class WritePauser implements InvocationHandler {
+
+		private volatile Database<Connection> delegate = null;
+
+		abstract void written(ContactId c) throws InterruptedException;
+
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			Object result;
+			try {
+				result = method.invoke(delegate, args);
+			} catch(InvocationTargetException e) {
+				throw e.getCause();
+			}
+			String name = method.getName();
+			if(name.equals("raiseSeenFlag") || name.equals("raiseAckFlag")
+					|| name.equals("addOfferedMessage")) {
+				written((ContactId) args[1]);
+			}
+			return result;
+		}
+	}
+}
@@ -2,6 +2,7 @@ package org.briarproject.db;
 
 import static org.briarproject.api.AuthorConstants.MAX_PUBLIC_KEY_LENGTH;
 import static org.briarproject.api.messaging.MessagingConstants.GROUP_SALT_LENGTH;
+import static org.briarproject.api.messaging.MessagingConstants.MAX_PACKET_LENGTH;
 import static org.briarproject.db.DatabaseConstants.MAX_OFFERED_MESSAGES;
 
 import java.util.Arrays;
@@ -36,12 +37,14 @@ import org.briarproject.api.event.MessageRequestedEvent;
 import org.briarproject.api.event.MessageToAckEvent;
 import org.briarproject.api.event.MessageToRequestEvent;
 import org.briarproject.api.event.MessagesAckedEvent;
+import org.briarproject.api.event.MessagesAddedEvent;
 import org.briarproject.api.event.SubscriptionAddedEvent;
 import org.briarproject.api.event.SubscriptionRemovedEvent;
 import org.briarproject.api.lifecycle.ShutdownManager;
 import org.briarproject.api.messaging.Ack;
 import org.briarproject.api.messaging.Group;
 import org.briarproject.api.messaging.GroupId;
+import org.briarproject.api.messaging.GroupStatus;
 import org.briarproject.api.messaging.Message;
 import org.briarproject.api.messaging.MessageId;
 import org.briarproject.api.messaging.Offer;
@@ -123,12 +126,14 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 		final ShutdownManager shutdown = context.mock(ShutdownManager.class);
 		final EventBus eventBus = context.mock(EventBus.class);
 		context.checking(new Expectations() {{
-			exactly(11).of(database).startTransaction();
+			exactly(12).of(database).startTransaction();
 			will(returnValue(txn));
-			exactly(11).of(database).commitTransaction(txn);
+			exactly(12).of(database).commitTransaction(txn);
 			// open()
 			oneOf(database).open();
 			will(returnValue(false));
+			oneOf(database).getMessageIds(txn);
+			will(returnValue(Collections.emptyList()));
 			oneOf(cleaner).startCleaning(
 					with(any(DatabaseCleaner.Callback.class)),
 					with(any(long.class)));
@@ -290,8 +295,6 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 			oneOf(database).setReadFlag(txn, messageId, true);
 			oneOf(database).getVisibility(txn, groupId);
 			will(returnValue(Arrays.asList(contactId)));
-			oneOf(database).getContactIds(txn);
-			will(returnValue(Arrays.asList(contactId)));
 			oneOf(database).removeOfferedMessage(txn, contactId, messageId);
 			will(returnValue(false));
 			oneOf(database).addStatus(txn, contactId, messageId, false, false);
@@ -318,11 +321,11 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 		final EventBus eventBus = context.mock(EventBus.class);
 		context.checking(new Expectations() {{
 			// Check whether the contact is in the DB (which it's not)
-			exactly(25).of(database).startTransaction();
+			exactly(27).of(database).startTransaction();
 			will(returnValue(txn));
-			exactly(25).of(database).containsContact(txn, contactId);
+			exactly(27).of(database).containsContact(txn, contactId);
 			will(returnValue(false));
-			exactly(25).of(database).abortTransaction(txn);
+			exactly(27).of(database).abortTransaction(txn);
 		}});
 		DatabaseComponent db = createDatabaseComponent(database, cleaner,
 				eventBus, shutdown);
@@ -382,13 +385,18 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 			fail();
 		} catch(NoSuchContactException expected) {}
 
+		try {
+			db.getContactSummary(contactId);
+			fail();
+		} catch(NoSuchContactException expected) {}
+
 		try {
 			db.getInboxGroupId(contactId);
 			fail();
 		} catch(NoSuchContactException expected) {}
 
 		try {
-			db.incrementStreamCounter(contactId, transportId, 0);
+			db.incrementStreamCounter(contactId, transportId, 0, 1);
 			fail();
 		} catch(NoSuchContactException expected) {}
 
@@ -452,6 +460,11 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 			fail();
 		} catch(NoSuchContactException expected) {}
 
+		try {
+			db.resetStreamCounter(contactId, transportId, 0, 2, 1);
+			fail();
+		} catch(NoSuchContactException expected) {}
+
 		try {
 			db.setReorderingWindow(contactId, transportId, 0, 0, new byte[4]);
 			fail();
@@ -584,13 +597,13 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 			oneOf(database).commitTransaction(txn);
 			oneOf(eventBus).broadcast(with(any(ContactAddedEvent.class)));
 			// Check whether the transport is in the DB (which it's not)
-			exactly(8).of(database).startTransaction();
+			exactly(9).of(database).startTransaction();
 			will(returnValue(txn));
-			exactly(3).of(database).containsContact(txn, contactId);
+			exactly(4).of(database).containsContact(txn, contactId);
 			will(returnValue(true));
-			exactly(8).of(database).containsTransport(txn, transportId);
+			exactly(9).of(database).containsTransport(txn, transportId);
 			will(returnValue(false));
-			exactly(8).of(database).abortTransaction(txn);
+			exactly(9).of(database).abortTransaction(txn);
 		}});
 		DatabaseComponent db = createDatabaseComponent(database, cleaner,
 				eventBus, shutdown);
@@ -624,7 +637,7 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 		} catch(NoSuchTransportException expected) {}
 
 		try {
-			db.incrementStreamCounter(contactId, transportId, 0);
+			db.incrementStreamCounter(contactId, transportId, 0, 1);
 			fail();
 		} catch(NoSuchTransportException expected) {}
 
@@ -633,6 +646,11 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 			fail();
 		} catch(NoSuchTransportException expected) {}
 
+		try {
+			db.resetStreamCounter(contactId, transportId, 0, 2, 1);
+			fail();
+		} catch(NoSuchTransportException expected) {}
+
 		try {
 			db.setReorderingWindow(contactId, transportId, 0, 0, new byte[4]);
 			fail();
@@ -690,11 +708,9 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 			will(returnValue(ids));
 			oneOf(database).getRawMessage(txn, messageId);
 			will(returnValue(raw));
-			oneOf(database).updateExpiryTime(txn, contactId, messageId,
-					Long.MAX_VALUE);
 			oneOf(database).getRawMessage(txn, messageId1);
 			will(returnValue(raw1));
-			oneOf(database).updateExpiryTime(txn, contactId, messageId1,
+			oneOf(database).updateExpiryTime(txn, contactId, ids,
 					Long.MAX_VALUE);
 			oneOf(database).lowerRequestedFlag(txn, contactId, ids);
 			oneOf(database).commitTransaction(txn);
@@ -708,6 +724,86 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 		context.assertIsSatisfied();
 	}
 
+	@Test
+	public void testGenerateBatchReturnsMessageLongerThanPage()
+			throws Exception {
+		final Collection<MessageId> ids = Arrays.asList(messageId, messageId1);
+		final Collection<MessageId> first = Arrays.asList(messageId);
+		Mockery context = new Mockery();
+		@SuppressWarnings("unchecked")
+		final Database<Object> database = context.mock(Database.class);
+		final DatabaseCleaner cleaner = context.mock(DatabaseCleaner.class);
+		final ShutdownManager shutdown = context.mock(ShutdownManager.class);
+		final EventBus eventBus = context.mock(EventBus.class);
+		context.checking(new Expectations() {{
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).containsContact(txn, contactId);
+			will(returnValue(true));
+			// The next message doesn't fit in the page
+			oneOf(database).getMessagesToSend(txn, contactId, size - 1);
+			will(returnValue(Collections.emptyList()));
+			// Only the next message should be returned
+			oneOf(database).getMessagesToSend(txn, contactId,
+					MAX_PACKET_LENGTH);
+			will(returnValue(ids));
+			oneOf(database).getRawMessage(txn, messageId);
+			will(returnValue(raw));
+			oneOf(database).updateExpiryTime(txn, contactId, first,
+					Long.MAX_VALUE);
+			oneOf(database).lowerRequestedFlag(txn, contactId, first);
+			oneOf(database).commitTransaction(txn);
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, cleaner,
+				eventBus, shutdown);
+
+		assertEquals(Arrays.asList(raw), db.generateBatch(contactId, size - 1,
+				Long.MAX_VALUE));
+
+		context.assertIsSatisfied();
+	}
+
+	@Test
+	public void testAvailableGroupsAreCachedUntilSubscriptionsChange()
+			throws Exception {
+		final Collection<GroupStatus> before = Collections.emptyList();
+		final Collection<GroupStatus> after =
+				Arrays.asList(new GroupStatus(group, true, false));
+		Mockery context = new Mockery();
+		@SuppressWarnings("unchecked")
+		final Database<Object> database = context.mock(Database.class);
+		final DatabaseCleaner cleaner = context.mock(DatabaseCleaner.class);
+		final ShutdownManager shutdown = context.mock(ShutdownManager.class);
+		final EventBus eventBus = context.mock(EventBus.class);
+		context.checking(new Expectations() {{
+			allowing(database).startTransaction();
+			will(returnValue(txn));
+			allowing(database).commitTransaction(txn);
+			// The first call to getAvailableGroups() is cached
+			oneOf(database).getAvailableGroups(txn);
+			will(returnValue(before));
+			// addGroup()
+			oneOf(database).containsGroup(txn, groupId);
+			will(returnValue(false));
+			oneOf(database).addGroup(txn, group);
+			will(returnValue(true));
+			oneOf(eventBus).broadcast(with(any(SubscriptionAddedEvent.class)));
+			// The cached result is discarded
+			oneOf(database).getAvailableGroups(txn);
+			will(returnValue(after));
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, cleaner,
+				eventBus, shutdown);
+
+		assertEquals(before, db.getAvailableGroups());
+		assertEquals(before, db.getAvailableGroups());
+		db.addGroup(group);
+		assertEquals(after, db.getAvailableGroups());
+		assertEquals(after, db.getAvailableGroups());
+
+		context.assertIsSatisfied();
+	}
+
 	@Test
 	public void testGenerateOffer() throws Exception {
 		final MessageId messageId1 = new MessageId(TestUtils.getRandomId());
@@ -725,9 +821,7 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 			will(returnValue(true));
 			oneOf(database).getMessagesToOffer(txn, contactId, 123);
 			will(returnValue(ids));
-			oneOf(database).updateExpiryTime(txn, contactId, messageId,
-					Long.MAX_VALUE);
-			oneOf(database).updateExpiryTime(txn, contactId, messageId1,
+			oneOf(database).updateExpiryTime(txn, contactId, ids,
 					Long.MAX_VALUE);
 			oneOf(database).commitTransaction(txn);
 		}});
@@ -790,11 +884,9 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 			will(returnValue(ids));
 			oneOf(database).getRawMessage(txn, messageId);
 			will(returnValue(raw));
-			oneOf(database).updateExpiryTime(txn, contactId, messageId,
-					Long.MAX_VALUE);
 			oneOf(database).getRawMessage(txn, messageId1);
 			will(returnValue(raw1));
-			oneOf(database).updateExpiryTime(txn, contactId, messageId1,
+			oneOf(database).updateExpiryTime(txn, contactId, ids,
 					Long.MAX_VALUE);
 			oneOf(database).lowerRequestedFlag(txn, contactId, ids);
 			oneOf(database).commitTransaction(txn);
@@ -1010,6 +1102,17 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 		final ShutdownManager shutdown = context.mock(ShutdownManager.class);
 		final EventBus eventBus = context.mock(EventBus.class);
 		context.checking(new Expectations() {{
+			// Check for a duplicate with the contact's lock held
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).containsContact(txn, contactId);
+			will(returnValue(true));
+			oneOf(database).containsMessage(txn, messageId);
+			will(returnValue(false));
+			oneOf(database).containsVisibleGroup(txn, contactId, groupId);
+			will(returnValue(true));
+			oneOf(database).commitTransaction(txn);
+			// Check again and store the message with the write lock held
 			oneOf(database).startTransaction();
 			will(returnValue(txn));
 			oneOf(database).containsContact(txn, contactId);
@@ -1021,8 +1124,6 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 			oneOf(database).addMessage(txn, message, false);
 			oneOf(database).getVisibility(txn, groupId);
 			will(returnValue(Arrays.asList(contactId)));
-			oneOf(database).getContactIds(txn);
-			will(returnValue(Arrays.asList(contactId)));
 			oneOf(database).removeOfferedMessage(txn, contactId, messageId);
 			will(returnValue(false));
 			oneOf(database).addStatus(txn, contactId, messageId, false, true);
@@ -1071,6 +1172,144 @@ public abstract class DatabaseComponentTest extends BriarTestCase {
 		context.assertIsSatisfied();
 	}
 
+	@Test
+	public void testReceiveMessages() throws Exception {
+		Mockery context = new Mockery();
+		@SuppressWarnings("unchecked")
+		final Database<Object> database = context.mock(Database.class);
+		final DatabaseCleaner cleaner = context.mock(DatabaseCleaner.class);
+		final ShutdownManager shutdown = context.mock(ShutdownManager.class);
+		final EventBus eventBus = context.mock(EventBus.class);
+		context.checking(new Expectations() {{
+			// Check for duplicates with the contact's lock held
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).containsContact(txn, contactId);
+			will(returnValue(true));
+			// The visibility of the group is only checked once
+			oneOf(database).containsVisibleGroup(txn, contactId, groupId);
+			will(returnValue(true));
+			oneOf(database).containsMessage(txn, messageId);
+			will(returnValue(false));
+			oneOf(database).containsMessage(txn, messageId1);
+			will(returnValue(true));
+			// The duplicate must still be acked
+			oneOf(database).raiseAckFlag(txn, contactId, messageId1);
+			oneOf(database).commitTransaction(txn);
+			// Check again and store the new message with the write lock held
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).containsContact(txn, contactId);
+			will(returnValue(true));
+			oneOf(database).containsVisibleGroup(txn, contactId, groupId);
+			will(returnValue(true));
+			oneOf(database).containsMessage(txn, messageId);
+			will(returnValue(false));
+			oneOf(database).addMessage(txn, message, false);
+			oneOf(database).addStatuses(txn, contactId,
+					Arrays.asList(messageId));
+			oneOf(database).raiseAckFlag(txn, contactId, messageId);
+			oneOf(database).commitTransaction(txn);
+			// One event for the batch
+			oneOf(eventBus).broadcast(with(any(MessagesAddedEvent.class)));
+			oneOf(eventBus).broadcast(with(any(MessageToAckEvent.class)));
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, cleaner,
+				eventBus, shutdown);
+
+		db.receiveMessages(contactId, Arrays.asList(message, message1));
+
+		context.assertIsSatisfied();
+	}
+
+	@Test
+	public void testReceiveDuplicateMessageBeforeVerifying() throws Exception {
+		Mockery context = new Mockery();
+		@SuppressWarnings("unchecked")
+		final Database<Object> database = context.mock(Database.class);
+		final DatabaseCleaner cleaner = context.mock(DatabaseCleaner.class);
+		final ShutdownManager shutdown = context.mock(ShutdownManager.class);
+		final EventBus eventBus = context.mock(EventBus.class);
+		context.checking(new Expectations() {{
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).containsContact(txn, contactId);
+			will(returnValue(true));
+			oneOf(database).containsMessage(txn, messageId);
+			will(returnValue(true));
+			oneOf(database).containsVisibleGroup(txn, contactId, groupId);
+			will(returnValue(true));
+			// The message is already stored but it must still be acked
+			oneOf(database).raiseAckFlag(txn, contactId, messageId);
+			oneOf(database).commitTransaction(txn);
+			oneOf(eventBus).broadcast(with(any(MessageToAckEvent.class)));
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, cleaner,
+				eventBus, shutdown);
+
+		assertTrue(db.receiveDuplicateMessage(contactId, messageId, groupId));
+
+		context.assertIsSatisfied();
+	}
+
+	@Test
+	public void testReceiveNewMessageBeforeVerifying() throws Exception {
+		Mockery context = new Mockery();
+		@SuppressWarnings("unchecked")
+		final Database<Object> database = context.mock(Database.class);
+		final DatabaseCleaner cleaner = context.mock(DatabaseCleaner.class);
+		final ShutdownManager shutdown = context.mock(ShutdownManager.class);
+		final EventBus eventBus = context.mock(EventBus.class);
+		context.checking(new Expectations() {{
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).containsContact(txn, contactId);
+			will(returnValue(true));
+			oneOf(database).containsMessage(txn, messageId);
+			will(returnValue(false));
+			// The message isn't stored, so it must be verified
+			oneOf(database).commitTransaction(txn);
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, cleaner,
+				eventBus, shutdown);
+
+		assertFalse(db.receiveDuplicateMessage(contactId, messageId, groupId));
+
+		context.assertIsSatisfied();
+	}
+
+	@Test
+	public void testStoredMessagesAreInFilter() throws Exception {
+		Mockery context = new Mockery();
+		@SuppressWarnings("unchecked")
+		final Database<Object> database = context.mock(Database.class);
+		final DatabaseCleaner cleaner = context.mock(DatabaseCleaner.class);
+		final ShutdownManager shutdown = context.mock(ShutdownManager.class);
+		final EventBus eventBus = context.mock(EventBus.class);
+		context.checking(new Expectations() {{
+			oneOf(database).startTransaction();
+			will(returnValue(txn));
+			oneOf(database).containsMessage(txn, messageId);
+			will(returnValue(false));
+			oneOf(database).containsGroup(txn, groupId);
+			will(returnValue(true));
+			oneOf(database).addMessage(txn, message, true);
+			oneOf(database).setReadFlag(txn, messageId, true);
+			oneOf(database).getVisibility(txn, groupId);
+			will(returnValue(Collections.emptyList()));
+			oneOf(database).commitTransaction(txn);
+			oneOf(eventBus).broadcast(with(any(MessageAddedEvent.class)));
+		}});
+		DatabaseComponent db = createDatabaseComponent(database, cleaner,
+				eventBus, shutdown);
+
+		assertFalse(db.mightContainMessage(messageId));
+		db.addLocalMessage(message);
+		assertTrue(db.mightContainMessage(messageId));
+
+		context.assertIsSatisfied();
+	}
+
 	@Test
 	public void testReceiveMessageWithoutVisibleGroup() throws Exception {
 		Mockery context = new Mockery();
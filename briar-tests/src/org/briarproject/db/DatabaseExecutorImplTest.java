@@ -0,0 +1,184 @@
+package org.briarproject.db;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.briarproject.BriarTestCase;
+import org.briarproject.api.ContactId;
+import org.briarproject.api.db.ContactDatabaseTask;
+import org.briarproject.api.db.ReadOnlyDatabaseTask;
+import org.briarproject.system.SystemClock;
+import org.junit.After;
+import org.junit.Test;
+
+public class DatabaseExecutorImplTest extends BriarTestCase {
+
+	private static final int TASKS = 100;
+
+	private final ExecutorService pool = Executors.newFixedThreadPool(4);
+	private final DatabaseExecutorImpl executor =
+			new DatabaseExecutorImpl(pool, new SystemClock());
+
+	@After
+	public void tearDown() {
+		pool.shutdownNow();
+	}
+
+	@Test
+	public void testTasksForSameContactAreOrdered() throws Exception {
+		final List<Integer> first = new ArrayList<Integer>();
+		final List<Integer> second = new ArrayList<Integer>();
+		final CountDownLatch finished = new CountDownLatch(TASKS * 2);
+		for(int i = 0; i < TASKS; i++) {
+			executor.execute(new AppendTask(new ContactId(1), first, i,
+					finished));
+			executor.execute(new AppendTask(new ContactId(2), second, i,
+					finished));
+		}
+		assertTrue(finished.await(10, SECONDS));
+		assertInOrder(first);
+		assertInOrder(second);
+	}
+
+	@Test
+	public void testUnclassifiedTasksAreOrdered() throws Exception {
+		final List<Integer> results = new ArrayList<Integer>();
+		final CountDownLatch finished = new CountDownLatch(TASKS);
+		for(int i = 0; i < TASKS; i++) {
+			final int index = i;
+			executor.execute(new Runnable() {
+				public void run() {
+					results.add(index);
+					finished.countDown();
+				}
+			});
+		}
+		assertTrue(finished.await(10, SECONDS));
+		assertInOrder(results);
+	}
+
+	@Test
+	public void testContactsDoNotBlockEachOther() throws Exception {
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(1);
+		// Block the first contact's queue
+		executor.execute(new ContactTask(new ContactId(1)) {
+			public void run() {
+				try {
+					release.await(10, SECONDS);
+				} catch(InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		});
+		// A task for another contact should still run
+		executor.execute(new ContactTask(new ContactId(2)) {
+			public void run() {
+				finished.countDown();
+			}
+		});
+		assertTrue(finished.await(10, SECONDS));
+		release.countDown();
+	}
+
+	@Test
+	public void testReadOnlyTasksRunInParallel() throws Exception {
+		final CountDownLatch started = new CountDownLatch(2);
+		final CountDownLatch finished = new CountDownLatch(2);
+		for(int i = 0; i < 2; i++) {
+			executor.execute(new ReadOnlyDatabaseTask() {
+				public void run() {
+					started.countDown();
+					try {
+						// Each task waits for the other to start
+						if(started.await(10, SECONDS)) finished.countDown();
+					} catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+				}
+			});
+		}
+		assertTrue(finished.await(10, SECONDS));
+	}
+
+	@Test
+	public void testMetrics() throws Exception {
+		final CountDownLatch started = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(TASKS);
+		for(int i = 0; i < TASKS; i++) {
+			executor.execute(new Runnable() {
+				public void run() {
+					started.countDown();
+					try {
+						release.await(10, SECONDS);
+					} catch(InterruptedException e) {
+						Thread.currentThread().interrupt();
+					}
+					finished.countDown();
+				}
+			});
+		}
+		// The first task is running and the rest are queued
+		assertTrue(started.await(10, SECONDS));
+		assertEquals(1, executor.getActiveTaskCount());
+		assertEquals(TASKS - 1, executor.getQueuedTaskCount());
+		release.countDown();
+		assertTrue(finished.await(10, SECONDS));
+		// Wait for the last task's statistics to be recorded
+		long end = System.currentTimeMillis() + 10 * 1000;
+		while(executor.getCompletedTaskCount() < TASKS
+				&& System.currentTimeMillis() < end) Thread.sleep(10);
+		assertEquals(TASKS, executor.getCompletedTaskCount());
+		assertEquals(0, executor.getQueuedTaskCount());
+		assertEquals(0, executor.getActiveTaskCount());
+		long max = executor.getMaxQueueTime();
+		assertTrue(max >= executor.getAverageQueueTime());
+	}
+
+	private void assertInOrder(List<Integer> results) {
+		assertEquals(TASKS, results.size());
+		List<Integer> sorted = new ArrayList<Integer>(results);
+		Collections.sort(sorted);
+		assertEquals(sorted, results);
+	}
+
+	private static abstract class ContactTask implements ContactDatabaseTask {
+
+		private final ContactId contactId;
+
+		private ContactTask(ContactId contactId) {
+			this.contactId = contactId;
+		}
+
+		public ContactId getContactId() {
+			return contactId;
+		}
+	}
+
+	private static class AppendTask extends ContactTask {
+
+		private final List<Integer> results;
+		private final int index;
+		private final CountDownLatch finished;
+
+		private AppendTask(ContactId c, List<Integer> results, int index,
+				CountDownLatch finished) {
+			super(c);
+			this.results = results;
+			this.index = index;
+			this.finished = finished;
+		}
+
+		public void run() {
+			results.add(index);
+			finished.countDown();
+		}
+	}
+}
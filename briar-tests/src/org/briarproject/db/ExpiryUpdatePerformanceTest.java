@@ -0,0 +1,121 @@
+package org.briarproject.db;
+
+import static org.briarproject.api.AuthorConstants.MAX_PUBLIC_KEY_LENGTH;
+import static org.briarproject.api.messaging.MessagingConstants.GROUP_SALT_LENGTH;
+
+import java.io.File;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.briarproject.TestDatabaseConfig;
+import org.briarproject.TestFileUtils;
+import org.briarproject.TestLifecycleModule;
+import org.briarproject.TestMessage;
+import org.briarproject.TestSystemModule;
+import org.briarproject.TestUtils;
+import org.briarproject.api.Author;
+import org.briarproject.api.AuthorId;
+import org.briarproject.api.ContactId;
+import org.briarproject.api.LocalAuthor;
+import org.briarproject.api.crypto.CryptoComponent;
+import org.briarproject.api.messaging.Group;
+import org.briarproject.api.messaging.GroupId;
+import org.briarproject.api.messaging.Message;
+import org.briarproject.api.messaging.MessageId;
+import org.briarproject.crypto.CryptoModule;
+import org.briarproject.system.SystemClock;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+// Not a JUnit test
+public class ExpiryUpdatePerformanceTest {
+
+	private static final long MAX_SIZE = Long.MAX_VALUE;
+	private static final int MESSAGES = 1000;
+	private static final int ITERATIONS = 20;
+	private static final long MAX_LATENCY = 60 * 1000;
+
+	public static void main(String[] args) throws Exception {
+		File testDir = TestUtils.getTestDirectory();
+		TestUtils.deleteTestDirectory(testDir);
+		testDir.mkdirs();
+		Injector i = Guice.createInjector(new CryptoModule(),
+				new TestLifecycleModule(), new TestSystemModule());
+		CryptoComponent crypto = i.getInstance(CryptoComponent.class);
+		Database<Connection> db = new H2Database(new TestDatabaseConfig(
+				testDir, MAX_SIZE), new TestFileUtils(), new SystemClock(),
+				crypto);
+		db.open();
+		try {
+			ContactId c = addMessages(db);
+			List<MessageId> ids = new ArrayList<MessageId>();
+			Connection txn = db.startTransaction();
+			ids.addAll(db.getMessagesToOffer(txn, c, MESSAGES));
+			db.commitTransaction(txn);
+			if(ids.size() != MESSAGES) throw new AssertionError();
+			// Warm up, then measure
+			runTest(db, c, ids, false);
+			runTest(db, c, ids, true);
+			long single = runTest(db, c, ids, false);
+			long batched = runTest(db, c, ids, true);
+			System.out.println("One update per message: " + single
+					+ " ms per " + MESSAGES + "-message offer");
+			System.out.println("Batched updates: " + batched
+					+ " ms per " + MESSAGES + "-message offer");
+		} finally {
+			db.close();
+			TestUtils.deleteTestDirectory(testDir);
+		}
+	}
+
+	private static ContactId addMessages(Database<Connection> db)
+			throws Exception {
+		AuthorId localAuthorId = new AuthorId(TestUtils.getRandomId());
+		LocalAuthor localAuthor = new LocalAuthor(localAuthorId, "Alice",
+				new byte[MAX_PUBLIC_KEY_LENGTH], new byte[100], 1234);
+		AuthorId authorId = new AuthorId(TestUtils.getRandomId());
+		Author author = new Author(authorId, "Bob",
+				new byte[MAX_PUBLIC_KEY_LENGTH]);
+		GroupId groupId = new GroupId(TestUtils.getRandomId());
+		Group group = new Group(groupId, "Group", new byte[GROUP_SALT_LENGTH]);
+		Connection txn = db.startTransaction();
+		db.addLocalAuthor(txn, localAuthor);
+		ContactId c = db.addContact(txn, author, localAuthorId);
+		db.addGroup(txn, group);
+		db.addVisibility(txn, c, groupId);
+		db.setGroups(txn, c, Collections.singletonList(group), 1);
+		long timestamp = System.currentTimeMillis();
+		for(int i = 0; i < MESSAGES; i++) {
+			MessageId m = new MessageId(TestUtils.getRandomId());
+			Message message = new TestMessage(m, null, group, author,
+					"text/plain", "Subject", timestamp, new byte[100]);
+			db.addMessage(txn, message, true);
+			db.addStatus(txn, c, m, false, false);
+		}
+		db.commitTransaction(txn);
+		return c;
+	}
+
+	// Returns the mean time in milliseconds to update the expiry times
+	private static long runTest(Database<Connection> db, ContactId c,
+			List<MessageId> ids, boolean batched) throws Exception {
+		long start = System.nanoTime();
+		for(int i = 0; i < ITERATIONS; i++) {
+			Connection txn = db.startTransaction();
+			if(batched) {
+				db.updateExpiryTime(txn, c, ids, MAX_LATENCY);
+			} else {
+				for(MessageId m : ids) {
+					db.updateExpiryTime(txn, c, Collections.singletonList(m),
+							MAX_LATENCY);
+				}
+			}
+			db.commitTransaction(txn);
+		}
+		long duration = System.nanoTime() - start;
+		return duration / ITERATIONS / 1000 / 1000;
+	}
+}
@@ -60,4 +60,16 @@ public class ExponentialBackoffTest extends BriarTestCase {
 		expiry = ExponentialBackoff.calculateExpiry(2, maxLatency, 0);
 		assertEquals(Long.MAX_VALUE, expiry); // Overflow caught
 	}
+
+	@Test
+	public void testMaxTxCount() {
+		long maxLatency = 1L << 59; // Interval overflows when txCount is 3
+		assertEquals(2, ExponentialBackoff.getMaxTxCount(0, maxLatency));
+		long expiry = ExponentialBackoff.calculateExpiry(0, maxLatency, 2);
+		assertTrue(expiry < Long.MAX_VALUE);
+		expiry = ExponentialBackoff.calculateExpiry(0, maxLatency, 3);
+		assertEquals(Long.MAX_VALUE, expiry);
+		// If the first expiry time overflows, no count is safe
+		assertEquals(-1, ExponentialBackoff.getMaxTxCount(0, Long.MAX_VALUE));
+	}
 }
@@ -0,0 +1,105 @@
+package org.briarproject.db;
+
+import static org.briarproject.api.AuthorConstants.MAX_PUBLIC_KEY_LENGTH;
+
+import java.io.File;
+import java.sql.Connection;
+import java.util.concurrent.CountDownLatch;
+
+import org.briarproject.TestDatabaseConfig;
+import org.briarproject.TestFileUtils;
+import org.briarproject.TestLifecycleModule;
+import org.briarproject.TestSystemModule;
+import org.briarproject.TestUtils;
+import org.briarproject.api.Author;
+import org.briarproject.api.AuthorId;
+import org.briarproject.api.ContactId;
+import org.briarproject.api.LocalAuthor;
+import org.briarproject.api.crypto.CryptoComponent;
+import org.briarproject.crypto.CryptoModule;
+import org.briarproject.system.SystemClock;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+// Not a JUnit test
+public class GroupCommitPerformanceTest {
+
+	private static final long MAX_SIZE = Long.MAX_VALUE;
+	private static final int THREADS = 8;
+	private static final int COMMITS_PER_THREAD = 200;
+	private static final long[] COMMIT_DELAYS = { 0, 5, 20 };
+
+	public static void main(String[] args) throws Exception {
+		File testDir = TestUtils.getTestDirectory();
+		Injector i = Guice.createInjector(new CryptoModule(),
+				new TestLifecycleModule(), new TestSystemModule());
+		CryptoComponent crypto = i.getInstance(CryptoComponent.class);
+		try {
+			for(long delay : COMMIT_DELAYS) {
+				// Warm up, then measure
+				runTest(testDir, crypto, delay);
+				double commitsPerSec = runTest(testDir, crypto, delay);
+				String mode = delay == 0 ? "sync per transaction"
+						: "group commit, " + delay + " ms window";
+				System.out.println(mode + ": " + (int) commitsPerSec
+						+ " commits/sec");
+			}
+		} finally {
+			TestUtils.deleteTestDirectory(testDir);
+		}
+	}
+
+	private static double runTest(File testDir, CryptoComponent crypto,
+			long maxCommitDelay) throws Exception {
+		TestUtils.deleteTestDirectory(testDir);
+		testDir.mkdirs();
+		final Database<Connection> db = new H2Database(
+				new TestDatabaseConfig(testDir, MAX_SIZE, maxCommitDelay),
+				new TestFileUtils(), new SystemClock(), crypto);
+		db.open();
+		// Add a contact for each thread to update
+		AuthorId localAuthorId = new AuthorId(TestUtils.getRandomId());
+		LocalAuthor localAuthor = new LocalAuthor(localAuthorId, "Alice",
+				new byte[MAX_PUBLIC_KEY_LENGTH], new byte[100], 1234);
+		final ContactId[] contacts = new ContactId[THREADS];
+		Connection txn = db.startTransaction();
+		db.addLocalAuthor(txn, localAuthor);
+		for(int i = 0; i < THREADS; i++) {
+			AuthorId authorId = new AuthorId(TestUtils.getRandomId());
+			Author author = new Author(authorId, "Contact " + i,
+					new byte[MAX_PUBLIC_KEY_LENGTH]);
+			contacts[i] = db.addContact(txn, author, localAuthorId);
+		}
+		db.commitTransaction(txn);
+		// Each thread commits a series of small transactions
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(THREADS);
+		for(int i = 0; i < THREADS; i++) {
+			final ContactId c = contacts[i];
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for(int j = 1; j <= COMMITS_PER_THREAD; j++) {
+							Connection txn = db.startTransaction();
+							db.setRetentionTime(txn, c, j, j);
+							db.commitTransaction(txn);
+						}
+					} catch(Exception e) {
+						e.printStackTrace();
+					}
+					finished.countDown();
+				}
+			}.start();
+		}
+		long now = System.nanoTime();
+		start.countDown();
+		finished.await();
+		long duration = System.nanoTime() - now;
+		db.close();
+		double commits = THREADS * COMMITS_PER_THREAD;
+		return commits * 1000 * 1000 * 1000 / duration;
+	}
+}
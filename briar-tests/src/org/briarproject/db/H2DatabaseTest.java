@@ -7,6 +7,7 @@ import static org.junit.Assert.assertArrayEquals;
 
 import java.io.File;
 import java.sql.Connection;
+import java.sql.Statement;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
@@ -16,21 +17,28 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.briarproject.BriarTestCase;
 import org.briarproject.TestDatabaseConfig;
 import org.briarproject.TestFileUtils;
+import org.briarproject.TestLifecycleModule;
 import org.briarproject.TestMessage;
+import org.briarproject.TestSystemModule;
 import org.briarproject.TestUtils;
 import org.briarproject.api.Author;
 import org.briarproject.api.AuthorId;
 import org.briarproject.api.ContactId;
 import org.briarproject.api.LocalAuthor;
+import org.briarproject.api.Settings;
 import org.briarproject.api.TransportConfig;
 import org.briarproject.api.TransportId;
 import org.briarproject.api.TransportProperties;
+import org.briarproject.api.crypto.CryptoComponent;
+import org.briarproject.api.db.ContactSummary;
 import org.briarproject.api.db.DbException;
 import org.briarproject.api.db.MessageHeader;
 import org.briarproject.api.messaging.Group;
@@ -38,13 +46,20 @@ import org.briarproject.api.messaging.GroupId;
 import org.briarproject.api.messaging.GroupStatus;
 import org.briarproject.api.messaging.Message;
 import org.briarproject.api.messaging.MessageId;
+import org.briarproject.api.messaging.RetentionAck;
+import org.briarproject.api.system.Clock;
 import org.briarproject.api.transport.Endpoint;
+import org.briarproject.api.transport.ReorderingWindowUpdate;
 import org.briarproject.api.transport.TemporarySecret;
+import org.briarproject.crypto.CryptoModule;
 import org.briarproject.system.SystemClock;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
 public class H2DatabaseTest extends BriarTestCase {
 
 	private static final int ONE_MEGABYTE = 1024 * 1024;
@@ -52,6 +67,7 @@ public class H2DatabaseTest extends BriarTestCase {
 
 	private final File testDir = TestUtils.getTestDirectory();
 	private final Random random = new Random();
+	private final CryptoComponent crypto;
 	private final GroupId groupId;
 	private final Group group;
 	private final AuthorId authorId;
@@ -68,6 +84,9 @@ public class H2DatabaseTest extends BriarTestCase {
 	private final ContactId contactId;
 
 	public H2DatabaseTest() throws Exception {
+		Injector i = Guice.createInjector(new CryptoModule(),
+				new TestLifecycleModule(), new TestSystemModule());
+		crypto = i.getInstance(CryptoComponent.class);
 		groupId = new GroupId(TestUtils.getRandomId());
 		group = new Group(groupId, "Group", new byte[GROUP_SALT_LENGTH]);
 		authorId = new AuthorId(TestUtils.getRandomId());
@@ -271,7 +290,6 @@ public class H2DatabaseTest extends BriarTestCase {
 		db.addGroup(txn, group);
 		db.setGroups(txn, contactId, Arrays.asList(group), 1);
 		db.addMessage(txn, message, true);
-		db.addStatus(txn, contactId, messageId, false, false);
 
 		// The subscription is not visible to the contact, so the message
 		// should not be sendable
@@ -279,7 +297,8 @@ public class H2DatabaseTest extends BriarTestCase {
 				ONE_MEGABYTE);
 		assertTrue(ids.isEmpty());
 
-		// Making the subscription visible should make the message sendable
+		// Making the subscription visible should create a status for the
+		// message and make it sendable
 		db.addVisibility(txn, contactId, groupId);
 		ids = db.getMessagesToSend(txn, contactId, ONE_MEGABYTE);
 		assertFalse(ids.isEmpty());
@@ -381,7 +400,8 @@ public class H2DatabaseTest extends BriarTestCase {
 		assertTrue(it.hasNext());
 		assertEquals(messageId, it.next());
 		assertFalse(it.hasNext());
-		db.updateExpiryTime(txn, contactId, messageId, Long.MAX_VALUE);
+		db.updateExpiryTime(txn, contactId, Arrays.asList(messageId),
+				Long.MAX_VALUE);
 
 		// The message should no longer be sendable
 		it = db.getMessagesToSend(txn, contactId, ONE_MEGABYTE).iterator();
@@ -743,6 +763,51 @@ public class H2DatabaseTest extends BriarTestCase {
 		db.close();
 	}
 
+	@Test
+	public void testVisibilityControlsStatuses() throws Exception {
+		Database<Connection> db = open(false);
+		Connection txn = db.startTransaction();
+
+		// Add a contact who subscribes to a group and store a message
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthorId));
+		db.addGroup(txn, group);
+		db.setGroups(txn, contactId, Arrays.asList(group), 1);
+		db.addMessage(txn, message, true);
+
+		// The group is not visible, so the message should not be offered
+		assertEquals(Collections.emptyList(),
+				db.getMessagesToOffer(txn, contactId, 100));
+
+		// Making the group visible should create a status for the message
+		db.addVisibility(txn, contactId, groupId);
+		assertEquals(Arrays.asList(messageId),
+				db.getMessagesToOffer(txn, contactId, 100));
+
+		// The contact sees the message
+		db.raiseSeenFlag(txn, contactId, messageId);
+		assertEquals(Collections.emptyList(),
+				db.getMessagesToOffer(txn, contactId, 100));
+
+		// Make the group invisible and store another message
+		db.removeVisibility(txn, contactId, groupId);
+		MessageId messageId1 = new MessageId(TestUtils.getRandomId());
+		Message message1 = new TestMessage(messageId1, null, group, author,
+				contentType, subject, timestamp, raw);
+		db.addMessage(txn, message1, true);
+		assertEquals(Collections.emptyList(),
+				db.getMessagesToOffer(txn, contactId, 100));
+
+		// Making the group visible again should create a status for the new
+		// message, but the first message should still be marked as seen
+		db.addVisibility(txn, contactId, groupId);
+		assertEquals(Arrays.asList(messageId1),
+				db.getMessagesToOffer(txn, contactId, 100));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
 	@Test
 	public void testGetParentWithNoParent() throws Exception {
 		Database<Connection> db = open(false);
@@ -877,6 +942,14 @@ public class H2DatabaseTest extends BriarTestCase {
 		byte[] body1 = db.getMessageBody(txn, messageId1);
 		assertArrayEquals(expectedBody1, body1);
 
+		// Retrieve both bodies at once - a missing message should be omitted
+		MessageId missing = new MessageId(TestUtils.getRandomId());
+		Map<MessageId, byte[]> bodies = db.getMessageBodies(txn,
+				Arrays.asList(messageId, missing, messageId1));
+		assertEquals(2, bodies.size());
+		assertArrayEquals(expectedBody, bodies.get(messageId));
+		assertArrayEquals(expectedBody1, bodies.get(messageId1));
+
 		db.commitTransaction(txn);
 		db.close();
 	}
@@ -1072,6 +1145,118 @@ public class H2DatabaseTest extends BriarTestCase {
 		db.close();
 	}
 
+	@Test
+	public void testUnreadMessageCountsAreUpdatedIncrementally()
+			throws Exception {
+		Database<Connection> db = open(false);
+		Connection txn = db.startTransaction();
+
+		// Subscribe to a group and store two messages
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, true);
+		MessageId messageId1 = new MessageId(TestUtils.getRandomId());
+		Message message1 = new TestMessage(messageId1, null, group, author,
+				contentType, subject, timestamp, raw);
+		db.addMessage(txn, message1, true);
+		assertEquals(Integer.valueOf(2),
+				db.getUnreadMessageCounts(txn).get(groupId));
+
+		// Marking a message read twice should only change the count once
+		db.setReadFlag(txn, messageId, true);
+		db.setReadFlag(txn, messageId, true);
+		assertEquals(Integer.valueOf(1),
+				db.getUnreadMessageCounts(txn).get(groupId));
+
+		// Removing a read message should not change the count
+		db.removeMessage(txn, messageId);
+		assertEquals(Integer.valueOf(1),
+				db.getUnreadMessageCounts(txn).get(groupId));
+
+		// Removing an unread message should decrement the count
+		db.removeMessage(txn, messageId1);
+		assertEquals(Collections.emptyMap(), db.getUnreadMessageCounts(txn));
+
+		// Removing a group should remove its count
+		db.addMessage(txn, message, true);
+		assertEquals(1, db.getUnreadMessageCounts(txn).size());
+		db.removeGroup(txn, groupId);
+		assertEquals(Collections.emptyMap(), db.getUnreadMessageCounts(txn));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testSetReadFlags() throws Exception {
+		Database<Connection> db = open(false);
+		Connection txn = db.startTransaction();
+
+		// Subscribe to a group and store two messages
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, true);
+		MessageId messageId1 = new MessageId(TestUtils.getRandomId());
+		Message message1 = new TestMessage(messageId1, null, group, author,
+				contentType, subject, timestamp, raw);
+		db.addMessage(txn, message1, true);
+		assertEquals(Integer.valueOf(2),
+				db.getUnreadMessageCounts(txn).get(groupId));
+
+		// Mark one message read, then both - the count should reach zero
+		// and a missing message should be ignored
+		MessageId missing = new MessageId(TestUtils.getRandomId());
+		db.setReadFlags(txn, Arrays.asList(messageId), true);
+		assertEquals(Integer.valueOf(1),
+				db.getUnreadMessageCounts(txn).get(groupId));
+		db.setReadFlags(txn, Arrays.asList(messageId, missing, messageId1),
+				true);
+		assertEquals(Collections.emptyMap(), db.getUnreadMessageCounts(txn));
+		for(MessageHeader h : db.getMessageHeaders(txn, groupId))
+			assertTrue(h.isRead());
+
+		// Mark both messages unread again
+		db.setReadFlags(txn, Arrays.asList(messageId, messageId1), false);
+		assertEquals(Integer.valueOf(2),
+				db.getUnreadMessageCounts(txn).get(groupId));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testAbortingTransactionClearsBatches() throws Exception {
+		Database<Connection> db = open(false);
+		Connection txn = db.startTransaction();
+
+		// Subscribe to a group and store two messages
+		db.addGroup(txn, group);
+		db.addMessage(txn, message, true);
+		MessageId messageId1 = new MessageId(TestUtils.getRandomId());
+		Message message1 = new TestMessage(messageId1, null, group, author,
+				contentType, subject, timestamp, raw);
+		db.addMessage(txn, message1, true);
+		db.commitTransaction(txn);
+
+		// Fail after adding the first message to a batch, then abort
+		txn = db.startTransaction();
+		try {
+			db.setReadFlags(txn, Arrays.asList(messageId, null), true);
+			fail();
+		} catch(NullPointerException expected) {}
+		db.abortTransaction(txn);
+
+		// The next transaction on the connection should only mark the second
+		// message read
+		txn = db.startTransaction();
+		db.setReadFlags(txn, Arrays.asList(messageId1), true);
+		assertFalse(db.getReadFlag(txn, messageId));
+		assertTrue(db.getReadFlag(txn, messageId1));
+		assertEquals(Integer.valueOf(1),
+				db.getUnreadMessageCounts(txn).get(groupId));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
 	@Test
 	public void testMultipleSubscriptionsAndUnsubscriptions() throws Exception {
 		// Create some groups
@@ -1269,9 +1454,9 @@ public class H2DatabaseTest extends BriarTestCase {
 
 		// Increment the stream counter twice and retrieve the secret again
 		assertEquals(outgoing, db.incrementStreamCounter(txn,
-				s.getContactId(), s.getTransportId(), s.getPeriod()));
+				s.getContactId(), s.getTransportId(), s.getPeriod(), 1));
 		assertEquals(outgoing + 1, db.incrementStreamCounter(txn,
-				s.getContactId(), s.getTransportId(), s.getPeriod()));
+				s.getContactId(), s.getTransportId(), s.getPeriod(), 8));
 		secrets = db.getSecrets(txn);
 		assertEquals(1, secrets.size());
 		s = secrets.iterator().next();
@@ -1279,10 +1464,19 @@ public class H2DatabaseTest extends BriarTestCase {
 		assertEquals(transportId, s.getTransportId());
 		assertEquals(period, s.getPeriod());
 		assertArrayEquals(secret, s.getSecret());
-		assertEquals(outgoing + 2, s.getOutgoingStreamCounter());
+		assertEquals(outgoing + 9, s.getOutgoingStreamCounter());
 		assertEquals(centre, s.getWindowCentre());
 		assertArrayEquals(bitmap, s.getWindowBitmap());
 
+		// Resetting the counter should fail if it has the wrong value
+		assertFalse(db.resetStreamCounter(txn, contactId, transportId, period,
+				outgoing + 8, outgoing + 2));
+		// Return some unused numbers
+		assertTrue(db.resetStreamCounter(txn, contactId, transportId, period,
+				outgoing + 9, outgoing + 2));
+		assertEquals(outgoing + 2, db.incrementStreamCounter(txn, contactId,
+				transportId, period, 1));
+
 		db.commitTransaction(txn);
 		db.close();
 	}
@@ -1356,6 +1550,57 @@ public class H2DatabaseTest extends BriarTestCase {
 		db.close();
 	}
 
+	@Test
+	public void testSetReorderingWindows() throws Exception {
+		// Create an endpoint and temporary secrets for two periods
+		long epoch = 123, latency = 234;
+		boolean alice = false;
+		long period = 345;
+		Endpoint ep = new Endpoint(contactId, transportId, epoch, alice);
+		TemporarySecret s1 = new TemporarySecret(contactId, transportId, epoch,
+				alice, period, new byte[32], 0, 0, new byte[4]);
+		TemporarySecret s2 = new TemporarySecret(contactId, transportId, epoch,
+				alice, period + 1, new byte[32], 0, 0, new byte[4]);
+
+		Database<Connection> db = open(false);
+		Connection txn = db.startTransaction();
+
+		// Add the contact, transport, endpoint and temporary secrets
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthorId));
+		db.addTransport(txn, transportId, latency);
+		db.addEndpoint(txn, ep);
+		db.addSecrets(txn, Arrays.asList(s1, s2));
+
+		// Update both windows and a nonexistent window in one batch
+		byte[] bitmap1 = new byte[] {1, 2, 3, 4};
+		byte[] bitmap2 = new byte[] {5, 6, 7, 8};
+		db.setReorderingWindows(txn, Arrays.asList(
+				new ReorderingWindowUpdate(contactId, transportId, period, 10,
+						bitmap1),
+				new ReorderingWindowUpdate(contactId, transportId, period + 1,
+						20, bitmap2),
+				new ReorderingWindowUpdate(contactId, transportId, period + 2,
+						30, bitmap2)));
+
+		// Both windows should have been updated, and no window created
+		Collection<TemporarySecret> secrets = db.getSecrets(txn);
+		assertEquals(2, secrets.size());
+		for(TemporarySecret s : secrets) {
+			if(s.getPeriod() == period) {
+				assertEquals(10, s.getWindowCentre());
+				assertArrayEquals(bitmap1, s.getWindowBitmap());
+			} else {
+				assertEquals(period + 1, s.getPeriod());
+				assertEquals(20, s.getWindowCentre());
+				assertArrayEquals(bitmap2, s.getWindowBitmap());
+			}
+		}
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
 	@Test
 	public void testEndpoints() throws Exception {
 		// Create some endpoints
@@ -1556,6 +1801,143 @@ public class H2DatabaseTest extends BriarTestCase {
 		db.close();
 	}
 
+	@Test
+	public void testMessageHeadersArePaged() throws Exception {
+		Database<Connection> db = open(false);
+		Connection txn = db.startTransaction();
+
+		// Add ten messages, with two messages at each timestamp
+		db.addGroup(txn, group);
+		List<MessageId> ids = new ArrayList<MessageId>();
+		for(int i = 0; i < 10; i++) {
+			MessageId m = new MessageId(TestUtils.getRandomId());
+			db.addMessage(txn, new TestMessage(m, null, group, author,
+					contentType, subject, timestamp + i / 2, raw), true);
+			ids.add(m);
+		}
+
+		// Read the headers three at a time
+		List<MessageHeader> all = new ArrayList<MessageHeader>();
+		Collection<MessageHeader> page = db.getMessageHeaders(txn, groupId,
+				0, null, 3);
+		while(!page.isEmpty()) {
+			assertTrue(page.size() <= 3);
+			all.addAll(page);
+			MessageHeader last = all.get(all.size() - 1);
+			page = db.getMessageHeaders(txn, groupId, last.getTimestamp(),
+					last.getId(), 3);
+		}
+
+		// Every message should be returned once, newest first
+		assertEquals(10, all.size());
+		Set<MessageId> returned = new HashSet<MessageId>();
+		for(int i = 0; i < all.size(); i++) {
+			MessageHeader h = all.get(i);
+			assertTrue(returned.add(h.getId()));
+			assertEquals(timestamp + (9 - i) / 2, h.getTimestamp());
+		}
+		assertEquals(new HashSet<MessageId>(ids), returned);
+
+		// The newest message should be the latest header for the group
+		Map<GroupId, MessageHeader> latest = db.getLatestMessageHeaders(txn);
+		assertEquals(1, latest.size());
+		assertEquals(all.get(0).getId(), latest.get(groupId).getId());
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testInboxMessageHeadersArePaged() throws Exception {
+		Database<Connection> db = open(false);
+		Connection txn = db.startTransaction();
+
+		// Add a contact and an inbox group - no headers should be returned
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthorId));
+		db.addGroup(txn, group);
+		assertEquals(Collections.emptyList(),
+				db.getInboxMessageHeaders(txn, contactId, 0, null, 10));
+		db.setInboxGroup(txn, contactId, group);
+
+		// Add five messages to the inbox
+		for(int i = 0; i < 5; i++) {
+			MessageId m = new MessageId(TestUtils.getRandomId());
+			db.addMessage(txn, new TestMessage(m, null, group, author,
+					contentType, subject, timestamp + i, raw), i % 2 == 0);
+			db.addStatus(txn, contactId, m, false, false);
+		}
+
+		// Read the headers two at a time
+		List<MessageHeader> all = new ArrayList<MessageHeader>();
+		Collection<MessageHeader> page = db.getInboxMessageHeaders(txn,
+				contactId, 0, null, 2);
+		while(!page.isEmpty()) {
+			all.addAll(page);
+			MessageHeader last = all.get(all.size() - 1);
+			page = db.getInboxMessageHeaders(txn, contactId,
+					last.getTimestamp(), last.getId(), 2);
+		}
+		assertEquals(5, all.size());
+		for(int i = 0; i < all.size(); i++) {
+			MessageHeader h = all.get(i);
+			assertEquals(timestamp + 4 - i, h.getTimestamp());
+			assertEquals(groupId, h.getGroupId());
+			if(h.isLocal()) assertEquals(localAuthor, h.getAuthor());
+			else assertEquals(author, h.getAuthor());
+		}
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testContactSummaries() throws Exception {
+		Database<Connection> db = open(false);
+		Connection txn = db.startTransaction();
+
+		// Add a contact without an inbox group
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthorId));
+		ContactSummary summary = db.getContactSummary(txn, contactId);
+		assertEquals(contactId, summary.getContact().getId());
+		assertEquals(author, summary.getContact().getAuthor());
+		assertNull(summary.getInboxGroupId());
+		assertTrue(summary.isEmpty());
+		assertEquals(0, summary.getUnreadCount());
+
+		// Set an inbox group - it should be empty
+		db.addGroup(txn, group);
+		db.setInboxGroup(txn, contactId, group);
+		summary = db.getContactSummary(txn, contactId);
+		assertEquals(groupId, summary.getInboxGroupId());
+		assertTrue(summary.isEmpty());
+		assertEquals(0, summary.getUnreadCount());
+
+		// Add three messages to the inbox and mark the newest one read
+		MessageId newest = null;
+		for(int i = 0; i < 3; i++) {
+			newest = new MessageId(TestUtils.getRandomId());
+			db.addMessage(txn, new TestMessage(newest, null, group, author,
+					contentType, subject, timestamp + i, raw), false);
+			db.addStatus(txn, contactId, newest, false, false);
+		}
+		db.setReadFlag(txn, newest, true);
+
+		// The summary should show the newest timestamp and two unread
+		Collection<ContactSummary> summaries = db.getContactSummaries(txn);
+		assertEquals(1, summaries.size());
+		summary = summaries.iterator().next();
+		assertEquals(contactId, summary.getContact().getId());
+		assertEquals(groupId, summary.getInboxGroupId());
+		assertFalse(summary.isEmpty());
+		assertEquals(timestamp + 2, summary.getTimestamp());
+		assertEquals(2, summary.getUnreadCount());
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
 	@Test
 	public void testOfferedMessages() throws Exception {
 		Database<Connection> db = open(false);
@@ -1585,6 +1967,61 @@ public class H2DatabaseTest extends BriarTestCase {
 		db.close();
 	}
 
+	@Test
+	public void testAddStatuses() throws Exception {
+		Database<Connection> db = open(false);
+		Connection txn = db.startTransaction();
+
+		// Add four contacts who subscribe to a group
+		db.addLocalAuthor(txn, localAuthor);
+		List<ContactId> contactIds = new ArrayList<ContactId>();
+		for(int i = 0; i < 4; i++) {
+			Author a = new Author(new AuthorId(TestUtils.getRandomId()),
+					"Contact " + i, new byte[MAX_PUBLIC_KEY_LENGTH]);
+			ContactId c = db.addContact(txn, a, localAuthorId);
+			db.setGroups(txn, c, Arrays.asList(group), 1);
+			contactIds.add(c);
+		}
+		ContactId sender = contactIds.get(0), offerer = contactIds.get(1);
+		ContactId other = contactIds.get(2), hidden = contactIds.get(3);
+
+		// Subscribe to the group and make it visible to three of the contacts
+		db.addGroup(txn, group);
+		db.addVisibility(txn, sender, groupId);
+		db.addVisibility(txn, offerer, groupId);
+		db.addVisibility(txn, other, groupId);
+
+		// Two of the contacts have offered the message
+		db.addOfferedMessage(txn, offerer, messageId);
+		db.addOfferedMessage(txn, hidden, messageId);
+
+		// Receive the message from the sender
+		db.addMessage(txn, message, false);
+		db.addStatuses(txn, sender, Arrays.asList(messageId));
+
+		// The message should only be sendable to the contact that can see
+		// the group and hasn't seen the message
+		assertEquals(Collections.emptyList(),
+				db.getMessagesToSend(txn, sender, ONE_MEGABYTE));
+		assertEquals(Collections.emptyList(),
+				db.getMessagesToSend(txn, offerer, ONE_MEGABYTE));
+		assertEquals(Arrays.asList(messageId),
+				db.getMessagesToSend(txn, other, ONE_MEGABYTE));
+		assertEquals(Collections.emptyList(),
+				db.getMessagesToSend(txn, hidden, ONE_MEGABYTE));
+
+		// The visible offer should have been acked and removed
+		assertEquals(Arrays.asList(messageId),
+				db.getMessagesToAck(txn, offerer, 10));
+		assertEquals(0, db.countOfferedMessages(txn, offerer));
+		assertEquals(Collections.emptyList(),
+				db.getMessagesToAck(txn, hidden, 10));
+		assertEquals(1, db.countOfferedMessages(txn, hidden));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
 	@Test
 	public void testContactUnsubscribingResetsMessageStatus() throws Exception {
 		Database<Connection> db = open(false);
@@ -1641,9 +2078,278 @@ public class H2DatabaseTest extends BriarTestCase {
 		db.close();
 	}
 
+	@Test
+	public void testStatementsCanBeReusedAfterErrors() throws Exception {
+		Database<Connection> db = open(false);
+		Connection txn = db.startTransaction();
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthorId));
+		db.commitTransaction(txn);
+
+		// Adding the same local author twice should fail
+		txn = db.startTransaction();
+		try {
+			db.addLocalAuthor(txn, localAuthor);
+			fail();
+		} catch(DbException expected) {
+			db.abortTransaction(txn);
+		}
+
+		// The statements used above should still be usable
+		ContactId c = contactId;
+		for(int i = 0; i < 10; i++) {
+			txn = db.startTransaction();
+			assertTrue(db.containsLocalAuthor(txn, localAuthorId));
+			assertTrue(db.containsContact(txn, c));
+			db.removeLocalAuthor(txn, localAuthorId);
+			assertFalse(db.containsContact(txn, c));
+			db.addLocalAuthor(txn, localAuthor);
+			c = db.addContact(txn, author, localAuthorId);
+			db.commitTransaction(txn);
+		}
+
+		db.close();
+	}
+
+	@Test
+	public void testExpiryTimeIncreasesExponentially() throws Exception {
+		final AtomicLong time = new AtomicLong(1000);
+		Clock clock = new Clock() {
+
+			public long currentTimeMillis() {
+				return time.get();
+			}
+
+			public void sleep(long milliseconds) {}
+		};
+		TestUtils.deleteTestDirectory(testDir);
+		Database<Connection> db = new H2Database(new TestDatabaseConfig(testDir,
+				MAX_SIZE), new TestFileUtils(), clock, crypto);
+		db.open();
+		Connection txn = db.startTransaction();
+
+		// Add a contact, subscribe to a group and store a message
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthorId));
+		db.addGroup(txn, group);
+		db.addVisibility(txn, contactId, groupId);
+		db.setGroups(txn, contactId, Arrays.asList(group), 1);
+		db.addMessage(txn, message, true);
+		db.addStatus(txn, contactId, messageId, false, false);
+		Collection<MessageId> sent = Arrays.asList(messageId);
+		long maxLatency = 100;
+
+		// Each time the message is sent, the expiry time should match
+		// the one calculated by ExponentialBackoff
+		for(int txCount = 0; txCount < 5; txCount++) {
+			long now = time.get();
+			assertEquals(sent, db.getMessagesToSend(txn, contactId,
+					ONE_MEGABYTE));
+			db.updateExpiryTime(txn, contactId, sent, maxLatency);
+			long expiry = ExponentialBackoff.calculateExpiry(now, maxLatency,
+					txCount);
+			time.set(expiry);
+			assertEquals(Collections.emptyList(),
+					db.getMessagesToSend(txn, contactId, ONE_MEGABYTE));
+			time.set(expiry + 1);
+		}
+
+		// Once the expiry time would overflow it should saturate
+		long huge = Long.MAX_VALUE / 4;
+		db.updateExpiryTime(txn, contactId, sent, huge);
+		time.set(Long.MAX_VALUE - 1);
+		assertEquals(Collections.emptyList(),
+				db.getMessagesToSend(txn, contactId, ONE_MEGABYTE));
+
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testGroupCommit() throws Exception {
+		final Database<Connection> db = open(false, 100);
+		Connection txn = db.startTransaction();
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthorId));
+		db.commitTransaction(txn);
+
+		// Commit from several threads - every commit should return promptly
+		final CountDownLatch finished = new CountDownLatch(10);
+		final AtomicBoolean error = new AtomicBoolean(false);
+		for(int i = 0; i < 10; i++) {
+			final int version = i + 1;
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						Connection txn = db.startTransaction();
+						db.setRetentionTime(txn, contactId, version, version);
+						db.commitTransaction(txn);
+					} catch(DbException e) {
+						error.set(true);
+					}
+					finished.countDown();
+				}
+			}.start();
+		}
+		assertTrue(finished.await(10, SECONDS));
+		assertFalse(error.get());
+		db.close();
+
+		// Reopen the database - the latest version should have been stored
+		Database<Connection> db1 = open(true, 100);
+		txn = db1.startTransaction();
+		RetentionAck a = db1.getRetentionAck(txn, contactId);
+		assertNotNull(a);
+		assertEquals(10, a.getVersion());
+		db1.commitTransaction(txn);
+		db1.close();
+	}
+
+	@Test
+	public void testBlobStore() throws Exception {
+		MessageId messageId1 = new MessageId(TestUtils.getRandomId());
+		Message message1 = new TestMessage(messageId1, null, group, author,
+				contentType, subject, timestamp, raw, 5, 100);
+		Database<Connection> db = openWithBlobStore(false, ONE_MEGABYTE);
+		Connection txn = db.startTransaction();
+		db.addGroup(txn, group);
+		db.addMessage(txn, message1, true);
+		db.commitTransaction(txn);
+		db.close();
+
+		// The message should have been stored outside the database
+		File blobs = new File(testDir, "blobs");
+		assertEquals(1, blobs.listFiles().length);
+
+		// Reopen the database - the message should be readable
+		db = openWithBlobStore(true, ONE_MEGABYTE);
+		txn = db.startTransaction();
+		assertArrayEquals(raw, db.getRawMessage(txn, messageId1));
+		byte[] expectedBody = new byte[100];
+		System.arraycopy(raw, 5, expectedBody, 0, 100);
+		assertArrayEquals(expectedBody, db.getMessageBody(txn, messageId1));
+		db.removeMessage(txn, messageId1);
+		assertFalse(db.containsMessage(txn, messageId1));
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testBlobStoreIsCompacted() throws Exception {
+		// Each segment will hold three messages
+		long segmentSize = 3 * (size + BlobStore.RECORD_OVERHEAD);
+		Database<Connection> db = openWithBlobStore(false, segmentSize);
+		Connection txn = db.startTransaction();
+		db.addGroup(txn, group);
+		List<MessageId> ids = new ArrayList<MessageId>();
+		for(int i = 0; i < 30; i++) {
+			MessageId m = new MessageId(TestUtils.getRandomId());
+			db.addMessage(txn, new TestMessage(m, null, group, author,
+					contentType, subject, timestamp, raw), true);
+			ids.add(m);
+		}
+		db.commitTransaction(txn);
+		File blobs = new File(testDir, "blobs");
+		assertEquals(10, blobs.listFiles().length);
+
+		// Remove two out of every three messages
+		txn = db.startTransaction();
+		List<MessageId> kept = new ArrayList<MessageId>();
+		for(int i = 0; i < ids.size(); i++) {
+			if(i % 3 == 0) kept.add(ids.get(i));
+			else db.removeMessage(txn, ids.get(i));
+		}
+		db.commitTransaction(txn);
+
+		// The remaining messages should have been moved to fewer segments
+		assertTrue(blobs.listFiles().length < 10);
+		txn = db.startTransaction();
+		for(MessageId m : kept)
+			assertArrayEquals(raw, db.getRawMessage(txn, m));
+		db.commitTransaction(txn);
+		db.close();
+
+		// The remaining messages should still be readable after reopening
+		db = openWithBlobStore(true, segmentSize);
+		txn = db.startTransaction();
+		for(MessageId m : kept)
+			assertArrayEquals(raw, db.getRawMessage(txn, m));
+		db.commitTransaction(txn);
+		db.close();
+	}
+
+	@Test
+	public void testSchemaIsUpgraded() throws Exception {
+		Database<Connection> db = open(false);
+		Connection txn = db.startTransaction();
+		db.addLocalAuthor(txn, localAuthor);
+		assertEquals(contactId, db.addContact(txn, author, localAuthorId));
+		db.addGroup(txn, group);
+		db.setGroups(txn, contactId, Arrays.asList(group), 1);
+		db.addMessage(txn, message, true);
+		MessageId seenId = new MessageId(TestUtils.getRandomId());
+		db.addMessage(txn, new TestMessage(seenId, null, group, author,
+				contentType, subject, timestamp, raw), true);
+		// Before schema version 11 there was a status for every contact
+		db.addStatus(txn, contactId, messageId, false, false);
+		db.addStatus(txn, contactId, seenId, false, true);
+		// Revert the messages table to schema version 6
+		Statement s = txn.createStatement();
+		s.executeUpdate("ALTER TABLE messages DROP COLUMN blobSegment");
+		s.executeUpdate("ALTER TABLE messages DROP COLUMN blobOffset");
+		s.executeUpdate("ALTER TABLE messages ALTER COLUMN raw SET NOT NULL");
+		s.executeUpdate("ALTER TABLE groups DROP COLUMN unread");
+		s.close();
+		Settings settings = new Settings();
+		settings.put("schemaVersion", "6");
+		settings.put("minSchemaVersion", "5");
+		db.mergeSettings(txn, settings);
+		db.commitTransaction(txn);
+		db.close();
+
+		// Reopen the database with the blob store - it should be upgraded
+		db = openWithBlobStore(true, ONE_MEGABYTE);
+		txn = db.startTransaction();
+		assertEquals("11", db.getSettings(txn).get("schemaVersion"));
+		assertArrayEquals(raw, db.getRawMessage(txn, messageId));
+		assertEquals(Collections.emptyList(),
+				db.getMessagesToOffer(txn, contactId, 100));
+		// The message the contact has seen should not be offered when the
+		// group becomes visible
+		db.addVisibility(txn, contactId, groupId);
+		assertEquals(Arrays.asList(messageId),
+				db.getMessagesToOffer(txn, contactId, 100));
+		// The unread messages should have been counted
+		assertEquals(Integer.valueOf(2),
+				db.getUnreadMessageCounts(txn).get(groupId));
+		MessageId messageId1 = new MessageId(TestUtils.getRandomId());
+		db.addMessage(txn, new TestMessage(messageId1, null, group, author,
+				contentType, subject, timestamp, raw), true);
+		assertArrayEquals(raw, db.getRawMessage(txn, messageId1));
+		db.commitTransaction(txn);
+		db.close();
+	}
+
 	private Database<Connection> open(boolean resume) throws Exception {
+		return open(resume, 0);
+	}
+
+	private Database<Connection> open(boolean resume, long maxCommitDelay)
+			throws Exception {
+		Database<Connection> db = new H2Database(new TestDatabaseConfig(testDir,
+				MAX_SIZE, maxCommitDelay), new TestFileUtils(),
+				new SystemClock(), crypto);
+		if(!resume) TestUtils.deleteTestDirectory(testDir);
+		db.open();
+		return db;
+	}
+
+	private Database<Connection> openWithBlobStore(boolean resume,
+			long maxSegmentSize) throws Exception {
 		Database<Connection> db = new H2Database(new TestDatabaseConfig(testDir,
-				MAX_SIZE), new TestFileUtils(), new SystemClock());
+				MAX_SIZE, 0, true), new TestFileUtils(), new SystemClock(),
+				crypto, maxSegmentSize);
 		if(!resume) TestUtils.deleteTestDirectory(testDir);
 		db.open();
 		return db;
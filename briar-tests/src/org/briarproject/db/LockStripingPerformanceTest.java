@@ -0,0 +1,55 @@
+package org.briarproject.db;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.briarproject.api.ContactId;
+import org.briarproject.api.db.DatabaseComponent;
+
+// Not a JUnit test
+public class LockStripingPerformanceTest {
+
+	private static final int OPERATIONS_PER_CONTACT = 50;
+	private static final long SYNC_DELAY = 2; // Milliseconds
+
+	public static void main(String[] args) throws Exception {
+		// Warm up, then measure
+		runTest(1);
+		for(int contacts = 1; contacts <= 16; contacts *= 2) {
+			double opsPerSec = runTest(contacts);
+			System.out.println(contacts + " contacts: " + (int) opsPerSec
+					+ " ops/sec");
+		}
+	}
+
+	private static double runTest(int contacts) throws Exception {
+		// The stub simulates the cost of syncing each transaction to disk
+		final DatabaseComponent db = StubDatabase.createDatabaseComponent(
+				new StubDatabase(SYNC_DELAY));
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(contacts);
+		for(int i = 0; i < contacts; i++) {
+			final ContactId c = new ContactId(i + 1);
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for(int j = 0; j < OPERATIONS_PER_CONTACT; j++) {
+							if(j % 2 == 0) db.generateAck(c, 10);
+							else db.generateOffer(c, 10, 1000);
+						}
+					} catch(Exception e) {
+						e.printStackTrace();
+					}
+					finished.countDown();
+				}
+			}.start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		finished.await();
+		long duration = System.nanoTime() - begin;
+		double operations = contacts * OPERATIONS_PER_CONTACT;
+		return operations * 1000 * 1000 * 1000 / duration;
+	}
+}
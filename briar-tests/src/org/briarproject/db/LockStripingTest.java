@@ -0,0 +1,192 @@
+package org.briarproject.db;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.briarproject.api.messaging.MessagingConstants.GROUP_SALT_LENGTH;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.briarproject.BriarTestCase;
+import org.briarproject.TestUtils;
+import org.briarproject.api.ContactId;
+import org.briarproject.api.TransportId;
+import org.briarproject.api.db.DatabaseComponent;
+import org.briarproject.api.messaging.Group;
+import org.briarproject.api.messaging.GroupId;
+import org.briarproject.api.transport.ReorderingWindowUpdate;
+import org.junit.Test;
+
+/**
+ * Tests for the contact lock stripes used by DatabaseComponentImpl,
+ * complementing LockFairnessTest.
+ */
+public class LockStripingTest extends BriarTestCase {
+
+	private final Group group;
+
+	public LockStripingTest() {
+		GroupId groupId = new GroupId(TestUtils.getRandomId());
+		group = new Group(groupId, "Group", new byte[GROUP_SALT_LENGTH]);
+	}
+
+	@Test
+	public void testContactsDoNotBlockEachOther() throws Exception {
+		final ContactId blocked = new ContactId(1);
+		final CountDownLatch blockedHasLock = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final DatabaseComponent db = StubDatabase.createDatabaseComponent(
+				new StubDatabase(0) {
+					@Override
+					boolean containsContact(ContactId c) throws Exception {
+						if(c.equals(blocked)) {
+							blockedHasLock.countDown();
+							assertTrue(release.await(10, SECONDS));
+						}
+						return true;
+					}
+				});
+		Thread first = new Thread() {
+			@Override
+			public void run() {
+				try {
+					db.generateAck(blocked, 10);
+				} catch(Exception e) {
+					fail();
+				}
+			}
+		};
+		first.start();
+		assertTrue(blockedHasLock.await(10, SECONDS));
+		// An operation on another contact should not wait for the first
+		final CountDownLatch secondHasFinished = new CountDownLatch(1);
+		Thread second = new Thread() {
+			@Override
+			public void run() {
+				try {
+					db.generateAck(new ContactId(2), 10);
+				} catch(Exception e) {
+					fail();
+				}
+				secondHasFinished.countDown();
+			}
+		};
+		second.start();
+		assertTrue(secondHasFinished.await(10, SECONDS));
+		release.countDown();
+		first.join();
+		second.join();
+	}
+
+	@Test
+	public void testReorderingWindowsOnlyBlockTheirContacts()
+			throws Exception {
+		final ContactId blocked = new ContactId(1);
+		final CountDownLatch blockedHasLock = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final DatabaseComponent db = StubDatabase.createDatabaseComponent(
+				new StubDatabase(0) {
+					@Override
+					boolean containsContact(ContactId c) throws Exception {
+						if(c.equals(blocked)) {
+							blockedHasLock.countDown();
+							assertTrue(release.await(10, SECONDS));
+						}
+						return true;
+					}
+				});
+		Thread first = new Thread() {
+			@Override
+			public void run() {
+				try {
+					db.generateAck(blocked, 10);
+				} catch(Exception e) {
+					fail();
+				}
+			}
+		};
+		first.start();
+		assertTrue(blockedHasLock.await(10, SECONDS));
+		// Storing windows for other contacts should not wait for the first
+		final TransportId transportId = new TransportId("id");
+		final CountDownLatch windowsHaveBeenStored = new CountDownLatch(1);
+		Thread second = new Thread() {
+			@Override
+			public void run() {
+				try {
+					db.setReorderingWindows(Arrays.asList(
+							new ReorderingWindowUpdate(new ContactId(3),
+									transportId, 0, 0, new byte[4]),
+							new ReorderingWindowUpdate(new ContactId(2),
+									transportId, 0, 0, new byte[4])));
+				} catch(Exception e) {
+					fail();
+				}
+				windowsHaveBeenStored.countDown();
+			}
+		};
+		second.start();
+		assertTrue(windowsHaveBeenStored.await(10, SECONDS));
+		release.countDown();
+		first.join();
+		second.join();
+	}
+
+	@Test
+	public void testGlobalWriteExcludesContactOperations() throws Exception {
+		final ContactId blocked = new ContactId(1);
+		final CountDownLatch blockedHasLock = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		final AtomicBoolean released = new AtomicBoolean(false);
+		final DatabaseComponent db = StubDatabase.createDatabaseComponent(
+				new StubDatabase(0) {
+					@Override
+					boolean containsContact(ContactId c) throws Exception {
+						if(c.equals(blocked)) {
+							blockedHasLock.countDown();
+							assertTrue(release.await(10, SECONDS));
+							released.set(true);
+						}
+						return true;
+					}
+
+					@Override
+					void groupChanged() {
+						// The contact operation must have finished
+						assertTrue(released.get());
+					}
+				});
+		Thread contact = new Thread() {
+			@Override
+			public void run() {
+				try {
+					db.generateAck(blocked, 10);
+				} catch(Exception e) {
+					fail();
+				}
+			}
+		};
+		contact.start();
+		assertTrue(blockedHasLock.await(10, SECONDS));
+		final CountDownLatch writerHasFinished = new CountDownLatch(1);
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					db.addGroup(group);
+				} catch(Exception e) {
+					fail();
+				}
+				writerHasFinished.countDown();
+			}
+		};
+		writer.start();
+		// The writer should wait for the contact operation
+		assertFalse(writerHasFinished.await(100, MILLISECONDS));
+		release.countDown();
+		assertTrue(writerHasFinished.await(10, SECONDS));
+		contact.join();
+		writer.join();
+	}
+}
@@ -0,0 +1,56 @@
+package org.briarproject.db;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.briarproject.BriarTestCase;
+import org.briarproject.TestUtils;
+import org.junit.Test;
+
+public class MessageIdFilterTest extends BriarTestCase {
+
+	@Test
+	public void testAddedIdsAreContained() {
+		MessageIdFilter f = new MessageIdFilter(1000);
+		List<byte[]> ids = new ArrayList<byte[]>();
+		for(int i = 0; i < 1000; i++) {
+			byte[] id = TestUtils.getRandomId();
+			f.add(id);
+			ids.add(id);
+		}
+		for(byte[] id : ids) assertTrue(f.mightContain(id));
+	}
+
+	@Test
+	public void testFalsePositiveRateIsLow() {
+		MessageIdFilter f = new MessageIdFilter(1000);
+		for(int i = 0; i < 1000; i++) f.add(TestUtils.getRandomId());
+		int falsePositives = 0;
+		for(int i = 0; i < 10000; i++)
+			if(f.mightContain(TestUtils.getRandomId())) falsePositives++;
+		// The expected rate is 1%, so 5% should never be exceeded
+		assertTrue(falsePositives < 500);
+	}
+
+	@Test
+	public void testNeedsRebuildingWhenFull() {
+		MessageIdFilter f = new MessageIdFilter(0);
+		int capacity = 0;
+		while(!f.needsRebuilding()) {
+			f.add(TestUtils.getRandomId());
+			capacity++;
+		}
+		// The filter has room for at least as many IDs as requested
+		assertTrue(capacity > 1000);
+	}
+
+	@Test
+	public void testNeedsRebuildingWhenMostIdsAreRemoved() {
+		MessageIdFilter f = new MessageIdFilter(1000);
+		for(int i = 0; i < 100; i++) f.add(TestUtils.getRandomId());
+		f.removed(50);
+		assertFalse(f.needsRebuilding());
+		f.removed(1);
+		assertTrue(f.needsRebuilding());
+	}
+}
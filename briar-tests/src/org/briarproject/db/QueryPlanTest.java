@@ -0,0 +1,288 @@
+package org.briarproject.db;
+
+import static java.sql.Types.NULL;
+import static org.briarproject.api.AuthorConstants.MAX_PUBLIC_KEY_LENGTH;
+import static org.briarproject.api.messaging.MessagingConstants.GROUP_SALT_LENGTH;
+
+import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import org.briarproject.BriarTestCase;
+import org.briarproject.TestDatabaseConfig;
+import org.briarproject.TestFileUtils;
+import org.briarproject.TestLifecycleModule;
+import org.briarproject.TestMessage;
+import org.briarproject.TestSystemModule;
+import org.briarproject.TestUtils;
+import org.briarproject.api.Author;
+import org.briarproject.api.AuthorId;
+import org.briarproject.api.ContactId;
+import org.briarproject.api.LocalAuthor;
+import org.briarproject.api.crypto.CryptoComponent;
+import org.briarproject.api.messaging.Group;
+import org.briarproject.api.messaging.GroupId;
+import org.briarproject.api.messaging.MessageId;
+import org.briarproject.crypto.CryptoModule;
+import org.briarproject.system.SystemClock;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+/**
+ * Checks that the queries used for synchronisation and by the UI don't scan
+ * the messages or statuses tables, by running EXPLAIN on each query against
+ * a seeded database. The statements are recorded as the database prepares
+ * them, so new queries in the hot methods are checked automatically.
+ */
+public class QueryPlanTest extends BriarTestCase {
+
+	private static final long MAX_SIZE = Long.MAX_VALUE;
+	private static final int CONTACTS = 5;
+	private static final int GROUPS = 10;
+	private static final int MESSAGES = 2000;
+	// Tables that grow with the number of messages
+	private static final String[] LARGE_TABLES = { "MESSAGES", "STATUSES" };
+
+	// The status index each query that filters on flags should use
+	private static final Map<String, String> STATUS_INDEXES =
+			new HashMap<String, String>();
+
+	static {
+		STATUS_INDEXES.put("getMessagesToAck", "STATUSESBYCONTACTANDACK");
+		STATUS_INDEXES.put("getMessagesToOffer", "STATUSESBYCONTACTANDFLAGS");
+		STATUS_INDEXES.put("getRequestedMessagesToSend",
+				"STATUSESBYCONTACTANDFLAGS");
+	}
+
+	// Queries that should read the newest messages in a group in index order
+	private static final Collection<String> INDEX_SORTED = Arrays.asList(
+			"getMessageHeaders", "getInboxMessageHeaders",
+			"getContactSummaries");
+
+	private final File testDir = TestUtils.getTestDirectory();
+	private final CryptoComponent crypto;
+	// The SQL of each statement prepared while recording, and the name of
+	// the method that prepared it
+	private final Map<String, String> statements =
+			new LinkedHashMap<String, String>();
+
+	private volatile String recording = null;
+	private Database<Connection> db = null;
+
+	public QueryPlanTest() {
+		Injector i = Guice.createInjector(new CryptoModule(),
+				new TestLifecycleModule(), new TestSystemModule());
+		crypto = i.getInstance(CryptoComponent.class);
+	}
+
+	@Before
+	public void setUp() throws Exception {
+		testDir.mkdirs();
+		db = open();
+		seed();
+		// Reopen the database so the statement caches start out empty
+		db.close();
+		db = open();
+	}
+
+	@Test
+	public void testHotQueriesDoNotScanLargeTables() throws Exception {
+		ContactId c = new ContactId(1);
+		GroupId g = getGroupIds().get(0);
+		Connection txn = db.startTransaction();
+		try {
+			recording = "getMessagesToAck";
+			db.getMessagesToAck(txn, c, 100);
+			recording = "getMessagesToOffer";
+			Collection<MessageId> ids = db.getMessagesToOffer(txn, c, 100);
+			recording = "getMessagesToSend";
+			db.getMessagesToSend(txn, c, 1024 * 1024);
+			recording = "getRequestedMessagesToSend";
+			db.getRequestedMessagesToSend(txn, c, 1024 * 1024);
+			recording = "getMessagesToRequest";
+			db.getMessagesToRequest(txn, c, 100);
+			recording = "updateExpiryTime";
+			db.updateExpiryTime(txn, c, ids, 60 * 1000);
+			recording = "lowerAckFlag";
+			db.lowerAckFlag(txn, c, ids);
+			recording = "lowerRequestedFlag";
+			db.lowerRequestedFlag(txn, c, ids);
+			recording = "getRawMessage";
+			db.getRawMessage(txn, ids.iterator().next());
+			recording = "getOldMessages";
+			db.getOldMessages(txn, 1024 * 1024);
+			recording = "getUnreadMessageCounts";
+			db.getUnreadMessageCounts(txn);
+			recording = "getMessageHeaders";
+			db.getMessageHeaders(txn, g, 0, null, 20);
+			db.getMessageHeaders(txn, g, Long.MAX_VALUE,
+					ids.iterator().next(), 20);
+			recording = "getInboxMessageHeaders";
+			db.getInboxMessageHeaders(txn, c, 0, null, 20);
+			db.getInboxMessageHeaders(txn, c, Long.MAX_VALUE,
+					ids.iterator().next(), 20);
+			recording = "getLatestMessageHeaders";
+			db.getLatestMessageHeaders(txn);
+			recording = "getContactSummaries";
+			db.getContactSummaries(txn);
+			db.getContactSummary(txn, c);
+			recording = null;
+			assertFalse(statements.isEmpty());
+			List<String> failures = new ArrayList<String>();
+			for(Entry<String, String> e : statements.entrySet()) {
+				String sql = e.getKey(), method = e.getValue();
+				String plan = explain(txn, sql);
+				for(String table : LARGE_TABLES) {
+					if(plan.contains("PUBLIC." + table + ".tableScan")) {
+						failures.add(method + " scans " + table
+								+ ":\n" + plan);
+					}
+				}
+				// Reading every status row for the contact is a scan too
+				String index = STATUS_INDEXES.get(method);
+				if(index != null && !plan.contains(index)) {
+					failures.add(method + " does not use " + index
+							+ ":\n" + plan);
+				}
+				// The newest messages in a group should be read in index order
+				if(INDEX_SORTED.contains(method) && sql.contains("LIMIT")
+						&& !plan.contains("index sorted")) {
+					failures.add(method + " sorts the messages:\n" + plan);
+				}
+			}
+			if(!failures.isEmpty()) fail(failures.toString());
+		} finally {
+			recording = null;
+			db.commitTransaction(txn);
+		}
+	}
+
+	private Database<Connection> open() throws Exception {
+		Database<Connection> db = new H2Database(new TestDatabaseConfig(testDir,
+				MAX_SIZE), new TestFileUtils(), new SystemClock(), crypto) {
+			@Override
+			protected Connection createConnection() throws SQLException {
+				return record(super.createConnection());
+			}
+		};
+		db.open();
+		return db;
+	}
+
+	// Returns a connection that records the SQL of any prepared statements
+	private Connection record(final Connection c) {
+		InvocationHandler handler = new InvocationHandler() {
+			public Object invoke(Object proxy, Method m, Object[] args)
+					throws Throwable {
+				String name = recording;
+				if(name != null && m.getName().equals("prepareStatement")) {
+					String sql = (String) args[0];
+					if(!statements.containsKey(sql)) statements.put(sql, name);
+				}
+				try {
+					return m.invoke(c, args);
+				} catch(InvocationTargetException e) {
+					throw e.getCause();
+				}
+			}
+		};
+		return (Connection) Proxy.newProxyInstance(
+				Connection.class.getClassLoader(),
+				new Class<?>[] { Connection.class }, handler);
+	}
+
+	private String explain(Connection txn, String sql) throws SQLException {
+		PreparedStatement ps = txn.prepareStatement("EXPLAIN " + sql);
+		// The plan doesn't depend on the parameter values
+		int params = ps.getParameterMetaData().getParameterCount();
+		for(int i = 1; i <= params; i++) ps.setNull(i, NULL);
+		ResultSet rs = ps.executeQuery();
+		StringBuilder plan = new StringBuilder();
+		while(rs.next()) plan.append(rs.getString(1));
+		rs.close();
+		ps.close();
+		return plan.toString();
+	}
+
+	private List<GroupId> getGroupIds() throws Exception {
+		List<GroupId> ids = new ArrayList<GroupId>();
+		Connection txn = db.startTransaction();
+		for(Group g : db.getGroups(txn)) ids.add(g.getId());
+		db.commitTransaction(txn);
+		return ids;
+	}
+
+	private void seed() throws Exception {
+		Connection txn = db.startTransaction();
+		AuthorId localAuthorId = new AuthorId(TestUtils.getRandomId());
+		db.addLocalAuthor(txn, new LocalAuthor(localAuthorId, "Alice",
+				new byte[MAX_PUBLIC_KEY_LENGTH], new byte[100], 1234));
+		List<Group> groups = new ArrayList<Group>();
+		for(int i = 0; i < GROUPS; i++) {
+			GroupId id = new GroupId(TestUtils.getRandomId());
+			Group g = new Group(id, "Group " + i, new byte[GROUP_SALT_LENGTH]);
+			db.addGroup(txn, g);
+			groups.add(g);
+		}
+		List<ContactId> contacts = new ArrayList<ContactId>();
+		Author author = null;
+		for(int i = 0; i < CONTACTS; i++) {
+			AuthorId authorId = new AuthorId(TestUtils.getRandomId());
+			author = new Author(authorId, "Contact " + i,
+					new byte[MAX_PUBLIC_KEY_LENGTH]);
+			ContactId c = db.addContact(txn, author, localAuthorId);
+			for(Group g : groups) db.addVisibility(txn, c, g.getId());
+			db.setGroups(txn, c, groups, 1);
+			contacts.add(c);
+		}
+		// The first contact's inbox gets a share of the messages
+		GroupId inboxId = new GroupId(TestUtils.getRandomId());
+		Group inbox = new Group(inboxId, "Inbox", new byte[GROUP_SALT_LENGTH]);
+		db.addGroup(txn, inbox);
+		db.setInboxGroup(txn, contacts.get(0), inbox);
+		groups.add(inbox);
+		long timestamp = System.currentTimeMillis();
+		for(int i = 0; i < MESSAGES; i++) {
+			MessageId m = new MessageId(TestUtils.getRandomId());
+			Group g = groups.get(i % groups.size());
+			db.addMessage(txn, new TestMessage(m, null, g, author,
+					"text/plain", "Subject", timestamp - i, new byte[100]),
+					i % 2 == 0);
+			// Only the first contact can see the inbox
+			for(ContactId c : contacts) {
+				if(g == inbox && c != contacts.get(0)) continue;
+				db.addStatus(txn, c, m, i % 3 == 0, i % 5 == 0);
+			}
+		}
+		// Give the query planner realistic statistics
+		Statement s = txn.createStatement();
+		s.execute("ANALYZE");
+		s.close();
+		db.commitTransaction(txn);
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		if(db != null) db.close();
+		TestUtils.deleteTestDirectory(testDir);
+	}
+}
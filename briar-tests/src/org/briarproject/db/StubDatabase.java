@@ -0,0 +1,89 @@
+package org.briarproject.db;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+
+import org.briarproject.api.ContactId;
+import org.briarproject.api.db.DatabaseComponent;
+import org.briarproject.api.event.Event;
+import org.briarproject.api.event.EventBus;
+import org.briarproject.api.event.EventListener;
+import org.briarproject.api.lifecycle.ShutdownManager;
+
+/**
+ * A database that contains every contact, has nothing to send, and
+ * sleeps for a fixed time whenever a transaction is committed.
+ */
+class StubDatabase implements InvocationHandler {
+
+	private final long syncDelay;
+
+	StubDatabase(long syncDelay) {
+		this.syncDelay = syncDelay;
+	}
+
+	static DatabaseComponent createDatabaseComponent(StubDatabase stub) {
+		@SuppressWarnings("unchecked")
+		Database<Object> database = (Database<Object>) Proxy.newProxyInstance(
+				Database.class.getClassLoader(),
+				new Class<?>[] { Database.class }, stub);
+		DatabaseCleaner cleaner = new DatabaseCleaner() {
+
+			public void startCleaning(Callback callback, long msBetweenSweeps) {
+			}
+
+			public void stopCleaning() {}
+		};
+		EventBus eventBus = new EventBus() {
+
+			public void addListener(EventListener l) {}
+
+			public void removeListener(EventListener l) {}
+
+			public void broadcast(Event e) {}
+		};
+		ShutdownManager shutdown = new ShutdownManager() {
+
+			public int addShutdownHook(Runnable hook) {
+				return 0;
+			}
+
+			public boolean removeShutdownHook(int handle) {
+				return true;
+			}
+		};
+		return new DatabaseComponentImpl<Object>(database, cleaner, eventBus,
+				shutdown);
+	}
+
+	boolean containsContact(ContactId c) throws Exception {
+		return true;
+	}
+
+	void groupChanged() {}
+
+	public Object invoke(Object proxy, Method method, Object[] args)
+			throws Exception {
+		String name = method.getName();
+		if(name.equals("startTransaction")) return new Object();
+		if(name.equals("commitTransaction")) {
+			if(syncDelay > 0) Thread.sleep(syncDelay);
+			return null;
+		}
+		if(name.equals("containsContact"))
+			return containsContact((ContactId) args[1]);
+		if(name.equals("addGroup")) {
+			groupChanged();
+			return true;
+		}
+		Class<?> type = method.getReturnType();
+		if(type == Boolean.TYPE) return false;
+		if(type == Integer.TYPE) return 0;
+		if(type == Long.TYPE) return 0L;
+		if(type.isAssignableFrom(Collections.EMPTY_LIST.getClass()))
+			return Collections.emptyList();
+		return null;
+	}
+}
@@ -0,0 +1,312 @@
+package org.briarproject.messaging;
+
+import static java.util.concurrent.TimeUnit.SECONDS;
+import static org.briarproject.api.messaging.MessagingConstants.GROUP_SALT_LENGTH;
+import static org.briarproject.messaging.IncomingSession.MAX_OUTSTANDING_MESSAGES;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+
+import org.briarproject.BriarTestCase;
+import org.briarproject.TestMessage;
+import org.briarproject.TestUtils;
+import org.briarproject.api.ContactId;
+import org.briarproject.api.TransportId;
+import org.briarproject.api.db.DatabaseComponent;
+import org.briarproject.api.event.EventBus;
+import org.briarproject.api.messaging.Group;
+import org.briarproject.api.messaging.GroupId;
+import org.briarproject.api.messaging.Message;
+import org.briarproject.api.messaging.MessageId;
+import org.briarproject.api.messaging.MessageVerifier;
+import org.briarproject.api.messaging.PacketReader;
+import org.briarproject.api.messaging.PacketReaderFactory;
+import org.briarproject.api.messaging.UnverifiedMessage;
+import org.briarproject.plugins.ImmediateExecutor;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.junit.Test;
+
+public class IncomingSessionTest extends BriarTestCase {
+
+	private final Mockery context;
+	private final DatabaseComponent db;
+	private final EventBus eventBus;
+	private final MessageVerifier messageVerifier;
+	private final PacketReaderFactory packetReaderFactory;
+	private final PacketReader packetReader;
+	private final ContactId contactId;
+	private final TransportId transportId;
+	private final Group group;
+	private final InputStream in;
+
+	public IncomingSessionTest() {
+		context = new Mockery();
+		db = context.mock(DatabaseComponent.class);
+		eventBus = context.mock(EventBus.class);
+		messageVerifier = context.mock(MessageVerifier.class);
+		packetReaderFactory = context.mock(PacketReaderFactory.class);
+		packetReader = context.mock(PacketReader.class);
+		contactId = new ContactId(234);
+		transportId = new TransportId("id");
+		GroupId groupId = new GroupId(TestUtils.getRandomId());
+		group = new Group(groupId, "Group", new byte[GROUP_SALT_LENGTH]);
+		in = new ByteArrayInputStream(new byte[0]);
+	}
+
+	@Test
+	public void testMessagesAreStoredInOrderReceived() throws Exception {
+		final List<UnverifiedMessage> unverified =
+				new ArrayList<UnverifiedMessage>();
+		final List<Message> verified = new ArrayList<Message>();
+		for(int i = 0; i < 3; i++) {
+			MessageId id = new MessageId(TestUtils.getRandomId());
+			unverified.add(createUnverifiedMessage());
+			verified.add(new TestMessage(id, null, group, null, "text/plain",
+					null, 0, new byte[123]));
+		}
+		// Verification tasks are run later, in reverse order
+		QueueExecutor cryptoExecutor = new QueueExecutor();
+		final IncomingSession session = createSession(cryptoExecutor,
+				new MessagingMetricsImpl());
+		context.checking(new Expectations() {{
+			oneOf(eventBus).addListener(session);
+			expectMessagePackets(this, unverified);
+			for(int i = 0; i < 3; i++) {
+				UnverifiedMessage u = unverified.get(i);
+				Message m = verified.get(i);
+				oneOf(messageVerifier).getMessageId(u);
+				will(returnValue(m.getId()));
+				oneOf(db).mightContainMessage(m.getId());
+				will(returnValue(false));
+				oneOf(messageVerifier).verifyMessage(u, m.getId());
+				will(returnValue(m));
+			}
+			// The messages must be stored in the order they were received
+			oneOf(db).receiveMessages(contactId, verified);
+			oneOf(eventBus).removeListener(session);
+		}});
+		session.run();
+		Collections.reverse(cryptoExecutor.tasks);
+		for(Runnable r : cryptoExecutor.tasks) r.run();
+		context.assertIsSatisfied();
+	}
+
+	@Test
+	public void testDuplicateMessageIsNotVerified() throws Exception {
+		final UnverifiedMessage u = createUnverifiedMessage();
+		final MessageId id = new MessageId(TestUtils.getRandomId());
+		MessagingMetricsImpl metrics = new MessagingMetricsImpl();
+		final IncomingSession session = createSession(new ImmediateExecutor(),
+				metrics);
+		context.checking(new Expectations() {{
+			oneOf(eventBus).addListener(session);
+			expectMessagePackets(this, Collections.singletonList(u));
+			oneOf(messageVerifier).getMessageId(u);
+			will(returnValue(id));
+			// The filter says the message may be stored, and it is
+			oneOf(db).mightContainMessage(id);
+			will(returnValue(true));
+			oneOf(db).receiveDuplicateMessage(contactId, id, group.getId());
+			will(returnValue(true));
+			oneOf(eventBus).removeListener(session);
+		}});
+		session.run();
+		assertEquals(1, metrics.getSkippedVerificationCount());
+		context.assertIsSatisfied();
+	}
+
+	@Test
+	public void testInvalidMessageDoesNotBlockLaterMessages()
+			throws Exception {
+		final List<UnverifiedMessage> unverified =
+				new ArrayList<UnverifiedMessage>();
+		final List<Message> verified = new ArrayList<Message>();
+		for(int i = 0; i < 3; i++) {
+			MessageId id = new MessageId(TestUtils.getRandomId());
+			unverified.add(createUnverifiedMessage());
+			verified.add(new TestMessage(id, null, group, null, "text/plain",
+					null, 0, new byte[123]));
+		}
+		// Verification tasks are run later, in reverse order
+		QueueExecutor cryptoExecutor = new QueueExecutor();
+		final IncomingSession session = createSession(cryptoExecutor,
+				new MessagingMetricsImpl());
+		context.checking(new Expectations() {{
+			oneOf(eventBus).addListener(session);
+			expectMessagePackets(this, unverified);
+			for(int i = 0; i < 3; i++) {
+				UnverifiedMessage u = unverified.get(i);
+				Message m = verified.get(i);
+				oneOf(messageVerifier).getMessageId(u);
+				will(returnValue(m.getId()));
+				oneOf(db).mightContainMessage(m.getId());
+				will(returnValue(false));
+				oneOf(messageVerifier).verifyMessage(u, m.getId());
+				// The second message has an invalid signature
+				if(i == 1) will(throwException(new GeneralSecurityException()));
+				else will(returnValue(m));
+			}
+			// The valid messages should still be stored
+			oneOf(db).receiveMessages(contactId,
+					Arrays.asList(verified.get(0), verified.get(2)));
+			oneOf(eventBus).removeListener(session);
+		}});
+		session.run();
+		Collections.reverse(cryptoExecutor.tasks);
+		for(Runnable r : cryptoExecutor.tasks) r.run();
+		context.assertIsSatisfied();
+	}
+
+	@Test
+	public void testMalformedMessageDoesNotBlockLaterMessages()
+			throws Exception {
+		final List<UnverifiedMessage> unverified =
+				new ArrayList<UnverifiedMessage>();
+		final List<Message> verified = new ArrayList<Message>();
+		for(int i = 0; i < 3; i++) {
+			MessageId id = new MessageId(TestUtils.getRandomId());
+			unverified.add(createUnverifiedMessage());
+			verified.add(new TestMessage(id, null, group, null, "text/plain",
+					null, 0, new byte[123]));
+		}
+		// Verification tasks are run later, in reverse order
+		QueueExecutor cryptoExecutor = new QueueExecutor();
+		final IncomingSession session = createSession(cryptoExecutor,
+				new MessagingMetricsImpl());
+		context.checking(new Expectations() {{
+			oneOf(eventBus).addListener(session);
+			expectMessagePackets(this, unverified);
+			for(int i = 0; i < 3; i++) {
+				UnverifiedMessage u = unverified.get(i);
+				Message m = verified.get(i);
+				oneOf(messageVerifier).getMessageId(u);
+				will(returnValue(m.getId()));
+				oneOf(db).mightContainMessage(m.getId());
+				will(returnValue(false));
+				oneOf(messageVerifier).verifyMessage(u, m.getId());
+				// The second message has a malformed signature
+				if(i == 1) will(throwException(new ClassCastException()));
+				else will(returnValue(m));
+			}
+			// The valid messages should still be stored
+			oneOf(db).receiveMessages(contactId,
+					Arrays.asList(verified.get(0), verified.get(2)));
+			oneOf(eventBus).removeListener(session);
+		}});
+		session.run();
+		Collections.reverse(cryptoExecutor.tasks);
+		for(Runnable r : cryptoExecutor.tasks) r.run();
+		context.assertIsSatisfied();
+	}
+
+	@Test
+	public void testReadingStopsWhenTooManyMessagesAreOutstanding()
+			throws Exception {
+		final List<UnverifiedMessage> unverified =
+				new ArrayList<UnverifiedMessage>();
+		for(int i = 0; i < MAX_OUTSTANDING_MESSAGES + 1; i++)
+			unverified.add(createUnverifiedMessage());
+		final MessageId id = new MessageId(TestUtils.getRandomId());
+		final Message m = new TestMessage(id, null, group, null, "text/plain",
+				null, 0, new byte[123]);
+		// Verification tasks are run by the test thread
+		QueueExecutor cryptoExecutor = new QueueExecutor();
+		final IncomingSession session = createSession(cryptoExecutor,
+				new MessagingMetricsImpl());
+		context.checking(new Expectations() {{
+			oneOf(eventBus).addListener(session);
+			expectMessagePackets(this, unverified);
+			allowing(messageVerifier).getMessageId(
+					with(any(UnverifiedMessage.class)));
+			will(returnValue(id));
+			allowing(db).mightContainMessage(id);
+			will(returnValue(false));
+			allowing(messageVerifier).verifyMessage(
+					with(any(UnverifiedMessage.class)), with(id));
+			will(returnValue(m));
+			// Each message is stored as soon as it's verified
+			exactly(MAX_OUTSTANDING_MESSAGES + 1).of(db).receiveMessages(
+					contactId, Collections.singletonList(m));
+			oneOf(eventBus).removeListener(session);
+		}});
+		Thread reader = new Thread() {
+			@Override
+			public void run() {
+				try {
+					session.run();
+				} catch(Exception e) {
+					fail();
+				}
+			}
+		};
+		reader.start();
+		// The session should read the maximum number of messages, then read
+		// one more and wait before passing it on
+		assertTrue(cryptoExecutor.queued.tryAcquire(MAX_OUTSTANDING_MESSAGES,
+				10, SECONDS));
+		reader.join(100);
+		assertTrue(reader.isAlive());
+		assertEquals(MAX_OUTSTANDING_MESSAGES, cryptoExecutor.tasks.size());
+		// Storing a message should allow the session to continue
+		cryptoExecutor.tasks.get(0).run();
+		reader.join(10 * 1000);
+		assertFalse(reader.isAlive());
+		assertEquals(MAX_OUTSTANDING_MESSAGES + 1,
+				cryptoExecutor.tasks.size());
+		for(Runnable r : cryptoExecutor.tasks.subList(1,
+				MAX_OUTSTANDING_MESSAGES + 1)) r.run();
+		context.assertIsSatisfied();
+	}
+
+	private IncomingSession createSession(Executor cryptoExecutor,
+			MessagingMetricsImpl metrics) {
+		context.checking(new Expectations() {{
+			oneOf(packetReaderFactory).createPacketReader(in);
+			will(returnValue(packetReader));
+		}});
+		return new IncomingSession(db, new ImmediateExecutor(),
+				cryptoExecutor, eventBus, messageVerifier, metrics,
+				packetReaderFactory, contactId, transportId, in);
+	}
+
+	private UnverifiedMessage createUnverifiedMessage() {
+		return new UnverifiedMessage(null, group, null, "text/plain", 0,
+				new byte[123], null, 0, 0, 0);
+	}
+
+	private void expectMessagePackets(Expectations e,
+			List<UnverifiedMessage> messages) throws Exception {
+		for(UnverifiedMessage u : messages) {
+			e.oneOf(packetReader).eof();
+			e.will(Expectations.returnValue(false));
+			e.oneOf(packetReader).hasAck();
+			e.will(Expectations.returnValue(false));
+			e.oneOf(packetReader).hasMessage();
+			e.will(Expectations.returnValue(true));
+			e.oneOf(packetReader).readMessage();
+			e.will(Expectations.returnValue(u));
+		}
+		e.oneOf(packetReader).eof();
+		e.will(Expectations.returnValue(true));
+	}
+
+	private static class QueueExecutor implements Executor {
+
+		private final List<Runnable> tasks =
+				Collections.synchronizedList(new ArrayList<Runnable>());
+		private final Semaphore queued = new Semaphore(0);
+
+		public void execute(Runnable r) {
+			tasks.add(r);
+			queued.release();
+		}
+	}
+}
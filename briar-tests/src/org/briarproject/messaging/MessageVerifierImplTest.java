@@ -0,0 +1,91 @@
+package org.briarproject.messaging;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.briarproject.BriarTestCase;
+import org.briarproject.TestDatabaseModule;
+import org.briarproject.TestLifecycleModule;
+import org.briarproject.TestSystemModule;
+import org.briarproject.api.Author;
+import org.briarproject.api.AuthorFactory;
+import org.briarproject.api.crypto.CryptoComponent;
+import org.briarproject.api.crypto.KeyPair;
+import org.briarproject.api.messaging.Group;
+import org.briarproject.api.messaging.GroupFactory;
+import org.briarproject.api.messaging.Message;
+import org.briarproject.api.messaging.MessageFactory;
+import org.briarproject.api.messaging.MessageVerifier;
+import org.briarproject.api.messaging.MessagingMetrics;
+import org.briarproject.api.messaging.PacketReader;
+import org.briarproject.api.messaging.PacketReaderFactory;
+import org.briarproject.api.messaging.PacketWriter;
+import org.briarproject.api.messaging.PacketWriterFactory;
+import org.briarproject.api.messaging.UnverifiedMessage;
+import org.briarproject.crypto.CryptoModule;
+import org.briarproject.db.DatabaseModule;
+import org.briarproject.event.EventModule;
+import org.briarproject.serial.SerialModule;
+import org.junit.Test;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+public class MessageVerifierImplTest extends BriarTestCase {
+
+	private final CryptoComponent crypto;
+	private final AuthorFactory authorFactory;
+	private final GroupFactory groupFactory;
+	private final MessageFactory messageFactory;
+	private final PacketWriterFactory packetWriterFactory;
+	private final PacketReaderFactory packetReaderFactory;
+	private final MessageVerifier messageVerifier;
+	private final MessagingMetrics metrics;
+
+	public MessageVerifierImplTest() {
+		Injector i = Guice.createInjector(new TestDatabaseModule(),
+				new TestLifecycleModule(), new TestSystemModule(),
+				new CryptoModule(), new DatabaseModule(), new EventModule(),
+				new MessagingModule(), new SerialModule());
+		crypto = i.getInstance(CryptoComponent.class);
+		authorFactory = i.getInstance(AuthorFactory.class);
+		groupFactory = i.getInstance(GroupFactory.class);
+		messageFactory = i.getInstance(MessageFactory.class);
+		packetWriterFactory = i.getInstance(PacketWriterFactory.class);
+		packetReaderFactory = i.getInstance(PacketReaderFactory.class);
+		messageVerifier = i.getInstance(MessageVerifier.class);
+		metrics = i.getInstance(MessagingMetrics.class);
+	}
+
+	@Test
+	public void testPublicKeyIsParsedOncePerAuthor() throws Exception {
+		KeyPair keyPair = crypto.generateSignatureKeyPair();
+		Author author = authorFactory.createAuthor("Alice",
+				keyPair.getPublic().getEncoded());
+		Group group = groupFactory.createGroup("Group");
+		// Create and serialise some messages signed by the same author
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		PacketWriter writer = packetWriterFactory.createPacketWriter(out);
+		List<Message> messages = new ArrayList<Message>();
+		for(int i = 0; i < 3; i++) {
+			Message m = messageFactory.createPseudonymousMessage(null, group,
+					author, keyPair.getPrivate(), "text/plain",
+					System.currentTimeMillis(), new byte[] {(byte) i});
+			writer.writeMessage(m.getSerialised());
+			messages.add(m);
+		}
+		// Read and verify the messages
+		ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+		PacketReader reader = packetReaderFactory.createPacketReader(in);
+		for(Message m : messages) {
+			assertTrue(reader.hasMessage());
+			UnverifiedMessage u = reader.readMessage();
+			assertEquals(m.getId(), messageVerifier.verifyMessage(u).getId());
+		}
+		// The key should only have been parsed for the first message
+		assertEquals(1, metrics.getPublicKeyCacheMissCount());
+		assertEquals(2, metrics.getPublicKeyCacheHitCount());
+	}
+}
@@ -25,7 +25,7 @@ import org.briarproject.api.db.DatabaseComponent;
 import org.briarproject.api.event.Event;
 import org.briarproject.api.event.EventBus;
 import org.briarproject.api.event.EventListener;
-import org.briarproject.api.event.MessageAddedEvent;
+import org.briarproject.api.event.MessagesAddedEvent;
 import org.briarproject.api.messaging.Group;
 import org.briarproject.api.messaging.GroupFactory;
 import org.briarproject.api.messaging.Message;
@@ -206,12 +206,14 @@ public class SimplexMessagingIntegrationTest extends BriarTestCase {
 		EventBus eventBus = bob.getInstance(EventBus.class);
 		MessageVerifier messageVerifier =
 				bob.getInstance(MessageVerifier.class);
+		MessagingMetricsImpl metrics =
+				bob.getInstance(MessagingMetricsImpl.class);
 		PacketReaderFactory packetReaderFactory =
 				bob.getInstance(PacketReaderFactory.class);
 		MessagingSession session = new IncomingSession(db,
 				new ImmediateExecutor(), new ImmediateExecutor(), eventBus,
-				messageVerifier, packetReaderFactory, contactId, transportId,
-				streamReader.getInputStream());
+				messageVerifier, metrics, packetReaderFactory, contactId,
+				transportId, streamReader.getInputStream());
 		// No messages should have been added yet
 		assertFalse(listener.messageAdded);
 		// Read whatever needs to be read
@@ -235,7 +237,7 @@ public class SimplexMessagingIntegrationTest extends BriarTestCase {
 		private volatile boolean messageAdded = false;
 
 		public void eventOccurred(Event e) {
-			if(e instanceof MessageAddedEvent) messageAdded = true;
+			if(e instanceof MessagesAddedEvent) messageAdded = true;
 		}
 	}
 }
@@ -1,6 +1,7 @@
 package org.briarproject.transport;
 
 import static org.briarproject.api.transport.TransportConstants.MAX_CLOCK_DIFFERENCE;
+import static org.briarproject.transport.KeyManagerImpl.MAX_STREAM_NUMBERS_PER_LEASE;
 import static org.junit.Assert.assertArrayEquals;
 
 import java.util.Arrays;
@@ -130,9 +131,7 @@ public class KeyManagerImplTest extends BriarTestCase {
 			will(returnValue(secret2.clone()));
 			oneOf(db).addSecrets(Arrays.asList(s0, s1, s2));
 			// The secrets for periods 0 - 2 should be added to the recogniser
-			oneOf(tagRecogniser).addSecret(s0);
-			oneOf(tagRecogniser).addSecret(s1);
-			oneOf(tagRecogniser).addSecret(s2);
+			oneOf(tagRecogniser).addSecrets(Arrays.asList(s0, s1, s2));
 			// stop()
 			oneOf(eventBus).removeListener(with(any(EventListener.class)));
 			oneOf(timer).cancel();
@@ -188,11 +187,9 @@ public class KeyManagerImplTest extends BriarTestCase {
 			will(returnValue(secret2.clone()));
 			oneOf(db).addSecrets(Arrays.asList(s0, s1, s2));
 			// The secrets for periods 0 - 2 should be added to the recogniser
-			oneOf(tagRecogniser).addSecret(s0);
-			oneOf(tagRecogniser).addSecret(s1);
-			oneOf(tagRecogniser).addSecret(s2);
+			oneOf(tagRecogniser).addSecrets(Arrays.asList(s0, s1, s2));
 			// getConnectionContext()
-			oneOf(db).incrementStreamCounter(contactId, transportId, 1);
+			oneOf(db).incrementStreamCounter(contactId, transportId, 1, 1);
 			will(returnValue(0L));
 			// stop()
 			oneOf(eventBus).removeListener(with(any(EventListener.class)));
@@ -215,6 +212,76 @@ public class KeyManagerImplTest extends BriarTestCase {
 		context.assertIsSatisfied();
 	}
 
+	@Test
+	public void testStreamNumberLeasesGrowAndUnusedNumbersAreReturned() throws Exception {
+		Mockery context = new Mockery();
+		final CryptoComponent crypto = context.mock(CryptoComponent.class);
+		final DatabaseComponent db = context.mock(DatabaseComponent.class);
+		final EventBus eventBus = context.mock(EventBus.class);
+		final TagRecogniser tagRecogniser = context.mock(TagRecogniser.class);
+		final Clock clock = context.mock(Clock.class);
+		final Timer timer = context.mock(Timer.class);
+
+		final KeyManagerImpl keyManager = new KeyManagerImpl(crypto, db,
+				eventBus, tagRecogniser, clock, timer);
+
+		// The DB contains the secrets for periods 0 - 2
+		Endpoint ep = new Endpoint(contactId, transportId, EPOCH, true);
+		final TemporarySecret s0 = new TemporarySecret(ep, 0, secret0.clone());
+		final TemporarySecret s1 = new TemporarySecret(ep, 1, secret1.clone());
+		final TemporarySecret s2 = new TemporarySecret(ep, 2, secret2.clone());
+
+		context.checking(new Expectations() {{
+			// start()
+			oneOf(eventBus).addListener(with(any(EventListener.class)));
+			oneOf(db).getSecrets();
+			will(returnValue(Arrays.asList(s0, s1, s2)));
+			oneOf(db).getTransportLatencies();
+			will(returnValue(Collections.singletonMap(transportId,
+					MAX_LATENCY)));
+			oneOf(clock).currentTimeMillis();
+			will(returnValue(EPOCH));
+			oneOf(tagRecogniser).addSecrets(Arrays.asList(s0, s1, s2));
+			oneOf(timer).scheduleAtFixedRate(with(keyManager),
+					with(any(long.class)), with(any(long.class)));
+			// getStreamContext() should reserve blocks of stream numbers,
+			// starting from the current value of the counter, doubling the
+			// size of the block each time up to the maximum
+			oneOf(db).incrementStreamCounter(contactId, transportId, 1, 1);
+			will(returnValue(5L));
+			oneOf(db).incrementStreamCounter(contactId, transportId, 1, 2);
+			will(returnValue(6L));
+			oneOf(db).incrementStreamCounter(contactId, transportId, 1,
+					MAX_STREAM_NUMBERS_PER_LEASE);
+			will(returnValue(8L));
+			oneOf(db).incrementStreamCounter(contactId, transportId, 1,
+					MAX_STREAM_NUMBERS_PER_LEASE);
+			will(returnValue(8L + MAX_STREAM_NUMBERS_PER_LEASE));
+			// stop()
+			oneOf(eventBus).removeListener(with(any(EventListener.class)));
+			oneOf(timer).cancel();
+			oneOf(tagRecogniser).removeSecrets();
+			// The unused stream numbers in the last block should be returned
+			oneOf(db).resetStreamCounter(contactId, transportId, 1,
+					8L + 2 * MAX_STREAM_NUMBERS_PER_LEASE,
+					9L + MAX_STREAM_NUMBERS_PER_LEASE);
+			will(returnValue(true));
+		}});
+
+		assertTrue(keyManager.start());
+		// The stream numbers should be consecutive across the blocks
+		for(int i = 0; i < 4 + MAX_STREAM_NUMBERS_PER_LEASE; i++) {
+			StreamContext ctx =
+					keyManager.getStreamContext(contactId, transportId);
+			assertNotNull(ctx);
+			assertArrayEquals(secret1, ctx.getSecret());
+			assertEquals(5 + i, ctx.getStreamNumber());
+		}
+		keyManager.stop();
+
+		context.assertIsSatisfied();
+	}
+
 	@Test
 	public void testLoadSecretsAtEpoch() throws Exception {
 		Mockery context = new Mockery();
@@ -246,9 +313,7 @@ public class KeyManagerImplTest extends BriarTestCase {
 			oneOf(clock).currentTimeMillis();
 			will(returnValue(EPOCH));
 			// The secrets for periods 0 - 2 should be added to the recogniser
-			oneOf(tagRecogniser).addSecret(s0);
-			oneOf(tagRecogniser).addSecret(s1);
-			oneOf(tagRecogniser).addSecret(s2);
+			oneOf(tagRecogniser).addSecrets(Arrays.asList(s0, s1, s2));
 			oneOf(timer).scheduleAtFixedRate(with(keyManager),
 					with(any(long.class)), with(any(long.class)));
 			// stop()
@@ -304,9 +369,7 @@ public class KeyManagerImplTest extends BriarTestCase {
 			will(returnValue(secret3.clone()));
 			oneOf(db).addSecrets(Arrays.asList(s3));
 			// The secrets for periods 1 - 3 should be added to the recogniser
-			oneOf(tagRecogniser).addSecret(s1);
-			oneOf(tagRecogniser).addSecret(s2);
-			oneOf(tagRecogniser).addSecret(s3);
+			oneOf(tagRecogniser).addSecrets(Arrays.asList(s1, s2, s3));
 			oneOf(timer).scheduleAtFixedRate(with(keyManager),
 					with(any(long.class)), with(any(long.class)));
 			// stop()
@@ -364,9 +427,7 @@ public class KeyManagerImplTest extends BriarTestCase {
 			// The new secrets should be stored
 			oneOf(db).addSecrets(Arrays.asList(s3, s4));
 			// The secrets for periods 2 - 4 should be added to the recogniser
-			oneOf(tagRecogniser).addSecret(s2);
-			oneOf(tagRecogniser).addSecret(s3);
-			oneOf(tagRecogniser).addSecret(s4);
+			oneOf(tagRecogniser).addSecrets(Arrays.asList(s2, s3, s4));
 			oneOf(timer).scheduleAtFixedRate(with(keyManager),
 					with(any(long.class)), with(any(long.class)));
 			// stop()
@@ -412,16 +473,14 @@ public class KeyManagerImplTest extends BriarTestCase {
 			oneOf(clock).currentTimeMillis();
 			will(returnValue(EPOCH));
 			// The secrets for periods 0 - 2 should be added to the recogniser
-			oneOf(tagRecogniser).addSecret(s0);
-			oneOf(tagRecogniser).addSecret(s1);
-			oneOf(tagRecogniser).addSecret(s2);
+			oneOf(tagRecogniser).addSecrets(Arrays.asList(s0, s1, s2));
 			oneOf(timer).scheduleAtFixedRate(with(keyManager),
 					with(any(long.class)), with(any(long.class)));
 			// run() during period 1: the secrets should not be affected
 			oneOf(clock).currentTimeMillis();
 			will(returnValue(EPOCH + 1));
 			// getConnectionContext()
-			oneOf(db).incrementStreamCounter(contactId, transportId, 1);
+			oneOf(db).incrementStreamCounter(contactId, transportId, 1, 1);
 			will(returnValue(0L));
 			// stop()
 			oneOf(eventBus).removeListener(with(any(EventListener.class)));
@@ -477,9 +536,7 @@ public class KeyManagerImplTest extends BriarTestCase {
 			oneOf(clock).currentTimeMillis();
 			will(returnValue(EPOCH));
 			// The secrets for periods 0 - 2 should be added to the recogniser
-			oneOf(tagRecogniser).addSecret(s0);
-			oneOf(tagRecogniser).addSecret(s1);
-			oneOf(tagRecogniser).addSecret(s2);
+			oneOf(tagRecogniser).addSecrets(Arrays.asList(s0, s1, s2));
 			oneOf(timer).scheduleAtFixedRate(with(keyManager),
 					with(any(long.class)), with(any(long.class)));
 			// run() during period 2: the secrets should be rotated
@@ -493,9 +550,9 @@ public class KeyManagerImplTest extends BriarTestCase {
 			will(returnValue(secret3.clone()));
 			oneOf(tagRecogniser).removeSecret(contactId, transportId, 0);
 			oneOf(db).addSecrets(Arrays.asList(s3));
-			oneOf(tagRecogniser).addSecret(s3);
+			oneOf(tagRecogniser).addSecrets(Arrays.asList(s3));
 			// getConnectionContext()
-			oneOf(db).incrementStreamCounter(contactId, transportId, 2);
+			oneOf(db).incrementStreamCounter(contactId, transportId, 2, 1);
 			will(returnValue(0L));
 			// stop()
 			oneOf(eventBus).removeListener(with(any(EventListener.class)));
@@ -552,9 +609,7 @@ public class KeyManagerImplTest extends BriarTestCase {
 			oneOf(clock).currentTimeMillis();
 			will(returnValue(EPOCH));
 			// The secrets for periods 0 - 2 should be added to the recogniser
-			oneOf(tagRecogniser).addSecret(s0);
-			oneOf(tagRecogniser).addSecret(s1);
-			oneOf(tagRecogniser).addSecret(s2);
+			oneOf(tagRecogniser).addSecrets(Arrays.asList(s0, s1, s2));
 			oneOf(timer).scheduleAtFixedRate(with(keyManager),
 					with(any(long.class)), with(any(long.class)));
 			// run() during period 3 (late): the secrets should be rotated
@@ -569,10 +624,9 @@ public class KeyManagerImplTest extends BriarTestCase {
 			oneOf(tagRecogniser).removeSecret(contactId, transportId, 0);
 			oneOf(tagRecogniser).removeSecret(contactId, transportId, 1);
 			oneOf(db).addSecrets(Arrays.asList(s3, s4));
-			oneOf(tagRecogniser).addSecret(s3);
-			oneOf(tagRecogniser).addSecret(s4);
+			oneOf(tagRecogniser).addSecrets(Arrays.asList(s3, s4));
 			// getConnectionContext()
-			oneOf(db).incrementStreamCounter(contactId, transportId, 3);
+			oneOf(db).incrementStreamCounter(contactId, transportId, 3, 1);
 			will(returnValue(0L));
 			// stop()
 			oneOf(eventBus).removeListener(with(any(EventListener.class)));
@@ -5,6 +5,7 @@ import static org.briarproject.api.transport.TransportConstants.TAG_LENGTH;
 import static org.junit.Assert.assertArrayEquals;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 
 import org.briarproject.BriarTestCase;
@@ -21,6 +22,7 @@ import org.briarproject.api.transport.Endpoint;
 import org.briarproject.api.transport.StreamContext;
 import org.briarproject.api.transport.TagRecogniser;
 import org.briarproject.api.transport.TemporarySecret;
+import org.briarproject.plugins.ImmediateExecutor;
 import org.briarproject.util.ByteUtils;
 import org.hamcrest.Description;
 import org.jmock.Expectations;
@@ -78,7 +80,8 @@ public class KeyRotationIntegrationTest extends BriarTestCase {
 		final Clock clock = context.mock(Clock.class);
 		final Timer timer = context.mock(Timer.class);
 
-		final TagRecogniser tagRecogniser = new TagRecogniserImpl(crypto, db);
+		final TagRecogniser tagRecogniser = new TagRecogniserImpl(crypto, db,
+				new ImmediateExecutor());
 		final KeyManagerImpl keyManager = new KeyManagerImpl(crypto, db,
 				eventBus, tagRecogniser, clock, timer);
 
@@ -116,7 +119,8 @@ public class KeyRotationIntegrationTest extends BriarTestCase {
 		final SecretKey k1 = context.mock(SecretKey.class, "k1");
 		final SecretKey k2 = context.mock(SecretKey.class, "k2");
 
-		final TagRecogniser tagRecogniser = new TagRecogniserImpl(crypto, db);
+		final TagRecogniser tagRecogniser = new TagRecogniserImpl(crypto, db,
+				new ImmediateExecutor());
 		final KeyManagerImpl keyManager = new KeyManagerImpl(crypto, db,
 				eventBus, tagRecogniser, clock, timer);
 
@@ -239,7 +243,8 @@ public class KeyRotationIntegrationTest extends BriarTestCase {
 		final SecretKey k1 = context.mock(SecretKey.class, "k1");
 		final SecretKey k2 = context.mock(SecretKey.class, "k2");
 
-		final TagRecogniser tagRecogniser = new TagRecogniserImpl(crypto, db);
+		final TagRecogniser tagRecogniser = new TagRecogniserImpl(crypto, db,
+				new ImmediateExecutor());
 		final KeyManagerImpl keyManager = new KeyManagerImpl(crypto, db,
 				eventBus, tagRecogniser, clock, timer);
 
@@ -305,7 +310,7 @@ public class KeyRotationIntegrationTest extends BriarTestCase {
 			}
 			oneOf(k2).erase();
 			// getConnectionContext()
-			oneOf(db).incrementStreamCounter(contactId, transportId, 1);
+			oneOf(db).incrementStreamCounter(contactId, transportId, 1, 1);
 			will(returnValue(0L));
 			// stop()
 			// The recogniser should derive the tags for period 0
@@ -373,7 +378,8 @@ public class KeyRotationIntegrationTest extends BriarTestCase {
 		final SecretKey k1 = context.mock(SecretKey.class, "k1");
 		final SecretKey k2 = context.mock(SecretKey.class, "k2");
 
-		final TagRecogniser tagRecogniser = new TagRecogniserImpl(crypto, db);
+		final TagRecogniser tagRecogniser = new TagRecogniserImpl(crypto, db,
+				new ImmediateExecutor());
 		final KeyManagerImpl keyManager = new KeyManagerImpl(crypto, db,
 				eventBus, tagRecogniser, clock, timer);
 
@@ -446,8 +452,7 @@ public class KeyRotationIntegrationTest extends BriarTestCase {
 			will(new EncodeTagAction());
 			oneOf(k2).getEncoded();
 			will(returnValue(key2));
-			oneOf(db).setReorderingWindow(contactId, transportId, 2, 1,
-					new byte[] {0, 1, 0, 0});
+			oneOf(db).setReorderingWindows(with(any(Collection.class)));
 			oneOf(k2).erase();
 			// stop()
 			// The recogniser should derive the tags for period 0
@@ -517,7 +522,8 @@ public class KeyRotationIntegrationTest extends BriarTestCase {
 		final SecretKey k1 = context.mock(SecretKey.class, "k1");
 		final SecretKey k2 = context.mock(SecretKey.class, "k2");
 
-		final TagRecogniser tagRecogniser = new TagRecogniserImpl(crypto, db);
+		final TagRecogniser tagRecogniser = new TagRecogniserImpl(crypto, db,
+				new ImmediateExecutor());
 		final KeyManagerImpl keyManager = new KeyManagerImpl(crypto, db,
 				eventBus, tagRecogniser, clock, timer);
 
@@ -631,7 +637,8 @@ public class KeyRotationIntegrationTest extends BriarTestCase {
 		final SecretKey k2 = context.mock(SecretKey.class, "k2");
 		final SecretKey k3 = context.mock(SecretKey.class, "k3");
 
-		final TagRecogniser tagRecogniser = new TagRecogniserImpl(crypto, db);
+		final TagRecogniser tagRecogniser = new TagRecogniserImpl(crypto, db,
+				new ImmediateExecutor());
 		final KeyManagerImpl keyManager = new KeyManagerImpl(crypto, db,
 				eventBus, tagRecogniser, clock, timer);
 
@@ -755,7 +762,8 @@ public class KeyRotationIntegrationTest extends BriarTestCase {
 		final SecretKey k3 = context.mock(SecretKey.class, "k3");
 		final SecretKey k4 = context.mock(SecretKey.class, "k4");
 
-		final TagRecogniser tagRecogniser = new TagRecogniserImpl(crypto, db);
+		final TagRecogniser tagRecogniser = new TagRecogniserImpl(crypto, db,
+				new ImmediateExecutor());
 		final KeyManagerImpl keyManager = new KeyManagerImpl(crypto, db,
 				eventBus, tagRecogniser, clock, timer);
 
@@ -0,0 +1,125 @@
+package org.briarproject.transport;
+
+import static org.briarproject.api.transport.TransportConstants.TAG_LENGTH;
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.briarproject.BriarTestCase;
+import org.briarproject.TestLifecycleModule;
+import org.briarproject.TestSystemModule;
+import org.briarproject.api.crypto.CryptoComponent;
+import org.briarproject.api.crypto.SecretKey;
+import org.briarproject.crypto.CryptoModule;
+import org.junit.After;
+import org.junit.Test;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+public class PipelinedEncryptionLayerTest extends BriarTestCase {
+
+	private static final int FRAME_LENGTH = 1024;
+	private static final int MAX_FRAMES_IN_FLIGHT = 4;
+
+	private final CryptoComponent crypto;
+	private final ExecutorService executor;
+	private final Random random = new Random();
+
+	public PipelinedEncryptionLayerTest() {
+		Injector i = Guice.createInjector(new CryptoModule(),
+				new TestLifecycleModule(), new TestSystemModule());
+		crypto = i.getInstance(CryptoComponent.class);
+		executor = Executors.newFixedThreadPool(MAX_FRAMES_IN_FLIGHT);
+	}
+
+	@Test
+	public void testOutputMatchesSequentialEncryption() throws Exception {
+		byte[] tag = new byte[TAG_LENGTH];
+		random.nextBytes(tag);
+		testOutputMatchesSequentialEncryption(executor, tag);
+		testOutputMatchesSequentialEncryption(executor, null);
+	}
+
+	@Test
+	public void testWriterEncryptsFramesIfExecutorDoesNot() throws Exception {
+		// An executor that discards tasks, as the crypto executor does
+		// during shutdown
+		Executor discard = new Executor() {
+			public void execute(Runnable r) {}
+		};
+		testOutputMatchesSequentialEncryption(discard, null);
+	}
+
+	@Test
+	public void testKeyIsErasedIfEncryptionFails() throws Exception {
+		final AtomicBoolean erased = new AtomicBoolean(false);
+		SecretKey frameKey = new SecretKey() {
+
+			public byte[] getEncoded() {
+				// Not a valid AES key
+				return new byte[5];
+			}
+
+			public SecretKey copy() {
+				return this;
+			}
+
+			public void erase() {
+				erased.set(true);
+			}
+		};
+		FrameWriter pipelined = new PipelinedEncryptionLayer(
+				new ByteArrayOutputStream(), executor, crypto, frameKey,
+				FRAME_LENGTH, null, MAX_FRAMES_IN_FLIGHT);
+		pipelined.writeFrame(new byte[FRAME_LENGTH], 0, true);
+		try {
+			pipelined.flush();
+			fail();
+		} catch(RuntimeException expected) {}
+		assertTrue(erased.get());
+	}
+
+	private void testOutputMatchesSequentialEncryption(Executor e, byte[] tag)
+			throws Exception {
+		byte[] data = new byte[100 * FRAME_LENGTH];
+		random.nextBytes(data);
+		SecretKey frameKey = crypto.generateSecretKey();
+		// Encrypt the data sequentially
+		ByteArrayOutputStream expected = new ByteArrayOutputStream();
+		FrameWriter sequential = new OutgoingEncryptionLayer(expected,
+				crypto.getFrameCipher(), frameKey, FRAME_LENGTH, tag);
+		write(sequential, data);
+		// Encrypt the data in parallel
+		ByteArrayOutputStream actual = new ByteArrayOutputStream();
+		FrameWriter pipelined = new PipelinedEncryptionLayer(actual, e,
+				crypto, frameKey, FRAME_LENGTH, tag, MAX_FRAMES_IN_FLIGHT);
+		write(pipelined, data);
+		assertArrayEquals(expected.toByteArray(), actual.toByteArray());
+	}
+
+	private void write(FrameWriter frameWriter, byte[] data) throws Exception {
+		OutputStream out = new StreamWriterImpl(frameWriter, FRAME_LENGTH);
+		// Use the same pseudo-random write lengths and flushes for each writer
+		Random writes = new Random(data[0]);
+		int off = 0;
+		while(off < data.length) {
+			int len = Math.min(data.length - off, writes.nextInt(3000));
+			out.write(data, off, len);
+			off += len;
+			if(writes.nextInt(10) == 0) out.flush();
+		}
+		out.close();
+	}
+
+	@After
+	public void tearDown() {
+		executor.shutdownNow();
+	}
+}
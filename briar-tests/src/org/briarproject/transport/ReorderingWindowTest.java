@@ -4,8 +4,6 @@ import static org.briarproject.api.transport.TransportConstants.REORDERING_WINDO
 import static org.briarproject.util.ByteUtils.MAX_32_BIT_UNSIGNED;
 import static org.junit.Assert.assertArrayEquals;
 
-import java.util.Collection;
-
 import org.briarproject.BriarTestCase;
 import org.junit.Test;
 
@@ -119,38 +117,90 @@ public class ReorderingWindowTest extends BriarTestCase {
 	public void testGetUnseenStreamNumbers() {
 		ReorderingWindow w = new ReorderingWindow();
 		// Centre is 0; window should cover 0 to 15, inclusive, with none seen
-		Collection<Long> unseen = w.getUnseen();
-		assertEquals(16, unseen.size());
+		long[] unseen = w.getUnseen();
+		assertEquals(16, unseen.length);
 		for(int i = 0; i < 16; i++) {
-			assertTrue(unseen.contains(Long.valueOf(i)));
+			assertTrue(contains(unseen, i));
 			assertFalse(w.isSeen(i));
 		}
 		w.setSeen(3);
 		w.setSeen(4);
 		// Centre is 5; window should cover 0 to 20, inclusive, with two seen
 		unseen = w.getUnseen();
-		assertEquals(19, unseen.size());
+		assertEquals(19, unseen.length);
 		for(int i = 0; i < 21; i++) {
 			if(i == 3 || i == 4) {
-				assertFalse(unseen.contains(Long.valueOf(i)));
+				assertFalse(contains(unseen, i));
 				assertTrue(w.isSeen(i));
 			} else {
-				assertTrue(unseen.contains(Long.valueOf(i)));
+				assertTrue(contains(unseen, i));
 				assertFalse(w.isSeen(i));
 			}
 		}
 		w.setSeen(19);
 		// Centre is 20; window should cover 4 to 35, inclusive, with two seen
 		unseen = w.getUnseen();
-		assertEquals(30, unseen.size());
+		assertEquals(30, unseen.length);
 		for(int i = 4; i < 36; i++) {
 			if(i == 4 || i == 19) {
-				assertFalse(unseen.contains(Long.valueOf(i)));
+				assertFalse(contains(unseen, i));
 				assertTrue(w.isSeen(i));
 			} else {
-				assertTrue(unseen.contains(Long.valueOf(i)));
+				assertTrue(contains(unseen, i));
 				assertFalse(w.isSeen(i));
 			}
 		}
 	}
+
+	@Test
+	public void testChangedStreamNumbers() {
+		ReorderingWindow w = new ReorderingWindow();
+		long[] changed = new long[REORDERING_WINDOW_SIZE];
+		// Centre is 0; seeing 3 slides the window to cover 0 to 19
+		assertEquals(4, w.setSeen(3, changed));
+		assertArrayEquals(new long[] {16, 17, 18, 19}, copy(changed, 4));
+		// Seeing a stream number below the centre doesn't slide the window
+		assertEquals(0, w.setSeen(1, changed));
+		// Centre is 4; seeing 19 slides the window to cover 4 to 35, so the
+		// unseen stream numbers 0 and 2 leave the window and 20 to 35 enter
+		assertEquals(18, w.setSeen(19, changed));
+		long[] expected = new long[18];
+		expected[0] = 0;
+		expected[1] = 2;
+		for(int i = 2; i < 18; i++) expected[i] = 18 + i;
+		assertArrayEquals(expected, copy(changed, 18));
+	}
+
+	@Test
+	public void testBitmapRoundTrip() {
+		// Centre is 40; the window covers 24 to 55 with 24, 31 and 47 seen
+		byte[] bitmap = new byte[REORDERING_WINDOW_SIZE / 8];
+		bitmap[0] = (byte) 129; // 10000001
+		bitmap[2] = 1; // 00000001
+		ReorderingWindow w = new ReorderingWindow(40, bitmap);
+		assertTrue(w.isSeen(24));
+		assertTrue(w.isSeen(31));
+		assertTrue(w.isSeen(47));
+		assertFalse(w.isSeen(25));
+		assertFalse(w.isSeen(55));
+		assertEquals(29, w.getUnseen().length);
+		assertArrayEquals(bitmap, w.getBitmap());
+		// Bits representing negative stream numbers should be ignored
+		bitmap = new byte[REORDERING_WINDOW_SIZE / 8];
+		bitmap[0] = (byte) 255;
+		w = new ReorderingWindow(0, bitmap);
+		assertArrayEquals(new byte[REORDERING_WINDOW_SIZE / 8], w.getBitmap());
+		assertEquals(16, w.getUnseen().length);
+	}
+
+	private boolean contains(long[] unseen, long streamNumber) {
+		for(long l : unseen) if(l == streamNumber) return true;
+		return false;
+	}
+
+	private long[] copy(long[] a, int length) {
+		long[] copy = new long[length];
+		System.arraycopy(a, 0, copy, 0, length);
+		return copy;
+	}
 }
@@ -0,0 +1,179 @@
+package org.briarproject.transport;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.briarproject.BriarTestCase;
+import org.briarproject.api.ContactId;
+import org.briarproject.api.TransportId;
+import org.briarproject.api.db.DatabaseComponent;
+import org.briarproject.api.db.DbException;
+import org.briarproject.api.transport.ReorderingWindowUpdate;
+import org.hamcrest.Description;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.jmock.api.Action;
+import org.jmock.api.Invocation;
+import org.junit.Test;
+
+public class ReorderingWindowWriterTest extends BriarTestCase {
+
+	private final ContactId contactId = new ContactId(234);
+	private final TransportId transportId = new TransportId("id");
+
+	@Test
+	public void testUpdatesToSameWindowAreCoalesced() throws Exception {
+		Mockery context = new Mockery();
+		final DatabaseComponent db = context.mock(DatabaseComponent.class);
+		final List<Collection<ReorderingWindowUpdate>> stored =
+				new ArrayList<Collection<ReorderingWindowUpdate>>();
+		context.checking(new Expectations() {{
+			oneOf(db).setReorderingWindows(with(any(Collection.class)));
+			will(new StoreWindowsAction(stored, null));
+		}});
+		ReorderingWindowWriter w = new ReorderingWindowWriter(db);
+		ReorderingWindowUpdate u1 = createUpdate(0, 1);
+		ReorderingWindowUpdate u2 = createUpdate(0, 2);
+		ReorderingWindowUpdate u3 = createUpdate(1, 1);
+		w.queue(u1);
+		w.queue(u2);
+		w.queue(u3);
+		w.flush();
+		// Nothing is queued, so flushing again shouldn't touch the database
+		w.flush();
+		context.assertIsSatisfied();
+		// The newest state of each window should have been stored
+		assertEquals(1, stored.size());
+		Collection<ReorderingWindowUpdate> batch = stored.get(0);
+		assertEquals(2, batch.size());
+		assertTrue(batch.contains(u2));
+		assertTrue(batch.contains(u3));
+	}
+
+	@Test
+	public void testFailedUpdatesAreRetried() throws Exception {
+		Mockery context = new Mockery();
+		final DatabaseComponent db = context.mock(DatabaseComponent.class);
+		final List<Collection<ReorderingWindowUpdate>> stored =
+				new ArrayList<Collection<ReorderingWindowUpdate>>();
+		context.checking(new Expectations() {{
+			oneOf(db).setReorderingWindows(with(any(Collection.class)));
+			will(throwException(new DbException()));
+			oneOf(db).setReorderingWindows(with(any(Collection.class)));
+			will(new StoreWindowsAction(stored, null));
+		}});
+		ReorderingWindowWriter w = new ReorderingWindowWriter(db);
+		ReorderingWindowUpdate u1 = createUpdate(0, 1);
+		w.queue(u1);
+		try {
+			w.flush();
+			fail();
+		} catch(DbException expected) {}
+		// A newer state queued after the failure should replace the old one
+		ReorderingWindowUpdate u2 = createUpdate(0, 2);
+		ReorderingWindowUpdate u3 = createUpdate(1, 1);
+		w.queue(u2);
+		w.queue(u3);
+		w.flush();
+		context.assertIsSatisfied();
+		assertEquals(1, stored.size());
+		Collection<ReorderingWindowUpdate> batch = stored.get(0);
+		assertEquals(2, batch.size());
+		assertTrue(batch.contains(u2));
+		assertTrue(batch.contains(u3));
+	}
+
+	@Test
+	public void testConcurrentFlushesShareTransactions() throws Exception {
+		Mockery context = new Mockery();
+		final DatabaseComponent db = context.mock(DatabaseComponent.class);
+		final List<Collection<ReorderingWindowUpdate>> stored =
+				new ArrayList<Collection<ReorderingWindowUpdate>>();
+		final CountDownLatch writing = new CountDownLatch(1);
+		final CountDownLatch release = new CountDownLatch(1);
+		context.checking(new Expectations() {{
+			// The first write blocks until the other threads have queued
+			oneOf(db).setReorderingWindows(with(any(Collection.class)));
+			will(new StoreWindowsAction(stored, new Runnable() {
+				public void run() {
+					writing.countDown();
+					try {
+						release.await();
+					} catch(InterruptedException e) {
+						throw new AssertionError(e);
+					}
+				}
+			}));
+			// The other threads' windows should be written together
+			oneOf(db).setReorderingWindows(with(any(Collection.class)));
+			will(new StoreWindowsAction(stored, null));
+		}});
+		final ReorderingWindowWriter w = new ReorderingWindowWriter(db);
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		List<Thread> threads = new ArrayList<Thread>();
+		for(int i = 0; i < 5; i++) {
+			final ReorderingWindowUpdate u = createUpdate(i, 1);
+			threads.add(new Thread() {
+				@Override
+				public void run() {
+					w.queue(u);
+					try {
+						w.flush();
+					} catch(DbException e) {
+						failed.set(true);
+					}
+				}
+			});
+		}
+		// Start the first thread and wait for it to start writing
+		threads.get(0).start();
+		writing.await();
+		// Start the other threads, which should wait for the first write
+		for(int i = 1; i < threads.size(); i++) threads.get(i).start();
+		Thread.sleep(100);
+		release.countDown();
+		for(Thread t : threads) t.join();
+		assertFalse(failed.get());
+		context.assertIsSatisfied();
+		assertEquals(2, stored.size());
+		assertEquals(1, stored.get(0).size());
+		assertEquals(4, stored.get(1).size());
+	}
+
+	private ReorderingWindowUpdate createUpdate(long period, long centre) {
+		return new ReorderingWindowUpdate(contactId, transportId, period,
+				centre, new byte[4]);
+	}
+
+	private static class StoreWindowsAction implements Action {
+
+		private final List<Collection<ReorderingWindowUpdate>> stored;
+		private final Runnable whileStoring;
+
+		private StoreWindowsAction(
+				List<Collection<ReorderingWindowUpdate>> stored,
+				Runnable whileStoring) {
+			this.stored = stored;
+			this.whileStoring = whileStoring;
+		}
+
+		public void describeTo(Description description) {
+			description.appendText("Stores reordering windows");
+		}
+
+		@SuppressWarnings("unchecked")
+		public Object invoke(Invocation invocation) throws Throwable {
+			Collection<ReorderingWindowUpdate> windows =
+					(Collection<ReorderingWindowUpdate>)
+					invocation.getParameter(0);
+			synchronized(stored) {
+				stored.add(new ArrayList<ReorderingWindowUpdate>(windows));
+			}
+			if(whileStoring != null) whileStoring.run();
+			return null;
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package org.briarproject.transport;
+
+import static org.briarproject.api.AuthorConstants.MAX_PUBLIC_KEY_LENGTH;
+import static org.briarproject.api.transport.TransportConstants.MAX_CLOCK_DIFFERENCE;
+import static org.briarproject.transport.KeyManagerImpl.MAX_STREAM_NUMBERS_PER_LEASE;
+
+import java.io.File;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.briarproject.TestDatabaseModule;
+import org.briarproject.TestLifecycleModule;
+import org.briarproject.TestSystemModule;
+import org.briarproject.TestUtils;
+import org.briarproject.api.Author;
+import org.briarproject.api.AuthorId;
+import org.briarproject.api.ContactId;
+import org.briarproject.api.LocalAuthor;
+import org.briarproject.api.TransportId;
+import org.briarproject.api.crypto.CryptoComponent;
+import org.briarproject.api.db.DatabaseComponent;
+import org.briarproject.api.event.EventBus;
+import org.briarproject.api.system.Clock;
+import org.briarproject.api.transport.Endpoint;
+import org.briarproject.crypto.CryptoModule;
+import org.briarproject.db.DatabaseModule;
+import org.briarproject.event.EventModule;
+import org.briarproject.messaging.MessagingModule;
+import org.briarproject.plugins.ImmediateExecutor;
+import org.briarproject.serial.SerialModule;
+import org.briarproject.system.SystemTimer;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+// Not a JUnit test
+public class StreamContextPerformanceTest {
+
+	private static final int CONTACTS = 200;
+	private static final int CONNECTIONS_PER_CONTACT = 16;
+	private static final int THREADS = 8;
+	private static final long LATENCY = 60 * 1000;
+
+	public static void main(String[] args) throws Exception {
+		File testDir = TestUtils.getTestDirectory();
+		try {
+			// Reserving one stream number per write was the old behaviour
+			int[] leaseSizes = { 1, MAX_STREAM_NUMBERS_PER_LEASE };
+			for(int leaseSize : leaseSizes) {
+				// Warm up, then measure
+				runTest(testDir, leaseSize);
+				double perSec = runTest(testDir, leaseSize);
+				System.out.println(CONTACTS + " contacts, " + leaseSize
+						+ " max stream numbers per lease: " + (int) perSec
+						+ " stream contexts/sec");
+			}
+		} finally {
+			TestUtils.deleteTestDirectory(testDir);
+		}
+	}
+
+	// Returns the number of stream contexts created per second
+	private static double runTest(File testDir, int leaseSize)
+			throws Exception {
+		TestUtils.deleteTestDirectory(testDir);
+		testDir.mkdirs();
+		Injector i = Guice.createInjector(new TestDatabaseModule(testDir),
+				new TestLifecycleModule(), new TestSystemModule(),
+				new CryptoModule(), new DatabaseModule(), new EventModule(),
+				new MessagingModule(), new SerialModule());
+		CryptoComponent crypto = i.getInstance(CryptoComponent.class);
+		DatabaseComponent db = i.getInstance(DatabaseComponent.class);
+		db.open();
+		TagRecogniserImpl tagRecogniser = new TagRecogniserImpl(crypto, db,
+				new ImmediateExecutor());
+		final KeyManagerImpl keyManager = new KeyManagerImpl(crypto, db,
+				i.getInstance(EventBus.class), tagRecogniser,
+				i.getInstance(Clock.class), new SystemTimer(), leaseSize);
+		if(!keyManager.start()) throw new AssertionError();
+		// Add the contacts and their endpoints
+		final TransportId transportId = new TransportId("id");
+		AuthorId localAuthorId = new AuthorId(TestUtils.getRandomId());
+		db.addLocalAuthor(new LocalAuthor(localAuthorId, "Alice",
+				new byte[MAX_PUBLIC_KEY_LENGTH], new byte[100], 1234));
+		db.addTransport(transportId, LATENCY);
+		long epoch = System.currentTimeMillis()
+				- 2 * (LATENCY + MAX_CLOCK_DIFFERENCE);
+		final ContactId[] contacts = new ContactId[CONTACTS];
+		Random random = new Random();
+		for(int j = 0; j < CONTACTS; j++) {
+			AuthorId authorId = new AuthorId(TestUtils.getRandomId());
+			Author author = new Author(authorId, "Contact " + j,
+					new byte[MAX_PUBLIC_KEY_LENGTH]);
+			contacts[j] = db.addContact(author, localAuthorId);
+			Endpoint ep = new Endpoint(contacts[j], transportId, epoch, true);
+			db.addEndpoint(ep);
+			byte[] initialSecret = new byte[32];
+			random.nextBytes(initialSecret);
+			keyManager.endpointAdded(ep, LATENCY, initialSecret);
+		}
+		// Each thread opens connections to its share of the contacts
+		final AtomicInteger failures = new AtomicInteger(0);
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(THREADS);
+		for(int j = 0; j < THREADS; j++) {
+			final int first = j;
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for(int k = 0; k < CONNECTIONS_PER_CONTACT; k++) {
+							for(int c = first; c < CONTACTS; c += THREADS) {
+								if(keyManager.getStreamContext(contacts[c],
+										transportId) == null)
+									failures.incrementAndGet();
+							}
+						}
+					} catch(InterruptedException e) {
+						e.printStackTrace();
+					}
+					finished.countDown();
+				}
+			}.start();
+		}
+		long now = System.nanoTime();
+		start.countDown();
+		finished.await();
+		long duration = System.nanoTime() - now;
+		keyManager.stop();
+		db.close();
+		if(failures.get() > 0) throw new AssertionError();
+		double contexts = CONTACTS * CONNECTIONS_PER_CONTACT;
+		return contexts * 1000 * 1000 * 1000 / duration;
+	}
+}
@@ -0,0 +1,173 @@
+package org.briarproject.transport;
+
+import static org.briarproject.api.transport.TransportConstants.MAX_FRAME_LENGTH;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.briarproject.TestLifecycleModule;
+import org.briarproject.TestSystemModule;
+import org.briarproject.api.crypto.AuthenticatedCipher;
+import org.briarproject.api.crypto.CryptoComponent;
+import org.briarproject.api.crypto.SecretKey;
+import org.briarproject.crypto.CryptoModule;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+// Not a JUnit test
+public class StreamEncryptionPerformanceTest {
+
+	private static final int[] FRAME_LENGTHS = { 1024, MAX_FRAME_LENGTH };
+	private static final int STREAM_LENGTH = 16 * 1024 * 1024;
+	private static final int WRITE_LENGTH = 4096;
+	private static final int ITERATIONS = 5;
+	private static final int THREADS =
+			Runtime.getRuntime().availableProcessors();
+
+	public static void main(String[] args) throws Exception {
+		Injector i = Guice.createInjector(new CryptoModule(),
+				new TestLifecycleModule(), new TestSystemModule());
+		CryptoComponent crypto = i.getInstance(CryptoComponent.class);
+		byte[] secret = new byte[32];
+		new Random().nextBytes(secret);
+		SecretKey frameKey = crypto.deriveFrameKey(secret, 0, true);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		for(int frameLength : FRAME_LENGTHS) {
+			// Warm up, then take the best of several runs
+			runTest(crypto, frameKey, frameLength, false);
+			runTest(crypto, frameKey, frameLength, true);
+			double[] perFrame = new double[2], perStream = new double[2];
+			for(int j = 0; j < ITERATIONS; j++) {
+				max(perFrame, runTest(crypto, frameKey, frameLength, false));
+				max(perStream, runTest(crypto, frameKey, frameLength, true));
+			}
+			System.out.println(frameLength + "-byte frames, key set up per"
+					+ " frame: write " + (int) perFrame[0] + " MB/s, read "
+					+ (int) perFrame[1] + " MB/s");
+			System.out.println(frameLength + "-byte frames, key set up per"
+					+ " stream: write " + (int) perStream[0] + " MB/s, read "
+					+ (int) perStream[1] + " MB/s");
+			// Encrypt frames in parallel with up to two frames per thread
+			runPipelinedTest(crypto, executor, frameKey, frameLength);
+			double pipelined = 0;
+			for(int j = 0; j < ITERATIONS; j++) {
+				pipelined = Math.max(pipelined, runPipelinedTest(crypto,
+						executor, frameKey, frameLength));
+			}
+			System.out.println(frameLength + "-byte frames, pipelined on "
+					+ THREADS + " threads: write " + (int) pipelined + " MB/s");
+		}
+		executor.shutdown();
+	}
+
+	// Returns the write and read throughput in megabytes per second
+	private static double[] runTest(CryptoComponent crypto, SecretKey frameKey,
+			int frameLength, boolean reuseKey) throws Exception {
+		byte[] data = new byte[WRITE_LENGTH];
+		new Random().nextBytes(data);
+		// Write the stream
+		ByteArrayOutputStream out = new ByteArrayOutputStream(STREAM_LENGTH
+				+ STREAM_LENGTH / 8);
+		AuthenticatedCipher cipher = crypto.getFrameCipher();
+		if(!reuseKey) cipher = new PerFrameKeyCipher(cipher);
+		FrameWriter frameWriter = new OutgoingEncryptionLayer(out, cipher,
+				frameKey, frameLength, null);
+		StreamWriterImpl streamWriter = new StreamWriterImpl(frameWriter,
+				frameLength);
+		OutputStream out1 = streamWriter.getOutputStream();
+		long start = System.nanoTime();
+		for(int written = 0; written < STREAM_LENGTH; written += WRITE_LENGTH)
+			out1.write(data);
+		out1.close();
+		long writeDuration = System.nanoTime() - start;
+		// Read the stream back
+		InputStream in = new ByteArrayInputStream(out.toByteArray());
+		cipher = crypto.getFrameCipher();
+		if(!reuseKey) cipher = new PerFrameKeyCipher(cipher);
+		FrameReader frameReader = new IncomingEncryptionLayer(in, cipher,
+				frameKey, frameLength);
+		StreamReaderImpl streamReader = new StreamReaderImpl(frameReader,
+				frameLength);
+		InputStream in1 = streamReader.getInputStream();
+		byte[] buf = new byte[WRITE_LENGTH];
+		start = System.nanoTime();
+		int read = 0;
+		while(true) {
+			int n = in1.read(buf);
+			if(n == -1) break;
+			read += n;
+		}
+		long readDuration = System.nanoTime() - start;
+		if(read != STREAM_LENGTH) throw new AssertionError();
+		return new double[] {
+				getThroughput(writeDuration), getThroughput(readDuration) };
+	}
+
+	// Returns the write throughput in megabytes per second
+	private static double runPipelinedTest(CryptoComponent crypto,
+			ExecutorService executor, SecretKey frameKey, int frameLength)
+			throws Exception {
+		byte[] data = new byte[WRITE_LENGTH];
+		new Random().nextBytes(data);
+		ByteArrayOutputStream out = new ByteArrayOutputStream(STREAM_LENGTH
+				+ STREAM_LENGTH / 8);
+		FrameWriter frameWriter = new PipelinedEncryptionLayer(out, executor,
+				crypto, frameKey, frameLength, null, THREADS * 2);
+		StreamWriterImpl streamWriter = new StreamWriterImpl(frameWriter,
+				frameLength);
+		OutputStream out1 = streamWriter.getOutputStream();
+		long start = System.nanoTime();
+		for(int written = 0; written < STREAM_LENGTH; written += WRITE_LENGTH)
+			out1.write(data);
+		out1.close();
+		return getThroughput(System.nanoTime() - start);
+	}
+
+	private static void max(double[] best, double[] result) {
+		for(int i = 0; i < best.length; i++)
+			best[i] = Math.max(best[i], result[i]);
+	}
+
+	private static double getThroughput(long nanos) {
+		double megabytes = STREAM_LENGTH / (1024.0 * 1024.0);
+		return megabytes * 1000 * 1000 * 1000 / nanos;
+	}
+
+	/**
+	 * Passes a different key object to the cipher for every frame, forcing
+	 * it to set up the key for every frame as it did before key reuse.
+	 */
+	private static class PerFrameKeyCipher implements AuthenticatedCipher {
+
+		private final AuthenticatedCipher cipher;
+
+		private PerFrameKeyCipher(AuthenticatedCipher cipher) {
+			this.cipher = cipher;
+		}
+
+		public void init(boolean encrypt, SecretKey key, byte[] iv,
+				byte[] aad) throws GeneralSecurityException {
+			cipher.init(encrypt, key.copy(), iv, aad);
+		}
+
+		public int doFinal(byte[] input, int inputOff, int len,
+				byte[] output, int outputOff) throws GeneralSecurityException {
+			return cipher.doFinal(input, inputOff, len, output, outputOff);
+		}
+
+		public int getMacLength() {
+			return cipher.getMacLength();
+		}
+
+		public int getBlockSize() {
+			return cipher.getBlockSize();
+		}
+	}
+}
@@ -0,0 +1,75 @@
+package org.briarproject.transport;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.briarproject.TestLifecycleModule;
+import org.briarproject.TestSystemModule;
+import org.briarproject.api.ContactId;
+import org.briarproject.api.TransportId;
+import org.briarproject.api.crypto.CryptoComponent;
+import org.briarproject.api.transport.TemporarySecret;
+import org.briarproject.crypto.CryptoModule;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+// Not a JUnit test
+public class TagPrecomputationPerformanceTest {
+
+	private static final int[] ENDPOINTS = { 1000, 10 * 1000 };
+	private static final int SECRETS_PER_ENDPOINT = 3;
+	private static final int THREADS =
+			Runtime.getRuntime().availableProcessors();
+
+	public static void main(String[] args) throws Exception {
+		Injector i = Guice.createInjector(new CryptoModule(),
+				new TestLifecycleModule(), new TestSystemModule());
+		CryptoComponent crypto = i.getInstance(CryptoComponent.class);
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		// The database isn't used when adding secrets
+		TagRecogniserImpl recogniser =
+				new TagRecogniserImpl(crypto, null, executor);
+		for(int endpoints : ENDPOINTS) {
+			List<TemporarySecret> secrets = createSecrets(endpoints);
+			// Warm up, then measure adding the secrets one at a time, as the
+			// key manager did at startup, and adding them all at once
+			long sequential = Long.MAX_VALUE, parallel = Long.MAX_VALUE;
+			for(int j = 0; j < 2; j++) {
+				long start = System.nanoTime();
+				for(TemporarySecret s : secrets) recogniser.addSecret(s);
+				sequential = System.nanoTime() - start;
+				recogniser.removeSecrets();
+				start = System.nanoTime();
+				recogniser.addSecrets(secrets);
+				parallel = System.nanoTime() - start;
+				recogniser.removeSecrets();
+			}
+			System.out.println(endpoints + " endpoints, sequential: "
+					+ sequential / 1000 / 1000 + " ms");
+			System.out.println(endpoints + " endpoints, parallel on "
+					+ THREADS + " threads: " + parallel / 1000 / 1000 + " ms");
+		}
+		executor.shutdown();
+	}
+
+	private static List<TemporarySecret> createSecrets(int endpoints) {
+		TransportId transportId = new TransportId("id");
+		Random random = new Random();
+		List<TemporarySecret> secrets = new ArrayList<TemporarySecret>();
+		for(int j = 0; j < endpoints; j++) {
+			ContactId c = new ContactId(j + 1);
+			boolean alice = random.nextBoolean();
+			for(int period = 0; period < SECRETS_PER_ENDPOINT; period++) {
+				byte[] secret = new byte[32];
+				random.nextBytes(secret);
+				secrets.add(new TemporarySecret(c, transportId, 0, alice,
+						period, secret, 0, 0, new byte[4]));
+			}
+		}
+		return secrets;
+	}
+}
@@ -0,0 +1,97 @@
+package org.briarproject.transport;
+
+import static org.briarproject.api.transport.TransportConstants.TAG_LENGTH;
+import static org.junit.Assert.assertArrayEquals;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.briarproject.BriarTestCase;
+import org.briarproject.TestLifecycleModule;
+import org.briarproject.TestSystemModule;
+import org.briarproject.api.ContactId;
+import org.briarproject.api.TransportId;
+import org.briarproject.api.crypto.CryptoComponent;
+import org.briarproject.api.crypto.SecretKey;
+import org.briarproject.api.db.DatabaseComponent;
+import org.briarproject.api.transport.StreamContext;
+import org.briarproject.api.transport.TemporarySecret;
+import org.briarproject.crypto.CryptoModule;
+import org.jmock.Expectations;
+import org.jmock.Mockery;
+import org.junit.Test;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+public class TagRecogniserImplTest extends BriarTestCase {
+
+	private static final int CONTACTS = 20;
+
+	private final CryptoComponent crypto;
+	private final TransportId transportId = new TransportId("id");
+
+	public TagRecogniserImplTest() {
+		Injector i = Guice.createInjector(new CryptoModule(),
+				new TestLifecycleModule(), new TestSystemModule());
+		crypto = i.getInstance(CryptoComponent.class);
+	}
+
+	@Test
+	public void testAddSecretsInParallel() throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			testAddSecrets(executor);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testAddSecretsIfExecutorDiscardsTasks() throws Exception {
+		testAddSecrets(new Executor() {
+			public void execute(Runnable r) {}
+		});
+	}
+
+	private void testAddSecrets(Executor executor) throws Exception {
+		Mockery context = new Mockery();
+		final DatabaseComponent db = context.mock(DatabaseComponent.class);
+		context.checking(new Expectations() {{
+			// The reordering windows should be stored
+			exactly(CONTACTS).of(db).setReorderingWindows(
+					with(any(Collection.class)));
+		}});
+		TagRecogniserImpl recogniser =
+				new TagRecogniserImpl(crypto, db, executor);
+		// Add a secret for each contact
+		Random random = new Random();
+		List<TemporarySecret> secrets = new ArrayList<TemporarySecret>();
+		for(int i = 0; i < CONTACTS; i++) {
+			byte[] secret = new byte[32];
+			random.nextBytes(secret);
+			secrets.add(new TemporarySecret(new ContactId(i + 1), transportId,
+					123, random.nextBoolean(), 0, secret, 0, 0, new byte[4]));
+		}
+		recogniser.addSecrets(secrets);
+		// The expected tags for every secret should be recognised
+		byte[] tag = new byte[TAG_LENGTH];
+		for(TemporarySecret s : secrets) {
+			SecretKey tagKey = crypto.deriveTagKey(s.getSecret(),
+					!s.getAlice());
+			crypto.encodeTag(tag, tagKey, 0);
+			tagKey.erase();
+			StreamContext ctx = recogniser.recogniseTag(transportId, tag);
+			assertNotNull(ctx);
+			assertEquals(s.getContactId(), ctx.getContactId());
+			assertArrayEquals(s.getSecret(), ctx.getSecret());
+			assertEquals(0, ctx.getStreamNumber());
+		}
+		context.assertIsSatisfied();
+	}
+}
@@ -0,0 +1,105 @@
+package org.briarproject.transport;
+
+import static org.briarproject.api.transport.TransportConstants.TAG_LENGTH;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Random;
+
+import org.briarproject.TestLifecycleModule;
+import org.briarproject.TestSystemModule;
+import org.briarproject.api.ContactId;
+import org.briarproject.api.TransportId;
+import org.briarproject.api.crypto.CryptoComponent;
+import org.briarproject.api.crypto.SecretKey;
+import org.briarproject.api.db.DatabaseComponent;
+import org.briarproject.api.transport.TemporarySecret;
+import org.briarproject.crypto.CryptoModule;
+
+import com.google.inject.Guice;
+import com.google.inject.Injector;
+
+// Not a JUnit test
+public class TagRecogniserPerformanceTest {
+
+	private static final int CONTACTS = 10 * 1000;
+	private static final int SECRETS_PER_CONTACT = 3;
+	private static final int LOOKUPS = 1000 * 1000;
+
+	public static void main(String[] args) throws Exception {
+		Injector i = Guice.createInjector(new CryptoModule(),
+				new TestLifecycleModule(), new TestSystemModule());
+		CryptoComponent crypto = i.getInstance(CryptoComponent.class);
+		TransportId transportId = new TransportId("id");
+		Random random = new Random();
+		// Create the secrets and the first tag the recogniser should expect
+		// for each of them
+		TemporarySecret[] secrets =
+				new TemporarySecret[CONTACTS * SECRETS_PER_CONTACT];
+		byte[][] tags = new byte[secrets.length][TAG_LENGTH];
+		for(int j = 0; j < secrets.length; j++) {
+			byte[] secret = new byte[32];
+			random.nextBytes(secret);
+			ContactId c = new ContactId(j / SECRETS_PER_CONTACT + 1);
+			long period = j % SECRETS_PER_CONTACT;
+			boolean alice = random.nextBoolean();
+			secrets[j] = new TemporarySecret(c, transportId, 0, alice, period,
+					secret, 0, 0, new byte[4]);
+			SecretKey tagKey = crypto.deriveTagKey(secret, !alice);
+			crypto.encodeTag(tags[j], tagKey, 0);
+			tagKey.erase();
+		}
+		// Measure the memory used by the recogniser
+		long before = getUsedMemory();
+		ReorderingWindowWriter windowWriter =
+				new ReorderingWindowWriter(createDatabaseComponent());
+		TransportTagRecogniser recogniser = new TransportTagRecogniser(crypto,
+				windowWriter, transportId);
+		for(TemporarySecret s : secrets) recogniser.addSecret(s);
+		long after = getUsedMemory();
+		System.out.println(CONTACTS + " contacts, " + secrets.length
+				+ " secrets: " + (after - before) / 1024 + " KiB");
+		// Measure the latency of looking up tags that aren't expected
+		byte[] unknown = new byte[TAG_LENGTH];
+		long start = System.nanoTime();
+		for(int j = 0; j < LOOKUPS; j++) {
+			unknown[j & 15]++;
+			if(recogniser.recogniseTag(unknown) != null)
+				throw new AssertionError();
+		}
+		long duration = System.nanoTime() - start;
+		System.out.println("Unexpected tag: " + duration / LOOKUPS + " ns");
+		// Measure the latency of recognising expected tags, which includes
+		// updating the window and deriving the new expected tags
+		start = System.nanoTime();
+		for(byte[] tag : tags) {
+			if(recogniser.recogniseTag(tag) == null)
+				throw new AssertionError();
+			windowWriter.flush();
+		}
+		duration = System.nanoTime() - start;
+		System.out.println("Expected tag: " + duration / tags.length / 1000
+				+ " us");
+		// Keep the recogniser reachable until the end of the test
+		recogniser.removeSecrets();
+	}
+
+	private static long getUsedMemory() {
+		Runtime runtime = Runtime.getRuntime();
+		for(int i = 0; i < 5; i++) System.gc();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	// Returns a database component that ignores all calls
+	private static DatabaseComponent createDatabaseComponent() {
+		InvocationHandler handler = new InvocationHandler() {
+			public Object invoke(Object proxy, Method m, Object[] args) {
+				return null;
+			}
+		};
+		return (DatabaseComponent) Proxy.newProxyInstance(
+				DatabaseComponent.class.getClassLoader(),
+				new Class<?>[] { DatabaseComponent.class }, handler);
+	}
+}
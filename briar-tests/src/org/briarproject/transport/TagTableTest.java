@@ -0,0 +1,82 @@
+package org.briarproject.transport;
+
+import static org.briarproject.api.transport.TransportConstants.TAG_LENGTH;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.briarproject.BriarTestCase;
+import org.briarproject.api.Bytes;
+import org.junit.Test;
+
+public class TagTableTest extends BriarTestCase {
+
+	private final Random random = new Random();
+
+	@Test
+	public void testPutFindAndRemove() {
+		TagTable<String> table = new TagTable<String>();
+		byte[] tag = createTag(), tag1 = createTag();
+		assertEquals(-1, table.find(tag));
+		assertTrue(table.put(tag, "foo", 123));
+		// Adding the same tag again should have no effect
+		assertFalse(table.put(tag.clone(), "bar", 456));
+		assertEquals(1, table.size());
+		int slot = table.find(tag.clone());
+		assertEquals("foo", table.getValue(slot));
+		assertEquals(123, table.getStreamNumber(slot));
+		assertEquals(-1, table.find(tag1));
+		assertFalse(table.remove(tag1));
+		assertTrue(table.remove(tag));
+		assertTrue(table.isEmpty());
+		assertEquals(-1, table.find(tag));
+	}
+
+	@Test
+	public void testMatchesHashMap() {
+		TagTable<Integer> table = new TagTable<Integer>();
+		Map<Bytes, Integer> expected = new HashMap<Bytes, Integer>();
+		List<byte[]> tags = new ArrayList<byte[]>();
+		// Grow the table, then shrink it again, checking every tag each round
+		for(int round = 0; round < 20; round++) {
+			int operations = round < 10 ? 1000 : -1000;
+			for(int i = 0; i < Math.abs(operations); i++) {
+				if(operations > 0 || tags.isEmpty()) {
+					byte[] tag = createTag();
+					// Use tags that share their first half to cause clashes
+					if(!tags.isEmpty() && random.nextBoolean()) {
+						byte[] other = tags.get(random.nextInt(tags.size()));
+						System.arraycopy(other, 0, tag, 0, 8);
+					}
+					int value = random.nextInt();
+					assertTrue(table.put(tag, value, value & 0xFFFF));
+					expected.put(new Bytes(tag), value);
+					tags.add(tag);
+				} else {
+					byte[] tag = tags.remove(random.nextInt(tags.size()));
+					assertTrue(table.remove(tag));
+					expected.remove(new Bytes(tag));
+				}
+			}
+			assertEquals(expected.size(), table.size());
+			for(byte[] tag : tags) {
+				int slot = table.find(tag);
+				assertTrue(slot != -1);
+				int value = expected.get(new Bytes(tag));
+				assertEquals(value, (int) table.getValue(slot));
+				assertEquals(value & 0xFFFF, table.getStreamNumber(slot));
+			}
+			for(int i = 0; i < 100; i++) assertEquals(-1,
+					table.find(createTag()));
+		}
+	}
+
+	private byte[] createTag() {
+		byte[] tag = new byte[TAG_LENGTH];
+		random.nextBytes(tag);
+		return tag;
+	}
+}
@@ -9,12 +9,14 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Random;
+import java.util.concurrent.Executor;
 
 import org.briarproject.BriarTestCase;
 import org.briarproject.TestLifecycleModule;
 import org.briarproject.TestSystemModule;
 import org.briarproject.api.crypto.AuthenticatedCipher;
 import org.briarproject.api.crypto.CryptoComponent;
+import org.briarproject.api.crypto.CryptoExecutor;
 import org.briarproject.api.crypto.SecretKey;
 import org.briarproject.api.transport.StreamWriterFactory;
 import org.briarproject.crypto.CryptoModule;
@@ -24,6 +26,7 @@ import com.google.inject.AbstractModule;
 import com.google.inject.Guice;
 import com.google.inject.Injector;
 import com.google.inject.Module;
+import com.google.inject.Provides;
 
 public class TransportIntegrationTest extends BriarTestCase {
 
@@ -38,9 +41,12 @@ public class TransportIntegrationTest extends BriarTestCase {
 	public TransportIntegrationTest() {
 		Module testModule = new AbstractModule() {
 			@Override
-			public void configure() {
-				bind(StreamWriterFactory.class).to(
-						StreamWriterFactoryImpl.class);
+			public void configure() {}
+
+			@Provides
+			StreamWriterFactory getStreamWriterFactory(CryptoComponent crypto,
+					@CryptoExecutor Executor cryptoExecutor) {
+				return new StreamWriterFactoryImpl(crypto, cryptoExecutor, 0);
 			}
 		};
 		Injector i = Guice.createInjector(testModule, new CryptoModule(),
@@ -3,7 +3,9 @@ package org.briarproject.transport;
 import static org.briarproject.api.transport.TransportConstants.TAG_LENGTH;
 import static org.junit.Assert.assertArrayEquals;
 
+import java.util.Collection;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.briarproject.BriarTestCase;
 import org.briarproject.api.ContactId;
@@ -11,6 +13,7 @@ import org.briarproject.api.TransportId;
 import org.briarproject.api.crypto.CryptoComponent;
 import org.briarproject.api.crypto.SecretKey;
 import org.briarproject.api.db.DatabaseComponent;
+import org.briarproject.api.transport.ReorderingWindowUpdate;
 import org.briarproject.api.transport.StreamContext;
 import org.briarproject.api.transport.TemporarySecret;
 import org.briarproject.util.ByteUtils;
@@ -57,8 +60,8 @@ public class TransportTagRecogniserTest extends BriarTestCase {
 		}});
 		TemporarySecret s = new TemporarySecret(contactId, transportId, 123,
 				alice, 0, secret, 0, 0, new byte[4]);
-		TransportTagRecogniser recogniser =
-				new TransportTagRecogniser(crypto, db, transportId);
+		TransportTagRecogniser recogniser = new TransportTagRecogniser(crypto,
+				new ReorderingWindowWriter(db), transportId);
 		recogniser.addSecret(s);
 		recogniser.removeSecret(contactId, 0);
 		context.assertIsSatisfied();
@@ -73,6 +76,8 @@ public class TransportTagRecogniserTest extends BriarTestCase {
 		final boolean alice = false;
 		final SecretKey tagKey = context.mock(SecretKey.class);
 		final DatabaseComponent db = context.mock(DatabaseComponent.class);
+		final AtomicReference<Collection<ReorderingWindowUpdate>> stored =
+				new AtomicReference<Collection<ReorderingWindowUpdate>>();
 		context.checking(new Expectations() {{
 			// Add secret
 			oneOf(crypto).deriveTagKey(secret, !alice);
@@ -90,21 +95,31 @@ public class TransportTagRecogniserTest extends BriarTestCase {
 			oneOf(crypto).encodeTag(with(any(byte[].class)), with(tagKey),
 					with(16L));
 			will(new EncodeTagAction());
-			// The updated window should be stored
-			oneOf(db).setReorderingWindow(contactId, transportId, 0, 1,
-					new byte[] {0, 1, 0, 0});
 			oneOf(tagKey).erase();
+			// The updated window should be stored when the writer is flushed
+			oneOf(db).setReorderingWindows(
+					with(any(Collection.class)));
+			will(new StoreWindowsAction(stored));
 			// Recognise tag again - no expectations
 		}});
 		TemporarySecret s = new TemporarySecret(contactId, transportId, 123,
 				alice, 0, secret, 0, 0, new byte[4]);
-		TransportTagRecogniser recogniser =
-				new TransportTagRecogniser(crypto, db, transportId);
+		ReorderingWindowWriter windowWriter = new ReorderingWindowWriter(db);
+		TransportTagRecogniser recogniser = new TransportTagRecogniser(crypto,
+				windowWriter, transportId);
 		recogniser.addSecret(s);
 		// Tag 0 should be expected
 		byte[] tag = new byte[TAG_LENGTH];
 		StreamContext ctx = recogniser.recogniseTag(tag);
 		assertNotNull(ctx);
+		windowWriter.flush();
+		assertEquals(1, stored.get().size());
+		ReorderingWindowUpdate u = stored.get().iterator().next();
+		assertEquals(contactId, u.getContactId());
+		assertEquals(transportId, u.getTransportId());
+		assertEquals(0, u.getPeriod());
+		assertEquals(1, u.getWindowCentre());
+		assertArrayEquals(new byte[] {0, 1, 0, 0}, u.getWindowBitmap());
 		assertEquals(contactId, ctx.getContactId());
 		assertEquals(transportId, ctx.getTransportId());
 		assertArrayEquals(secret, ctx.getSecret());
@@ -129,4 +144,26 @@ public class TransportTagRecogniserTest extends BriarTestCase {
 			return null;
 		}
 	}
+
+	private static class StoreWindowsAction implements Action {
+
+		private final AtomicReference<Collection<ReorderingWindowUpdate>>
+		stored;
+
+		private StoreWindowsAction(
+				AtomicReference<Collection<ReorderingWindowUpdate>> stored) {
+			this.stored = stored;
+		}
+
+		public void describeTo(Description description) {
+			description.appendText("Stores reordering windows");
+		}
+
+		@SuppressWarnings("unchecked")
+		public Object invoke(Invocation invocation) throws Throwable {
+			stored.set((Collection<ReorderingWindowUpdate>)
+					invocation.getParameter(0));
+			return null;
+		}
+	}
 }